@@ -0,0 +1,91 @@
+package org.terifan.truecrypt;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terifan.truecrypt.TrueCryptPageStore.CipherOption;
+import org.terifan.truecrypt.TrueCryptPageStore.DigestOption;
+
+
+/**
+ * Measures reads and writes through a TrueCryptPageStore for every cipher
+ * cascade, with the volume held in memory so that only the cost of the
+ * cascade and the page store itself is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CascadeBenchmark
+{
+	private final static int DATA_SECTORS = 8192;
+
+	@Param
+	public CipherOption cipherOption;
+
+	private TrueCryptPageStore mPageStore;
+	private byte[] mSector;
+	private byte[] mBlock;
+	private long mPageIndex;
+
+
+	@Setup
+	public void setup() throws IOException
+	{
+		MemoryPageStore volume = SyntheticVolume.createVolume(cipherOption, DigestOption.SHA512, DATA_SECTORS);
+
+		mPageStore = TrueCryptPageStore.open(volume, SyntheticVolume.PASSWORD, cipherOption, DigestOption.SHA512);
+		mSector = new byte[512];
+		mBlock = new byte[65536];
+		new Random(1).nextBytes(mBlock);
+		mPageStore.write(0, mBlock);
+	}
+
+
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		mPageStore.close();
+	}
+
+
+	@Benchmark
+	public byte[] readSector() throws IOException
+	{
+		mPageIndex = (mPageIndex + 1) % DATA_SECTORS;
+		mPageStore.read(mPageIndex, mSector);
+		return mSector;
+	}
+
+
+	@Benchmark
+	public byte[] read64K() throws IOException
+	{
+		mPageIndex = (mPageIndex + 128) % DATA_SECTORS;
+		mPageStore.read(mPageIndex, mBlock);
+		return mBlock;
+	}
+
+
+	@Benchmark
+	public byte[] write64K() throws IOException
+	{
+		mPageIndex = (mPageIndex + 128) % DATA_SECTORS;
+		mPageStore.write(mPageIndex, mBlock);
+		return mBlock;
+	}
+}
@@ -0,0 +1,92 @@
+package org.terifan.truecrypt;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures the raw block ciphers: a single 16 byte block and a 4 KiB buffer
+ * encrypted block by block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherBenchmark
+{
+	private final static int BUFFER_SIZE = 4096;
+
+	@Param({"aes", "serpent", "twofish"})
+	public String algorithm;
+
+	private Cipher mCipher;
+	private byte[] mBlock;
+	private byte[] mBuffer;
+
+
+	@Setup
+	public void setup()
+	{
+		Random rnd = new Random(1);
+
+		byte[] key = new byte[32];
+		rnd.nextBytes(key);
+
+		mCipher = SyntheticVolume.createCipher(algorithm, key, 0);
+		mBlock = new byte[16];
+		mBuffer = new byte[BUFFER_SIZE];
+		rnd.nextBytes(mBlock);
+		rnd.nextBytes(mBuffer);
+	}
+
+
+	@Benchmark
+	public byte[] encryptBlock()
+	{
+		mCipher.engineEncryptBlock(mBlock, 0, mBlock, 0);
+		return mBlock;
+	}
+
+
+	@Benchmark
+	public byte[] decryptBlock()
+	{
+		mCipher.engineDecryptBlock(mBlock, 0, mBlock, 0);
+		return mBlock;
+	}
+
+
+	@Benchmark
+	public byte[] encryptBuffer()
+	{
+		for (int offset = 0; offset < BUFFER_SIZE; offset += 16)
+		{
+			mCipher.engineEncryptBlock(mBuffer, offset, mBuffer, offset);
+		}
+		return mBuffer;
+	}
+
+
+	@Benchmark
+	public byte[] decryptBuffer()
+	{
+		for (int offset = 0; offset < BUFFER_SIZE; offset += 16)
+		{
+			mCipher.engineDecryptBlock(mBuffer, offset, mBuffer, offset);
+		}
+		return mBuffer;
+	}
+}
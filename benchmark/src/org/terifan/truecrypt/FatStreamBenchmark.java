@@ -0,0 +1,127 @@
+package org.terifan.truecrypt;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terifan.fat32.FatFile;
+import org.terifan.fat32.FatFileSystem;
+import org.terifan.fat32.FatRandomAccessStream;
+import org.terifan.pagestore.PageStore;
+import org.terifan.truecrypt.TrueCryptPageStore.CipherOption;
+import org.terifan.truecrypt.TrueCryptPageStore.DigestOption;
+
+
+/**
+ * Measures reading a file through FatRandomAccessStream on a synthetic FAT32
+ * filesystem, either stored in plain or inside a TrueCrypt volume.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class FatStreamBenchmark
+{
+	private final static long FILE_LENGTH = 64L << 20;
+	private final static long DATA_SECTORS = (80L << 20) / 512;
+	private final static String FILE_NAME = "benchmark.dat";
+
+	@Param({"PLAIN", "AES", "SERPENT_TWOFISH_AES"})
+	public String volume;
+
+	@Param({"8", "64"})
+	public int sectorsPerCluster;
+
+	private PageStore mPageStore;
+	private FatFileSystem mFileSystem;
+	private FatRandomAccessStream mStream;
+	private byte[] mBuffer;
+	private Random mRandom;
+
+
+	@Setup
+	public void setup() throws IOException
+	{
+		if (volume.equals("PLAIN"))
+		{
+			mPageStore = new MemoryPageStore(DATA_SECTORS, 512);
+		}
+		else
+		{
+			CipherOption cipherOption = CipherOption.valueOf(volume);
+			mPageStore = TrueCryptPageStore.open(SyntheticVolume.createVolume(cipherOption, DigestOption.SHA512, DATA_SECTORS), SyntheticVolume.PASSWORD, cipherOption, DigestOption.SHA512);
+		}
+
+		FatFileSystem.format(mPageStore, sectorsPerCluster);
+
+		mFileSystem = new FatFileSystem(mPageStore);
+		FatFile file = SyntheticVolume.writeFile(mFileSystem, FILE_NAME, FILE_LENGTH);
+		mStream = file.getRandomAccessStream();
+		mBuffer = new byte[65536];
+		mRandom = new Random(1);
+	}
+
+
+	@TearDown
+	public void tearDown() throws IOException
+	{
+		mStream.close();
+		mFileSystem.close();
+	}
+
+
+	/**
+	 * Reads the entire file front to back in 64 KiB chunks.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long sequentialRead() throws IOException
+	{
+		long total = 0;
+
+		mStream.seek(0);
+		for (int n; (n = mStream.read(mBuffer, 0, mBuffer.length)) > 0;)
+		{
+			total += n;
+		}
+
+		return total;
+	}
+
+
+	/**
+	 * Reads 4 KiB at a random 4 KiB aligned position.
+	 */
+	@Benchmark
+	public int randomRead4K() throws IOException
+	{
+		mStream.seek(4096L * mRandom.nextInt((int)(FILE_LENGTH / 4096)));
+
+		return mStream.read(mBuffer, 0, 4096);
+	}
+
+
+	/**
+	 * Reads 64 KiB at a random position not aligned to clusters.
+	 */
+	@Benchmark
+	public int randomRead64K() throws IOException
+	{
+		mStream.seek((long)mRandom.nextInt((int)(FILE_LENGTH - mBuffer.length)));
+
+		return mStream.read(mBuffer, 0, mBuffer.length);
+	}
+}
@@ -0,0 +1,57 @@
+package org.terifan.truecrypt;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terifan.truecrypt.TrueCryptPageStore.DigestOption;
+
+
+/**
+ * Measures the header key derivation for each digest using the iteration
+ * count TrueCrypt uses for it. The derived key is large enough for a three
+ * cipher cascade, which is what a volume open computes for every digest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyDerivationBenchmark
+{
+	@Param
+	public DigestOption digestOption;
+
+	private byte[] mPassword;
+	private byte[] mSalt;
+	private int mIterations;
+
+
+	@Setup
+	public void setup()
+	{
+		mPassword = SyntheticVolume.PASSWORD.getBytes();
+		mSalt = new byte[64];
+		new Random(1).nextBytes(mSalt);
+		mIterations = SyntheticVolume.getIterations(digestOption);
+	}
+
+
+	@Benchmark
+	public byte[] generateKey()
+	{
+		HMAC hmac = new HMAC(digestOption.getDigestInstance(), mPassword);
+
+		return PBKDF2.generateKeyBytes(hmac, mSalt, mIterations, 3 * 64);
+	}
+}
@@ -0,0 +1,93 @@
+package org.terifan.truecrypt;
+
+import java.io.IOException;
+import org.terifan.pagestore.PageStore;
+
+
+/**
+ * A PageStore backed by a byte array, used by the benchmarks to measure the
+ * cost of the crypto and filesystem layers without disk I/O.
+ */
+class MemoryPageStore implements PageStore
+{
+	private final int mPageSize;
+	private byte[] mBuffer;
+
+
+	public MemoryPageStore(long aPageCount, int aPageSize)
+	{
+		mPageSize = aPageSize;
+		mBuffer = new byte[Math.toIntExact(aPageCount * aPageSize)];
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte[] aBuffer) throws IOException
+	{
+		read(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (aPageIndex * mPageSize + aLength > mBuffer.length)
+		{
+			throw new IOException("Reading beyond end of store: page: " + aPageIndex);
+		}
+
+		System.arraycopy(mBuffer, (int)(aPageIndex * mPageSize), aBuffer, aOffset, aLength);
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte[] aBuffer) throws IOException
+	{
+		write(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (aPageIndex * mPageSize + aLength > mBuffer.length)
+		{
+			throw new IOException("Writing beyond end of store: page: " + aPageIndex);
+		}
+
+		System.arraycopy(aBuffer, aOffset, mBuffer, (int)(aPageIndex * mPageSize), aLength);
+	}
+
+
+	@Override
+	public long getPageCount() throws IOException
+	{
+		return mBuffer.length / mPageSize;
+	}
+
+
+	@Override
+	public int getPageSize() throws IOException
+	{
+		return mPageSize;
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+	}
+
+
+	@Override
+	public void flush() throws IOException
+	{
+	}
+
+
+	@Override
+	public void resize(long aPageCount) throws IOException
+	{
+		mBuffer = java.util.Arrays.copyOf(mBuffer, Math.toIntExact(aPageCount * mPageSize));
+	}
+}
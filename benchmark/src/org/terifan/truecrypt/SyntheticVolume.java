@@ -0,0 +1,159 @@
+package org.terifan.truecrypt;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.terifan.fat32.FatFile;
+import org.terifan.fat32.FatFileSystem;
+import org.terifan.fat32.FatRandomAccessStream;
+import org.terifan.truecrypt.TrueCryptPageStore.CipherOption;
+import org.terifan.truecrypt.TrueCryptPageStore.DigestOption;
+import org.terifan.util.ByteArray;
+
+
+/**
+ * Builds TrueCrypt volumes in memory and files in FAT32 filesystems for the
+ * benchmarks. The volumes use a fixed seed so that every fork measures the
+ * same data. Filesystems are formatted with FatFileSystem.format.
+ */
+class SyntheticVolume
+{
+	public final static String PASSWORD = "benchmark";
+
+	private final static int SECTOR_SIZE = 512;
+	private final static int DATA_AREA_OFFSET = 131072;
+
+
+	private SyntheticVolume()
+	{
+	}
+
+
+	/**
+	 * Creates a TrueCrypt volume with a version 5 header followed by the data
+	 * area and the reserved backup header area. The data area is left
+	 * uninitialized.
+	 *
+	 * @param aDataSectors
+	 *   number of 512 byte sectors in the data area
+	 * @return
+	 *   a MemoryPageStore holding the volume
+	 */
+	public static MemoryPageStore createVolume(CipherOption aCipherOption, DigestOption aDigestOption, long aDataSectors) throws IOException
+	{
+		Random rnd = new Random(1);
+
+		byte[] masterKey = new byte[256];
+		rnd.nextBytes(masterKey);
+
+		byte[] header = new byte[SECTOR_SIZE];
+		rnd.nextBytes(header);
+
+		ByteArray.BE.putInt(header, 64, 0x54525545); // "TRUE"
+		ByteArray.BE.putShort(header, 68, (short)5);
+		ByteArray.BE.putShort(header, 70, (short)0x0700);
+		System.arraycopy(masterKey, 0, header, 256, 256);
+		ByteArray.BE.putInt(header, 72, crc(header, 256, 256));
+		ByteArray.BE.putLong(header, 92, 0);
+		ByteArray.BE.putLong(header, 100, aDataSectors * SECTOR_SIZE);
+		ByteArray.BE.putLong(header, 108, DATA_AREA_OFFSET);
+		ByteArray.BE.putLong(header, 116, aDataSectors * SECTOR_SIZE);
+		ByteArray.BE.putInt(header, 124, 0);
+		ByteArray.BE.putInt(header, 128, SECTOR_SIZE);
+		ByteArray.BE.putInt(header, 252, crc(header, 64, 188));
+
+		String[] algorithms = getAlgorithms(aCipherOption);
+
+		HMAC hmac = new HMAC(aDigestOption.getDigestInstance(), PASSWORD.getBytes());
+		byte[] headerKey = PBKDF2.generateKeyBytes(hmac, Arrays.copyOf(header, 64), getIterations(aDigestOption), 64 * algorithms.length);
+
+		XTS xts = new XTS(SECTOR_SIZE);
+		for (int i = 0; i < algorithms.length; i++)
+		{
+			Cipher cipher = createCipher(algorithms[i], headerKey, i);
+			Cipher tweakCipher = createCipher(algorithms[i], headerKey, i + algorithms.length);
+			xts.encrypt(header, 64, 448, 0, cipher, tweakCipher);
+		}
+
+		MemoryPageStore store = new MemoryPageStore(2 * DATA_AREA_OFFSET / SECTOR_SIZE + aDataSectors, SECTOR_SIZE);
+		store.write(0, header);
+
+		return store;
+	}
+
+
+	/**
+	 * Creates a file in the root directory filled with random data and returns
+	 * it as read back from the directory.
+	 */
+	public static FatFile writeFile(FatFileSystem aFileSystem, String aName, long aLength) throws IOException
+	{
+		Random rnd = new Random(aLength);
+		byte[] buffer = new byte[1024 * 1024];
+
+		FatFile file = aFileSystem.getFile("").createFile(aName);
+
+		try (FatRandomAccessStream out = file.getRandomAccessStream())
+		{
+			for (long remaining = aLength; remaining > 0; remaining -= buffer.length)
+			{
+				rnd.nextBytes(buffer);
+				out.write(buffer, 0, (int)Math.min(remaining, buffer.length));
+			}
+		}
+
+		return aFileSystem.getFile(aName);
+	}
+
+
+	/**
+	 * Returns the algorithms of a cascade in the order they are applied when
+	 * encrypting.
+	 */
+	public static String[] getAlgorithms(CipherOption aCipherOption)
+	{
+		return aCipherOption.name().toLowerCase().split("_");
+	}
+
+
+	public static int getIterations(DigestOption aDigestOption)
+	{
+		return aDigestOption == DigestOption.RIPEMD160 ? 2000 : 1000;
+	}
+
+
+	public static Cipher createCipher(String aAlgorithm)
+	{
+		switch (aAlgorithm)
+		{
+			case "aes":
+				return new AES();
+			case "serpent":
+				return new Serpent();
+			case "twofish":
+				return new Twofish();
+		}
+
+		throw new IllegalArgumentException(aAlgorithm);
+	}
+
+
+	/**
+	 * Creates a cipher initialized with the 32 byte key at the index provided.
+	 */
+	public static Cipher createCipher(String aAlgorithm, byte[] aKeyData, int aKeyIndex)
+	{
+		Cipher cipher = createCipher(aAlgorithm);
+		cipher.engineInit(new SecretKey(aKeyData, 32 * aKeyIndex, 32));
+		return cipher;
+	}
+
+
+	private static int crc(byte[] aBuffer, int aOffset, int aLength)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(aBuffer, aOffset, aLength);
+		return (int)crc.getValue();
+	}
+}
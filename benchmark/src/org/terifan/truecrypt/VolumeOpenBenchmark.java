@@ -0,0 +1,65 @@
+package org.terifan.truecrypt;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.terifan.truecrypt.TrueCryptPageStore.CipherOption;
+import org.terifan.truecrypt.TrueCryptPageStore.DigestOption;
+
+
+/**
+ * Measures the latency of opening a volume. Without hints every combination
+ * of digest and cipher cascade is tried until the header decrypts, so the
+ * digest the volume was created with decides how many key derivations run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VolumeOpenBenchmark
+{
+	@Param
+	public DigestOption digestOption;
+
+	@Param({"AES", "SERPENT_TWOFISH_AES"})
+	public CipherOption cipherOption;
+
+	private MemoryPageStore mVolume;
+
+
+	@Setup
+	public void setup() throws IOException
+	{
+		mVolume = SyntheticVolume.createVolume(cipherOption, digestOption, 2048);
+	}
+
+
+	@Benchmark
+	public TrueCryptPageStore open() throws IOException
+	{
+		TrueCryptPageStore pageStore = TrueCryptPageStore.open(mVolume, SyntheticVolume.PASSWORD);
+		pageStore.close();
+		return pageStore;
+	}
+
+
+	@Benchmark
+	public TrueCryptPageStore openWithHints() throws IOException
+	{
+		TrueCryptPageStore pageStore = TrueCryptPageStore.open(mVolume, SyntheticVolume.PASSWORD, cipherOption, digestOption);
+		pageStore.close();
+		return pageStore;
+	}
+}
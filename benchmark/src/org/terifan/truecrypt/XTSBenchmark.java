@@ -0,0 +1,92 @@
+package org.terifan.truecrypt;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Measures XTS mode with a single cipher. The cost is reported per 512 byte
+ * data unit, both for a lone unit and for units processed in a 64 KiB run
+ * where the tweak computation is amortized.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XTSBenchmark
+{
+	private final static int UNIT_SIZE = 512;
+	private final static int UNITS_PER_RUN = 128;
+
+	@Param({"aes", "serpent", "twofish"})
+	public String algorithm;
+
+	private XTS mXTS;
+	private Cipher mCipher;
+	private Cipher mTweakCipher;
+	private byte[] mBuffer;
+
+
+	@Setup
+	public void setup()
+	{
+		Random rnd = new Random(1);
+
+		byte[] key = new byte[64];
+		rnd.nextBytes(key);
+
+		mXTS = new XTS(UNIT_SIZE);
+		mCipher = SyntheticVolume.createCipher(algorithm, key, 0);
+		mTweakCipher = SyntheticVolume.createCipher(algorithm, key, 1);
+		mBuffer = new byte[UNIT_SIZE * UNITS_PER_RUN];
+		rnd.nextBytes(mBuffer);
+	}
+
+
+	@Benchmark
+	public byte[] encryptUnit()
+	{
+		mXTS.encrypt(mBuffer, 0, UNIT_SIZE, 256, mCipher, mTweakCipher);
+		return mBuffer;
+	}
+
+
+	@Benchmark
+	public byte[] decryptUnit()
+	{
+		mXTS.decrypt(mBuffer, 0, UNIT_SIZE, 256, mCipher, mTweakCipher);
+		return mBuffer;
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(UNITS_PER_RUN)
+	public byte[] encryptRun()
+	{
+		mXTS.encrypt(mBuffer, 0, mBuffer.length, 256, mCipher, mTweakCipher);
+		return mBuffer;
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(UNITS_PER_RUN)
+	public byte[] decryptRun()
+	{
+		mXTS.decrypt(mBuffer, 0, mBuffer.length, 256, mCipher, mTweakCipher);
+		return mBuffer;
+	}
+}
@@ -1,77 +1,217 @@
 package org.terifan.fat32;
 
-import org.terifan.util.Cache;
+import org.terifan.pagestore.AsyncPageStore;
+import org.terifan.pagestore.PageRange;
+import org.terifan.pagestore.PageStore;
+import org.terifan.util.Tuple;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
 import static org.terifan.util.ByteArray.LE;
 
 
+/**
+ * The allocation table is read without locking: the sectors published in the
+ * sector cache are never modified, a writer publishes a modified copy of a
+ * sector instead. Chains can therefore be traced by any number of threads
+ * concurrently with each other and with a writer. Methods modifying the table
+ * are synchronized.
+ */
 class FatAllocationTable
 {
+	private final static long END_OF_CHAIN = 0x0FFFFFFFL;
+	private final static int SCAN_CHUNK_SIZE = 4 << 20;
+	private final static int CACHE_SECTORS = 1024;
+
 	private FatFileSystem mFileSystem;
-	private Cache<Integer, byte[]> mReadCache;
-	private TreeMap<Integer, byte[]> mWriteCache;
+	private ConcurrentHashMap<Integer, Sector> mSectors;
+	private ConcurrentSkipListMap<Integer, byte[]> mWriteCache;
+	private ReentrantLock mEvictLock;
+	private volatile long mVersion;
+	private int mSectorSize;
+	private int mEntriesPerSector;
 	private long mFatSize;
 	private long mFatOffset;
 	private FreeSpaceMap mFreeSpace;
+	private long mLastAllocatedCluster;
+	private long mScanClusterLimit;
+	private int mScanSectorCount;
+	private int mScanStart;
+	private int mScannedSectors;
+	private long mUnscannedFreeCount;
+	private FutureTask<FreeSpaceMap> mFreeSpaceScan;
 
 
 	FatAllocationTable(FatFileSystem aFileSystem) throws IOException
 	{
 		mFileSystem = aFileSystem;
-		mReadCache = new Cache<>(100);
-		mWriteCache = new TreeMap<>();
-		mFreeSpace = new FreeSpaceMap();
+		mSectors = new ConcurrentHashMap<>();
+		mWriteCache = new ConcurrentSkipListMap<>();
+		mEvictLock = new ReentrantLock();
 
+		mSectorSize = mFileSystem.getBootSector().getBytesPerSector();
+		mEntriesPerSector = mSectorSize / 4;
 		mFatOffset = mFileSystem.getBootSector().getReservedSectorCount();
 		mFatSize = mFileSystem.getBootSector().getSectorsPerFat();
-
-		findFreeSpace(0);
 	}
 
 
-	public synchronized byte[] readSector(Integer aSectorIndex) throws IOException
+	/**
+	 * Starts building the free space map in a background thread unless it's
+	 * already built or being built. The map is otherwise built when the
+	 * first cluster is allocated or freed.
+	 */
+	public synchronized void startFreeSpaceScan()
 	{
-//		if (mReadCache.containsKey(aSectorIndex))
-//		{
-//			System.out.println("Reading FAT sector " + aSectorIndex + " from read-cache");
-//		}
-//		else if (mWriteCache.containsKey(aSectorIndex))
-//		{
-//			System.out.println("Reading FAT sector " + aSectorIndex + " from write-cache");
-//		}
-//		else
-//		{
-//			System.out.println("Reading FAT sector " + aSectorIndex + " from disk");
-//		}
+		if (mFreeSpace == null && mFreeSpaceScan == null)
+		{
+			mFreeSpaceScan = new FutureTask<>(() -> findFreeSpace());
 
-		byte[] buffer = mReadCache.get(aSectorIndex);
+			Thread thread = new Thread(mFreeSpaceScan, "FAT free space scan");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
 
-		if (buffer == null)
+
+	/**
+	 * Returns the free space map, building it or waiting for a background
+	 * scan to complete if necessary. The allocation table is only modified
+	 * through the free space map so no changes can be pending when the scan
+	 * is performed.
+	 */
+	private FreeSpaceMap getFreeSpace() throws IOException
+	{
+		if (mFreeSpace == null)
 		{
-			buffer = mWriteCache.get(aSectorIndex);
+			if (mFreeSpaceScan != null)
+			{
+				try
+				{
+					mFreeSpace = mFreeSpaceScan.get();
+				}
+				catch (InterruptedException | ExecutionException e)
+				{
+					throw new IOException("Failed to scan the allocation table", e);
+				}
+				finally
+				{
+					mFreeSpaceScan = null;
+				}
+			}
+			else
+			{
+				mFreeSpace = findFreeSpace();
+			}
 		}
-		if (buffer == null)
+
+		return mFreeSpace;
+	}
+
+
+	/**
+	 * Returns a sector of the allocation table. The buffer returned is shared
+	 * and must not be modified.
+	 */
+	public byte[] readSector(int aSectorIndex) throws IOException
+	{
+		long version = mVersion;
+
+		Sector sector = mSectors.get(aSectorIndex);
+
+		if (sector != null)
 		{
-			buffer = new byte[512];
+			if (!sector.mReferenced)
+			{
+				sector.mReferenced = true;
+			}
+			return sector.mBuffer;
+		}
+
+		byte[] buffer = new byte[mSectorSize];
+
+		mFileSystem.getPageStore().read(mFatOffset + aSectorIndex, buffer);
 
-			mFileSystem.getPageStore().read(mFatOffset + aSectorIndex, buffer);
+		// if sectors were committed since the lookup the image read may already
+		// be stale when it's published; it's then returned but not cached
+		Sector loaded = new Sector(buffer);
+		sector = mSectors.compute(aSectorIndex, (k, v) -> v != null || mVersion != version ? v : loaded);
 
-			mReadCache.put(aSectorIndex, buffer, 1);
+		if (sector == loaded && mSectors.size() > CACHE_SECTORS)
+		{
+			evict();
 		}
 
-		return buffer;
+		return sector != null ? sector.mBuffer : buffer;
 	}
 
 
-	public synchronized void writeSector(Integer aSectorIndex, byte[] aBuffer)
+	/**
+	 * Replaces a sector of the allocation table. The buffer is published to
+	 * concurrent readers and must not be modified after this call.
+	 */
+	public synchronized void writeSector(int aSectorIndex, byte[] aBuffer) throws IOException
 	{
-		System.out.println("FAT::writeSector(" + aSectorIndex + ") : " + (mReadCache.containsKey(aSectorIndex) ? "READ" : mWriteCache.containsKey(aSectorIndex) ? "WRITE" : "NEW"));
-
-		mReadCache.remove(aSectorIndex);
+		mFileSystem.beginUpdate();
 
 		mWriteCache.put(aSectorIndex, aBuffer);
+		mSectors.put(aSectorIndex, new Sector(aBuffer));
+	}
+
+
+	/**
+	 * Removes clean sectors from the cache using the clock algorithm: a sector
+	 * read since the last sweep is spared once. Sectors with pending writes are
+	 * never removed. Only one thread evicts at a time; others skip eviction.
+	 */
+	private void evict()
+	{
+		if (!mEvictLock.tryLock())
+		{
+			return;
+		}
+
+		try
+		{
+			int target = CACHE_SECTORS * 3 / 4;
+
+			for (int pass = 0; pass < 2 && mSectors.size() > target; pass++)
+			{
+				for (Map.Entry<Integer, Sector> entry : mSectors.entrySet())
+				{
+					Sector sector = entry.getValue();
+
+					if (sector.mReferenced)
+					{
+						sector.mReferenced = false;
+					}
+					else if (!mWriteCache.containsKey(entry.getKey()) && mSectors.remove(entry.getKey(), sector) && mSectors.size() <= target)
+					{
+						break;
+					}
+				}
+			}
+		}
+		finally
+		{
+			mEvictLock.unlock();
+		}
 	}
 
 
@@ -82,30 +222,95 @@ class FatAllocationTable
 			return;
 		}
 
-		for (int fatIndex = 0; fatIndex < mFileSystem.getBootSector().getFatCount(); fatIndex++)
+		// The commit is a barrier: cluster data written before the commit must
+		// reach the disk before the allocation table referencing it and the
+		// allocation table before any later writes.
+		mFileSystem.getPageStore().flush();
+
+		writeSectorRuns();
+
+		// the version must change before the sectors can be evicted, see readSector
+		mVersion++;
+		mWriteCache.clear();
+
+		FatInfoSector infoSector = mFileSystem.getInfoSector();
+		if (mFreeSpace != null)
 		{
-			long fatOffset = mFatOffset + fatIndex * mFatSize;
+			infoSector.setFreeClusterCount(mFreeSpace.getFreeCount() + mUnscannedFreeCount);
+		}
+		if (mLastAllocatedCluster != 0)
+		{
+			infoSector.setAllocatedClusterIndex(mLastAllocatedCluster);
+		}
+		infoSector.commitChanges();
 
-			for (Integer sectorIndex : mWriteCache.keySet())
-			{
-				System.out.println("commitSector(" + sectorIndex + ")");
+		mFileSystem.getPageStore().flush();
+	}
+
+
+	/**
+	 * Writes the pending sectors to every copy of the allocation table.
+	 * Consecutive sectors are joined into runs written with a single call per
+	 * copy. When the PageStore is asynchronous all runs of all copies are
+	 * written concurrently, allowing an encrypting store to encrypt the copies
+	 * in parallel.
+	 */
+	private void writeSectorRuns() throws IOException
+	{
+		PageStore pageStore = mFileSystem.getPageStore();
 
-				byte[] buffer = mWriteCache.get(sectorIndex);
+		ArrayList<PageRange> runs = new ArrayList<>();
 
-				mFileSystem.getPageStore().write(fatOffset + sectorIndex, buffer);
+		for (Map.Entry<Integer, byte[]> entry = mWriteCache.firstEntry(); entry != null;)
+		{
+			int start = entry.getKey();
+			int count = 1;
+
+			while (mWriteCache.containsKey(start + count))
+			{
+				count++;
 			}
+
+			byte[] buffer = new byte[mSectorSize * count];
+			for (int i = 0; i < count; i++, entry = mWriteCache.higherEntry(entry.getKey()))
+			{
+				System.arraycopy(entry.getValue(), 0, buffer, mSectorSize * i, mSectorSize);
+			}
+
+			runs.add(new PageRange(start, buffer, 0, buffer.length));
 		}
 
-		/*
-		// this code is probably polluting the read cache !!
-		for (Integer sectorIndex : mWriteCache.keySet())
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+
+		for (int fatIndex = 0; fatIndex < mFileSystem.getBootSector().getFatCount(); fatIndex++)
 		{
-			mReadCache.put(sectorIndex, mWriteCache.remove(sectorIndex), 1);
+			long fatOffset = mFatOffset + fatIndex * mFatSize;
+
+			for (PageRange run : runs)
+			{
+				if (pageStore instanceof AsyncPageStore)
+				{
+					futures.add(((AsyncPageStore)pageStore).writeAsync(fatOffset + run.getPageIndex(), run.getBuffer(), 0, run.getLength()));
+				}
+				else
+				{
+					pageStore.write(fatOffset + run.getPageIndex(), run.getBuffer(), 0, run.getLength());
+				}
+			}
 		}
-		 */
-		mWriteCache.clear();
 
-		// TODO: mFileSystem.getInfoSector().commitChanges();
+		try
+		{
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+		}
+		catch (CompletionException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
 	}
 
 
@@ -124,13 +329,13 @@ class FatAllocationTable
 	 * @return
 	 * true if the end of chain was reached
 	 */
-	public synchronized boolean getChain(long aStartCluster, int aReadMaxClusters, ArrayList<Long> aResultList) throws IOException
+	public boolean getChain(long aStartCluster, int aReadMaxClusters, ArrayList<Long> aResultList) throws IOException
 	{
 		byte[] buffer = null;
 
 		for (long cluster = aStartCluster, prevSectorIndex = -1; aReadMaxClusters-- >= 0;)
 		{
-			int sectorIndex = (int)(cluster / (512 / 4));
+			int sectorIndex = (int)(cluster / mEntriesPerSector);
 
 			if (sectorIndex != prevSectorIndex)
 			{
@@ -138,7 +343,7 @@ class FatAllocationTable
 				prevSectorIndex = sectorIndex;
 			}
 
-			cluster = LE.getUnsignedInt(buffer, 4 * (int)(cluster % (512 / 4)));
+			cluster = LE.getUnsignedInt(buffer, 4 * (int)(cluster % mEntriesPerSector)) & 0x0FFFFFFFL;
 
 			if (cluster >= 0xFFFFFF8L)
 			{
@@ -164,57 +369,230 @@ class FatAllocationTable
 	}
 
 
-	/*
-	public long createChain(int aClusterCount)
+	/**
+	 * Allocates a new cluster chain. Clusters are allocated as contiguous
+	 * extents whenever the free space permits.
+	 *
+	 * @param aClusterCount
+	 *   number of clusters to allocate
+	 * @param aResultList
+	 *   the clusters allocated are appended to this list
+	 * @return
+	 *   the first cluster of the new chain
+	 */
+	public synchronized long createChain(int aClusterCount, ArrayList<Long> aResultList) throws IOException
+	{
+		int first = aResultList.size();
+
+		allocateClusters(aClusterCount, -1, aResultList);
+		linkClusters(0, aResultList, first);
+
+		return aResultList.get(first);
+	}
+
+
+	/**
+	 * Appends clusters to the end of a cluster chain.
+	 *
+	 * @param aLastCluster
+	 *   the last cluster of the chain
+	 * @param aClusterCount
+	 *   number of clusters to allocate
+	 * @param aResultList
+	 *   the clusters allocated are appended to this list
+	 */
+	public synchronized void extendChain(long aLastCluster, int aClusterCount, ArrayList<Long> aResultList) throws IOException
 	{
+		int first = aResultList.size();
+
+		allocateClusters(aClusterCount, (int)aLastCluster + 1, aResultList);
+		linkClusters(aLastCluster, aResultList, first);
 	}
+
+
+	/**
+	 * Allocates clusters preferring to continue at the cluster provided so
+	 * that a growing chain stays contiguous; each following extent continues
+	 * where the previous ended if possible.
+	 */
+	private void allocateClusters(int aClusterCount, int aPreferredCluster, ArrayList<Long> aResultList) throws IOException
+	{
+		FreeSpaceMap freeSpace = getFreeSpace();
+
+		while (freeSpace.getFreeCount() < aClusterCount && mScannedSectors < mScanSectorCount)
+		{
+			scanNextChunk(freeSpace);
+		}
+		if (freeSpace.getFreeCount() < aClusterCount)
+		{
+			throw new IOException("Insufficient free space: required: " + aClusterCount + " clusters, available: " + freeSpace.getFreeCount());
+		}
+
+		for (int remaining = aClusterCount; remaining > 0;)
+		{
+			Tuple<Integer,Integer> extent = freeSpace.alloc(remaining, aPreferredCluster);
+
+			for (int i = 0; i < extent.getSecond(); i++)
+			{
+				aResultList.add((long)(extent.getFirst() + i));
+			}
+
+			remaining -= extent.getSecond();
+			mLastAllocatedCluster = extent.getFirst() + extent.getSecond() - 1;
+			aPreferredCluster = extent.getFirst() + extent.getSecond();
+		}
+	}
+
+
+	/**
+	 * Adds clusters appended to the file system to the free space map. The
+	 * allocation table entries of the clusters are cleared since the table
+	 * may contain anything beyond the last cluster. Must be called before the
+	 * cluster count in the boot sector is updated since the free space map is
+	 * built from the clusters currently in the file system.
+	 *
+	 * @param aFirstCluster
+	 *   the first cluster added
+	 * @param aClusterCount
+	 *   number of clusters added
 	 */
+	public synchronized void addClusters(long aFirstCluster, long aClusterCount) throws IOException
+	{
+		FreeSpaceMap freeSpace = getFreeSpace();
+
+		// the added clusters are beyond the table scanned so the scan must be completed first
+		while (mScannedSectors < mScanSectorCount)
+		{
+			scanNextChunk(freeSpace);
+		}
+
+		byte[] buffer = null;
+		int prevSectorIndex = -1;
+
+		for (long cluster = aFirstCluster; cluster < aFirstCluster + aClusterCount; cluster++)
+		{
+			int sectorIndex = (int)(cluster / mEntriesPerSector);
+
+			if (sectorIndex != prevSectorIndex)
+			{
+				if (buffer != null)
+				{
+					writeSector(prevSectorIndex, buffer);
+				}
+
+				buffer = readSector(sectorIndex).clone();
+				prevSectorIndex = sectorIndex;
+			}
 
-	public void extendChain(long aStartCluster, int aClusterCount) throws IOException
+			int offset = 4 * (int)(cluster % mEntriesPerSector);
+
+			LE.putInt(buffer, offset, (int)(LE.getUnsignedInt(buffer, offset) & 0xF0000000L));
+		}
+
+		if (buffer != null)
+		{
+			writeSector(prevSectorIndex, buffer);
+		}
+
+		freeSpace.free((int)aFirstCluster, (int)aClusterCount);
+	}
+
+
+	/**
+	 * Writes the allocation table entries linking the clusters in the list
+	 * starting at the index provided. The last cluster is marked as end of
+	 * chain. Entries sharing a sector are updated with a single sector write.
+	 */
+	private void linkClusters(long aPrevCluster, ArrayList<Long> aClusters, int aFromIndex) throws IOException
 	{
-		ArrayList<Long> resultList = new ArrayList<>();
-		getChain(aStartCluster, Integer.MAX_VALUE, resultList);
+		byte[] buffer = null;
+		int prevSectorIndex = -1;
+
+		for (int i = aFromIndex - 1; i < aClusters.size(); i++)
+		{
+			long cluster = i < aFromIndex ? aPrevCluster : aClusters.get(i);
+			long nextCluster = i + 1 < aClusters.size() ? aClusters.get(i + 1) : END_OF_CHAIN;
+
+			if (cluster < 2)
+			{
+				continue;
+			}
+
+			int sectorIndex = (int)(cluster / mEntriesPerSector);
+
+			if (sectorIndex != prevSectorIndex)
+			{
+				if (buffer != null)
+				{
+					writeSector(prevSectorIndex, buffer);
+				}
+
+				buffer = readSector(sectorIndex).clone();
+				prevSectorIndex = sectorIndex;
+			}
+
+			int offset = 4 * (int)(cluster % mEntriesPerSector);
+
+			// the upper four bits of an entry are reserved and must be preserved
+			LE.putInt(buffer, offset, (int)(LE.getUnsignedInt(buffer, offset) & 0xF0000000L | nextCluster));
+		}
+
+		if (buffer != null)
+		{
+			writeSector(prevSectorIndex, buffer);
+		}
 	}
 
 
 	private int freeClusterChain(long aStartCluster, boolean aFreeStartCluster) throws IOException
 	{
+		FreeSpaceMap freeSpace = getFreeSpace();
 		byte[] buffer = null;
 		int freeClusterCount = 0;
 		int prevSectorIndex = -1;
 
 		for (long cluster = aStartCluster;;)
 		{
-			int sectorIndex = (int)(cluster / (512 / 4));
+			int sectorIndex = (int)(cluster / mEntriesPerSector);
 
 			if (sectorIndex != prevSectorIndex)
 			{
-				if (freeClusterCount > 0)
+				if (buffer != null)
 				{
 					writeSector(prevSectorIndex, buffer);
 				}
 
-				buffer = readSector(sectorIndex);
+				buffer = readSector(sectorIndex).clone();
 				prevSectorIndex = sectorIndex;
 			}
 
-			int offset = 4 * (int)(cluster % (512 / 4));
+			int offset = 4 * (int)(cluster % mEntriesPerSector);
 
-			long nextCluster = LE.getUnsignedInt(buffer, offset);
+			long entry = LE.getUnsignedInt(buffer, offset);
 
-			if (aFreeStartCluster || freeClusterCount > 0)
+			if (aFreeStartCluster || cluster != aStartCluster)
 			{
-				LE.putInt(buffer, offset, 0);
+				LE.putInt(buffer, offset, (int)(entry & 0xF0000000L));
+				freeClusterCount++;
+
+				// clusters in the part of the table not yet scanned are found when it's scanned
+				if (isScanned(cluster))
+				{
+					freeSpace.free((int)cluster, 1);
+				}
+				else
+				{
+					mUnscannedFreeCount++;
+				}
 			}
 			else
 			{
-				LE.putInt(buffer, offset, 0xFFFFFFFF);
+				LE.putInt(buffer, offset, (int)(entry & 0xF0000000L | END_OF_CHAIN));
 			}
 
-			cluster = nextCluster;
-			freeClusterCount++;
+			cluster = entry & 0x0FFFFFFFL;
 
-			if (cluster >= 0xFFFFFF8L)
+			if (cluster >= 0xFFFFFF8L || cluster < 2)
 			{
 				break;
 			}
@@ -226,41 +604,195 @@ class FatAllocationTable
 	}
 
 
-	private void findFreeSpace(int aMinimumClusterCount) throws IOException
+	/**
+	 * Builds the free space map by scanning the allocation table. The table is
+	 * read in large chunks which are decoded in parallel; each chunk produces
+	 * a list of free extents in ascending order and the extents are merged
+	 * into the free space map in chunk order, joining extents spanning chunk
+	 * boundaries.
+	 *
+	 * When the FSInfo sector is valid the full scan is deferred: only the
+	 * chunk starting at the sector of the next free cluster hint is scanned
+	 * and the following chunks, wrapping around at the end of the table, are
+	 * scanned when an allocation needs more clusters than found so far, see
+	 * scanNextChunk. The free cluster count of the FSInfo sector stands in for
+	 * the part of the table not yet scanned.
+	 */
+	private FreeSpaceMap findFreeSpace() throws IOException
 	{
-//		long t = System.nanoTime();
-		int pointersPerSector = mFileSystem.getBootSector().getBytesPerSector() / 4;
-		for (int sectorIndex = 0; sectorIndex < mFatSize; sectorIndex++)
+		FreeSpaceMap freeSpace = new FreeSpaceMap();
+
+		long clusterLimit = mFileSystem.getClusterCount() + 2;
+		int sectorCount = (int)Math.min(mFatSize, (clusterLimit * 4 + mSectorSize - 1) / mSectorSize);
+
+		mScanClusterLimit = clusterLimit;
+		mScanSectorCount = sectorCount;
+		mScanStart = 0;
+		mScannedSectors = 0;
+		mUnscannedFreeCount = 0;
+
+		FatInfoSector infoSector = mFileSystem.getInfoSector();
+		if (infoSector.isValid() && infoSector.getFreeClusterCount() <= clusterLimit - 2)
+		{
+			long nextFree = infoSector.getAllocatedClusterIndex();
+
+			if (nextFree >= 2 && nextFree < clusterLimit)
+			{
+				mScanStart = (int)(nextFree / mEntriesPerSector);
+			}
+
+			mUnscannedFreeCount = infoSector.getFreeClusterCount();
+
+			if (mUnscannedFreeCount > 0)
+			{
+				scanNextChunk(freeSpace);
+			}
+
+			return freeSpace;
+		}
+
+		int scanChunkSectors = SCAN_CHUNK_SIZE / mSectorSize;
+
+		ArrayList<Callable<int[]>> tasks = new ArrayList<>();
+		for (int sectorIndex = 0; sectorIndex < sectorCount; sectorIndex += scanChunkSectors)
 		{
-			byte[] buffer = readSector(sectorIndex);
+			int firstSector = sectorIndex;
+			int chunkSectors = Math.min(scanChunkSectors, sectorCount - sectorIndex);
+
+			tasks.add(() -> scanFreeSpace(firstSector, chunkSectors, clusterLimit));
+		}
+
+		int cpu = ManagementFactory.getOperatingSystemMXBean().getAvailableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(cpu, tasks.size())));
 
-			int start = -1;
-			int length = 0;
-			for (int offset = 0; offset < pointersPerSector; offset++)
+		try
+		{
+			for (Future<int[]> future : pool.invokeAll(tasks))
 			{
-				if (LE.getUnsignedInt(buffer, offset) == 0)
+				int[] extents = future.get();
+
+				for (int i = 1; i <= extents[0]; i += 2)
 				{
-					if (start == -1)
-					{
-						start = offset;
-					}
-					length++;
+					freeSpace.free(extents[i], extents[i + 1]);
 				}
-				else if (start != -1)
+			}
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			throw new IOException("Failed to scan the allocation table", e);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		mScannedSectors = sectorCount;
+
+		return freeSpace;
+	}
+
+
+	/**
+	 * Scans the next chunk of the allocation table not yet scanned and adds
+	 * its free extents to the free space map.
+	 */
+	private void scanNextChunk(FreeSpaceMap aFreeSpace) throws IOException
+	{
+		int firstSector = (mScanStart + mScannedSectors) % mScanSectorCount;
+		int sectorCount = Math.min(SCAN_CHUNK_SIZE / mSectorSize, Math.min(mScanSectorCount - mScannedSectors, mScanSectorCount - firstSector));
+
+		int[] extents = scanFreeSpace(firstSector, sectorCount, mScanClusterLimit);
+
+		long freeClusterCount = 0;
+		for (int i = 1; i <= extents[0]; i += 2)
+		{
+			aFreeSpace.free(extents[i], extents[i + 1]);
+			freeClusterCount += extents[i + 1];
+		}
+
+		mScannedSectors += sectorCount;
+
+		// the count of the FSInfo sector is only a hint and may be too low
+		mUnscannedFreeCount = mScannedSectors == mScanSectorCount ? 0 : Math.max(0, mUnscannedFreeCount - freeClusterCount);
+	}
+
+
+	/**
+	 * Returns true if the allocation table entry of the cluster has been
+	 * scanned and the cluster is therefore tracked by the free space map.
+	 */
+	private boolean isScanned(long aCluster)
+	{
+		if (mScannedSectors == mScanSectorCount)
+		{
+			return true;
+		}
+
+		int sectorIndex = (int)(aCluster / mEntriesPerSector);
+
+		return (sectorIndex - mScanStart + mScanSectorCount) % mScanSectorCount < mScannedSectors;
+	}
+
+
+	/**
+	 * Reads a chunk of the allocation table and returns the free extents in
+	 * it. Sectors with pending writes are taken from the write cache. The
+	 * first element of the returned array is the number of elements
+	 * following; each extent is stored as a cluster index and length.
+	 */
+	private int[] scanFreeSpace(int aFirstSector, int aSectorCount, long aClusterLimit) throws IOException
+	{
+		byte[] buffer = new byte[mSectorSize * aSectorCount];
+
+		mFileSystem.getPageStore().read(mFatOffset + aFirstSector, buffer, 0, buffer.length);
+
+		for (Map.Entry<Integer, byte[]> entry : mWriteCache.subMap(aFirstSector, aFirstSector + aSectorCount).entrySet())
+		{
+			System.arraycopy(entry.getValue(), 0, buffer, mSectorSize * (entry.getKey() - aFirstSector), mSectorSize);
+		}
+
+		IntBuffer entries = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+		int[] extents = new int[65];
+		int firstCluster = aFirstSector * mEntriesPerSector;
+		int entryCount = (int)Math.min(entries.capacity(), aClusterLimit - firstCluster);
+		int start = -1;
+
+		for (int i = firstCluster < 2 ? 2 - firstCluster : 0; i <= entryCount; i++)
+		{
+			if (i < entryCount && (entries.get(i) & 0x0FFFFFFF) == 0)
+			{
+				if (start == -1)
 				{
-					mFreeSpace.free(sectorIndex * pointersPerSector + start, length);
-					start = -1;
-					length = 0;
+					start = i;
 				}
 			}
-
-			if (start != -1)
+			else if (start != -1)
 			{
-				mFreeSpace.free(sectorIndex * pointersPerSector + start, length);
+				if (extents[0] + 2 >= extents.length)
+				{
+					extents = Arrays.copyOf(extents, 2 * extents.length - 1);
+				}
+
+				extents[++extents[0]] = firstCluster + start;
+				extents[++extents[0]] = i - start;
+				start = -1;
 			}
 		}
-//		System.out.println((System.nanoTime() - t) / 1000000);
-//		mFreeSpace.debug();
-//		throw new RuntimeException();
+
+		return extents;
+	}
+
+
+	private static class Sector
+	{
+		final byte[] mBuffer;
+		volatile boolean mReferenced;
+
+
+		Sector(byte[] aBuffer)
+		{
+			mBuffer = aBuffer;
+		}
 	}
 }
@@ -13,7 +13,7 @@ class FatBootSector
 	FatBootSector(FatFileSystem aFileSystem) throws IOException
 	{
 		mFileSystem = aFileSystem;
-		mBuffer = new byte[512];
+		mBuffer = new byte[mFileSystem.getPageStore().getPageSize()];
 		mFileSystem.getPageStore().read(0, mBuffer);
 
 		if (LE.getUnsignedShort(mBuffer, 0x16) != 0)
@@ -95,6 +95,12 @@ class FatBootSector
 	}
 
 
+	public void setTotalSectorCount(long aSectorCount)
+	{
+		LE.putInt(mBuffer, 0x20, (int)aSectorCount);
+	}
+
+
 	public int getMediumDescriptor()
 	{
 		return LE.getUnsignedByte(mBuffer, 0x15);
@@ -119,6 +125,17 @@ class FatBootSector
 	}
 
 
+	/**
+	 * Writes the boot sector and its backup copy.
+	 */
+	public void commitChanges() throws IOException
+	{
+		mFileSystem.getPageStore().write(0, mBuffer);
+
+		writeCopy();
+	}
+
+
 	public void writeCopy() throws IOException
 	{
 		int offset = getBootSectorCopySector();
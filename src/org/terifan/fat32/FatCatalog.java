@@ -0,0 +1,476 @@
+package org.terifan.fat32;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * The entries of a directory tree stored as columns of primitive arrays
+ * instead of an object per entry. Names are interned in a shared pool of
+ * UTF-8 bytes, entries refer to their directory by index and directories
+ * link their entries through sibling indices, and cluster extents are kept in
+ * a shared pool. An entry with a single extent and a name already seen costs
+ * less than 100 bytes independent of the depth of its path. FatFile instances
+ * are created from the columns when requested, see FatIndex.<p>
+ *
+ * Entries are identified by their index; the root directory is entry zero.
+ * Entries are never removed.
+ */
+class FatCatalog
+{
+	private final static int INITIAL_CAPACITY = 64;
+
+	private int mSize;
+	private int[] mParent;
+	private int[] mFirstChild;
+	private int[] mNextSibling;
+	private byte[] mFlags;
+	private int[] mEntryIndex;
+	private int[] mStartCluster;
+	private int[] mLength;
+	private long[] mCreated;
+	private long[] mAccessed;
+	private long[] mModified;
+	private int[] mName;
+	private int[] mShortName;
+	private int[] mExtentOffset;
+
+	private int[] mExtentPool;
+	private int mExtentPoolSize;
+	private int mExtentGarbage;
+
+	private byte[] mNamePool;
+	private int mNamePoolSize;
+	private int[] mNameOffset;
+	private int mNameCount;
+	private int[] mNameTable;
+
+
+	FatCatalog()
+	{
+		mParent = new int[INITIAL_CAPACITY];
+		mFirstChild = new int[INITIAL_CAPACITY];
+		mNextSibling = new int[INITIAL_CAPACITY];
+		mFlags = new byte[INITIAL_CAPACITY];
+		mEntryIndex = new int[INITIAL_CAPACITY];
+		mStartCluster = new int[INITIAL_CAPACITY];
+		mLength = new int[INITIAL_CAPACITY];
+		mCreated = new long[INITIAL_CAPACITY];
+		mAccessed = new long[INITIAL_CAPACITY];
+		mModified = new long[INITIAL_CAPACITY];
+		mName = new int[INITIAL_CAPACITY];
+		mShortName = new int[INITIAL_CAPACITY];
+		mExtentOffset = new int[INITIAL_CAPACITY];
+
+		mExtentPool = new int[INITIAL_CAPACITY];
+
+		mNamePool = new byte[16 * INITIAL_CAPACITY];
+		mNameOffset = new int[INITIAL_CAPACITY + 1];
+		mNameTable = new int[2 * INITIAL_CAPACITY];
+	}
+
+
+	/**
+	 * Adds an empty entry to a directory. Entries are listed in the order they
+	 * are added.
+	 *
+	 * @param aParent
+	 *   the directory containing the entry or -1 for the root directory
+	 * @return
+	 *   the index of the new entry
+	 */
+	int add(int aParent)
+	{
+		if (mSize == mParent.length)
+		{
+			int capacity = mSize + mSize / 2;
+
+			mParent = Arrays.copyOf(mParent, capacity);
+			mFirstChild = Arrays.copyOf(mFirstChild, capacity);
+			mNextSibling = Arrays.copyOf(mNextSibling, capacity);
+			mFlags = Arrays.copyOf(mFlags, capacity);
+			mEntryIndex = Arrays.copyOf(mEntryIndex, capacity);
+			mStartCluster = Arrays.copyOf(mStartCluster, capacity);
+			mLength = Arrays.copyOf(mLength, capacity);
+			mCreated = Arrays.copyOf(mCreated, capacity);
+			mAccessed = Arrays.copyOf(mAccessed, capacity);
+			mModified = Arrays.copyOf(mModified, capacity);
+			mName = Arrays.copyOf(mName, capacity);
+			mShortName = Arrays.copyOf(mShortName, capacity);
+			mExtentOffset = Arrays.copyOf(mExtentOffset, capacity);
+		}
+
+		int id = mSize++;
+
+		mParent[id] = aParent;
+		mFirstChild[id] = -1;
+		mExtentOffset[id] = -1;
+		mName[id] = intern("");
+		mShortName[id] = mName[id];
+
+		// children are linked in reverse order and reversed when listed
+		if (aParent >= 0)
+		{
+			mNextSibling[id] = mFirstChild[aParent];
+			mFirstChild[aParent] = id;
+		}
+		else
+		{
+			mNextSibling[id] = -1;
+		}
+
+		return id;
+	}
+
+
+	int size()
+	{
+		return mSize;
+	}
+
+
+	/**
+	 * Returns the entries of a directory in the order they were added.
+	 */
+	int[] getChildren(int aId)
+	{
+		int count = 0;
+		for (int child = mFirstChild[aId]; child >= 0; child = mNextSibling[child])
+		{
+			count++;
+		}
+
+		int[] children = new int[count];
+		for (int child = mFirstChild[aId]; child >= 0; child = mNextSibling[child])
+		{
+			children[--count] = child;
+		}
+
+		return children;
+	}
+
+
+	int getParent(int aId)
+	{
+		return mParent[aId];
+	}
+
+
+	int getFlags(int aId)
+	{
+		return 0xff & mFlags[aId];
+	}
+
+
+	void setFlags(int aId, int aFlags)
+	{
+		mFlags[aId] = (byte)aFlags;
+	}
+
+
+	int getEntryIndex(int aId)
+	{
+		return mEntryIndex[aId];
+	}
+
+
+	void setEntryIndex(int aId, int aEntryIndex)
+	{
+		mEntryIndex[aId] = aEntryIndex;
+	}
+
+
+	long getStartCluster(int aId)
+	{
+		return 0xFFFFFFFFL & mStartCluster[aId];
+	}
+
+
+	void setStartCluster(int aId, long aStartCluster)
+	{
+		mStartCluster[aId] = (int)aStartCluster;
+	}
+
+
+	long getLength(int aId)
+	{
+		return 0xFFFFFFFFL & mLength[aId];
+	}
+
+
+	void setLength(int aId, long aLength)
+	{
+		mLength[aId] = (int)aLength;
+	}
+
+
+	long getCreated(int aId)
+	{
+		return mCreated[aId];
+	}
+
+
+	void setCreated(int aId, long aTime)
+	{
+		mCreated[aId] = aTime;
+	}
+
+
+	long getAccessed(int aId)
+	{
+		return mAccessed[aId];
+	}
+
+
+	void setAccessed(int aId, long aTime)
+	{
+		mAccessed[aId] = aTime;
+	}
+
+
+	long getModified(int aId)
+	{
+		return mModified[aId];
+	}
+
+
+	void setModified(int aId, long aTime)
+	{
+		mModified[aId] = aTime;
+	}
+
+
+	String getName(int aId)
+	{
+		return getInternedName(mName[aId]);
+	}
+
+
+	void setName(int aId, String aName)
+	{
+		mName[aId] = intern(aName);
+	}
+
+
+	String getShortName(int aId)
+	{
+		return getInternedName(mShortName[aId]);
+	}
+
+
+	void setShortName(int aId, String aName)
+	{
+		mShortName[aId] = intern(aName);
+	}
+
+
+	/**
+	 * Returns the entry of a directory with the name provided ignoring case or
+	 * -1 if there is none.
+	 */
+	int findChild(int aId, String aName)
+	{
+		for (int child = mFirstChild[aId]; child >= 0; child = mNextSibling[child])
+		{
+			if (getName(child).equalsIgnoreCase(aName))
+			{
+				return child;
+			}
+		}
+
+		return -1;
+	}
+
+
+	/**
+	 * Returns the cluster extents of an entry as pairs of first cluster and
+	 * cluster count.
+	 */
+	int[] getExtents(int aId)
+	{
+		int offset = mExtentOffset[aId];
+
+		if (offset < 0)
+		{
+			return new int[0];
+		}
+
+		return Arrays.copyOfRange(mExtentPool, offset + 1, offset + 1 + 2 * mExtentPool[offset]);
+	}
+
+
+	/**
+	 * Replaces the cluster extents of an entry. The extents are appended to
+	 * the pool and the pool is compacted when more than half of it is no
+	 * longer referenced.
+	 */
+	void setExtents(int aId, int[] aExtents)
+	{
+		int offset = mExtentOffset[aId];
+
+		if (offset >= 0)
+		{
+			mExtentGarbage += 1 + 2 * mExtentPool[offset];
+		}
+
+		if (aExtents.length == 0)
+		{
+			mExtentOffset[aId] = -1;
+		}
+		else
+		{
+			mExtentOffset[aId] = appendExtents(aExtents, 0, aExtents.length);
+		}
+
+		if (mExtentGarbage > mExtentPoolSize / 2 && mExtentGarbage > INITIAL_CAPACITY)
+		{
+			compactExtents();
+		}
+	}
+
+
+	private int appendExtents(int[] aExtents, int aOffset, int aLength)
+	{
+		if (mExtentPoolSize + 1 + aLength > mExtentPool.length)
+		{
+			mExtentPool = Arrays.copyOf(mExtentPool, Math.max(mExtentPoolSize + 1 + aLength, mExtentPool.length + mExtentPool.length / 2));
+		}
+
+		int offset = mExtentPoolSize;
+
+		mExtentPool[offset] = aLength / 2;
+		System.arraycopy(aExtents, aOffset, mExtentPool, offset + 1, aLength);
+		mExtentPoolSize += 1 + aLength;
+
+		return offset;
+	}
+
+
+	private void compactExtents()
+	{
+		int[] pool = mExtentPool;
+
+		mExtentPool = new int[Math.max(INITIAL_CAPACITY, mExtentPoolSize - mExtentGarbage)];
+		mExtentPoolSize = 0;
+		mExtentGarbage = 0;
+
+		for (int id = 0; id < mSize; id++)
+		{
+			int offset = mExtentOffset[id];
+
+			if (offset >= 0)
+			{
+				mExtentOffset[id] = appendExtents(pool, offset + 1, 2 * pool[offset]);
+			}
+		}
+	}
+
+
+	private String getInternedName(int aNameId)
+	{
+		return new String(mNamePool, mNameOffset[aNameId], mNameOffset[aNameId + 1] - mNameOffset[aNameId], StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Returns the id of a name adding it to the pool if it's not already
+	 * there. Names are looked up in an open addressing hash table holding name
+	 * ids plus one. A missing name, as of the root directory, is stored as the
+	 * empty name.
+	 */
+	private int intern(String aName)
+	{
+		byte[] bytes = aName == null ? new byte[0] : aName.getBytes(StandardCharsets.UTF_8);
+
+		if (2 * (mNameCount + 1) > mNameTable.length)
+		{
+			rehashNames(2 * mNameTable.length);
+		}
+
+		int mask = mNameTable.length - 1;
+
+		for (int i = hash(bytes, 0, bytes.length) & mask;; i = (i + 1) & mask)
+		{
+			int nameId = mNameTable[i] - 1;
+
+			if (nameId < 0)
+			{
+				nameId = addName(bytes);
+				mNameTable[i] = nameId + 1;
+				return nameId;
+			}
+
+			int offset = mNameOffset[nameId];
+
+			if (mNameOffset[nameId + 1] - offset == bytes.length && equals(mNamePool, offset, bytes))
+			{
+				return nameId;
+			}
+		}
+	}
+
+
+	private int addName(byte[] aBytes)
+	{
+		if (mNamePoolSize + aBytes.length > mNamePool.length)
+		{
+			mNamePool = Arrays.copyOf(mNamePool, Math.max(mNamePoolSize + aBytes.length, mNamePool.length + mNamePool.length / 2));
+		}
+		if (mNameCount + 2 > mNameOffset.length)
+		{
+			mNameOffset = Arrays.copyOf(mNameOffset, mNameOffset.length + mNameOffset.length / 2);
+		}
+
+		System.arraycopy(aBytes, 0, mNamePool, mNamePoolSize, aBytes.length);
+		mNamePoolSize += aBytes.length;
+
+		mNameOffset[++mNameCount] = mNamePoolSize;
+
+		return mNameCount - 1;
+	}
+
+
+	private void rehashNames(int aCapacity)
+	{
+		mNameTable = new int[aCapacity];
+
+		int mask = aCapacity - 1;
+
+		for (int nameId = 0; nameId < mNameCount; nameId++)
+		{
+			int offset = mNameOffset[nameId];
+			int i = hash(mNamePool, offset, mNameOffset[nameId + 1] - offset) & mask;
+
+			while (mNameTable[i] != 0)
+			{
+				i = (i + 1) & mask;
+			}
+
+			mNameTable[i] = nameId + 1;
+		}
+	}
+
+
+	private static int hash(byte[] aBuffer, int aOffset, int aLength)
+	{
+		int hash = 0;
+		for (int i = aOffset, end = aOffset + aLength; i < end; i++)
+		{
+			hash = 31 * hash + aBuffer[i];
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+
+	private static boolean equals(byte[] aBuffer, int aOffset, byte[] aBytes)
+	{
+		for (int i = 0; i < aBytes.length; i++)
+		{
+			if (aBuffer[aOffset + i] != aBytes[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
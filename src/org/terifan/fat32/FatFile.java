@@ -4,7 +4,9 @@ import org.terifan.util.ByteArray;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
 import static org.terifan.util.ByteArray.LE;
 
 
@@ -29,6 +31,8 @@ public class FatFile
 	protected String mShortName;
 	protected int mFlags;
 	protected boolean mDirectory;
+	protected int mEntryIndex;
+	protected int mIndexId;
 
 
 	FatFile(FatFileSystem aFileSystem, FatFile aParent, long aStartCluster, boolean aDirectory)
@@ -37,6 +41,8 @@ public class FatFile
 		mStartCluster = aStartCluster;
 		mParent = aParent;
 		mDirectory = aDirectory;
+		mEntryIndex = -1;
+		mIndexId = -1;
 	}
 
 
@@ -150,6 +156,12 @@ public class FatFile
 		aObject.mLength = this.mLength;
 		aObject.mParent = this.mParent;
 		aObject.mStartCluster = this.mStartCluster;
+		aObject.mShortName = this.mShortName;
+		aObject.mCreated = this.mCreated;
+		aObject.mAccessed = this.mAccessed;
+		aObject.mFlags = this.mFlags;
+		aObject.mEntryIndex = this.mEntryIndex;
+		aObject.mIndexId = this.mIndexId;
 	}
 
 
@@ -203,6 +215,12 @@ public class FatFile
 
 	public FatFile getFile(String aName) throws IOException
 	{
+		FatIndex index = mFileSystem.getIndex();
+		if (index != null && mIndexId >= 0)
+		{
+			return index.getFile(this, aName);
+		}
+
 		ArrayList<FatFile> list = new ArrayList<>();
 		loadDirectory(aName, true, true, list);
 		return list.isEmpty() ? null : list.get(0);
@@ -210,6 +228,21 @@ public class FatFile
 
 
 	public FatFile[] listFiles() throws IOException
+	{
+		FatIndex index = mFileSystem.getIndex();
+		if (index != null && mIndexId >= 0)
+		{
+			return index.listFiles(this);
+		}
+
+		return readDirectory();
+	}
+
+
+	/**
+	 * Reads the entries of this directory from the volume bypassing the index.
+	 */
+	FatFile[] readDirectory() throws IOException
 	{
 		ArrayList<FatFile> list = new ArrayList<>();
 		loadDirectory(null, true, true, list);
@@ -337,6 +370,8 @@ public class FatFile
 							element.mLastModified = modified;
 							element.mLength = size;
 							element.mPath = (mPath == null ? "" : mPath) + "/" + element.mName;
+							element.mFlags = flags;
+							element.mEntryIndex = entryIndex;
 
 							//element.debug();
 						}
@@ -353,18 +388,256 @@ public class FatFile
 	}
 
 
-	private long decodeDateTime(int aDate, int aTime, int aTimeHiRes)
+	private static long decodeDateTime(int aDate, int aTime, int aTimeHiRes)
 	{
-		return new Date(1980 + (aDate >> 9),
-			(aDate >> 5) & 15,
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(1980 + (aDate >> 9),
+			((aDate >> 5) & 15) - 1,
 			aDate & 31,
 			aTime >> 11,
 			(aTime >> 5) & 63,
-			2 * (aTime & 31) + (aTimeHiRes / 100)).getTime();
+			2 * (aTime & 31) + (aTimeHiRes / 100));
+		return calendar.getTimeInMillis();
+	}
+
+
+	private static int encodeDate(long aTime)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(aTime);
+		return ((calendar.get(Calendar.YEAR) - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5) | calendar.get(Calendar.DAY_OF_MONTH);
+	}
+
+
+	private static int encodeTime(long aTime)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(aTime);
+		return (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) / 2);
+	}
+
+
+	/**
+	 * Returns the time provided as read back from a directory entry.
+	 */
+	static long truncateTime(long aTime)
+	{
+		return decodeDateTime(encodeDate(aTime), encodeTime(aTime), 0);
+	}
+
+
+	/**
+	 * Returns the date of the time provided as read back from a directory
+	 * entry field holding only a date.
+	 */
+	static long truncateDate(long aTime)
+	{
+		return decodeDateTime(encodeDate(aTime), 0, 0);
+	}
+
+
+	/**
+	 * Creates an empty file in this directory.
+	 *
+	 * @param aName
+	 *   name of the new file
+	 * @return
+	 *   the new file
+	 */
+	public FatFile createFile(String aName) throws IOException
+	{
+		if (!mDirectory)
+		{
+			throw new IllegalArgumentException("Files can only be created in directories.");
+		}
+		if (aName.isEmpty() || aName.length() > 255 || aName.matches(".*[\\x00-\\x1f\"*/:<>?\\\\|].*") || aName.endsWith(".") || aName.endsWith(" "))
+		{
+			throw new IllegalArgumentException("Illegal file name: " + aName);
+		}
+
+		HashSet<String> shortNames = new HashSet<>();
+		for (FatFile file : listFiles())
+		{
+			if (file.mName.equalsIgnoreCase(aName))
+			{
+				throw new IOException("File already exists: " + aName);
+			}
+			shortNames.add(file.mShortName.toUpperCase());
+		}
+
+		String shortName = createShortName(aName, shortNames);
+		int checksum = getFilenameChecksum(shortName);
+		long time = System.currentTimeMillis();
+
+		String formattedName = shortName.substring(0, 8).trim() + (shortName.substring(8).trim().isEmpty() ? "" : "." + shortName.substring(8).trim());
+		int longNameEntryCount = formattedName.equals(aName) ? 0 : (aName.length() + 12) / 13;
+
+		byte[] entries = new byte[32 * (longNameEntryCount + 1)];
+
+		for (int i = 0; i < longNameEntryCount; i++)
+		{
+			int offset = 32 * (longNameEntryCount - 1 - i);
+			int sequence = i + 1;
+
+			LE.put(entries, offset + 0x00, sequence | (sequence == longNameEntryCount ? 0x40 : 0));
+			LE.put(entries, offset + 0x0b, 0x0f);
+			LE.put(entries, offset + 0x0d, checksum);
+
+			for (int j = 0; j < 13; j++)
+			{
+				int charIndex = 13 * i + j;
+				int c = charIndex < aName.length() ? aName.charAt(charIndex) : charIndex == aName.length() ? 0 : 0xffff;
+				int position = j < 5 ? 0x01 + 2 * j : j < 11 ? 0x0e + 2 * (j - 5) : 0x1c + 2 * (j - 11);
+
+				LE.putShort(entries, offset + position, c);
+			}
+		}
+
+		int offset = 32 * longNameEntryCount;
+
+		try
+		{
+			System.arraycopy(shortName.getBytes("ISO-8859-1"), 0, entries, offset, 11);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IOException(e);
+		}
+
+		LE.put(entries, offset + 0x0b, ARCHIVE);
+		LE.putShort(entries, offset + 0x0e, encodeTime(time));
+		LE.putShort(entries, offset + 0x10, encodeDate(time));
+		LE.putShort(entries, offset + 0x12, encodeDate(time));
+		LE.putShort(entries, offset + 0x16, encodeTime(time));
+		LE.putShort(entries, offset + 0x18, encodeDate(time));
+
+		int entryIndex = appendEntries(entries);
+
+		FatFile file = new FatFile(mFileSystem, this, 0, false);
+		file.mName = aName;
+		file.mShortName = formattedName;
+		file.mCreated = time;
+		file.mAccessed = time;
+		file.mLastModified = time;
+		file.mFlags = ARCHIVE;
+		file.mPath = (mPath == null ? "" : mPath) + "/" + aName;
+		file.mEntryIndex = entryIndex + longNameEntryCount;
+
+		FatIndex index = mFileSystem.getIndex();
+		if (index != null)
+		{
+			index.add(this, file);
+			index.commit();
+		}
+
+		return file;
+	}
+
+
+	/**
+	 * Writes directory entries after the last entry of this directory.
+	 *
+	 * @return
+	 *   index of the first entry written
+	 */
+	private int appendEntries(byte[] aEntries) throws IOException
+	{
+		try (FatRandomAccessStream stream = new FatRandomAccessStream(this))
+		{
+			byte[] entry = new byte[32];
+			int entryIndex = 0;
+
+			while (stream.read(entry) == 32 && entry[0] != 0)
+			{
+				entryIndex++;
+			}
+
+			stream.seek(32L * entryIndex);
+			stream.write(aEntries);
+
+			return entryIndex;
+		}
+	}
+
+
+	/**
+	 * Writes the start cluster, length and modification time of this file to
+	 * its directory entry.
+	 */
+	void commitEntry() throws IOException
+	{
+		if (mParent == null || mEntryIndex < 0)
+		{
+			return;
+		}
+
+		try (FatRandomAccessStream stream = new FatRandomAccessStream(mParent))
+		{
+			byte[] entry = new byte[32];
+
+			stream.seek(32L * mEntryIndex);
+			if (stream.read(entry) != 32)
+			{
+				throw new IOException("Failed to read directory entry: " + mPath);
+			}
+
+			LE.put(entry, 0x0b, LE.getUnsignedByte(entry, 0x0b) | ARCHIVE);
+			LE.putShort(entry, 0x12, encodeDate(mLastModified));
+			LE.putShort(entry, 0x14, (int)(mStartCluster >>> 16));
+			LE.putShort(entry, 0x16, encodeTime(mLastModified));
+			LE.putShort(entry, 0x18, encodeDate(mLastModified));
+			LE.putShort(entry, 0x1a, (int)mStartCluster);
+			LE.putInt(entry, 0x1c, (int)mLength);
+
+			stream.seek(32L * mEntryIndex);
+			stream.write(entry);
+		}
+	}
+
+
+	/**
+	 * Returns an 8.3 name for the long name provided in directory entry form,
+	 * the base name and extension padded with spaces to eleven characters.
+	 */
+	private static String createShortName(String aName, HashSet<String> aExistingNames)
+	{
+		String name = aName.toUpperCase();
+		int dot = name.lastIndexOf('.');
+
+		String baseName = (dot > 0 ? name.substring(0, dot) : name).replaceAll("[ .]", "").replaceAll("[^A-Z0-9!#$%&'()@^_`{}~-]", "_");
+		String extension = (dot > 0 ? name.substring(dot + 1) : "").replaceAll(" ", "").replaceAll("[^A-Z0-9!#$%&'()@^_`{}~-]", "_");
+
+		if (baseName.isEmpty())
+		{
+			baseName = "_";
+		}
+		if (extension.length() > 3)
+		{
+			extension = extension.substring(0, 3);
+		}
+
+		String formattedExtension = extension.isEmpty() ? "" : "." + extension;
+
+		if (baseName.length() <= 8 && (baseName + formattedExtension).equals(aName) && !aExistingNames.contains(aName))
+		{
+			return String.format("%-8s%-3s", baseName, extension);
+		}
+
+		for (int i = 1;; i++)
+		{
+			String tail = "~" + i;
+			String candidate = baseName.substring(0, Math.min(baseName.length(), 8 - tail.length())) + tail;
+
+			if (!aExistingNames.contains(candidate + formattedExtension))
+			{
+				return String.format("%-8s%-3s", candidate, extension);
+			}
+		}
 	}
 
 
-	private int getFilenameChecksum(String aFilename)
+	private static int getFilenameChecksum(String aFilename)
 	{
 		int sum = 0;
 		for (int i = 0; i < 11; i++)
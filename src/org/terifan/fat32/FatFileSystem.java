@@ -2,28 +2,73 @@ package org.terifan.fat32;
 
 import org.terifan.pagestore.PageStore;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+import static org.terifan.util.ByteArray.LE;
 
 
 public class FatFileSystem implements AutoCloseable
 {
+	private final static long MAX_CLUSTER_COUNT = 0x0FFFFFF5L;
+	private final static int MAX_SECTOR_SIZE = 4096;
+	private final static int RESERVED_SECTOR_COUNT = 32;
+	private final static int FAT_COUNT = 2;
+
 	private PageStore mPageStore;
 	private FatBootSector mBootSector;
 	private FatInfoSector mInfoSector;
 	private FatFile mRootDirectory;
 	private FatAllocationTable mAllocationTable;
+	private FatIndex mIndex;
 
 
+	/**
+	 * Opens a FAT32 file system with 512, 1024, 2048 or 4096 byte sectors.
+	 *
+	 * @param aPageStore
+	 *   the page store containing the file system; its page size must match
+	 *   the sector size of the file system
+	 */
 	public FatFileSystem(PageStore aPageStore) throws IOException
+	{
+		this(aPageStore, null);
+	}
+
+
+	/**
+	 * Opens a FAT32 file system with a persistent index of its directory
+	 * tree. Directories are listed and paths resolved from the index without
+	 * reading the volume. The index is rebuilt by reading the directory tree
+	 * when it's empty or doesn't match the volume and is updated as files are
+	 * created and written.
+	 *
+	 * @param aPageStore
+	 *   the page store containing the file system; its page size must match
+	 *   the sector size of the file system
+	 * @param aIndexStore
+	 *   the page store holding the index or null; use a TrueCryptPageStore to
+	 *   keep the index encrypted. The page store is closed with the file
+	 *   system.
+	 */
+	public FatFileSystem(PageStore aPageStore, PageStore aIndexStore) throws IOException
 	{
 		mPageStore = aPageStore;
 		mBootSector = new FatBootSector(this);
-		mInfoSector = new FatInfoSector(this);
-		mAllocationTable = new FatAllocationTable(this);
 
-		if (mBootSector.getBytesPerSector() != 512)
+		int sectorSize = mBootSector.getBytesPerSector();
+
+		if (sectorSize < 512 || sectorSize > MAX_SECTOR_SIZE || Integer.bitCount(sectorSize) != 1)
+		{
+			throw new IOException("Unsupported sector size; sectors must be 512, 1024, 2048 or 4096 bytes: size: " + sectorSize);
+		}
+		if (mPageStore.getPageSize() != sectorSize)
 		{
-			throw new IOException("Unsupported sector size; sectors must be 512 bytes: size: " + mBootSector.getBytesPerSector());
+			throw new IOException("The page size of the page store must match the sector size of the file system: page size: " + mPageStore.getPageSize() + ", sector size: " + sectorSize);
 		}
+
+		mInfoSector = new FatInfoSector(this);
+		mAllocationTable = new FatAllocationTable(this);
 /*
 		{
 		ArrayList<Long> list = new ArrayList<Long>();
@@ -41,6 +86,143 @@ public class FatFileSystem implements AutoCloseable
 		}
 */
 		mRootDirectory = new FatFile(this, null, mBootSector.getRootFirstCluster(), true);
+
+		if (aIndexStore != null)
+		{
+			mIndex = new FatIndex(this, aIndexStore);
+			mIndex.open(mRootDirectory);
+		}
+	}
+
+
+	/**
+	 * Writes an empty FAT32 file system filling the page store provided, with
+	 * two allocation tables and the root directory in cluster 2. The sector
+	 * size of the file system is the page size of the page store.
+	 *
+	 * @param aPageStore
+	 *   the page store to format; its page size must be 512, 1024, 2048 or
+	 *   4096 bytes
+	 * @param aSectorsPerCluster
+	 *   cluster size in sectors, a power of two between 1 and 128
+	 */
+	public static void format(PageStore aPageStore, int aSectorsPerCluster) throws IOException
+	{
+		int sectorSize = aPageStore.getPageSize();
+
+		if (sectorSize < 512 || sectorSize > MAX_SECTOR_SIZE || Integer.bitCount(sectorSize) != 1)
+		{
+			throw new IOException("Unsupported sector size; sectors must be 512, 1024, 2048 or 4096 bytes: size: " + sectorSize);
+		}
+		if (aSectorsPerCluster < 1 || aSectorsPerCluster > 128 || Integer.bitCount(aSectorsPerCluster) != 1)
+		{
+			throw new IllegalArgumentException("Illegal number of sectors per cluster: " + aSectorsPerCluster);
+		}
+
+		long sectorCount = aPageStore.getPageCount();
+		long clusterCount = (sectorCount - RESERVED_SECTOR_COUNT) / aSectorsPerCluster;
+		int sectorsPerFat = (int)((clusterCount + 2 + sectorSize / 4 - 1) / (sectorSize / 4));
+
+		if (clusterCount < 1 || clusterCount > MAX_CLUSTER_COUNT || sectorCount < RESERVED_SECTOR_COUNT + FAT_COUNT * sectorsPerFat + aSectorsPerCluster)
+		{
+			throw new IOException("Unsupported size of the page store: page count: " + sectorCount);
+		}
+
+		byte[] reserved = new byte[RESERVED_SECTOR_COUNT * sectorSize];
+
+		LE.putShort(reserved, 0x0b, sectorSize);
+		LE.put(reserved, 0x0d, aSectorsPerCluster);
+		LE.putShort(reserved, 0x0e, RESERVED_SECTOR_COUNT);
+		LE.put(reserved, 0x10, FAT_COUNT);
+		LE.put(reserved, 0x15, 0xf8);
+		LE.putInt(reserved, 0x20, (int)sectorCount);
+		LE.putInt(reserved, 0x24, sectorsPerFat);
+		LE.putInt(reserved, 0x2c, 2);
+		LE.putShort(reserved, 0x30, 1);
+		LE.putShort(reserved, 0x32, 6);
+		LE.put(reserved, 0x1fe, 0x55);
+		LE.put(reserved, 0x1ff, 0xaa);
+
+		// the FSInfo sector with unknown free count and next free cluster
+		int info = sectorSize;
+		LE.putInt(reserved, info, 0x41615252);
+		LE.putInt(reserved, info + 0x1e4, 0x61417272);
+		LE.putInt(reserved, info + 0x1e8, -1);
+		LE.putInt(reserved, info + 0x1ec, -1);
+		LE.putInt(reserved, info + 0x1fc, 0xaa550000);
+
+		aPageStore.write(0, reserved);
+
+		byte[] fat = new byte[sectorsPerFat * sectorSize];
+		LE.putInt(fat, 0, 0x0ffffff8);
+		LE.putInt(fat, 4, 0x0fffffff);
+		LE.putInt(fat, 8, 0x0fffffff);
+
+		for (int i = 0; i < FAT_COUNT; i++)
+		{
+			aPageStore.write(RESERVED_SECTOR_COUNT + i * sectorsPerFat, fat);
+		}
+
+		aPageStore.write(RESERVED_SECTOR_COUNT + FAT_COUNT * sectorsPerFat, new byte[aSectorsPerCluster * sectorSize]);
+	}
+
+
+	/**
+	 * Starts building the map of free clusters in a background thread. The
+	 * map is only needed when files are written and is otherwise built when
+	 * the first cluster is allocated, keeping the time to mount a volume
+	 * independent of its size.
+	 */
+	public void startFreeSpaceScan()
+	{
+		mAllocationTable.startFreeSpaceScan();
+	}
+
+
+	/**
+	 * Grows the file system into sectors added to the end of the page store,
+	 * e.g. after the volume containing it has been resized. The allocation
+	 * table can't be enlarged without moving the data area, so the file
+	 * system only grows as far as the existing table can address; the
+	 * remaining sectors are left unused.
+	 *
+	 * @return
+	 *   the number of clusters added
+	 */
+	public long grow() throws IOException
+	{
+		long fatSectors = mBootSector.getFatCount() * mBootSector.getSectorsPerFat();
+		long maxClusterCount = Math.min(mBootSector.getSectorsPerFat() * (mBootSector.getBytesPerSector() / 4) - 2, MAX_CLUSTER_COUNT);
+		long sectorCount = Math.min(mPageStore.getPageCount(), 0xFFFFFFFFL);
+
+		sectorCount = Math.min(sectorCount, mBootSector.getReservedSectorCount() + fatSectors + maxClusterCount * mBootSector.getSectorsPerCluster());
+
+		if (sectorCount <= mBootSector.getTotalSectorCount())
+		{
+			return 0;
+		}
+
+		long clusterCount = getClusterCount();
+		long dataSectors = sectorCount - mBootSector.getReservedSectorCount() - fatSectors;
+		long addedClusters = dataSectors / mBootSector.getSectorsPerCluster() - clusterCount;
+
+		if (addedClusters > 0)
+		{
+			mAllocationTable.addClusters(clusterCount + 2, addedClusters);
+		}
+
+		mBootSector.setTotalSectorCount(sectorCount);
+		mBootSector.commitChanges();
+
+		mAllocationTable.commitSectorWrites();
+		mPageStore.flush();
+
+		if (mIndex != null)
+		{
+			mIndex.commit();
+		}
+
+		return addedClusters;
 	}
 
 
@@ -68,12 +250,51 @@ public class FatFileSystem implements AutoCloseable
 	}
 
 
+	FatIndex getIndex()
+	{
+		return mIndex;
+	}
+
+
+	/**
+	 * Invalidates the index until the changes about to be made to the volume
+	 * have been recorded in it. Without an index the generation marker is
+	 * cleared so that an index kept elsewhere is rebuilt when next used.
+	 */
+	synchronized void beginUpdate() throws IOException
+	{
+		if (mIndex != null)
+		{
+			mIndex.beginUpdate();
+		}
+		else if (mInfoSector.getGeneration() != 0)
+		{
+			mInfoSector.setGeneration(0);
+			mInfoSector.commitChanges();
+
+			mPageStore.flush();
+		}
+	}
+
+
 	int getClusterSize()
 	{
 		return mBootSector.getSectorsPerCluster() * mBootSector.getBytesPerSector();
 	}
 
 
+	/**
+	 * Returns the number of data clusters in the file system. Valid cluster
+	 * indices are 2 to the cluster count plus one.
+	 */
+	long getClusterCount()
+	{
+		long dataSectors = mBootSector.getTotalSectorCount() - mBootSector.getReservedSectorCount() - mBootSector.getFatCount() * mBootSector.getSectorsPerFat();
+
+		return dataSectors / mBootSector.getSectorsPerCluster();
+	}
+
+
 	long getSectorOffset(long aClusterIndex)
 	{
 		return mBootSector.getReservedSectorCount()+mBootSector.getFatCount()*mBootSector.getSectorsPerFat()+(aClusterIndex-2)*mBootSector.getSectorsPerCluster();
@@ -106,13 +327,62 @@ public class FatFileSystem implements AutoCloseable
 	}
 
 
+	/**
+	 * Returns every file and directory in the file system in breadth first
+	 * order. With an index no directories are read from the volume.
+	 */
+	public FatFile[] listAllFiles() throws IOException
+	{
+		ArrayList<FatFile> list = new ArrayList<>();
+
+		forEachFile(list::add);
+
+		return list.toArray(new FatFile[list.size()]);
+	}
+
+
+	/**
+	 * Visits every file and directory in the file system in breadth first
+	 * order. Unlike listAllFiles only the directories waiting to be visited
+	 * and the entries of the directory being visited are held in memory,
+	 * allowing volumes with millions of files to be traversed; with an index
+	 * the entries are created from the in-memory catalog as they are visited.
+	 */
+	public void forEachFile(Consumer<FatFile> aConsumer) throws IOException
+	{
+		ArrayDeque<FatFile> directories = new ArrayDeque<>();
+		directories.add(mRootDirectory);
+
+		while (!directories.isEmpty())
+		{
+			for (FatFile file : directories.removeFirst().listFiles())
+			{
+				aConsumer.accept(file);
+
+				if (file.isDirectory())
+				{
+					directories.add(file);
+				}
+			}
+		}
+	}
+
+
 	@Override
 	public void close() throws IOException
 	{
 		if (mPageStore != null)
 		{
+			mAllocationTable.commitSectorWrites();
+
 			mPageStore.close();
 			mPageStore = null;
+
+			if (mIndex != null)
+			{
+				mIndex.close();
+				mIndex = null;
+			}
 		}
 	}
 
@@ -0,0 +1,746 @@
+package org.terifan.fat32;
+
+import org.terifan.pagestore.PageStore;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import static org.terifan.util.ByteArray.LE;
+
+
+/**
+ * A persistent index of the directory tree kept in a separate PageStore. The
+ * index holds every file and directory with the fields of its directory entry
+ * and its cluster extents, allowing directories to be listed, paths to be
+ * resolved and files to be read without reading any directory or the
+ * allocation table. Wrap the PageStore in a TrueCryptPageStore to keep the
+ * index encrypted.<p>
+ *
+ * The index is a snapshot followed by a log of blocks holding the entries
+ * changed by each update. The snapshot is rewritten when the log grows larger
+ * than the snapshot. The snapshot and each block end with the generation of
+ * the volume they describe; the index is valid when the last intact one
+ * matches the generation marker in the FSInfo sector. A new generation is
+ * written to the FSInfo sector before the volume is modified, so an index
+ * left behind by a crash is never trusted. The free cluster count and next
+ * free cluster of the FSInfo sector and a checksum of the clusters of the
+ * root directory are compared as well to detect volumes modified by other
+ * implementations. An invalid index is rebuilt by reading the directory
+ * tree.<p>
+ *
+ * Other implementations don't update the generation marker, so changes made
+ * by them below the root directory that leave the FSInfo sector unchanged,
+ * such as renaming a file in a subdirectory or overwriting it in place, go
+ * undetected. The volume must not be modified by other implementations while
+ * an index exists; delete the index before handing the volume to one.<p>
+ *
+ * The entries are held in memory in a FatCatalog and FatFile instances are
+ * only created for the entries requested.
+ */
+class FatIndex
+{
+	private final static int MAGIC = 0x58444946;
+	private final static int VERSION = 2;
+	private final static int HEADER_SIZE = 60;
+	private final static int BLOCK_HEADER_SIZE = 16;
+	private final static int MIN_COMPACTION_SIZE = 1 << 20;
+	private final static int ROOT_CHECKSUM_CLUSTERS = 16;
+
+	private FatFileSystem mFileSystem;
+	private PageStore mPageStore;
+	private int mPageSize;
+	private FatCatalog mCatalog;
+	private TreeSet<Integer> mChangedEntries;
+	private SecureRandom mRandom;
+	private long mEpoch;
+	private long mSnapshotLength;
+	private long mLogOffset;
+	private long mPendingGeneration;
+	private boolean mDiscarded;
+
+
+	FatIndex(FatFileSystem aFileSystem, PageStore aPageStore) throws IOException
+	{
+		mFileSystem = aFileSystem;
+		mPageStore = aPageStore;
+		mPageSize = aPageStore.getPageSize();
+		mChangedEntries = new TreeSet<>();
+		mRandom = new SecureRandom();
+
+		if (mPageSize < HEADER_SIZE)
+		{
+			throw new IllegalArgumentException("The page size of the index is too small: " + mPageSize);
+		}
+	}
+
+
+	/**
+	 * Loads the index or rebuilds it if it's missing or doesn't match the
+	 * volume.
+	 *
+	 * @param aRootDirectory
+	 *   the root directory of the file system; becomes the first entry of the
+	 *   index
+	 */
+	synchronized void open(FatFile aRootDirectory) throws IOException
+	{
+		if (!load())
+		{
+			rebuild(aRootDirectory);
+		}
+
+		aRootDirectory.mIndexId = 0;
+	}
+
+
+	synchronized void close() throws IOException
+	{
+		if (mPageStore != null)
+		{
+			mPageStore.close();
+			mPageStore = null;
+			mCatalog = null;
+		}
+	}
+
+
+	/**
+	 * Writes a new generation marker to the FSInfo sector unless one was
+	 * already written since the index was last updated. Must be called before
+	 * the volume is modified.
+	 */
+	synchronized void beginUpdate() throws IOException
+	{
+		if (mPendingGeneration == 0)
+		{
+			long generation = createGeneration();
+
+			FatInfoSector infoSector = mFileSystem.getInfoSector();
+			infoSector.setGeneration(generation);
+			infoSector.commitChanges();
+
+			mFileSystem.getPageStore().flush();
+
+			mPendingGeneration = generation;
+		}
+	}
+
+
+	/**
+	 * Appends the entries changed since the last update to the index and marks
+	 * the index valid for the volume. The volume is flushed first so that the
+	 * index never describes changes that haven't reached the disk.
+	 */
+	synchronized void commit() throws IOException
+	{
+		if (mPendingGeneration == 0 || mDiscarded)
+		{
+			return;
+		}
+
+		mFileSystem.getPageStore().flush();
+
+		if (mLogOffset - mPageSize - mSnapshotLength > Math.max(mSnapshotLength, MIN_COMPACTION_SIZE))
+		{
+			writeSnapshot(mPendingGeneration);
+		}
+		else
+		{
+			byte[] payload = encode(mChangedEntries.size(), mChangedEntries.stream().mapToInt(Integer::intValue).iterator(), mPendingGeneration);
+			byte[] block = new byte[BLOCK_HEADER_SIZE + payload.length];
+
+			LE.putLong(block, 0, mEpoch);
+			LE.putInt(block, 8, payload.length);
+			LE.putInt(block, 12, checksum(payload));
+			System.arraycopy(payload, 0, block, BLOCK_HEADER_SIZE, payload.length);
+
+			writeBytes(mLogOffset, block);
+			mPageStore.flush();
+
+			mLogOffset += block.length;
+		}
+
+		mChangedEntries.clear();
+		mPendingGeneration = 0;
+	}
+
+
+	/**
+	 * Adds a file created in a directory to the index.
+	 */
+	synchronized void add(FatFile aDirectory, FatFile aFile)
+	{
+		if (aDirectory.mIndexId < 0)
+		{
+			discard();
+			return;
+		}
+
+		int id = mCatalog.add(aDirectory.mIndexId);
+		set(id, aFile);
+
+		// the directory entry stores times with reduced resolution
+		mCatalog.setCreated(id, FatFile.truncateTime(aFile.mCreated));
+		mCatalog.setAccessed(id, FatFile.truncateDate(aFile.mAccessed));
+
+		aFile.mIndexId = id;
+
+		mChangedEntries.add(id);
+	}
+
+
+	/**
+	 * Updates the length, times and cluster extents of a file after its
+	 * directory entry or cluster chain was modified. Only the extents of a
+	 * directory are updated; its entry isn't changed when it grows and the
+	 * root directory has no entry at all.
+	 */
+	synchronized void update(FatFile aFile) throws IOException
+	{
+		if (aFile.mIndexId < 0)
+		{
+			discard();
+			return;
+		}
+
+		int id = aFile.mIndexId;
+
+		// the directory entry is updated as done by FatFile.commitEntry
+		if (!aFile.isDirectory())
+		{
+			set(id, aFile);
+			mCatalog.setFlags(id, mCatalog.getFlags(id) | FatFile.ARCHIVE);
+			mCatalog.setAccessed(id, FatFile.truncateDate(aFile.mLastModified));
+		}
+
+		mCatalog.setExtents(id, readExtents(mCatalog.getStartCluster(id)));
+
+		mChangedEntries.add(aFile.mIndexId);
+	}
+
+
+	synchronized FatFile[] listFiles(FatFile aDirectory)
+	{
+		int[] children = mCatalog.getChildren(aDirectory.mIndexId);
+
+		FatFile[] files = new FatFile[children.length];
+		for (int i = 0; i < files.length; i++)
+		{
+			files[i] = createFile(children[i], aDirectory);
+		}
+
+		return files;
+	}
+
+
+	synchronized FatFile getFile(FatFile aDirectory, String aName)
+	{
+		int id = mCatalog.findChild(aDirectory.mIndexId, aName);
+
+		return id < 0 ? null : createFile(id, aDirectory);
+	}
+
+
+	/**
+	 * Returns the cluster extents of a file as pairs of first cluster and
+	 * cluster count or null if the file isn't indexed.
+	 */
+	synchronized int[] getExtents(FatFile aFile)
+	{
+		if (aFile.mIndexId < 0 || mDiscarded)
+		{
+			return null;
+		}
+
+		return mCatalog.getStartCluster(aFile.mIndexId) == aFile.mStartCluster ? mCatalog.getExtents(aFile.mIndexId) : null;
+	}
+
+
+	private FatFile createFile(int aId, FatFile aParent)
+	{
+		int flags = mCatalog.getFlags(aId);
+
+		FatFile file = new FatFile(mFileSystem, aParent, mCatalog.getStartCluster(aId), (flags & FatFile.DIRECTORY) != 0);
+		file.mName = mCatalog.getName(aId);
+		file.mShortName = mCatalog.getShortName(aId);
+		file.mCreated = mCatalog.getCreated(aId);
+		file.mAccessed = mCatalog.getAccessed(aId);
+		file.mLastModified = mCatalog.getModified(aId);
+		file.mLength = mCatalog.getLength(aId);
+		file.mPath = (aParent.mPath == null ? "" : aParent.mPath) + "/" + file.mName;
+		file.mFlags = flags;
+		file.mEntryIndex = mCatalog.getEntryIndex(aId);
+		file.mIndexId = aId;
+
+		return file;
+	}
+
+
+	/**
+	 * Copies the fields of a directory entry to the catalog.
+	 */
+	private void set(int aId, FatFile aFile)
+	{
+		mCatalog.setFlags(aId, aFile.mFlags);
+		mCatalog.setEntryIndex(aId, aFile.mEntryIndex);
+		mCatalog.setStartCluster(aId, aFile.mStartCluster);
+		mCatalog.setLength(aId, aFile.mLength);
+		mCatalog.setModified(aId, FatFile.truncateTime(aFile.mLastModified));
+		mCatalog.setName(aId, aFile.mName);
+		mCatalog.setShortName(aId, aFile.mShortName);
+	}
+
+
+	/**
+	 * Stops updating the index after a change that can't be recorded. The
+	 * generation marker of the volume will no longer match and the index is
+	 * rebuilt the next time the file system is opened.
+	 */
+	private void discard()
+	{
+		mDiscarded = true;
+	}
+
+
+	/**
+	 * Reads the directory tree of the volume and writes a new snapshot.
+	 */
+	private void rebuild(FatFile aRootDirectory) throws IOException
+	{
+		mCatalog = new FatCatalog();
+
+		int root = mCatalog.add(-1);
+		mCatalog.setFlags(root, FatFile.DIRECTORY);
+		mCatalog.setStartCluster(root, aRootDirectory.mStartCluster);
+		mCatalog.setExtents(root, readExtents(aRootDirectory.mStartCluster));
+
+		ArrayDeque<FatFile> directories = new ArrayDeque<>();
+		ArrayDeque<Integer> directoryIds = new ArrayDeque<>();
+		directories.add(aRootDirectory);
+		directoryIds.add(root);
+
+		while (!directories.isEmpty())
+		{
+			FatFile directory = directories.removeFirst();
+			int parent = directoryIds.removeFirst();
+
+			for (FatFile file : directory.readDirectory())
+			{
+				int id = mCatalog.add(parent);
+				set(id, file);
+				mCatalog.setCreated(id, file.mCreated);
+				mCatalog.setAccessed(id, file.mAccessed);
+				mCatalog.setExtents(id, readExtents(file.mStartCluster));
+
+				if (file.isDirectory())
+				{
+					directories.add(file);
+					directoryIds.add(id);
+				}
+			}
+		}
+
+		FatInfoSector infoSector = mFileSystem.getInfoSector();
+		long generation = infoSector.getGeneration();
+
+		if (generation == 0)
+		{
+			generation = createGeneration();
+
+			infoSector.setGeneration(generation);
+			infoSector.commitChanges();
+
+			mFileSystem.getPageStore().flush();
+		}
+
+		writeSnapshot(generation);
+	}
+
+
+	/**
+	 * Writes all entries as a new snapshot followed by an empty log. A new
+	 * epoch is chosen so that blocks of the previous log are never mistaken
+	 * for blocks of the new log.
+	 */
+	private void writeSnapshot(long aGeneration) throws IOException
+	{
+		byte[] payload = encode(mCatalog.size(), IntStream.range(0, mCatalog.size()).iterator(), aGeneration);
+
+		mEpoch = mRandom.nextLong();
+
+		writeBytes(mPageSize, payload);
+		mPageStore.flush();
+
+		FatBootSector bootSector = mFileSystem.getBootSector();
+
+		byte[] header = new byte[mPageSize];
+		LE.putInt(header, 0, MAGIC);
+		LE.putInt(header, 4, VERSION);
+		LE.putLong(header, 8, mEpoch);
+		LE.putLong(header, 16, payload.length);
+		LE.putInt(header, 24, checksum(payload));
+		LE.putInt(header, 28, bootSector.getBytesPerSector());
+		LE.putInt(header, 32, bootSector.getSectorsPerCluster());
+		LE.putInt(header, 36, (int)bootSector.getRootFirstCluster());
+		LE.putLong(header, 40, bootSector.getTotalSectorCount());
+		LE.putLong(header, 48, bootSector.getSectorsPerFat());
+		LE.putInt(header, 56, checksum(header, 0, 56));
+
+		mPageStore.write(0, header);
+		mPageStore.flush();
+
+		mSnapshotLength = payload.length;
+		mLogOffset = getLogStart();
+	}
+
+
+	/**
+	 * Reads the snapshot and replays the log.
+	 *
+	 * @return
+	 *   true if the index is intact and matches the volume
+	 */
+	private boolean load() throws IOException
+	{
+		if (mPageStore.getPageCount() < 2)
+		{
+			return false;
+		}
+
+		byte[] header = new byte[mPageSize];
+		mPageStore.read(0, header);
+
+		FatBootSector bootSector = mFileSystem.getBootSector();
+
+		if (LE.getInt(header, 0) != MAGIC
+			|| LE.getInt(header, 4) != VERSION
+			|| LE.getInt(header, 56) != checksum(header, 0, 56)
+			|| LE.getInt(header, 28) != bootSector.getBytesPerSector()
+			|| LE.getInt(header, 32) != bootSector.getSectorsPerCluster()
+			|| LE.getInt(header, 36) != (int)bootSector.getRootFirstCluster()
+			|| LE.getLong(header, 40) != bootSector.getTotalSectorCount()
+			|| LE.getLong(header, 48) != bootSector.getSectorsPerFat())
+		{
+			return false;
+		}
+
+		long capacity = mPageStore.getPageCount() * mPageSize;
+
+		mEpoch = LE.getLong(header, 8);
+		mSnapshotLength = LE.getLong(header, 16);
+
+		if (mSnapshotLength <= 0 || mPageSize + mSnapshotLength > capacity || mSnapshotLength > Integer.MAX_VALUE)
+		{
+			return false;
+		}
+
+		byte[] snapshot = readBytes(mPageSize, (int)mSnapshotLength);
+
+		if (LE.getInt(header, 24) != checksum(snapshot))
+		{
+			return false;
+		}
+
+		mCatalog = new FatCatalog();
+
+		long[] state = decode(snapshot);
+
+		for (long offset = getLogStart();;)
+		{
+			mLogOffset = offset;
+
+			if (offset + BLOCK_HEADER_SIZE > capacity)
+			{
+				break;
+			}
+
+			byte[] blockHeader = readBytes(offset, BLOCK_HEADER_SIZE);
+			int length = LE.getInt(blockHeader, 8);
+
+			if (LE.getLong(blockHeader, 0) != mEpoch || length <= 0 || offset + BLOCK_HEADER_SIZE + length > capacity)
+			{
+				break;
+			}
+
+			byte[] payload = readBytes(offset + BLOCK_HEADER_SIZE, length);
+
+			if (LE.getInt(blockHeader, 12) != checksum(payload))
+			{
+				break;
+			}
+
+			state = decode(payload);
+			offset += BLOCK_HEADER_SIZE + length;
+		}
+
+		FatInfoSector infoSector = mFileSystem.getInfoSector();
+
+		return state[0] != 0
+			&& state[0] == infoSector.getGeneration()
+			&& state[1] == infoSector.getFreeClusterCount()
+			&& state[2] == infoSector.getAllocatedClusterIndex()
+			&& state[3] == checksumRootDirectory();
+	}
+
+
+	private long getLogStart()
+	{
+		return (mPageSize + mSnapshotLength + mPageSize - 1) / mPageSize * mPageSize;
+	}
+
+
+	/**
+	 * Encodes entries followed by the generation, the free cluster count and
+	 * next free cluster of the FSInfo sector and the checksum of the root
+	 * directory.
+	 */
+	private byte[] encode(int aCount, PrimitiveIterator.OfInt aIds, long aGeneration) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		try (DataOutputStream output = new DataOutputStream(buffer))
+		{
+			output.writeInt(aCount);
+
+			while (aIds.hasNext())
+			{
+				int id = aIds.nextInt();
+				int[] extents = mCatalog.getExtents(id);
+
+				output.writeInt(id);
+				output.writeInt(mCatalog.getParent(id));
+				output.writeByte(mCatalog.getFlags(id));
+				output.writeInt(mCatalog.getEntryIndex(id));
+				output.writeInt((int)mCatalog.getStartCluster(id));
+				output.writeInt((int)mCatalog.getLength(id));
+				output.writeLong(mCatalog.getCreated(id));
+				output.writeLong(mCatalog.getAccessed(id));
+				output.writeLong(mCatalog.getModified(id));
+				output.writeUTF(mCatalog.getName(id));
+				output.writeUTF(mCatalog.getShortName(id));
+				output.writeInt(extents.length);
+
+				for (int value : extents)
+				{
+					output.writeInt(value);
+				}
+			}
+
+			FatInfoSector infoSector = mFileSystem.getInfoSector();
+
+			output.writeLong(aGeneration);
+			output.writeLong(infoSector.getFreeClusterCount());
+			output.writeLong(infoSector.getAllocatedClusterIndex());
+			output.writeLong(checksumRootDirectory());
+		}
+
+		return buffer.toByteArray();
+	}
+
+
+	/**
+	 * Applies encoded entries to the index. Entries with the next free id are
+	 * added, others replace existing entries.
+	 *
+	 * @return
+	 *   the generation, free cluster count, next free cluster and checksum of
+	 *   the root directory
+	 */
+	private long[] decode(byte[] aPayload) throws IOException
+	{
+		try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(aPayload)))
+		{
+			for (int count = input.readInt(); --count >= 0;)
+			{
+				int id = input.readInt();
+				int parent = input.readInt();
+
+				if (id == mCatalog.size())
+				{
+					mCatalog.add(parent);
+				}
+				else if (id > mCatalog.size() || parent != mCatalog.getParent(id))
+				{
+					throw new IOException("Index entry out of sequence: " + id);
+				}
+
+				mCatalog.setFlags(id, input.readUnsignedByte());
+				mCatalog.setEntryIndex(id, input.readInt());
+				mCatalog.setStartCluster(id, 0xFFFFFFFFL & input.readInt());
+				mCatalog.setLength(id, 0xFFFFFFFFL & input.readInt());
+				mCatalog.setCreated(id, input.readLong());
+				mCatalog.setAccessed(id, input.readLong());
+				mCatalog.setModified(id, input.readLong());
+				mCatalog.setName(id, input.readUTF());
+				mCatalog.setShortName(id, input.readUTF());
+
+				int[] extents = new int[input.readInt()];
+
+				for (int i = 0; i < extents.length; i++)
+				{
+					extents[i] = input.readInt();
+				}
+
+				mCatalog.setExtents(id, extents);
+			}
+
+			return new long[]{input.readLong(), input.readLong(), input.readLong(), input.readLong()};
+		}
+	}
+
+
+	/**
+	 * Traces the cluster chain starting at the cluster provided and returns
+	 * it as pairs of first cluster and cluster count.
+	 */
+	private int[] readExtents(long aStartCluster) throws IOException
+	{
+		if (aStartCluster < 2)
+		{
+			return new int[0];
+		}
+
+		ArrayList<Long> chain = new ArrayList<>();
+		chain.add(aStartCluster);
+
+		mFileSystem.getAllocationTable().getChain(aStartCluster, Integer.MAX_VALUE - 1, chain);
+
+		int[] extents = new int[16];
+		int length = 0;
+
+		for (int i = 0; i < chain.size();)
+		{
+			long first = chain.get(i);
+			int count = 1;
+
+			while (i + count < chain.size() && chain.get(i + count) == first + count)
+			{
+				count++;
+			}
+
+			if (length == extents.length)
+			{
+				extents = Arrays.copyOf(extents, 2 * length);
+			}
+
+			extents[length++] = (int)first;
+			extents[length++] = count;
+			i += count;
+		}
+
+		return Arrays.copyOf(extents, length);
+	}
+
+
+	/**
+	 * Returns a CRC of the clusters of the root directory as stored on the
+	 * volume. The chain is traced in the allocation table so that clusters
+	 * added or removed by other implementations are covered as well.
+	 */
+	private long checksumRootDirectory() throws IOException
+	{
+		int[] extents = readExtents(mFileSystem.getBootSector().getRootFirstCluster());
+		int clusterSize = mFileSystem.getClusterSize();
+		int sectorsPerCluster = mFileSystem.getBootSector().getSectorsPerCluster();
+		byte[] buffer = new byte[ROOT_CHECKSUM_CLUSTERS * clusterSize];
+		CRC32 crc = new CRC32();
+
+		for (int i = 0; i < extents.length; i += 2)
+		{
+			long sectorIndex = mFileSystem.getSectorOffset(extents[i]);
+
+			for (int remaining = extents[i + 1]; remaining > 0;)
+			{
+				int count = Math.min(remaining, ROOT_CHECKSUM_CLUSTERS);
+
+				mFileSystem.getPageStore().read(sectorIndex, buffer, 0, count * clusterSize);
+				crc.update(buffer, 0, count * clusterSize);
+
+				sectorIndex += count * sectorsPerCluster;
+				remaining -= count;
+			}
+		}
+
+		return crc.getValue();
+	}
+
+
+	private byte[] readBytes(long aOffset, int aLength) throws IOException
+	{
+		long firstPage = aOffset / mPageSize;
+		int skip = (int)(aOffset % mPageSize);
+		byte[] buffer = new byte[(skip + aLength + mPageSize - 1) / mPageSize * mPageSize];
+
+		mPageStore.read(firstPage, buffer);
+
+		return Arrays.copyOfRange(buffer, skip, skip + aLength);
+	}
+
+
+	/**
+	 * Writes bytes at any offset. The part of the first page preceding the
+	 * offset is preserved; the part of the last page following the bytes is
+	 * cleared. The page store is grown as needed.
+	 */
+	private void writeBytes(long aOffset, byte[] aBytes) throws IOException
+	{
+		long firstPage = aOffset / mPageSize;
+		int skip = (int)(aOffset % mPageSize);
+		byte[] buffer = new byte[(skip + aBytes.length + mPageSize - 1) / mPageSize * mPageSize];
+		long pageCount = mPageStore.getPageCount();
+
+		if (skip > 0 && firstPage < pageCount)
+		{
+			mPageStore.read(firstPage, buffer, 0, mPageSize);
+		}
+
+		System.arraycopy(aBytes, 0, buffer, skip, aBytes.length);
+
+		long requiredPageCount = firstPage + buffer.length / mPageSize;
+
+		if (requiredPageCount > pageCount)
+		{
+			// grow in steps to avoid resizing the store for every update
+			mPageStore.resize(Math.max(requiredPageCount, pageCount + pageCount / 2));
+		}
+
+		mPageStore.write(firstPage, buffer);
+	}
+
+
+	private long createGeneration()
+	{
+		for (;;)
+		{
+			long generation = mRandom.nextLong();
+
+			if (generation != 0 && generation != mPendingGeneration)
+			{
+				return generation;
+			}
+		}
+	}
+
+
+	private static int checksum(byte[] aBuffer)
+	{
+		return checksum(aBuffer, 0, aBuffer.length);
+	}
+
+
+	private static int checksum(byte[] aBuffer, int aOffset, int aLength)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(aBuffer, aOffset, aLength);
+		return (int)crc.getValue();
+	}
+}
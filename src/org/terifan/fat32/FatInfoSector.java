@@ -13,7 +13,7 @@ class FatInfoSector
 	FatInfoSector(FatFileSystem aFileSystem) throws IOException
 	{
 		mFileSystem = aFileSystem;
-		mBuffer = new byte[512];
+		mBuffer = new byte[mFileSystem.getBootSector().getBytesPerSector()];
 
 		long index = mFileSystem.getBootSector().getInfoSectorNumber();
 		if (index != 0)
@@ -33,6 +33,16 @@ class FatInfoSector
 	}
 
 
+	/**
+	 * Returns true if the info sector exists and has valid signatures. The
+	 * values of an invalid info sector should not be trusted.
+	 */
+	public boolean isValid()
+	{
+		return mFileSystem.getBootSector().getInfoSectorNumber() != 0 && LE.getInt(mBuffer, 0) == 0x41615252 && LE.getInt(mBuffer, 0x1e4) == 0x61417272;
+	}
+
+
 	public void setFreeClusterCount(long aValue)
 	{
 		LE.putInt(mBuffer, 0x1e8, (int)aValue);
@@ -55,4 +65,21 @@ class FatInfoSector
 	{
 		return LE.getUnsignedInt(mBuffer, 0x1ec);
 	}
+
+
+	/**
+	 * Sets the generation marker identifying the state of the volume. The
+	 * marker is kept in the reserved bytes of the sector and changed before
+	 * the volume is modified, see FatIndex.
+	 */
+	public void setGeneration(long aGeneration)
+	{
+		LE.putLong(mBuffer, 0x1f0, aGeneration);
+	}
+
+
+	public long getGeneration()
+	{
+		return LE.getLong(mBuffer, 0x1f0);
+	}
 }
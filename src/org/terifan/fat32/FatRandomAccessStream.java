@@ -2,23 +2,44 @@ package org.terifan.fat32;
 
 import java.io.IOException;
 import java.util.ArrayList;
-
-
+import java.util.Arrays;
+
+
+/**
+ * A FatRandomAccessStream reads and writes the content of a file or
+ * directory.<p>
+ *
+ * The stream buffers a window of consecutive clusters. Physically contiguous
+ * clusters are read and written with a single call to the PageStore. Clusters
+ * are allocated in contiguous extents when data is written beyond the
+ * allocated space and surplus clusters are released when the stream is
+ * closed. Closing the stream commits the allocation table and updates the
+ * directory entry of the file.
+ */
 public class FatRandomAccessStream implements AutoCloseable
 {
 	private final static int BUFFER_SIZE = 65536;
+	private final static long MAX_FILE_LENGTH = 0xFFFFFFFFL;
 
 	private FatFile mFile;
+	private FatFileSystem mFileSystem;
 	private byte[] mBuffer;
+	private int mClusterSize;
 	private long mFilePointer;
-	private int mBufferPointer;
-	private int mBufferLength;
 	private long mFileLength;
 	private ArrayList<Long> mClusters;
-	private int mClusterIndex;
 	private boolean mClusterEnd;
 	private boolean mUnknownLength;
 	private int mPrefetchClusterCount;
+	private long mBufferOffset;
+	private int mBufferLength;
+	private int mDirtyStart;
+	private int mDirtyEnd;
+	private int mFreshClusterIndex;
+	private boolean mAllocated;
+	private boolean mModified;
+	private int[] mExtents;
+	private int mExtentClusterCount;
 
 
 	public FatRandomAccessStream(FatFile aFatFile)
@@ -26,12 +47,15 @@ public class FatRandomAccessStream implements AutoCloseable
 //		System.out.println("Open stream for object " + aFatFile);
 
 		mFile = aFatFile;
-		mBuffer = new byte[BUFFER_SIZE];
+		mFileSystem = aFatFile.getFileSystem();
+		mClusterSize = mFileSystem.getClusterSize();
+		mBuffer = new byte[Math.max(BUFFER_SIZE, mClusterSize)];
 		mClusters = new ArrayList<>();
 		mFileLength = aFatFile.getLength();
 		mUnknownLength = mFile.isDirectory();
+		mFreshClusterIndex = Integer.MAX_VALUE;
 
-		mPrefetchClusterCount = BUFFER_SIZE / aFatFile.getFileSystem().getClusterSize() - 1;
+		mPrefetchClusterCount = mBuffer.length / mClusterSize - 1;
 
 		if (mUnknownLength)
 		{
@@ -42,22 +66,20 @@ public class FatRandomAccessStream implements AutoCloseable
 
 	public int read() throws IOException
 	{
-		if (mFilePointer == mFileLength)
+		if (mFilePointer >= mFileLength)
 		{
 			return -1;
 		}
-		if (mBufferPointer == mBufferLength)
+		if (!isBuffered(mFilePointer))
 		{
-			mBufferPointer = 0;
-			loadFile();
+			fillBuffer(mFilePointer);
 		}
-		if (mBufferPointer == mBufferLength) // only when unknown length
+		if (!isBuffered(mFilePointer)) // only when unknown length
 		{
 			return -1;
 		}
 
-		mFilePointer++;
-		return mBuffer[mBufferPointer++];
+		return 0xff & mBuffer[(int)(mFilePointer++ - mBufferOffset)];
 	}
 
 
@@ -69,76 +91,138 @@ public class FatRandomAccessStream implements AutoCloseable
 
 	public int read(byte[] aBuffer, int aOffset, int aLength) throws IOException
 	{
-		int remaining = aLength;
+		int totalRead = 0;
 
-		if (mFileLength - mFilePointer < remaining)
+		while (aLength > 0 && mFilePointer < mFileLength)
 		{
-			remaining = (int)(mFileLength - mFilePointer);
+			if (!isBuffered(mFilePointer))
+			{
+				fillBuffer(mFilePointer);
+
+				if (!isBuffered(mFilePointer)) // only when unknown length
+				{
+					break;
+				}
+			}
+
+			int position = (int)(mFilePointer - mBufferOffset);
+			int len = (int)Math.min(Math.min(aLength, mBufferLength - position), mFileLength - mFilePointer);
+
+			System.arraycopy(mBuffer, position, aBuffer, aOffset, len);
+			mFilePointer += len;
+			aOffset += len;
+			aLength -= len;
+			totalRead += len;
 		}
 
-		for (int totalRead = 0;;)
+		return totalRead;
+	}
+
+
+	public void write(int aByte) throws IOException
+	{
+		write(new byte[]{(byte)aByte}, 0, 1);
+	}
+
+
+	public void write(byte[] aBuffer) throws IOException
+	{
+		write(aBuffer, 0, aBuffer.length);
+	}
+
+
+	/**
+	 * Writes bytes at the current file pointer extending the file when
+	 * writing beyond the end of the file. Bytes between the end of the file
+	 * and the file pointer are zero filled.
+	 */
+	public void write(byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (aLength == 0)
 		{
-			if (mFilePointer == mFileLength || remaining == 0)
-			{
-				return totalRead;
-			}
+			return;
+		}
+
+		mFileSystem.beginUpdate();
 
-			int len = Math.min(remaining, mBufferLength - mBufferPointer);
+		long end = mFilePointer + aLength;
 
-			//System.out.printf("%8d %8d %8d %8b %8d %8d\n", remaining, mBufferLength, mBufferPointer, mClusterEnd, mClusterIndex, mClusters.size());
-			if (len > 0)
+		if (!mUnknownLength && end > mFileLength)
+		{
+			extend(end);
+		}
+		else
+		{
+			ensureCapacity(end);
+		}
+
+		writeImpl(aBuffer, aOffset, aLength);
+
+		if (!mUnknownLength)
+		{
+			mModified = true;
+		}
+	}
+
+
+	private void writeImpl(byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		while (aLength > 0)
+		{
+			if (!isBuffered(mFilePointer))
 			{
-				System.arraycopy(mBuffer, mBufferPointer, aBuffer, aOffset, len);
-				mBufferPointer += len;
-				mFilePointer += len;
-				aOffset += len;
-				remaining -= len;
-				totalRead += len;
+				fillBuffer(mFilePointer);
 			}
 
-			if (remaining > 0)
-			{
-				//System.out.println("# remaining="+remaining);
-				mBufferPointer = 0;
-				loadFile();
+			int position = (int)(mFilePointer - mBufferOffset);
+			int len = Math.min(aLength, mBufferLength - position);
 
-				if (mUnknownLength && mClusterEnd && mBufferLength == mBufferPointer)
-				{
-					return totalRead;
-				}
-			}
+			System.arraycopy(aBuffer, aOffset, mBuffer, position, len);
+			markDirty(position, position + len);
+			mFilePointer += len;
+			aOffset += len;
+			aLength -= len;
 		}
 	}
 
 
-	private void loadFile() throws IOException
+	public void seek(long aOffset) throws IOException
 	{
-		FatFileSystem fileSystem = mFile.getFileSystem();
+		if (aOffset < 0)
+		{
+			throw new IOException("Negative seek offset: " + aOffset);
+		}
+
+		mFilePointer = aOffset;
+	}
+
 
-		if (mClusterIndex == mClusters.size() && !mClusterEnd)
+	/**
+	 * Sets the length of the file. The file is truncated or extended with
+	 * zero bytes.
+	 */
+	public void setLength(long aLength) throws IOException
+	{
+		if (mUnknownLength)
 		{
-			int pref = mPrefetchClusterCount;
-			if (mClusters.isEmpty())
-			{
-				mClusters.add(mFile.getStartCluster());
-				pref--;
-			}
-			mClusterEnd = fileSystem.getAllocationTable().getChain(mClusters.get(Math.max(mClusterIndex - 1, 0)), pref, mClusters);
+			throw new IOException("The length of a directory cannot be changed.");
 		}
 
-		int clusterLength = fileSystem.getClusterSize();
-		mBufferLength = 0;
+		mFileSystem.beginUpdate();
 
-		for (int i = 0; i < mBuffer.length / clusterLength && mClusterIndex < mClusters.size(); i++)
+		if (aLength < mFileLength)
 		{
-//			System.out.println("Reading object cluster " + mClusters.get(mClusterIndex) + " from disk");
+			releaseClusters((int)((aLength + mClusterSize - 1) / mClusterSize));
 
-			fileSystem.getPageStore().read(fileSystem.getSectorOffset(mClusters.get(mClusterIndex)), mBuffer, mBufferLength, clusterLength);
-			mClusterIndex++;
-			mBufferLength += clusterLength;
+			mFileLength = aLength;
+			mFilePointer = Math.min(mFilePointer, aLength);
+		}
+		else if (aLength > mFileLength)
+		{
+			extend(aLength);
 		}
 
-		//System.out.println("mBufferLength="+mBufferLength+", mClusterIndex="+mClusterIndex+", mClusters.size()="+mClusters.size());
+		mModified = true;
 	}
 
 
@@ -147,6 +231,50 @@ public class FatRandomAccessStream implements AutoCloseable
 	{
 //		System.out.println("Close stream for object " + mFile);
 
+		if (mFile == null)
+		{
+			return;
+		}
+
+		flushBuffer();
+
+		if (mAllocated && !mUnknownLength)
+		{
+			releaseClusters((int)((mFileLength + mClusterSize - 1) / mClusterSize));
+		}
+
+		// clusters allocated by setLength and never buffered still hold the
+		// content of deleted files
+		if (mFreshClusterIndex < mClusters.size())
+		{
+			writeZeroClusters(mFreshClusterIndex, mClusters.size());
+			mFreshClusterIndex = mClusters.size();
+		}
+
+		if (mAllocated || mModified)
+		{
+			mFileSystem.getAllocationTable().commitSectorWrites();
+		}
+
+		if (mModified)
+		{
+			mFile.mLength = mFileLength;
+			mFile.mLastModified = System.currentTimeMillis();
+			mFile.commitEntry();
+		}
+
+		FatIndex index = mFileSystem.getIndex();
+		if (index != null && (mAllocated || mModified))
+		{
+			index.update(mFile);
+
+			// directories are written when entries are added and the caller commits
+			if (!mUnknownLength)
+			{
+				index.commit();
+			}
+		}
+
 		mFile = null;
 		mBuffer = null;
 		mClusters = null;
@@ -165,32 +293,334 @@ public class FatRandomAccessStream implements AutoCloseable
 	}
 
 
-//	public void write(int b) throws IOException
-//	{
-//		throw new UnsupportedOperationException("Not supported yet.");
-//	}
-//
-//
-//	public void write(byte[] aBuffer) throws IOException
-//	{
-//		throw new UnsupportedOperationException("Not supported yet.");
-//	}
-//
-//
-//	public void write(byte[] aBuffer, int aOffset, int aLength) throws IOException
-//	{
-//		throw new UnsupportedOperationException("Not supported yet.");
-//	}
-//
-//
-//	public void seek(long aOffset) throws IOException
-//	{
-//		throw new UnsupportedOperationException("Not supported yet.");
-//	}
-//
-//
-//	public void setLength(long aLength) throws IOException
-//	{
-//		throw new UnsupportedOperationException("Not supported yet.");
-//	}
+	private boolean isBuffered(long aPosition)
+	{
+		return aPosition >= mBufferOffset && aPosition < mBufferOffset + mBufferLength;
+	}
+
+
+	private void markDirty(int aStart, int aEnd)
+	{
+		if (mDirtyStart >= mDirtyEnd)
+		{
+			mDirtyStart = aStart;
+			mDirtyEnd = aEnd;
+		}
+		else
+		{
+			mDirtyStart = Math.min(mDirtyStart, aStart);
+			mDirtyEnd = Math.max(mDirtyEnd, aEnd);
+		}
+	}
+
+
+	/**
+	 * Extends the file to the length provided zero filling the unused part of
+	 * the last cluster.
+	 */
+	private void extend(long aLength) throws IOException
+	{
+		if (aLength > MAX_FILE_LENGTH)
+		{
+			throw new IOException("File length exceeds the FAT32 limit: " + aLength);
+		}
+
+		ensureCapacity(aLength);
+
+		long tailEnd = Math.min(aLength, (mFileLength + mClusterSize - 1) / mClusterSize * mClusterSize);
+
+		if (mFileLength < tailEnd && mFileLength / mClusterSize < mFreshClusterIndex)
+		{
+			long filePointer = mFilePointer;
+			mFilePointer = mFileLength;
+			writeImpl(new byte[(int)(tailEnd - mFileLength)], 0, (int)(tailEnd - mFileLength));
+			mFilePointer = filePointer;
+		}
+
+		mFileLength = aLength;
+	}
+
+
+	/**
+	 * Loads clusters of the chain until the number of clusters provided or
+	 * the end of the chain is reached. The clusters are taken from the extents
+	 * in the index if the file is indexed, otherwise from the allocation table.
+	 */
+	private void loadClusters(int aClusterCount) throws IOException
+	{
+		while (!mClusterEnd && mClusters.size() < aClusterCount)
+		{
+			if (mClusters.isEmpty())
+			{
+				if (mFile.getStartCluster() < 2)
+				{
+					mClusterEnd = true;
+					break;
+				}
+
+				FatIndex index = mFileSystem.getIndex();
+				mExtents = index == null ? null : index.getExtents(mFile);
+				mExtentClusterCount = 0;
+
+				if (mExtents != null)
+				{
+					for (int i = 0; i < mExtents.length; i += 2)
+					{
+						mExtentClusterCount += mExtents[i + 1];
+					}
+				}
+
+				mClusters.add(mFile.getStartCluster());
+			}
+			else if (mExtents != null)
+			{
+				for (int i = 0, offset = 0; i < mExtents.length && mClusters.size() < aClusterCount; offset += mExtents[i + 1], i += 2)
+				{
+					for (int j = mClusters.size() - offset; j < mExtents[i + 1] && mClusters.size() < aClusterCount; j++)
+					{
+						mClusters.add((long)mExtents[i] + j);
+					}
+				}
+
+				mClusterEnd = mClusters.size() >= mExtentClusterCount;
+			}
+			else
+			{
+				int count = Math.max(mPrefetchClusterCount, aClusterCount - mClusters.size());
+
+				mClusterEnd = mFileSystem.getAllocationTable().getChain(mClusters.get(mClusters.size() - 1), count, mClusters);
+			}
+		}
+	}
+
+
+	/**
+	 * Discards clusters taken from the index before the chain is modified;
+	 * the following clusters are then loaded from the allocation table. The
+	 * index is only updated when a stream is closed and may lag behind
+	 * changes made by other streams.
+	 */
+	private void verifyClusters() throws IOException
+	{
+		if (mClusters.isEmpty())
+		{
+			loadClusters(1);
+		}
+
+		if (mExtents != null)
+		{
+			mExtents = null;
+			mClusters.subList(1, mClusters.size()).clear();
+			mClusterEnd = false;
+		}
+	}
+
+
+	/**
+	 * Allocates clusters to make room for the number of bytes provided. Files
+	 * are extended by at least the size of the buffer to allocate contiguous
+	 * extents when writing sequentially; surplus clusters are released when
+	 * the stream is closed.
+	 */
+	private void ensureCapacity(long aLength) throws IOException
+	{
+		int required = (int)((aLength + mClusterSize - 1) / mClusterSize);
+
+		loadClusters(required);
+
+		if (mClusters.size() >= required)
+		{
+			return;
+		}
+
+		if (mExtents != null)
+		{
+			verifyClusters();
+			loadClusters(required);
+
+			if (mClusters.size() >= required)
+			{
+				return;
+			}
+		}
+
+		FatAllocationTable allocationTable = mFileSystem.getAllocationTable();
+
+		int count = required - mClusters.size();
+		if (!mUnknownLength)
+		{
+			count = Math.max(count, mBuffer.length / mClusterSize);
+		}
+
+		mFreshClusterIndex = Math.min(mFreshClusterIndex, mClusters.size());
+
+		if (mClusters.isEmpty())
+		{
+			mFile.mStartCluster = allocationTable.createChain(count, mClusters);
+			mModified = true;
+		}
+		else
+		{
+			allocationTable.extendChain(mClusters.get(mClusters.size() - 1), count, mClusters);
+		}
+
+		mAllocated = true;
+	}
+
+
+	/**
+	 * Frees all clusters following the number of clusters provided.
+	 */
+	private void releaseClusters(int aClusterCount) throws IOException
+	{
+		verifyClusters();
+		loadClusters(Integer.MAX_VALUE);
+
+		if (mClusters.size() <= aClusterCount)
+		{
+			return;
+		}
+
+		flushBuffer();
+		mBufferLength = 0;
+
+		FatAllocationTable allocationTable = mFileSystem.getAllocationTable();
+
+		if (aClusterCount == 0)
+		{
+			allocationTable.deleteChain(mClusters.get(0));
+			mFile.mStartCluster = 0;
+			mModified = true;
+		}
+		else
+		{
+			allocationTable.truncateChain(mClusters.get(aClusterCount - 1));
+		}
+
+		mClusters.subList(aClusterCount, mClusters.size()).clear();
+		mFreshClusterIndex = Math.min(mFreshClusterIndex, aClusterCount);
+		mAllocated = true;
+	}
+
+
+	/**
+	 * Loads the window of clusters containing the position provided. Clusters
+	 * allocated by this stream and never written are zero filled instead of
+	 * read; clusters skipped by a seek beyond the end of the file are zero
+	 * filled on disk.
+	 */
+	private void fillBuffer(long aPosition) throws IOException
+	{
+		flushBuffer();
+
+		int clusterIndex = (int)(aPosition / mClusterSize);
+		int windowSize = mBuffer.length / mClusterSize;
+
+		loadClusters(clusterIndex + windowSize);
+
+		int count = Math.min(windowSize, mClusters.size() - clusterIndex);
+
+		mBufferOffset = (long)clusterIndex * mClusterSize;
+		mBufferLength = 0;
+
+		if (count <= 0)
+		{
+			return;
+		}
+
+		if (clusterIndex > mFreshClusterIndex)
+		{
+			writeZeroClusters(mFreshClusterIndex, clusterIndex);
+			mFreshClusterIndex = clusterIndex;
+		}
+
+		int freshIndex = Math.max(0, Math.min(count, mFreshClusterIndex - clusterIndex));
+
+		transferClusters(clusterIndex, 0, freshIndex, false);
+
+		if (freshIndex < count)
+		{
+			Arrays.fill(mBuffer, freshIndex * mClusterSize, count * mClusterSize, (byte)0);
+			markDirty(freshIndex * mClusterSize, count * mClusterSize);
+			mFreshClusterIndex = Math.max(mFreshClusterIndex, clusterIndex + count);
+		}
+
+		mBufferLength = count * mClusterSize;
+	}
+
+
+	private void flushBuffer() throws IOException
+	{
+		if (mDirtyStart >= mDirtyEnd)
+		{
+			return;
+		}
+
+		int first = mDirtyStart / mClusterSize;
+		int last = (mDirtyEnd + mClusterSize - 1) / mClusterSize;
+
+		transferClusters((int)(mBufferOffset / mClusterSize) + first, first, last, true);
+
+		mDirtyStart = mDirtyEnd = 0;
+	}
+
+
+	/**
+	 * Reads or writes clusters of the buffer. Physically contiguous clusters
+	 * are transferred with a single PageStore call.
+	 *
+	 * @param aClusterIndex
+	 *   index in the cluster list of the first cluster in the buffer range
+	 * @param aFirst
+	 *   the first cluster in the buffer
+	 * @param aLast
+	 *   the cluster in the buffer following the last cluster transferred
+	 */
+	private void transferClusters(int aClusterIndex, int aFirst, int aLast, boolean aWrite) throws IOException
+	{
+		for (int i = aFirst; i < aLast;)
+		{
+			long firstCluster = mClusters.get(aClusterIndex + i - aFirst);
+			int runLength = 1;
+
+			while (i + runLength < aLast && mClusters.get(aClusterIndex + i + runLength - aFirst) == firstCluster + runLength)
+			{
+				runLength++;
+			}
+
+			long sectorIndex = mFileSystem.getSectorOffset(firstCluster);
+
+			if (aWrite)
+			{
+				mFileSystem.getPageStore().write(sectorIndex, mBuffer, i * mClusterSize, runLength * mClusterSize);
+			}
+			else
+			{
+				mFileSystem.getPageStore().read(sectorIndex, mBuffer, i * mClusterSize, runLength * mClusterSize);
+			}
+
+			i += runLength;
+		}
+	}
+
+
+	private void writeZeroClusters(int aFrom, int aTo) throws IOException
+	{
+		byte[] zeroes = new byte[mBuffer.length];
+
+		for (int i = aFrom; i < aTo;)
+		{
+			long firstCluster = mClusters.get(i);
+			int runLength = 1;
+
+			while (i + runLength < aTo && runLength < zeroes.length / mClusterSize && mClusters.get(i + runLength) == firstCluster + runLength)
+			{
+				runLength++;
+			}
+
+			mFileSystem.getPageStore().write(mFileSystem.getSectorOffset(firstCluster), zeroes, 0, runLength * mClusterSize);
+
+			i += runLength;
+		}
+	}
 }
@@ -1,72 +1,172 @@
 package org.terifan.fat32;
 
 import org.terifan.util.Tuple;
-import java.util.TreeMap;
 
 
+/**
+ * The FreeSpaceMap keeps track of free extents. Each extent is indexed twice,
+ * by position and by length, with both values packed into a single long key:
+ * the position index allows free extents to be merged and the length index
+ * allows the best fitting extent to be found in logarithmic time. The keys
+ * are kept in primitive sorted sets so that no operation boxes a key.
+ */
 class FreeSpaceMap
 {
-	private TreeMap<Integer,Integer> mMap;
+	private LongSortedSet mOffsetIndex;
+	private LongSortedSet mLengthIndex;
+	private long mFreeCount;
+
 
-	
 	public FreeSpaceMap()
 	{
-		mMap = new TreeMap<>();
+		mOffsetIndex = new LongSortedSet();
+		mLengthIndex = new LongSortedSet();
 	}
 
 
 	public Tuple<Integer,Integer> alloc(int aPageCount)
 	{
-		for (Integer freeBlockOffset : mMap.keySet())
+		return alloc(aPageCount, -1);
+	}
+
+
+	/**
+	 * Allocates a contiguous extent of pages. If a free extent starts at the
+	 * preferred page index it's used, allowing a chain to continue without a
+	 * gap, otherwise the smallest free extent large enough to hold all pages
+	 * requested is used. If no such extent exists the largest free extent is
+	 * allocated in its entirety and the caller must allocate the remaining
+	 * pages with another call.
+	 *
+	 * @param aPageCount
+	 *   number of pages requested
+	 * @param aPreferredPageIndex
+	 *   page index where the allocation preferably starts or -1
+	 * @return
+	 *   a Tuple with the first page index and the number of pages allocated
+	 *   or null if there is no free space
+	 */
+	public Tuple<Integer,Integer> alloc(int aPageCount, int aPreferredPageIndex)
+	{
+		if (aPreferredPageIndex >= 0)
 		{
-			//if (mMap.get(freeBlockOffset) >= aPageCount)
+			long extent = mOffsetIndex.ceiling(pack(aPreferredPageIndex, 0));
+
+			if (extent != LongSortedSet.NONE && high(extent) == aPreferredPageIndex)
 			{
-				int freeBlockLength = mMap.remove(freeBlockOffset);
+				return take(aPreferredPageIndex, low(extent), aPageCount);
+			}
+		}
 
-				if (freeBlockLength > aPageCount)
-				{
-					mMap.put(freeBlockOffset+aPageCount, freeBlockLength-aPageCount);
-				}
+		long extent = mLengthIndex.ceiling(pack(aPageCount, 0));
 
-				return new Tuple<>(freeBlockOffset, Math.min(freeBlockLength, aPageCount));
+		if (extent == LongSortedSet.NONE)
+		{
+			if (mLengthIndex.isEmpty())
+			{
+				return null;
 			}
+
+			extent = mLengthIndex.last();
 		}
 
-		return null;
+		return take(low(extent), high(extent), aPageCount);
+	}
+
+
+	private Tuple<Integer,Integer> take(int aOffset, int aLength, int aPageCount)
+	{
+		int count = Math.min(aLength, aPageCount);
+
+		remove(aOffset, aLength);
+
+		if (aLength > count)
+		{
+			insert(aOffset + count, aLength - count);
+		}
+
+		mFreeCount -= count;
+
+		return new Tuple<>(aOffset, count);
 	}
 
 
 	public void free(int aPageIndex, int aPageCount)
 	{
+		mFreeCount += aPageCount;
+
 		// merge new free block with next free block
 
-		Integer ceilKey = mMap.ceilingKey(aPageIndex);
-		if (ceilKey != null && aPageIndex + aPageCount == ceilKey)
+		long next = mOffsetIndex.ceiling(pack(aPageIndex, 0));
+		if (next != LongSortedSet.NONE && high(next) == aPageIndex + aPageCount)
 		{
-			aPageCount += mMap.get(ceilKey);
-			mMap.remove(ceilKey);
+			aPageCount += low(next);
+			remove(high(next), low(next));
 		}
 
 		// merge new free block with previous free block
 
-		Integer floorKey = mMap.floorKey(aPageIndex);
-		if (floorKey != null)
+		long prev = mOffsetIndex.lower(pack(aPageIndex, 0));
+		if (prev != LongSortedSet.NONE && high(prev) + low(prev) == aPageIndex)
 		{
-			int pageCount = mMap.get(floorKey);
-			if (floorKey + pageCount == aPageIndex)
-			{
-				aPageIndex = floorKey;
-				aPageCount += pageCount;
-			}
+			aPageIndex = high(prev);
+			aPageCount += low(prev);
+			remove(high(prev), low(prev));
 		}
 
-		mMap.put(aPageIndex, aPageCount);
+		insert(aPageIndex, aPageCount);
+	}
+
+
+	/**
+	 * Returns the total number of free pages.
+	 */
+	public long getFreeCount()
+	{
+		return mFreeCount;
+	}
+
+
+	private void insert(int aOffset, int aLength)
+	{
+		mOffsetIndex.add(pack(aOffset, aLength));
+		mLengthIndex.add(pack(aLength, aOffset));
+	}
+
+
+	private void remove(int aOffset, int aLength)
+	{
+		mOffsetIndex.remove(pack(aOffset, aLength));
+		mLengthIndex.remove(pack(aLength, aOffset));
+	}
+
+
+	private static long pack(int aHigh, int aLow)
+	{
+		return ((long)aHigh << 32) | (0xffffffffL & aLow);
+	}
+
+
+	private static int high(long aValue)
+	{
+		return (int)(aValue >>> 32);
+	}
+
+
+	private static int low(long aValue)
+	{
+		return (int)aValue;
 	}
 
 
 	protected void debug()
 	{
-		System.out.println(mMap);
+		StringBuilder sb = new StringBuilder("{");
+		for (long extent : mOffsetIndex.toArray())
+		{
+			sb.append(sb.length() > 1 ? ", " : "").append(high(extent)).append("=").append(low(extent));
+		}
+		System.out.println(sb.append("}"));
 	}
 
 /*
@@ -82,7 +182,7 @@ class FreeSpaceMap
 			map.free(27, 2);
 			map.free(17, 4);
 			System.out.println(map.alloc(4));
-			System.out.println(map.mMap);
+			map.debug();
 		}
 		catch (Exception e)
 		{
@@ -90,4 +190,4 @@ class FreeSpaceMap
 		}
 	}
 */
-}
\ No newline at end of file
+}
@@ -0,0 +1,286 @@
+package org.terifan.fat32;
+
+import java.util.Arrays;
+
+
+/**
+ * A sorted set of primitive long values stored as a list of sorted runs,
+ * each a long array of at most BLOCK_SIZE values. Lookups binary search the
+ * first value of each run and then the run itself, and updates move at most
+ * one run of values, so no value is ever boxed.<p>
+ *
+ * The value NONE is returned by the navigation methods when there is no
+ * matching value and can't be stored in the set.
+ */
+class LongSortedSet
+{
+	final static long NONE = Long.MIN_VALUE;
+
+	private final static int BLOCK_SIZE = 256;
+
+	private long[][] mBlocks;
+	private int[] mBlockSizes;
+	private int mBlockCount;
+	private int mSize;
+
+
+	LongSortedSet()
+	{
+		mBlocks = new long[4][];
+		mBlockSizes = new int[4];
+	}
+
+
+	int size()
+	{
+		return mSize;
+	}
+
+
+	boolean isEmpty()
+	{
+		return mSize == 0;
+	}
+
+
+	/**
+	 * Adds a value to the set.
+	 *
+	 * @return
+	 *   false if the value was already present
+	 */
+	boolean add(long aValue)
+	{
+		if (aValue == NONE)
+		{
+			throw new IllegalArgumentException("Illegal value: " + aValue);
+		}
+
+		if (mBlockCount == 0)
+		{
+			insertBlock(0, new long[BLOCK_SIZE], 0);
+		}
+
+		int block = findBlock(aValue);
+		int index = Arrays.binarySearch(mBlocks[block], 0, mBlockSizes[block], aValue);
+
+		if (index >= 0)
+		{
+			return false;
+		}
+
+		index = -index - 1;
+
+		if (mBlockSizes[block] == BLOCK_SIZE)
+		{
+			splitBlock(block);
+
+			if (index > BLOCK_SIZE / 2)
+			{
+				index -= BLOCK_SIZE / 2;
+				block++;
+			}
+		}
+
+		long[] values = mBlocks[block];
+		System.arraycopy(values, index, values, index + 1, mBlockSizes[block] - index);
+		values[index] = aValue;
+		mBlockSizes[block]++;
+		mSize++;
+
+		return true;
+	}
+
+
+	/**
+	 * Removes a value from the set.
+	 *
+	 * @return
+	 *   false if the value wasn't present
+	 */
+	boolean remove(long aValue)
+	{
+		if (mBlockCount == 0)
+		{
+			return false;
+		}
+
+		int block = findBlock(aValue);
+		int index = Arrays.binarySearch(mBlocks[block], 0, mBlockSizes[block], aValue);
+
+		if (index < 0)
+		{
+			return false;
+		}
+
+		long[] values = mBlocks[block];
+		System.arraycopy(values, index + 1, values, index, mBlockSizes[block] - index - 1);
+		mBlockSizes[block]--;
+		mSize--;
+
+		if (mBlockSizes[block] == 0)
+		{
+			removeBlock(block);
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Returns the least value greater than or equal to the value provided or
+	 * NONE if there is none.
+	 */
+	long ceiling(long aValue)
+	{
+		if (mBlockCount == 0)
+		{
+			return NONE;
+		}
+
+		int block = findBlock(aValue);
+		int index = Arrays.binarySearch(mBlocks[block], 0, mBlockSizes[block], aValue);
+
+		if (index >= 0)
+		{
+			return aValue;
+		}
+
+		index = -index - 1;
+
+		if (index < mBlockSizes[block])
+		{
+			return mBlocks[block][index];
+		}
+		if (block + 1 < mBlockCount)
+		{
+			return mBlocks[block + 1][0];
+		}
+
+		return NONE;
+	}
+
+
+	/**
+	 * Returns the greatest value strictly less than the value provided or NONE
+	 * if there is none.
+	 */
+	long lower(long aValue)
+	{
+		if (mBlockCount == 0)
+		{
+			return NONE;
+		}
+
+		int block = findBlock(aValue);
+		int index = Arrays.binarySearch(mBlocks[block], 0, mBlockSizes[block], aValue);
+
+		if (index < 0)
+		{
+			index = -index - 1;
+		}
+
+		if (index > 0)
+		{
+			return mBlocks[block][index - 1];
+		}
+		if (block > 0)
+		{
+			return mBlocks[block - 1][mBlockSizes[block - 1] - 1];
+		}
+
+		return NONE;
+	}
+
+
+	/**
+	 * Returns the greatest value in the set or NONE if the set is empty.
+	 */
+	long last()
+	{
+		if (mBlockCount == 0)
+		{
+			return NONE;
+		}
+
+		return mBlocks[mBlockCount - 1][mBlockSizes[mBlockCount - 1] - 1];
+	}
+
+
+	/**
+	 * Returns all values in ascending order.
+	 */
+	long[] toArray()
+	{
+		long[] values = new long[mSize];
+
+		for (int block = 0, offset = 0; block < mBlockCount; offset += mBlockSizes[block++])
+		{
+			System.arraycopy(mBlocks[block], 0, values, offset, mBlockSizes[block]);
+		}
+
+		return values;
+	}
+
+
+	/**
+	 * Returns the last block with a first value less than or equal to the
+	 * value provided or the first block if there is none.
+	 */
+	private int findBlock(long aValue)
+	{
+		int low = 1;
+		int high = mBlockCount - 1;
+
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+
+			if (mBlocks[mid][0] <= aValue)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+
+		return low - 1;
+	}
+
+
+	private void splitBlock(int aBlock)
+	{
+		long[] values = new long[BLOCK_SIZE];
+		System.arraycopy(mBlocks[aBlock], BLOCK_SIZE / 2, values, 0, BLOCK_SIZE / 2);
+		mBlockSizes[aBlock] = BLOCK_SIZE / 2;
+
+		insertBlock(aBlock + 1, values, BLOCK_SIZE / 2);
+	}
+
+
+	private void insertBlock(int aBlock, long[] aValues, int aSize)
+	{
+		if (mBlockCount == mBlocks.length)
+		{
+			mBlocks = Arrays.copyOf(mBlocks, 2 * mBlockCount);
+			mBlockSizes = Arrays.copyOf(mBlockSizes, 2 * mBlockCount);
+		}
+
+		System.arraycopy(mBlocks, aBlock, mBlocks, aBlock + 1, mBlockCount - aBlock);
+		System.arraycopy(mBlockSizes, aBlock, mBlockSizes, aBlock + 1, mBlockCount - aBlock);
+		mBlocks[aBlock] = aValues;
+		mBlockSizes[aBlock] = aSize;
+		mBlockCount++;
+	}
+
+
+	private void removeBlock(int aBlock)
+	{
+		mBlockCount--;
+		System.arraycopy(mBlocks, aBlock + 1, mBlocks, aBlock, mBlockCount - aBlock);
+		System.arraycopy(mBlockSizes, aBlock + 1, mBlockSizes, aBlock, mBlockCount - aBlock);
+		mBlocks[mBlockCount] = null;
+	}
+}
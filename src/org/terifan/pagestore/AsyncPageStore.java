@@ -0,0 +1,75 @@
+package org.terifan.pagestore;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * An AsyncPageStore is a PageStore that accepts read and write requests
+ * without blocking the caller. Requests are completed in any order and an
+ * implementation may coalesce and reorder requests submitted together.
+ *
+ * Failures are reported by completing the returned future exceptionally with
+ * a CompletionException wrapping the IOException.
+ */
+public interface AsyncPageStore extends PageStore
+{
+	/**
+	 * Reads one or more pages from the PageStore asynchronously. The buffer
+	 * must not be accessed until the returned future has completed.
+	 *
+	 * @param aPageIndex
+	 *   the first page to read.
+	 * @param aBuffer
+	 *   the destination buffer.
+	 * @param aOffset
+	 *   the start offset in the destination buffer.
+	 * @param aLength
+	 *   number of bytes to read. Must be a multiple of the page size.
+	 * @return
+	 *   a future completed when the buffer has been filled.
+	 */
+	CompletableFuture<Void> readAsync(long aPageIndex, byte [] aBuffer, int aOffset, int aLength);
+
+
+	/**
+	 * Writes one or more pages to the PageStore asynchronously. The buffer
+	 * must not be modified until the returned future has completed.
+	 *
+	 * @param aPageIndex
+	 *   the start page index.
+	 * @param aBuffer
+	 *   the content to be written
+	 * @param aOffset
+	 *   the start offset in the buffer provided.
+	 * @param aLength
+	 *   number of bytes to be written. Must be a multiple of the page size.
+	 * @return
+	 *   a future completed when the pages have been written.
+	 */
+	CompletableFuture<Void> writeAsync(long aPageIndex, byte [] aBuffer, int aOffset, int aLength);
+
+
+	/**
+	 * Reads a batch of page ranges. The default implementation submits each
+	 * range separately; implementations may sort the ranges and coalesce
+	 * adjacent ranges into fewer, larger requests.
+	 *
+	 * @param aRanges
+	 *   the ranges to read.
+	 * @return
+	 *   a future completed when all ranges have been read.
+	 */
+	default CompletableFuture<Void> readBatch(List<PageRange> aRanges)
+	{
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[aRanges.size()];
+
+		for (int i = 0; i < futures.length; i++)
+		{
+			PageRange range = aRanges.get(i);
+			futures[i] = readAsync(range.getPageIndex(), range.getBuffer(), range.getOffset(), range.getLength());
+		}
+
+		return CompletableFuture.allOf(futures);
+	}
+}
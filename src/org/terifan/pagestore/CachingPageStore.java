@@ -0,0 +1,421 @@
+package org.terifan.pagestore;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A CachingPageStore is a decorator that caches pages of another PageStore in
+ * memory. Pages read from the underlying store are kept until the byte budget
+ * of the cache is exceeded. Writes are passed through to the underlying store
+ * and update cached pages.
+ *
+ * Eviction follows the 2Q algorithm: a page read for the first time enters a
+ * small FIFO queue and is only promoted to the main LRU queue when it's read
+ * again after it has left the FIFO queue. A single sequential scan will
+ * therefore not flush frequently used pages such as directory clusters and
+ * the allocation table.
+ *
+ * The cache is split into stripes with separate locks so that concurrent
+ * readers of different pages don't contend on a single monitor. Each stripe
+ * counts the writes to its pages; a page read from the underlying store is
+ * only added to the cache if no page of the stripe was written during the
+ * read, so a concurrent write is never replaced by the data it overwrote.
+ */
+public class CachingPageStore implements PageStore
+{
+	private final static int STRIPE_COUNT = 16;
+
+	private PageStore mPageStore;
+	private final int mPageSize;
+	private final Stripe[] mStripes;
+	private final LongAdder mHitCount;
+	private final LongAdder mMissCount;
+
+
+	/**
+	 * Creates a new CachingPageStore.
+	 *
+	 * @param aPageStore
+	 *   the underlying PageStore
+	 * @param aCapacity
+	 *   the maximum number of bytes of page data held by the cache. Nothing
+	 *   is cached if it's less than the page size.
+	 */
+	public CachingPageStore(PageStore aPageStore, long aCapacity) throws IOException
+	{
+		mPageStore = aPageStore;
+		mPageSize = aPageStore.getPageSize();
+		mHitCount = new LongAdder();
+		mMissCount = new LongAdder();
+
+		long capacityPages = Math.max(0, aCapacity / mPageSize);
+
+		// small caches get fewer stripes so that the stripes together never exceed the capacity
+		int stripeCount = (int)Math.min(STRIPE_COUNT, Long.highestOneBit(Math.max(1, capacityPages)));
+
+		mStripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++)
+		{
+			mStripes[i] = new Stripe((int)Math.min(Integer.MAX_VALUE, capacityPages / stripeCount + (i < capacityPages % stripeCount ? 1 : 0)));
+		}
+	}
+
+
+	@Override
+	public void read(long aPageIndex, byte[] aBuffer) throws IOException
+	{
+		read(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	/**
+	 * Reads one or more pages. Pages found in the cache are copied from the
+	 * cache and each run of consecutive missing pages is read from the
+	 * underlying store with a single call.
+	 */
+	@Override
+	public void read(long aPageIndex, byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		if (aLength % mPageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aLength);
+		}
+
+		int pageCount = aLength / mPageSize;
+
+		for (int i = 0; i < pageCount;)
+		{
+			if (getStripe(aPageIndex + i).get(aPageIndex + i, aBuffer, aOffset + i * mPageSize))
+			{
+				mHitCount.increment();
+				i++;
+				continue;
+			}
+
+			int start = i;
+			for (i++; i < pageCount && !getStripe(aPageIndex + i).contains(aPageIndex + i); i++)
+			{
+			}
+
+			mMissCount.add(i - start);
+
+			long[] writeCounts = new long[i - start];
+			for (int j = start; j < i; j++)
+			{
+				writeCounts[j - start] = getStripe(aPageIndex + j).getWriteCount();
+			}
+
+			mPageStore.read(aPageIndex + start, aBuffer, aOffset + start * mPageSize, (i - start) * mPageSize);
+
+			for (int j = start; j < i; j++)
+			{
+				getStripe(aPageIndex + j).insert(aPageIndex + j, aBuffer, aOffset + j * mPageSize, writeCounts[j - start]);
+			}
+		}
+	}
+
+
+	@Override
+	public void write(long aPageIndex, byte[] aBuffer) throws IOException
+	{
+		write(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	/**
+	 * Writes pages through to the underlying store. Pages already cached are
+	 * updated; other pages aren't added to the cache.
+	 */
+	@Override
+	public void write(long aPageIndex, byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		mPageStore.write(aPageIndex, aBuffer, aOffset, aLength);
+
+		for (int i = 0, pageCount = aLength / mPageSize; i < pageCount; i++)
+		{
+			getStripe(aPageIndex + i).update(aPageIndex + i, aBuffer, aOffset + i * mPageSize);
+		}
+	}
+
+
+	@Override
+	public long getPageCount() throws IOException
+	{
+		return mPageStore.getPageCount();
+	}
+
+
+	@Override
+	public int getPageSize() throws IOException
+	{
+		return mPageSize;
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		clear();
+
+		if (mPageStore != null)
+		{
+			mPageStore.close();
+			mPageStore = null;
+		}
+	}
+
+
+	@Override
+	public void flush() throws IOException
+	{
+		mPageStore.flush();
+	}
+
+
+	@Override
+	public void resize(long aPageCount) throws IOException
+	{
+		mPageStore.resize(aPageCount);
+
+		for (Stripe stripe : mStripes)
+		{
+			stripe.truncate(aPageCount);
+		}
+	}
+
+
+	/**
+	 * Removes all pages from the cache.
+	 */
+	public void clear()
+	{
+		for (Stripe stripe : mStripes)
+		{
+			stripe.clear();
+		}
+	}
+
+
+	/**
+	 * Returns number of pages read from the cache.
+	 */
+	public long getHitCount()
+	{
+		return mHitCount.sum();
+	}
+
+
+	/**
+	 * Returns number of pages read from the underlying PageStore.
+	 */
+	public long getMissCount()
+	{
+		return mMissCount.sum();
+	}
+
+
+	/**
+	 * Returns number of bytes of page data currently held by the cache.
+	 */
+	public long getUsedSize()
+	{
+		long size = 0;
+		for (Stripe stripe : mStripes)
+		{
+			size += stripe.size();
+		}
+		return size * mPageSize;
+	}
+
+
+	public void resetStatistics()
+	{
+		mHitCount.reset();
+		mMissCount.reset();
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "CachingPageStore{hits=" + getHitCount() + ", misses=" + getMissCount() + ", used=" + getUsedSize() + "}";
+	}
+
+
+	private Stripe getStripe(long aPageIndex)
+	{
+		long h = aPageIndex * 0x9E3779B97F4A7C15L;
+		return mStripes[(int)(h >>> 60) & (mStripes.length - 1)];
+	}
+
+
+	/**
+	 * One stripe of the cache implementing the 2Q replacement policy.
+	 */
+	private class Stripe
+	{
+		private final int mCapacity;
+		private final int mInCapacity;
+		private final int mOutCapacity;
+		private final LinkedHashMap<Long, byte[]> mIn;
+		private final LinkedHashMap<Long, Boolean> mOut;
+		private final LinkedHashMap<Long, byte[]> mMain;
+		private long mWriteCount;
+
+
+		Stripe(int aCapacity)
+		{
+			mCapacity = aCapacity;
+			mInCapacity = Math.max(1, aCapacity / 4);
+			mOutCapacity = Math.max(1, aCapacity / 2);
+			mIn = new LinkedHashMap<>(16, 0.75f, false);
+			mOut = new LinkedHashMap<>(16, 0.75f, false);
+			mMain = new LinkedHashMap<>(16, 0.75f, true);
+		}
+
+
+		synchronized boolean get(long aPageIndex, byte[] aBuffer, int aOffset)
+		{
+			byte[] page = mMain.get(aPageIndex);
+
+			if (page == null)
+			{
+				page = mIn.get(aPageIndex);
+			}
+			if (page == null)
+			{
+				return false;
+			}
+
+			System.arraycopy(page, 0, aBuffer, aOffset, mPageSize);
+
+			return true;
+		}
+
+
+		synchronized boolean contains(long aPageIndex)
+		{
+			return mMain.containsKey(aPageIndex) || mIn.containsKey(aPageIndex);
+		}
+
+
+		synchronized long getWriteCount()
+		{
+			return mWriteCount;
+		}
+
+
+		/**
+		 * Updates a cached page after it was written to the underlying store.
+		 */
+		synchronized void update(long aPageIndex, byte[] aBuffer, int aOffset)
+		{
+			mWriteCount++;
+
+			byte[] page = mMain.get(aPageIndex);
+
+			if (page == null)
+			{
+				page = mIn.get(aPageIndex);
+			}
+
+			if (page != null)
+			{
+				System.arraycopy(aBuffer, aOffset, page, 0, mPageSize);
+			}
+		}
+
+
+		/**
+		 * Adds a page read from the underlying store unless it's already
+		 * cached or a page of the stripe was written since the write count
+		 * provided was obtained.
+		 */
+		synchronized void insert(long aPageIndex, byte[] aBuffer, int aOffset, long aWriteCount)
+		{
+			if (aWriteCount != mWriteCount || mMain.containsKey(aPageIndex) || mIn.containsKey(aPageIndex))
+			{
+				return;
+			}
+
+			byte[] page = new byte[mPageSize];
+			System.arraycopy(aBuffer, aOffset, page, 0, mPageSize);
+
+			if (mOut.remove(aPageIndex) != null)
+			{
+				mMain.put(aPageIndex, page);
+			}
+			else
+			{
+				mIn.put(aPageIndex, page);
+			}
+
+			evict();
+		}
+
+
+		private void evict()
+		{
+			while (mIn.size() + mMain.size() > mCapacity)
+			{
+				if (mIn.size() > mInCapacity || mMain.isEmpty())
+				{
+					Iterator<Long> it = mIn.keySet().iterator();
+					Long key = it.next();
+					it.remove();
+
+					mOut.put(key, Boolean.TRUE);
+
+					if (mOut.size() > mOutCapacity)
+					{
+						Iterator<Long> ghosts = mOut.keySet().iterator();
+						ghosts.next();
+						ghosts.remove();
+					}
+				}
+				else
+				{
+					Iterator<Long> it = mMain.keySet().iterator();
+					it.next();
+					it.remove();
+				}
+			}
+		}
+
+
+		synchronized void truncate(long aPageCount)
+		{
+			mWriteCount++;
+
+			truncate(mIn, aPageCount);
+			truncate(mOut, aPageCount);
+			truncate(mMain, aPageCount);
+		}
+
+
+		private void truncate(Map<Long, ?> aMap, long aPageCount)
+		{
+			aMap.keySet().removeIf(e -> e >= aPageCount);
+		}
+
+
+		synchronized int size()
+		{
+			return mIn.size() + mMain.size();
+		}
+
+
+		synchronized void clear()
+		{
+			mWriteCount++;
+
+			mIn.clear();
+			mOut.clear();
+			mMain.clear();
+		}
+	}
+}
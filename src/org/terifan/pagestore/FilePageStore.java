@@ -3,6 +3,15 @@ package org.terifan.pagestore;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -13,15 +22,23 @@ import java.io.RandomAccessFile;
  * block. However, the object can be constructed outside a try..finally since
  * the underlying RandomAccessStream is created on the first read/write
  * operation.
+ *
+ * All reads and writes use positional I/O of the underlying FileChannel and
+ * never move the file pointer, so any number of threads may read and write
+ * concurrently. Asynchronous requests are served by a small pool of I/O
+ * threads so that several requests can be outstanding against the file at
+ * the same time.
  */
-public class FilePageStore implements PageStore
+public class FilePageStore implements AsyncPageStore
 {
 	private final static boolean DEBUG = false;
+	private final static int IO_THREAD_COUNT = 4;
 
 	private RandomAccessFile mRandomAccessFile;
 	private int mPageSize;
 	private boolean mReadOnly;
 	private final File mFile;
+	private ExecutorService mExecutor;
 
 
 	public FilePageStore(File aFile) throws IOException
@@ -98,15 +115,24 @@ public class FilePageStore implements PageStore
 		{
 			throw new IOException("Input buffer has illegal size: " + aLength);
 		}
-		if (aPageIndex > getPageCount())
+		if (aPageIndex + aLength / mPageSize > getPageCount())
 		{
 			throw new IOException("Reading beyond end of file: page index: " + aPageIndex + ", page count: " + getPageCount());
 		}
 
-		synchronized (this)
+		ByteBuffer buffer = ByteBuffer.wrap(aBuffer, aOffset, aLength);
+		FileChannel channel = mRandomAccessFile.getChannel();
+
+		for (long position = aPageIndex * mPageSize; buffer.hasRemaining();)
 		{
-			mRandomAccessFile.seek(aPageIndex * mPageSize);
-			mRandomAccessFile.read(aBuffer, aOffset, aLength);
+			int n = channel.read(buffer, position);
+
+			if (n < 0)
+			{
+				throw new IOException("Reading beyond end of file: page index: " + aPageIndex + ", page count: " + getPageCount());
+			}
+
+			position += n;
 		}
 	}
 
@@ -159,14 +185,216 @@ public class FilePageStore implements PageStore
 			throw new IllegalArgumentException("Index out of bounds: buffer offset: " + aOffset + ", buffer length: " + aBuffer.length + ", write: " + aLength);
 		}
 
-		synchronized (this)
+		ByteBuffer buffer = ByteBuffer.wrap(aBuffer, aOffset, aLength);
+		FileChannel channel = mRandomAccessFile.getChannel();
+
+		for (long position = aPageIndex * mPageSize; buffer.hasRemaining();)
 		{
-			mRandomAccessFile.seek(aPageIndex * mPageSize);
-			mRandomAccessFile.write(aBuffer, aOffset, aLength);
+			position += channel.write(buffer, position);
 		}
 	}
 
 
+	/**
+	 * Reads one or more pages from the PageStore directly into the buffer
+	 * provided using positional reads of the underlying FileChannel.
+	 *
+	 * @param aPageIndex
+	 * the first page to read.
+	 * @param aBuffer
+	 * the destination buffer. Number of bytes remaining must be a multiple of
+	 * the page size.
+	 */
+	@Override
+	public void read(long aPageIndex, ByteBuffer aBuffer) throws IOException
+	{
+		if (DEBUG)
+		{
+			System.out.println("read(page=" + aPageIndex + ", buffer=" + aBuffer + ")");
+		}
+
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: " + aPageIndex);
+		}
+		if (aBuffer.remaining() % mPageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aBuffer.remaining());
+		}
+		if (aPageIndex + aBuffer.remaining() / mPageSize > getPageCount())
+		{
+			throw new IOException("Reading beyond end of file: page index: " + aPageIndex + ", page count: " + getPageCount());
+		}
+
+		FileChannel channel = mRandomAccessFile.getChannel();
+
+		for (long position = aPageIndex * mPageSize; aBuffer.hasRemaining();)
+		{
+			int n = channel.read(aBuffer, position);
+
+			if (n < 0)
+			{
+				throw new IOException("Reading beyond end of file: page index: " + aPageIndex + ", page count: " + getPageCount());
+			}
+
+			position += n;
+		}
+	}
+
+
+	/**
+	 * Writes one or more pages to the PageStore directly from the buffer
+	 * provided using positional writes of the underlying FileChannel.
+	 *
+	 * @param aPageIndex
+	 * the start page index.
+	 * @param aBuffer
+	 * the content to be written. Number of bytes remaining must be a multiple
+	 * of the page size.
+	 */
+	@Override
+	public void write(long aPageIndex, ByteBuffer aBuffer) throws IOException
+	{
+		if (DEBUG)
+		{
+			System.out.println("write(page=" + aPageIndex + ", buffer=" + aBuffer + ")");
+		}
+
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: " + aPageIndex);
+		}
+		if (aBuffer.remaining() % mPageSize != 0)
+		{
+			throw new IOException("Input buffer has illegal size: " + aBuffer.remaining() + ", page-size: " + mPageSize);
+		}
+
+		FileChannel channel = mRandomAccessFile.getChannel();
+
+		for (long position = aPageIndex * mPageSize; aBuffer.hasRemaining();)
+		{
+			position += channel.write(aBuffer, position);
+		}
+	}
+
+
+	@Override
+	public CompletableFuture<Void> readAsync(long aPageIndex, byte[] aBuffer, int aOffset, int aLength)
+	{
+		return CompletableFuture.runAsync(() ->
+		{
+			try
+			{
+				read(aPageIndex, ByteBuffer.wrap(aBuffer, aOffset, aLength));
+			}
+			catch (IOException e)
+			{
+				throw new CompletionException(e);
+			}
+		}, getExecutor());
+	}
+
+
+	@Override
+	public CompletableFuture<Void> writeAsync(long aPageIndex, byte[] aBuffer, int aOffset, int aLength)
+	{
+		return CompletableFuture.runAsync(() ->
+		{
+			try
+			{
+				write(aPageIndex, ByteBuffer.wrap(aBuffer, aOffset, aLength));
+			}
+			catch (IOException e)
+			{
+				throw new CompletionException(e);
+			}
+		}, getExecutor());
+	}
+
+
+	/**
+	 * Reads a batch of page ranges. The ranges are sorted by page index and
+	 * ranges that are adjacent on disk are read in order by a single task.
+	 */
+	@Override
+	public CompletableFuture<Void> readBatch(List<PageRange> aRanges)
+	{
+		ArrayList<PageRange> ranges = new ArrayList<>(aRanges);
+		ranges.sort(Comparator.comparingLong(PageRange::getPageIndex));
+
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+
+		for (int i = 0; i < ranges.size();)
+		{
+			long pageIndex = ranges.get(i).getPageIndex();
+			long nextPageIndex = pageIndex;
+			ArrayList<ByteBuffer> buffers = new ArrayList<>();
+
+			for (; i < ranges.size() && ranges.get(i).getPageIndex() == nextPageIndex; i++)
+			{
+				PageRange range = ranges.get(i);
+
+				if (range.getLength() % mPageSize != 0)
+				{
+					CompletableFuture<Void> future = new CompletableFuture<>();
+					future.completeExceptionally(new IOException("Input buffer has illegal size: " + range.getLength()));
+					return future;
+				}
+
+				buffers.add(ByteBuffer.wrap(range.getBuffer(), range.getOffset(), range.getLength()));
+				nextPageIndex += range.getLength() / mPageSize;
+			}
+
+			futures.add(CompletableFuture.runAsync(() ->
+			{
+				try
+				{
+					readSequential(pageIndex, buffers);
+				}
+				catch (IOException e)
+				{
+					throw new CompletionException(e);
+				}
+			}, getExecutor()));
+		}
+
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+
+
+	/**
+	 * Reads buffers from consecutive pages with positional reads; a
+	 * scattering read would move the file pointer shared with other threads.
+	 */
+	private void readSequential(long aPageIndex, List<ByteBuffer> aBuffers) throws IOException
+	{
+		for (ByteBuffer buffer : aBuffers)
+		{
+			int pageCount = buffer.remaining() / mPageSize;
+
+			read(aPageIndex, buffer);
+
+			aPageIndex += pageCount;
+		}
+	}
+
+
+	private synchronized ExecutorService getExecutor()
+	{
+		if (mExecutor == null)
+		{
+			mExecutor = Executors.newFixedThreadPool(IO_THREAD_COUNT, r ->
+			{
+				Thread thread = new Thread(r, "FilePageStore I/O");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		return mExecutor;
+	}
+
+
 	/**
 	 * Returns number of pages in this PageStore.
 	 *
@@ -202,6 +430,11 @@ public class FilePageStore implements PageStore
 	{
 		synchronized (this)
 		{
+			if (mExecutor != null)
+			{
+				mExecutor.shutdown();
+				mExecutor = null;
+			}
 			if (mRandomAccessFile != null)
 			{
 				mRandomAccessFile.close();
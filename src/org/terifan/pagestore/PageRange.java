@@ -0,0 +1,89 @@
+package org.terifan.pagestore;
+
+
+/**
+ * A PageRange describes a contiguous range of pages in a PageStore and the
+ * buffer region they are read into or written from.
+ */
+public final class PageRange
+{
+	private final long mPageIndex;
+	private final byte[] mBuffer;
+	private final int mOffset;
+	private final int mLength;
+
+
+	/**
+	 * Creates a PageRange covering the entire buffer.
+	 *
+	 * @param aPageIndex
+	 *   the first page of the range.
+	 * @param aBuffer
+	 *   the buffer. Length must be a multiple of the page size.
+	 */
+	public PageRange(long aPageIndex, byte[] aBuffer)
+	{
+		this(aPageIndex, aBuffer, 0, aBuffer.length);
+	}
+
+
+	/**
+	 * Creates a PageRange.
+	 *
+	 * @param aPageIndex
+	 *   the first page of the range.
+	 * @param aBuffer
+	 *   the buffer.
+	 * @param aOffset
+	 *   the start offset in the buffer.
+	 * @param aLength
+	 *   number of bytes. Must be a multiple of the page size.
+	 */
+	public PageRange(long aPageIndex, byte[] aBuffer, int aOffset, int aLength)
+	{
+		if (aPageIndex < 0)
+		{
+			throw new IllegalArgumentException("Index out of bounds: page index: " + aPageIndex);
+		}
+		if (aOffset < 0 || aLength < 0 || aOffset + aLength > aBuffer.length)
+		{
+			throw new IllegalArgumentException("Index out of bounds: buffer offset: " + aOffset + ", buffer length: " + aBuffer.length + ", length: " + aLength);
+		}
+
+		mPageIndex = aPageIndex;
+		mBuffer = aBuffer;
+		mOffset = aOffset;
+		mLength = aLength;
+	}
+
+
+	public long getPageIndex()
+	{
+		return mPageIndex;
+	}
+
+
+	public byte[] getBuffer()
+	{
+		return mBuffer;
+	}
+
+
+	public int getOffset()
+	{
+		return mOffset;
+	}
+
+
+	public int getLength()
+	{
+		return mLength;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "PageRange{page=" + mPageIndex + ", offset=" + mOffset + ", length=" + mLength + "}";
+	}
+}
@@ -2,11 +2,16 @@ package org.terifan.pagestore;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /**
  * A PageStore is a random access storage of pages. All pages are the same
- * size and accessed by their index in the PageStore.
+ * size and accessed by their index in the PageStore.<p>
+ *
+ * Reading a page beyond the last page of the PageStore throws an
+ * IOException, whichever read method is used. The content of the buffer is
+ * unspecified when a read fails.
  */
 public interface PageStore extends Closeable
 {
@@ -62,6 +67,73 @@ public interface PageStore extends Closeable
 	void write(long aPageIndex, byte [] aBuffer, int aOffset, int aLength) throws IOException;
 
 
+	/**
+	 * Reads one or more pages from the PageStore into the remaining part of
+	 * the buffer provided. The position of the buffer is advanced by the
+	 * number of bytes read.
+	 *
+	 * Implementation note: the default implementation bridges to the array
+	 * based read method and copies the data when the buffer isn't backed by an
+	 * array.
+	 *
+	 * @param aPageIndex
+	 *   the first page to read.
+	 * @param aBuffer
+	 *   the destination buffer. Number of bytes remaining must be a multiple
+	 *   of the page size.
+	 */
+	default void read(long aPageIndex, ByteBuffer aBuffer) throws IOException
+	{
+		int length = aBuffer.remaining();
+
+		if (aBuffer.hasArray())
+		{
+			read(aPageIndex, aBuffer.array(), aBuffer.arrayOffset() + aBuffer.position(), length);
+		}
+		else
+		{
+			byte [] buffer = new byte[length];
+			read(aPageIndex, buffer, 0, length);
+			aBuffer.duplicate().put(buffer);
+		}
+
+		aBuffer.position(aBuffer.position() + length);
+	}
+
+
+	/**
+	 * Writes the remaining part of the buffer provided to the PageStore. The
+	 * position of the buffer is advanced by the number of bytes written.
+	 *
+	 * Implementation note: the default implementation bridges to the array
+	 * based write method and copies the data when the buffer isn't backed by
+	 * an accessible array.
+	 *
+	 * @param aPageIndex
+	 *   the start page index.
+	 * @param aBuffer
+	 *   the content to be written. Number of bytes remaining must be a
+	 *   multiple of the page size.
+	 */
+	default void write(long aPageIndex, ByteBuffer aBuffer) throws IOException
+	{
+		int length = aBuffer.remaining();
+
+		if (aBuffer.hasArray())
+		{
+			write(aPageIndex, aBuffer.array(), aBuffer.arrayOffset() + aBuffer.position(), length);
+		}
+		else
+		{
+			byte [] buffer = new byte[length];
+			aBuffer.duplicate().get(buffer);
+			write(aPageIndex, buffer, 0, length);
+		}
+
+		aBuffer.position(aBuffer.position() + length);
+	}
+
+
 	/**
 	 * Returns number of pages in this PageStore.
 	 *
@@ -0,0 +1,63 @@
+package org.terifan.truecrypt;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+
+/**
+ * A random generator producing the keystream of AES in counter mode. The key
+ * and initial counter are drawn from a SecureRandom, after which random bytes
+ * cost one block encryption per 16 bytes. Used to fill volumes with random
+ * data where SecureRandom is too slow.
+ */
+final class CTRRandom
+{
+	private final static int BLOCK_SIZE = 16;
+
+	private AES mCipher;
+	private byte[] mCounter;
+
+
+	public CTRRandom(SecureRandom aSeed)
+	{
+		byte[] key = new byte[32];
+		aSeed.nextBytes(key);
+
+		mCipher = new AES(new SecretKey(key));
+		mCounter = new byte[BLOCK_SIZE];
+		aSeed.nextBytes(mCounter);
+
+		Arrays.fill(key, (byte)0);
+	}
+
+
+	/**
+	 * Fills a buffer with random bytes.
+	 *
+	 * @param aLength
+	 *   number of bytes to generate; must be divisible by 16
+	 */
+	public void nextBytes(byte[] aBuffer, int aOffset, int aLength)
+	{
+		if ((aLength % BLOCK_SIZE) != 0)
+		{
+			throw new IllegalArgumentException("Length must be divisible by " + BLOCK_SIZE + ": " + aLength);
+		}
+
+		for (int end = aOffset + aLength; aOffset < end; aOffset += BLOCK_SIZE)
+		{
+			mCipher.engineEncryptBlock(mCounter, 0, aBuffer, aOffset);
+
+			for (int i = BLOCK_SIZE; --i >= 0 && ++mCounter[i] == 0;)
+			{
+			}
+		}
+	}
+
+
+	public void reset()
+	{
+		mCipher.engineReset();
+		Arrays.fill(mCounter, (byte)0);
+	}
+}
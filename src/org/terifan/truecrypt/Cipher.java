@@ -1,6 +1,12 @@
 package org.terifan.truecrypt;
 
 
+/**
+ * A block cipher. Once initialized the key schedule isn't modified by the
+ * encrypt and decrypt methods, which may be called by several threads
+ * concurrently. engineInit and engineReset must not run concurrently with
+ * any other method.
+ */
 interface Cipher
 {
 	void engineInit(SecretKey aSecretKey);
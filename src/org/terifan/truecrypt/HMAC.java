@@ -1,5 +1,6 @@
 package org.terifan.truecrypt;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
@@ -9,6 +10,7 @@ final class HMAC extends MessageDigest implements Cloneable
 	private transient MessageDigest mMessageDigest;
 	private transient byte [] mInputPad;
 	private transient byte [] mOutputPad;
+	private transient byte [] mDigestBuffer;
 
 
 	private HMAC(MessageDigest aMessageDigest)
@@ -68,6 +70,18 @@ final class HMAC extends MessageDigest implements Cloneable
 	}
 
 
+	byte [] getInputPad()
+	{
+		return mInputPad;
+	}
+
+
+	byte [] getOutputPad()
+	{
+		return mOutputPad;
+	}
+
+
 	@Override
 	protected byte [] engineDigest()
 	{
@@ -81,6 +95,32 @@ final class HMAC extends MessageDigest implements Cloneable
 	}
 
 
+	@Override
+	protected int engineDigest(byte [] aBuffer, int aOffset, int aLength) throws DigestException
+	{
+		int length = mMessageDigest.getDigestLength();
+
+		if (aLength < length)
+		{
+			throw new DigestException("Buffer too short.");
+		}
+
+		if (mDigestBuffer == null)
+		{
+			mDigestBuffer = new byte[length];
+		}
+
+		mMessageDigest.digest(mDigestBuffer, 0, length);
+		mMessageDigest.update(mOutputPad);
+		mMessageDigest.update(mDigestBuffer);
+		mMessageDigest.digest(aBuffer, aOffset, length);
+
+		engineReset();
+
+		return length;
+	}
+
+
 	@Override
 	protected int engineGetDigestLength()
 	{
@@ -133,6 +173,10 @@ final class HMAC extends MessageDigest implements Cloneable
 		mMessageDigest.reset();
 		Arrays.fill(mInputPad, (byte)0);
 		Arrays.fill(mOutputPad, (byte)0);
+		if (mDigestBuffer != null)
+		{
+			Arrays.fill(mDigestBuffer, (byte)0);
+		}
 		super.reset();
 	}
 }
\ No newline at end of file
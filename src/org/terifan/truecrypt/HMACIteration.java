@@ -0,0 +1,32 @@
+package org.terifan.truecrypt;
+
+
+/**
+ * Implemented by digests that perform the iterations of PBKDF2 with HMAC
+ * directly on their compression function. The message hashed in every
+ * iteration is a key pad followed by one digest, which together with its
+ * padding fills whole blocks, so the chaining values of the key pads are
+ * computed once and each iteration costs a fixed number of compressions
+ * without any buffering or byte conversions. PBKDF2 falls back to hashing
+ * through HMAC for other digests.
+ */
+interface HMACIteration
+{
+	/**
+	 * Performs the iterations of a PBKDF2 block following the first
+	 * iteration.
+	 *
+	 * @param aInputPad
+	 *   the HMAC input pad, one block of the digest
+	 * @param aOutputPad
+	 *   the HMAC output pad, one block of the digest
+	 * @param aBuffer
+	 *   contains the result of the first iteration on entry and the xor of all
+	 *   iterations on return
+	 * @param aOffset
+	 *   offset in the buffer
+	 * @param aIterationCount
+	 *   number of iterations following the first iteration
+	 */
+	void iterateHMAC(byte[] aInputPad, byte[] aOutputPad, byte[] aBuffer, int aOffset, int aIterationCount);
+}
@@ -113,6 +113,13 @@ final class PBKDF2
 
 			System.arraycopy(u, 0, mBuffer, mOffset, u.length);
 
+			if (mHMAC.getMessageDigest() instanceof HMACIteration)
+			{
+				((HMACIteration)mHMAC.getMessageDigest()).iterateHMAC(mHMAC.getInputPad(), mHMAC.getOutputPad(), mBuffer, mOffset, mIterationCount - 1);
+
+				return Boolean.TRUE;
+			}
+
 			for (int j = 1; j < mIterationCount; j++)
 			{
 				u = mHMAC.digest(u);
@@ -1,6 +1,7 @@
 package org.terifan.truecrypt;
 
 import java.security.MessageDigest;
+import java.util.Arrays;
 import static org.terifan.util.Convert.toHexString;
 
 
@@ -11,13 +12,13 @@ import static org.terifan.util.Convert.toHexString;
  *
  * Copyright (c) 2000-2006 The Legion Of The Bouncy Castle (http://www.bouncycastle.org)
  */
-final class RIPEMD160 extends MessageDigest implements Cloneable
+final class RIPEMD160 extends MessageDigest implements Cloneable, HMACIteration
 {
     private static final int DIGEST_LENGTH = 20;
+    private static final int BLOCK_LENGTH = 64;
 
-	private int H0, H1, H2, H3, H4;
+	private int[] H;
 	private int[] X;
-	private int xOff;
 	private byte[] xBuf;
 	private int xBufOff;
 	private long byteCount;
@@ -27,31 +28,15 @@ final class RIPEMD160 extends MessageDigest implements Cloneable
     {
     	super("RIPEMD-160");
 
+		H = new int[5];
 		X = new int[16];
-        xBuf = new byte[4];
+        xBuf = new byte[BLOCK_LENGTH];
         xBufOff = 0;
 
         reset();
     }
 
 
-//	protected RIPEMD160(RIPEMD160 aBase)
-//	{
-//		super("RIPEMD160");
-//
-//		H0 = aBase.H0;
-//		H1 = aBase.H1;
-//		H2 = aBase.H2;
-//		H3 = aBase.H3;
-//		H4 = aBase.H4;
-//		X = aBase.X.clone();
-//		xOff = aBase.xOff;
-//		xBuf = aBase.xBuf.clone();
-//		xBufOff = aBase.xBufOff;
-//		byteCount = aBase.byteCount;
-//	}
-
-
 	@Override
     protected int engineGetDigestLength()
     {
@@ -59,30 +44,18 @@ final class RIPEMD160 extends MessageDigest implements Cloneable
     }
 
 
-	private void processWord(byte[] in, int inOff)
-	{
-		X[xOff++] = (in[inOff] & 0xff) | ((in[inOff + 1] & 0xff) << 8) | ((in[inOff + 2] & 0xff) << 16) | ((in[inOff + 3] & 0xff) << 24);
-
-		if (xOff == 16)
-		{
-			processBlock();
-		}
-	}
-
-	
-	private void processLength(long bitLength)
+	private void processBlock(byte[] in, int inOff)
 	{
-		if (xOff > 14)
+		for (int i = 0; i < 16; i++, inOff += 4)
 		{
-			processBlock();
+			X[i] = (in[inOff] & 0xff) | ((in[inOff + 1] & 0xff) << 8) | ((in[inOff + 2] & 0xff) << 16) | ((in[inOff + 3] & 0xff) << 24);
 		}
 
-		X[14] = (int)(bitLength & 0xffffffff);
-		X[15] = (int)(bitLength >>> 32);
+		transform(H, X);
 	}
 
-	
-	private void unpackWord(int word, byte[] out, int outOff)
+
+	private static void unpackWord(int word, byte[] out, int outOff)
 	{
 		out[outOff] = (byte)word;
 		out[outOff + 1] = (byte)(word >>> 8);
@@ -96,11 +69,11 @@ final class RIPEMD160 extends MessageDigest implements Cloneable
     {
         finish();
 
-        unpackWord(H0, out, outOff);
-        unpackWord(H1, out, outOff + 4);
-        unpackWord(H2, out, outOff + 8);
-        unpackWord(H3, out, outOff + 12);
-        unpackWord(H4, out, outOff + 16);
+        unpackWord(H[0], out, outOff);
+        unpackWord(H[1], out, outOff + 4);
+        unpackWord(H[2], out, outOff + 8);
+        unpackWord(H[3], out, outOff + 12);
+        unpackWord(H[4], out, outOff + 16);
 
         reset();
 
@@ -118,65 +91,75 @@ final class RIPEMD160 extends MessageDigest implements Cloneable
 		return buf;
     }
 
-	
+
 	@Override
 	protected void engineUpdate(byte in)
     {
         xBuf[xBufOff++] = in;
 
-        if (xBufOff == xBuf.length)
+        if (xBufOff == BLOCK_LENGTH)
         {
-            processWord(xBuf, 0);
+            processBlock(xBuf, 0);
             xBufOff = 0;
         }
 
         byteCount++;
     }
 
+
 	@Override
 	protected void engineUpdate(byte[] in, int inOff, int len)
     {
-        while ((xBufOff != 0) && (len > 0))
-        {
-            update(in[inOff]);
-
-            inOff++;
-            len--;
-        }
+        byteCount += len;
 
-        while (len > xBuf.length)
+        if (xBufOff > 0)
         {
-            processWord(in, inOff);
-
-            inOff += xBuf.length;
-            len -= xBuf.length;
-            byteCount += xBuf.length;
+            int n = Math.min(len, BLOCK_LENGTH - xBufOff);
+            System.arraycopy(in, inOff, xBuf, xBufOff, n);
+            xBufOff += n;
+            inOff += n;
+            len -= n;
+
+            if (xBufOff < BLOCK_LENGTH)
+            {
+                return;
+            }
+
+            processBlock(xBuf, 0);
+            xBufOff = 0;
         }
 
-        while (len > 0)
+        //
+        // full blocks are processed directly from the input
+        //
+        for (; len >= BLOCK_LENGTH; inOff += BLOCK_LENGTH, len -= BLOCK_LENGTH)
         {
-            update(in[inOff]);
-
-            inOff++;
-            len--;
+            processBlock(in, inOff);
         }
+
+        System.arraycopy(in, inOff, xBuf, 0, len);
+        xBufOff = len;
     }
 
-	
+
     private void finish()
     {
 		long bitLength = byteCount << 3;
 
-        update((byte)128);
+        xBuf[xBufOff++] = (byte)128;
 
-        while (xBufOff != 0)
+        if (xBufOff > 56)
         {
-            update((byte)0);
+            Arrays.fill(xBuf, xBufOff, BLOCK_LENGTH, (byte)0);
+            processBlock(xBuf, 0);
+            xBufOff = 0;
         }
 
-        processLength(bitLength);
+        Arrays.fill(xBuf, xBufOff, 56, (byte)0);
+        unpackWord((int)bitLength, xBuf, 56);
+        unpackWord((int)(bitLength >>> 32), xBuf, 60);
 
-        processBlock();
+        processBlock(xBuf, 0);
     }
 
 
@@ -186,63 +169,105 @@ final class RIPEMD160 extends MessageDigest implements Cloneable
         byteCount = 0;
 
         xBufOff = 0;
-        for (int i = 0; i < xBuf.length; i++)
-        {
-            xBuf[i] = 0;
-        }
+        Arrays.fill(xBuf, (byte)0);
+        Arrays.fill(X, 0);
+
+        H[0] = 0x67452301;
+        H[1] = 0xefcdab89;
+        H[2] = 0x98badcfe;
+        H[3] = 0x10325476;
+        H[4] = 0xc3d2e1f0;
+    }
 
-        H0 = 0x67452301;
-        H1 = 0xefcdab89;
-        H2 = 0x98badcfe;
-        H3 = 0x10325476;
-        H4 = 0xc3d2e1f0;
 
-        xOff = 0;
+	@Override
+	public void iterateHMAC(byte[] aInputPad, byte[] aOutputPad, byte[] aBuffer, int aOffset, int aIterationCount)
+	{
+		RIPEMD160 inner = new RIPEMD160();
+		inner.processBlock(aInputPad, 0);
+		RIPEMD160 outer = new RIPEMD160();
+		outer.processBlock(aOutputPad, 0);
 
-        for (int i = 0; i != X.length; i++)
-        {
-            X[i] = 0;
-        }
-    }
+		int[] h = new int[5];
+		int[] x = new int[5];
+		int[] block = new int[16];
 
-	
-	private int RL(int x, int n)
+		for (int i = 0; i < 5; i++)
+		{
+			int j = aOffset + 4 * i;
+			block[i] = x[i] = (aBuffer[j] & 0xff) | ((aBuffer[j + 1] & 0xff) << 8) | ((aBuffer[j + 2] & 0xff) << 16) | ((aBuffer[j + 3] & 0xff) << 24);
+		}
+
+		block[5] = 0x80;
+		block[14] = (BLOCK_LENGTH + DIGEST_LENGTH) << 3;
+
+		for (int j = 0; j < aIterationCount; j++)
+		{
+			System.arraycopy(inner.H, 0, h, 0, 5);
+			transform(h, block);
+			System.arraycopy(h, 0, block, 0, 5);
+
+			System.arraycopy(outer.H, 0, h, 0, 5);
+			transform(h, block);
+			System.arraycopy(h, 0, block, 0, 5);
+
+			x[0] ^= h[0];
+			x[1] ^= h[1];
+			x[2] ^= h[2];
+			x[3] ^= h[3];
+			x[4] ^= h[4];
+		}
+
+		for (int i = 0; i < 5; i++)
+		{
+			unpackWord(x[i], aBuffer, aOffset + 4 * i);
+		}
+
+		inner.engineReset();
+		outer.engineReset();
+		Arrays.fill(h, 0);
+		Arrays.fill(x, 0);
+		Arrays.fill(block, 0);
+	}
+
+
+	private static int RL(int x, int n)
     {
         return (x << n) | (x >>> (32 - n));
     }
 
 	
-	private int f1(int x, int y, int z)
+	private static int f1(int x, int y, int z)
     {
         return x ^ y ^ z;
     }
 
 	
-	private int f2(int x, int y, int z)
+	private static int f2(int x, int y, int z)
     {
         return (x & y) | (~x & z);
     }
 
 	
-	private int f3(int x, int y, int z)
+	private static int f3(int x, int y, int z)
     {
         return (x | ~y) ^ z;
     }
 
 
-	private int f4(int x, int y, int z)
+	private static int f4(int x, int y, int z)
     {
         return (x & z) | (y & ~z);
     }
 
 
-	private int f5(int x, int y, int z)
+	private static int f5(int x, int y, int z)
 	{
         return x ^ (y | ~z);
     }
 
 	
-    protected void processBlock()
+    private static void transform(int[] aHash, int[] X)
     {
         int a, aa;
         int b, bb;
@@ -250,11 +275,11 @@ final class RIPEMD160 extends MessageDigest implements Cloneable
         int d, dd;
         int e, ee;
 
-        a = aa = H0;
-        b = bb = H1;
-        c = cc = H2;
-        d = dd = H3;
-        e = ee = H4;
+        a = aa = aHash[0];
+        b = bb = aHash[1];
+        c = cc = aHash[2];
+        d = dd = aHash[3];
+        e = ee = aHash[4];
 
         //
         // Rounds 1 - 16
@@ -451,21 +476,12 @@ final class RIPEMD160 extends MessageDigest implements Cloneable
         cc = RL(cc + f1(dd,ee,aa) + X[ 9], 11) + bb; ee = RL(ee, 10);
         bb = RL(bb + f1(cc,dd,ee) + X[11], 11) + aa; dd = RL(dd, 10);
 
-        dd += c + H1;
-        H1 = H2 + d + ee;
-        H2 = H3 + e + aa;
-        H3 = H4 + a + bb;
-        H4 = H0 + b + cc;
-        H0 = dd;
-
-        //
-        // reset the offset and clean out the word buffer.
-        //
-        xOff = 0;
-        for (int i = 0; i != X.length; i++)
-        {
-            X[i] = 0;
-        }
+        dd += c + aHash[1];
+        aHash[1] = aHash[2] + d + ee;
+        aHash[2] = aHash[3] + e + aa;
+        aHash[3] = aHash[4] + a + bb;
+        aHash[4] = aHash[0] + b + cc;
+        aHash[0] = dd;
     }
 
 
@@ -474,16 +490,11 @@ final class RIPEMD160 extends MessageDigest implements Cloneable
 	{
 		RIPEMD160 instance = new RIPEMD160();
 		
-		instance.H0 = this.H0;
-		instance.H1 = this.H1;
-		instance.H2 = this.H2;
-		instance.H3 = this.H3;
-		instance.H4 = this.H4;
+		instance.H = this.H.clone();
 		instance.X = this.X.clone();
 		instance.byteCount = this.byteCount;
 		instance.xBuf = this.xBuf.clone();
 		instance.xBufOff = this.xBufOff;
-		instance.xOff = this.xOff;
 
 		return instance;
 	}
@@ -1,6 +1,7 @@
 package org.terifan.truecrypt;
 
 import java.security.DigestException;
+import java.util.Arrays;
 
 
 /**
@@ -10,7 +11,7 @@ import java.security.DigestException;
  *
  * Copyright (c) 2000-2006 The Legion Of The Bouncy Castle (http://www.bouncycastle.org)
  */
-final class SHA512 extends SHABase implements Cloneable
+final class SHA512 extends SHABase implements Cloneable, HMACIteration
 {
     private final static int DIGEST_LENGTH = 64;
 
@@ -83,6 +84,93 @@ final class SHA512 extends SHABase implements Cloneable
 	}
 
 
+	@Override
+	public void iterateHMAC(byte[] aInputPad, byte[] aOutputPad, byte[] aBuffer, int aOffset, int aIterationCount)
+	{
+		SHA512 inner = new SHA512();
+		inner.processBlock(aInputPad, 0);
+		SHA512 outer = new SHA512();
+		outer.processBlock(aOutputPad, 0);
+		SHA512 work = new SHA512();
+
+		long[] block = new long[16];
+		long[] schedule = new long[80];
+		long[] x = new long[8];
+
+		for (int i = 0; i < 8; i++)
+		{
+			int j = aOffset + 8 * i;
+			block[i] = x[i] = ((long)(aBuffer[j] & 0xff) << 56)
+				| ((long)(aBuffer[j + 1] & 0xff) << 48)
+				| ((long)(aBuffer[j + 2] & 0xff) << 40)
+				| ((long)(aBuffer[j + 3] & 0xff) << 32)
+				| ((long)(aBuffer[j + 4] & 0xff) << 24)
+				| ((long)(aBuffer[j + 5] & 0xff) << 16)
+				| ((long)(aBuffer[j + 6] & 0xff) << 8)
+				| ((aBuffer[j + 7] & 0xff));
+		}
+
+		block[8] = 0x8000000000000000L;
+		block[15] = (BLOCK_LENGTH + DIGEST_LENGTH) << 3;
+
+		for (int j = 0; j < aIterationCount; j++)
+		{
+			work.setState(inner);
+			System.arraycopy(block, 0, schedule, 0, 16);
+			work.processBlock(schedule);
+			work.getState(block);
+
+			work.setState(outer);
+			System.arraycopy(block, 0, schedule, 0, 16);
+			work.processBlock(schedule);
+			work.getState(block);
+
+			for (int i = 0; i < 8; i++)
+			{
+				x[i] ^= block[i];
+			}
+		}
+
+		for (int i = 0; i < 8; i++)
+		{
+			work.unpackWord(x[i], aBuffer, aOffset + 8 * i);
+		}
+
+		inner.reset();
+		outer.reset();
+		work.reset();
+		Arrays.fill(block, 0L);
+		Arrays.fill(schedule, 0L);
+		Arrays.fill(x, 0L);
+	}
+
+
+	private void setState(SHA512 aOther)
+	{
+		H1 = aOther.H1;
+		H2 = aOther.H2;
+		H3 = aOther.H3;
+		H4 = aOther.H4;
+		H5 = aOther.H5;
+		H6 = aOther.H6;
+		H7 = aOther.H7;
+		H8 = aOther.H8;
+	}
+
+
+	private void getState(long[] aOutput)
+	{
+		aOutput[0] = H1;
+		aOutput[1] = H2;
+		aOutput[2] = H3;
+		aOutput[3] = H4;
+		aOutput[4] = H5;
+		aOutput[5] = H6;
+		aOutput[6] = H7;
+		aOutput[7] = H8;
+	}
+
+
 	@Override
 	public String toString()
 	{
@@ -3,6 +3,7 @@ package org.terifan.truecrypt;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.DigestException;
+import java.util.Arrays;
 
 
 /**
@@ -14,6 +15,8 @@ import java.security.DigestException;
  */
 abstract class SHABase extends MessageDigest
 {
+	protected final static int BLOCK_LENGTH = 128;
+
 	private byte[] xBuf;
 	private int xBufOff;
 
@@ -23,14 +26,13 @@ abstract class SHABase extends MessageDigest
 	protected long H1, H2, H3, H4, H5, H6, H7, H8;
 
 	private long[] W = new long[80];
-	private int wOff;
 
 
     protected SHABase(String aAlgorithm)
     {
     	super(aAlgorithm);
 
-        xBuf = new byte[8];
+        xBuf = new byte[BLOCK_LENGTH];
         xBufOff = 0;
 
         reset();
@@ -56,7 +58,6 @@ abstract class SHABase extends MessageDigest
 		H7 = aBase.H7;
 		H8 = aBase.H8;
 		W = aBase.W.clone();
-		wOff = aBase.wOff;
     }
 
 
@@ -81,6 +82,14 @@ abstract class SHABase extends MessageDigest
 	@Override
 	protected void engineUpdate(ByteBuffer input)
 	{
+		if (input.hasArray())
+		{
+			int len = input.remaining();
+			engineUpdate(input.array(), input.arrayOffset() + input.position(), len);
+			input.position(input.position() + len);
+			return;
+		}
+
 		while (input.hasRemaining())
 		{
 			engineUpdate(input.get());
@@ -93,9 +102,9 @@ abstract class SHABase extends MessageDigest
 	{
         xBuf[xBufOff++] = in;
 
-        if (xBufOff == xBuf.length)
+        if (xBufOff == BLOCK_LENGTH)
         {
-            processWord(xBuf, 0);
+            processBlock(xBuf, 0);
             xBufOff = 0;
         }
 
@@ -109,39 +118,41 @@ abstract class SHABase extends MessageDigest
         int     inOff,
         int     len)
     {
+        byteCount1 += len;
+
         //
-        // fill the current word
+        // fill the current block
         //
-        while ((xBufOff != 0) && (len > 0))
+        if (xBufOff > 0)
         {
-            engineUpdate(in[inOff]);
-
-            inOff++;
-            len--;
+            int n = Math.min(len, BLOCK_LENGTH - xBufOff);
+            System.arraycopy(in, inOff, xBuf, xBufOff, n);
+            xBufOff += n;
+            inOff += n;
+            len -= n;
+
+            if (xBufOff < BLOCK_LENGTH)
+            {
+                return;
+            }
+
+            processBlock(xBuf, 0);
+            xBufOff = 0;
         }
 
         //
-        // process whole words.
+        // process whole blocks directly from the input.
         //
-        while (len > xBuf.length)
+        for (; len >= BLOCK_LENGTH; inOff += BLOCK_LENGTH, len -= BLOCK_LENGTH)
         {
-            processWord(in, inOff);
-
-            inOff += xBuf.length;
-            len -= xBuf.length;
-            byteCount1 += xBuf.length;
+            processBlock(in, inOff);
         }
 
         //
         // load in the remainder.
         //
-        while (len > 0)
-        {
-            engineUpdate(in[inOff]);
-
-            inOff++;
-            len--;
-        }
+        System.arraycopy(in, inOff, xBuf, 0, len);
+        xBufOff = len;
     }
 
     protected void finish()
@@ -154,16 +165,20 @@ abstract class SHABase extends MessageDigest
         //
         // add the pad bytes.
         //
-        engineUpdate((byte)128);
+        xBuf[xBufOff++] = (byte)128;
 
-        while (xBufOff != 0)
+        if (xBufOff > BLOCK_LENGTH - 16)
         {
-            engineUpdate((byte)0);
+            Arrays.fill(xBuf, xBufOff, BLOCK_LENGTH, (byte)0);
+            processBlock(xBuf, 0);
+            xBufOff = 0;
         }
 
-        processLength(lowBitLength, hiBitLength);
+        Arrays.fill(xBuf, xBufOff, BLOCK_LENGTH - 16, (byte)0);
+        unpackWord(hiBitLength, xBuf, BLOCK_LENGTH - 16);
+        unpackWord(lowBitLength, xBuf, BLOCK_LENGTH - 8);
 
-        processBlock();
+        processBlock(xBuf, 0);
     }
 
     protected void baseReset()
@@ -172,35 +187,30 @@ abstract class SHABase extends MessageDigest
         byteCount2 = 0;
 
         xBufOff = 0;
-        for (int i = 0; i < xBuf.length; i++)
-        {
-            xBuf[i] = 0;
-        }
-
-        wOff = 0;
-        for (int i = 0; i != W.length; i++)
-        {
-            W[i] = 0;
-        }
+        Arrays.fill(xBuf, (byte)0);
+        Arrays.fill(W, 0L);
     }
 
-    protected void processWord(
+    /**
+     * Loads a full block from the buffer provided and compresses it.
+     */
+    protected void processBlock(
         byte[]  in,
         int     inOff)
     {
-        W[wOff++] = ((long)(in[inOff] & 0xff) << 56)
-                    | ((long)(in[inOff + 1] & 0xff) << 48)
-                    | ((long)(in[inOff + 2] & 0xff) << 40)
-                    | ((long)(in[inOff + 3] & 0xff) << 32)
-                    | ((long)(in[inOff + 4] & 0xff) << 24)
-                    | ((long)(in[inOff + 5] & 0xff) << 16)
-                    | ((long)(in[inOff + 6] & 0xff) << 8)
-                    | ((in[inOff + 7] & 0xff));
-
-        if (wOff == 16)
+        for (int i = 0; i < 16; i++, inOff += 8)
         {
-            processBlock();
+            W[i] = ((long)(in[inOff] & 0xff) << 56)
+                 | ((long)(in[inOff + 1] & 0xff) << 48)
+                 | ((long)(in[inOff + 2] & 0xff) << 40)
+                 | ((long)(in[inOff + 3] & 0xff) << 32)
+                 | ((long)(in[inOff + 4] & 0xff) << 24)
+                 | ((long)(in[inOff + 5] & 0xff) << 16)
+                 | ((long)(in[inOff + 6] & 0xff) << 8)
+                 | ((in[inOff + 7] & 0xff));
         }
+
+        processBlock(W);
     }
 
     protected void unpackWord(
@@ -231,23 +241,13 @@ abstract class SHABase extends MessageDigest
         }
     }
 
-    protected void processLength(
-        long    lowW,
-        long    hiW)
-    {
-        if (wOff > 14)
-        {
-            processBlock();
-        }
-
-        W[14] = hiW;
-        W[15] = lowW;
-    }
-
-    protected void processBlock()
+    /**
+     * Compresses a block of 16 words. The array must hold 80 words: the block
+     * is read from the first 16 and the rest is overwritten with the expanded
+     * message schedule.
+     */
+    protected void processBlock(long[] W)
     {
-        adjustByteCounts();
-
         //
         // expand 16 word block into 80 word blocks.
         //
@@ -320,19 +320,10 @@ abstract class SHABase extends MessageDigest
         H6 += f;
         H7 += g;
         H8 += h;
-
-        //
-        // reset the offset and clean out the word buffer.
-        //
-        wOff = 0;
-        for (int i = 0; i < 16; i++)
-        {
-            W[i] = 0;
-        }
     }
 
     /* SHA-384 and SHA-512 functions (as for SHA-256 but for longs) */
-    private long Ch(
+    private static long Ch(
         long    x,
         long    y,
         long    z)
@@ -340,7 +331,7 @@ abstract class SHABase extends MessageDigest
         return ((x & y) ^ ((~x) & z));
     }
 
-    private long Maj(
+    private static long Maj(
         long    x,
         long    y,
         long    z)
@@ -348,25 +339,25 @@ abstract class SHABase extends MessageDigest
         return ((x & y) ^ (x & z) ^ (y & z));
     }
 
-    private long Sum0(
+    private static long Sum0(
         long    x)
     {
         return ((x << 36)|(x >>> 28)) ^ ((x << 30)|(x >>> 34)) ^ ((x << 25)|(x >>> 39));
     }
 
-    private long Sum1(
+    private static long Sum1(
         long    x)
     {
         return ((x << 50)|(x >>> 14)) ^ ((x << 46)|(x >>> 18)) ^ ((x << 23)|(x >>> 41));
     }
 
-    private long Sigma0(
+    private static long Sigma0(
         long    x)
     {
         return ((x << 63)|(x >>> 1)) ^ ((x << 56)|(x >>> 8)) ^ (x >>> 7);
     }
 
-    private long Sigma1(
+    private static long Sigma1(
         long    x)
     {
         return ((x << 45)|(x >>> 19)) ^ ((x << 3)|(x >>> 61)) ^ (x >>> 6);
@@ -35,8 +35,6 @@ class Serpent implements Cipher
 
 	private transient int mKeySize;
 
-	private transient int x0, x1, x2, x3, x4;
-
 	private transient int k0, k1, k2, k3, k4, k5, k6, k7, k8, k9, k10, k11, k12, k13,
 	                      k14, k15, k16, k17, k18, k19, k20, k21, k22, k23, k24, k25, k26,
 	                      k27, k28, k29, k30, k31, k32, k33, k34, k35, k36, k37, k38, k39,
@@ -73,6 +71,8 @@ class Serpent implements Cipher
 
 		mKeySize = kb.length;
 
+		Block b = new Block();
+
 		// Here w is our "pre-key".
 		int[] w = new int[4 * (ROUNDS + 1)];
 		int i, j;
@@ -106,72 +106,72 @@ class Serpent implements Cipher
 
 		// After these s-boxes the pre-key (w, above) will become the
 		// session key (key, below).
-		sbox3(w[0], w[1], w[2], w[3]);
-		k0 = x0; k1 = x1; k2 = x2; k3 = x3;
-		sbox2(w[4], w[5], w[6], w[7]);
-		k4 = x0; k5 = x1; k6 = x2; k7 = x3;
-		sbox1(w[8], w[9], w[10], w[11]);
-		k8 = x0; k9 = x1; k10 = x2; k11 = x3;
-		sbox0(w[12], w[13], w[14], w[15]);
-		k12 = x0; k13 = x1; k14 = x2; k15 = x3;
-		sbox7(w[16], w[17], w[18], w[19]);
-		k16 = x0; k17 = x1; k18 = x2; k19 = x3;
-		sbox6(w[20], w[21], w[22], w[23]);
-		k20 = x0; k21 = x1; k22 = x2; k23 = x3;
-		sbox5(w[24], w[25], w[26], w[27]);
-		k24 = x0; k25 = x1; k26 = x2; k27 = x3;
-		sbox4(w[28], w[29], w[30], w[31]);
-		k28 = x0; k29 = x1; k30 = x2; k31 = x3;
-		sbox3(w[32], w[33], w[34], w[35]);
-		k32 = x0; k33 = x1; k34 = x2; k35 = x3;
-		sbox2(w[36], w[37], w[38], w[39]);
-		k36 = x0; k37 = x1; k38 = x2; k39 = x3;
-		sbox1(w[40], w[41], w[42], w[43]);
-		k40 = x0; k41 = x1; k42 = x2; k43 = x3;
-		sbox0(w[44], w[45], w[46], w[47]);
-		k44 = x0; k45 = x1; k46 = x2; k47 = x3;
-		sbox7(w[48], w[49], w[50], w[51]);
-		k48 = x0; k49 = x1; k50 = x2; k51 = x3;
-		sbox6(w[52], w[53], w[54], w[55]);
-		k52 = x0; k53 = x1; k54 = x2; k55 = x3;
-		sbox5(w[56], w[57], w[58], w[59]);
-		k56 = x0; k57 = x1; k58 = x2; k59 = x3;
-		sbox4(w[60], w[61], w[62], w[63]);
-		k60 = x0; k61 = x1; k62 = x2; k63 = x3;
-		sbox3(w[64], w[65], w[66], w[67]);
-		k64 = x0; k65 = x1; k66 = x2; k67 = x3;
-		sbox2(w[68], w[69], w[70], w[71]);
-		k68 = x0; k69 = x1; k70 = x2; k71 = x3;
-		sbox1(w[72], w[73], w[74], w[75]);
-		k72 = x0; k73 = x1; k74 = x2; k75 = x3;
-		sbox0(w[76], w[77], w[78], w[79]);
-		k76 = x0; k77 = x1; k78 = x2; k79 = x3;
-		sbox7(w[80], w[81], w[82], w[83]);
-		k80 = x0; k81 = x1; k82 = x2; k83 = x3;
-		sbox6(w[84], w[85], w[86], w[87]);
-		k84 = x0; k85 = x1; k86 = x2; k87 = x3;
-		sbox5(w[88], w[89], w[90], w[91]);
-		k88 = x0; k89 = x1; k90 = x2; k91 = x3;
-		sbox4(w[92], w[93], w[94], w[95]);
-		k92 = x0; k93 = x1; k94 = x2; k95 = x3;
-		sbox3(w[96], w[97], w[98], w[99]);
-		k96 = x0; k97 = x1; k98 = x2; k99 = x3;
-		sbox2(w[100], w[101], w[102], w[103]);
-		k100 = x0; k101 = x1; k102 = x2; k103 = x3;
-		sbox1(w[104], w[105], w[106], w[107]);
-		k104 = x0; k105 = x1; k106 = x2; k107 = x3;
-		sbox0(w[108], w[109], w[110], w[111]);
-		k108 = x0; k109 = x1; k110 = x2; k111 = x3;
-		sbox7(w[112], w[113], w[114], w[115]);
-		k112 = x0; k113 = x1; k114 = x2; k115 = x3;
-		sbox6(w[116], w[117], w[118], w[119]);
-		k116 = x0; k117 = x1; k118 = x2; k119 = x3;
-		sbox5(w[120], w[121], w[122], w[123]);
-		k120 = x0; k121 = x1; k122 = x2; k123 = x3;
-		sbox4(w[124], w[125], w[126], w[127]);
-		k124 = x0; k125 = x1; k126 = x2; k127 = x3;
-		sbox3(w[128], w[129], w[130], w[131]);
-		k128 = x0; k129 = x1; k130 = x2; k131 = x3;
+		sbox3(b, w[0], w[1], w[2], w[3]);
+		k0 = b.x0; k1 = b.x1; k2 = b.x2; k3 = b.x3;
+		sbox2(b, w[4], w[5], w[6], w[7]);
+		k4 = b.x0; k5 = b.x1; k6 = b.x2; k7 = b.x3;
+		sbox1(b, w[8], w[9], w[10], w[11]);
+		k8 = b.x0; k9 = b.x1; k10 = b.x2; k11 = b.x3;
+		sbox0(b, w[12], w[13], w[14], w[15]);
+		k12 = b.x0; k13 = b.x1; k14 = b.x2; k15 = b.x3;
+		sbox7(b, w[16], w[17], w[18], w[19]);
+		k16 = b.x0; k17 = b.x1; k18 = b.x2; k19 = b.x3;
+		sbox6(b, w[20], w[21], w[22], w[23]);
+		k20 = b.x0; k21 = b.x1; k22 = b.x2; k23 = b.x3;
+		sbox5(b, w[24], w[25], w[26], w[27]);
+		k24 = b.x0; k25 = b.x1; k26 = b.x2; k27 = b.x3;
+		sbox4(b, w[28], w[29], w[30], w[31]);
+		k28 = b.x0; k29 = b.x1; k30 = b.x2; k31 = b.x3;
+		sbox3(b, w[32], w[33], w[34], w[35]);
+		k32 = b.x0; k33 = b.x1; k34 = b.x2; k35 = b.x3;
+		sbox2(b, w[36], w[37], w[38], w[39]);
+		k36 = b.x0; k37 = b.x1; k38 = b.x2; k39 = b.x3;
+		sbox1(b, w[40], w[41], w[42], w[43]);
+		k40 = b.x0; k41 = b.x1; k42 = b.x2; k43 = b.x3;
+		sbox0(b, w[44], w[45], w[46], w[47]);
+		k44 = b.x0; k45 = b.x1; k46 = b.x2; k47 = b.x3;
+		sbox7(b, w[48], w[49], w[50], w[51]);
+		k48 = b.x0; k49 = b.x1; k50 = b.x2; k51 = b.x3;
+		sbox6(b, w[52], w[53], w[54], w[55]);
+		k52 = b.x0; k53 = b.x1; k54 = b.x2; k55 = b.x3;
+		sbox5(b, w[56], w[57], w[58], w[59]);
+		k56 = b.x0; k57 = b.x1; k58 = b.x2; k59 = b.x3;
+		sbox4(b, w[60], w[61], w[62], w[63]);
+		k60 = b.x0; k61 = b.x1; k62 = b.x2; k63 = b.x3;
+		sbox3(b, w[64], w[65], w[66], w[67]);
+		k64 = b.x0; k65 = b.x1; k66 = b.x2; k67 = b.x3;
+		sbox2(b, w[68], w[69], w[70], w[71]);
+		k68 = b.x0; k69 = b.x1; k70 = b.x2; k71 = b.x3;
+		sbox1(b, w[72], w[73], w[74], w[75]);
+		k72 = b.x0; k73 = b.x1; k74 = b.x2; k75 = b.x3;
+		sbox0(b, w[76], w[77], w[78], w[79]);
+		k76 = b.x0; k77 = b.x1; k78 = b.x2; k79 = b.x3;
+		sbox7(b, w[80], w[81], w[82], w[83]);
+		k80 = b.x0; k81 = b.x1; k82 = b.x2; k83 = b.x3;
+		sbox6(b, w[84], w[85], w[86], w[87]);
+		k84 = b.x0; k85 = b.x1; k86 = b.x2; k87 = b.x3;
+		sbox5(b, w[88], w[89], w[90], w[91]);
+		k88 = b.x0; k89 = b.x1; k90 = b.x2; k91 = b.x3;
+		sbox4(b, w[92], w[93], w[94], w[95]);
+		k92 = b.x0; k93 = b.x1; k94 = b.x2; k95 = b.x3;
+		sbox3(b, w[96], w[97], w[98], w[99]);
+		k96 = b.x0; k97 = b.x1; k98 = b.x2; k99 = b.x3;
+		sbox2(b, w[100], w[101], w[102], w[103]);
+		k100 = b.x0; k101 = b.x1; k102 = b.x2; k103 = b.x3;
+		sbox1(b, w[104], w[105], w[106], w[107]);
+		k104 = b.x0; k105 = b.x1; k106 = b.x2; k107 = b.x3;
+		sbox0(b, w[108], w[109], w[110], w[111]);
+		k108 = b.x0; k109 = b.x1; k110 = b.x2; k111 = b.x3;
+		sbox7(b, w[112], w[113], w[114], w[115]);
+		k112 = b.x0; k113 = b.x1; k114 = b.x2; k115 = b.x3;
+		sbox6(b, w[116], w[117], w[118], w[119]);
+		k116 = b.x0; k117 = b.x1; k118 = b.x2; k119 = b.x3;
+		sbox5(b, w[120], w[121], w[122], w[123]);
+		k120 = b.x0; k121 = b.x1; k122 = b.x2; k123 = b.x3;
+		sbox4(b, w[124], w[125], w[126], w[127]);
+		k124 = b.x0; k125 = b.x1; k126 = b.x2; k127 = b.x3;
+		sbox3(b, w[128], w[129], w[130], w[131]);
+		k128 = b.x0; k129 = b.x1; k130 = b.x2; k131 = b.x3;
 	}
 
 
@@ -190,68 +190,70 @@ class Serpent implements Cipher
 	@Override
 	public void engineEncryptBlock(byte [] in, int inOffset, byte [] out, int outOffset)
 	{
-		x0 = (in[inOffset	] & 0xff) | (in[inOffset+ 1] & 0xff) <<  8 | (in[inOffset+ 2] & 0xff) << 16 | (in[inOffset+ 3] & 0xff) << 24;
-		x1 = (in[inOffset+ 4] & 0xff) | (in[inOffset+ 5] & 0xff) <<  8 | (in[inOffset+ 6] & 0xff) << 16 | (in[inOffset+ 7] & 0xff) << 24;
-		x2 = (in[inOffset+ 8] & 0xff) | (in[inOffset+ 9] & 0xff) <<  8 | (in[inOffset+10] & 0xff) << 16 | (in[inOffset+11] & 0xff) << 24;
-		x3 = (in[inOffset+12] & 0xff) | (in[inOffset+13] & 0xff) <<  8 | (in[inOffset+14] & 0xff) << 16 | (in[inOffset+15] & 0xff) << 24;
-
-		x0 ^= k0; x1 ^= k1; x2 ^= k2; x3 ^= k3; sbox0();
-		x1 ^= k4; x4 ^= k5; x2 ^= k6; x0 ^= k7; sbox1();
-		x0 ^= k8; x4 ^= k9; x2 ^= k10; x1 ^= k11; sbox2();
-		x2 ^= k12; x1 ^= k13; x4 ^= k14; x3 ^= k15; sbox3();
-		x1 ^= k16; x4 ^= k17; x3 ^= k18; x0 ^= k19; sbox4();
-		x4 ^= k20; x2 ^= k21; x1 ^= k22; x0 ^= k23; sbox5();
-		x2 ^= k24; x0 ^= k25; x4 ^= k26; x1 ^= k27; sbox6();
-		x2 ^= k28; x0 ^= k29; x3 ^= k30; x4 ^= k31; sbox7();
-		x0 = x3; x3 = x2; x2 = x4;
-
-		x0 ^= k32; x1 ^= k33; x2 ^= k34; x3 ^= k35; sbox0();
-		x1 ^= k36; x4 ^= k37; x2 ^= k38; x0 ^= k39; sbox1();
-		x0 ^= k40; x4 ^= k41; x2 ^= k42; x1 ^= k43; sbox2();
-		x2 ^= k44; x1 ^= k45; x4 ^= k46; x3 ^= k47; sbox3();
-		x1 ^= k48; x4 ^= k49; x3 ^= k50; x0 ^= k51; sbox4();
-		x4 ^= k52; x2 ^= k53; x1 ^= k54; x0 ^= k55; sbox5();
-		x2 ^= k56; x0 ^= k57; x4 ^= k58; x1 ^= k59; sbox6();
-		x2 ^= k60; x0 ^= k61; x3 ^= k62; x4 ^= k63; sbox7();
-		x0 = x3; x3 = x2; x2 = x4;
-
-		x0 ^= k64; x1 ^= k65; x2 ^= k66; x3 ^= k67; sbox0();
-		x1 ^= k68; x4 ^= k69; x2 ^= k70; x0 ^= k71; sbox1();
-		x0 ^= k72; x4 ^= k73; x2 ^= k74; x1 ^= k75; sbox2();
-		x2 ^= k76; x1 ^= k77; x4 ^= k78; x3 ^= k79; sbox3();
-		x1 ^= k80; x4 ^= k81; x3 ^= k82; x0 ^= k83; sbox4();
-		x4 ^= k84; x2 ^= k85; x1 ^= k86; x0 ^= k87; sbox5();
-		x2 ^= k88; x0 ^= k89; x4 ^= k90; x1 ^= k91; sbox6();
-		x2 ^= k92; x0 ^= k93; x3 ^= k94; x4 ^= k95; sbox7();
-		x0 = x3; x3 = x2; x2 = x4;
-
-		x0 ^= k96; x1 ^= k97; x2 ^= k98; x3 ^= k99; sbox0();
-		x1 ^= k100; x4 ^= k101; x2 ^= k102; x0 ^= k103; sbox1();
-		x0 ^= k104; x4 ^= k105; x2 ^= k106; x1 ^= k107; sbox2();
-		x2 ^= k108; x1 ^= k109; x4 ^= k110; x3 ^= k111; sbox3();
-		x1 ^= k112; x4 ^= k113; x3 ^= k114; x0 ^= k115; sbox4();
-		x4 ^= k116; x2 ^= k117; x1 ^= k118; x0 ^= k119; sbox5();
-		x2 ^= k120; x0 ^= k121; x4 ^= k122; x1 ^= k123; sbox6();
-		x2 ^= k124; x0 ^= k125; x3 ^= k126; x4 ^= k127; sbox7noLT();
-		x0 = x3; x3 = x2; x2 = x4;
-		x0 ^= k128; x1 ^= k129; x2 ^= k130; x3 ^= k131;
-
-		out[outOffset	] = (byte) x0;
-		out[outOffset+ 1] = (byte)(x0 >>>  8);
-		out[outOffset+ 2] = (byte)(x0 >>> 16);
-		out[outOffset+ 3] = (byte)(x0 >>> 24);
-		out[outOffset+ 4] = (byte) x1;
-		out[outOffset+ 5] = (byte)(x1 >>>  8);
-		out[outOffset+ 6] = (byte)(x1 >>> 16);
-		out[outOffset+ 7] = (byte)(x1 >>> 24);
-		out[outOffset+ 8] = (byte) x2;
-		out[outOffset+ 9] = (byte)(x2 >>>  8);
-		out[outOffset+10] = (byte)(x2 >>> 16);
-		out[outOffset+11] = (byte)(x2 >>> 24);
-		out[outOffset+12] = (byte) x3;
-		out[outOffset+13] = (byte)(x3 >>>  8);
-		out[outOffset+14] = (byte)(x3 >>> 16);
-		out[outOffset+15] = (byte)(x3 >>> 24);
+		Block b = new Block();
+
+		b.x0 = (in[inOffset	] & 0xff) | (in[inOffset+ 1] & 0xff) <<  8 | (in[inOffset+ 2] & 0xff) << 16 | (in[inOffset+ 3] & 0xff) << 24;
+		b.x1 = (in[inOffset+ 4] & 0xff) | (in[inOffset+ 5] & 0xff) <<  8 | (in[inOffset+ 6] & 0xff) << 16 | (in[inOffset+ 7] & 0xff) << 24;
+		b.x2 = (in[inOffset+ 8] & 0xff) | (in[inOffset+ 9] & 0xff) <<  8 | (in[inOffset+10] & 0xff) << 16 | (in[inOffset+11] & 0xff) << 24;
+		b.x3 = (in[inOffset+12] & 0xff) | (in[inOffset+13] & 0xff) <<  8 | (in[inOffset+14] & 0xff) << 16 | (in[inOffset+15] & 0xff) << 24;
+
+		b.x0 ^= k0; b.x1 ^= k1; b.x2 ^= k2; b.x3 ^= k3; sbox0(b);
+		b.x1 ^= k4; b.x4 ^= k5; b.x2 ^= k6; b.x0 ^= k7; sbox1(b);
+		b.x0 ^= k8; b.x4 ^= k9; b.x2 ^= k10; b.x1 ^= k11; sbox2(b);
+		b.x2 ^= k12; b.x1 ^= k13; b.x4 ^= k14; b.x3 ^= k15; sbox3(b);
+		b.x1 ^= k16; b.x4 ^= k17; b.x3 ^= k18; b.x0 ^= k19; sbox4(b);
+		b.x4 ^= k20; b.x2 ^= k21; b.x1 ^= k22; b.x0 ^= k23; sbox5(b);
+		b.x2 ^= k24; b.x0 ^= k25; b.x4 ^= k26; b.x1 ^= k27; sbox6(b);
+		b.x2 ^= k28; b.x0 ^= k29; b.x3 ^= k30; b.x4 ^= k31; sbox7(b);
+		b.x0 = b.x3; b.x3 = b.x2; b.x2 = b.x4;
+
+		b.x0 ^= k32; b.x1 ^= k33; b.x2 ^= k34; b.x3 ^= k35; sbox0(b);
+		b.x1 ^= k36; b.x4 ^= k37; b.x2 ^= k38; b.x0 ^= k39; sbox1(b);
+		b.x0 ^= k40; b.x4 ^= k41; b.x2 ^= k42; b.x1 ^= k43; sbox2(b);
+		b.x2 ^= k44; b.x1 ^= k45; b.x4 ^= k46; b.x3 ^= k47; sbox3(b);
+		b.x1 ^= k48; b.x4 ^= k49; b.x3 ^= k50; b.x0 ^= k51; sbox4(b);
+		b.x4 ^= k52; b.x2 ^= k53; b.x1 ^= k54; b.x0 ^= k55; sbox5(b);
+		b.x2 ^= k56; b.x0 ^= k57; b.x4 ^= k58; b.x1 ^= k59; sbox6(b);
+		b.x2 ^= k60; b.x0 ^= k61; b.x3 ^= k62; b.x4 ^= k63; sbox7(b);
+		b.x0 = b.x3; b.x3 = b.x2; b.x2 = b.x4;
+
+		b.x0 ^= k64; b.x1 ^= k65; b.x2 ^= k66; b.x3 ^= k67; sbox0(b);
+		b.x1 ^= k68; b.x4 ^= k69; b.x2 ^= k70; b.x0 ^= k71; sbox1(b);
+		b.x0 ^= k72; b.x4 ^= k73; b.x2 ^= k74; b.x1 ^= k75; sbox2(b);
+		b.x2 ^= k76; b.x1 ^= k77; b.x4 ^= k78; b.x3 ^= k79; sbox3(b);
+		b.x1 ^= k80; b.x4 ^= k81; b.x3 ^= k82; b.x0 ^= k83; sbox4(b);
+		b.x4 ^= k84; b.x2 ^= k85; b.x1 ^= k86; b.x0 ^= k87; sbox5(b);
+		b.x2 ^= k88; b.x0 ^= k89; b.x4 ^= k90; b.x1 ^= k91; sbox6(b);
+		b.x2 ^= k92; b.x0 ^= k93; b.x3 ^= k94; b.x4 ^= k95; sbox7(b);
+		b.x0 = b.x3; b.x3 = b.x2; b.x2 = b.x4;
+
+		b.x0 ^= k96; b.x1 ^= k97; b.x2 ^= k98; b.x3 ^= k99; sbox0(b);
+		b.x1 ^= k100; b.x4 ^= k101; b.x2 ^= k102; b.x0 ^= k103; sbox1(b);
+		b.x0 ^= k104; b.x4 ^= k105; b.x2 ^= k106; b.x1 ^= k107; sbox2(b);
+		b.x2 ^= k108; b.x1 ^= k109; b.x4 ^= k110; b.x3 ^= k111; sbox3(b);
+		b.x1 ^= k112; b.x4 ^= k113; b.x3 ^= k114; b.x0 ^= k115; sbox4(b);
+		b.x4 ^= k116; b.x2 ^= k117; b.x1 ^= k118; b.x0 ^= k119; sbox5(b);
+		b.x2 ^= k120; b.x0 ^= k121; b.x4 ^= k122; b.x1 ^= k123; sbox6(b);
+		b.x2 ^= k124; b.x0 ^= k125; b.x3 ^= k126; b.x4 ^= k127; sbox7noLT(b);
+		b.x0 = b.x3; b.x3 = b.x2; b.x2 = b.x4;
+		b.x0 ^= k128; b.x1 ^= k129; b.x2 ^= k130; b.x3 ^= k131;
+
+		out[outOffset	] = (byte) b.x0;
+		out[outOffset+ 1] = (byte)(b.x0 >>>  8);
+		out[outOffset+ 2] = (byte)(b.x0 >>> 16);
+		out[outOffset+ 3] = (byte)(b.x0 >>> 24);
+		out[outOffset+ 4] = (byte) b.x1;
+		out[outOffset+ 5] = (byte)(b.x1 >>>  8);
+		out[outOffset+ 6] = (byte)(b.x1 >>> 16);
+		out[outOffset+ 7] = (byte)(b.x1 >>> 24);
+		out[outOffset+ 8] = (byte) b.x2;
+		out[outOffset+ 9] = (byte)(b.x2 >>>  8);
+		out[outOffset+10] = (byte)(b.x2 >>> 16);
+		out[outOffset+11] = (byte)(b.x2 >>> 24);
+		out[outOffset+12] = (byte) b.x3;
+		out[outOffset+13] = (byte)(b.x3 >>>  8);
+		out[outOffset+14] = (byte)(b.x3 >>> 16);
+		out[outOffset+15] = (byte)(b.x3 >>> 24);
 	}
 
 
@@ -270,69 +272,71 @@ class Serpent implements Cipher
 	@Override
 	public void engineDecryptBlock(byte [] in, int inOffset, byte [] out, int outOffset)
 	{
-		x0 = (in[inOffset	] & 0xff) | (in[inOffset+ 1] & 0xff) <<  8 | (in[inOffset+ 2] & 0xff) << 16 | (in[inOffset+ 3] & 0xff) << 24;
-		x1 = (in[inOffset+ 4] & 0xff) | (in[inOffset+ 5] & 0xff) <<  8 | (in[inOffset+ 6] & 0xff) << 16 | (in[inOffset+ 7] & 0xff) << 24;
-		x2 = (in[inOffset+ 8] & 0xff) | (in[inOffset+ 9] & 0xff) <<  8 | (in[inOffset+10] & 0xff) << 16 | (in[inOffset+11] & 0xff) << 24;
-		x3 = (in[inOffset+12] & 0xff) | (in[inOffset+13] & 0xff) <<  8 | (in[inOffset+14] & 0xff) << 16 | (in[inOffset+15] & 0xff) << 24;
-
-		x0 ^= k128; x1 ^= k129; x2 ^= k130; x3 ^= k131; sboxI7noLT();
-		x3 ^= k124; x0 ^= k125; x1 ^= k126; x4 ^= k127; sboxI6();
-		x0 ^= k120; x1 ^= k121; x2 ^= k122; x4 ^= k123; sboxI5();
-		x1 ^= k116; x3 ^= k117; x4 ^= k118; x2 ^= k119; sboxI4();
-		x1 ^= k112; x2 ^= k113; x4 ^= k114; x0 ^= k115; sboxI3();
-		x0 ^= k108; x1 ^= k109; x4 ^= k110; x2 ^= k111; sboxI2();
-		x1 ^= k104; x3 ^= k105; x4 ^= k106; x2 ^= k107; sboxI1();
-		x0 ^= k100; x1 ^= k101; x2 ^= k102; x4 ^= k103; sboxI0();
-		x0 ^= k96; x3 ^= k97; x1 ^= k98; x4 ^= k99; sboxI7();
-		x1 = x3; x3 = x4; x4 = x2;
-
-		x3 ^= k92; x0 ^= k93; x1 ^= k94; x4 ^= k95; sboxI6();
-		x0 ^= k88; x1 ^= k89; x2 ^= k90; x4 ^= k91; sboxI5();
-		x1 ^= k84; x3 ^= k85; x4 ^= k86; x2 ^= k87; sboxI4();
-		x1 ^= k80; x2 ^= k81; x4 ^= k82; x0 ^= k83; sboxI3();
-		x0 ^= k76; x1 ^= k77; x4 ^= k78; x2 ^= k79; sboxI2();
-		x1 ^= k72; x3 ^= k73; x4 ^= k74; x2 ^= k75; sboxI1();
-		x0 ^= k68; x1 ^= k69; x2 ^= k70; x4 ^= k71; sboxI0();
-		x0 ^= k64; x3 ^= k65; x1 ^= k66; x4 ^= k67; sboxI7();
-		x1 = x3; x3 = x4; x4 = x2;
-
-		x3 ^= k60; x0 ^= k61; x1 ^= k62; x4 ^= k63; sboxI6();
-		x0 ^= k56; x1 ^= k57; x2 ^= k58; x4 ^= k59; sboxI5();
-		x1 ^= k52; x3 ^= k53; x4 ^= k54; x2 ^= k55; sboxI4();
-		x1 ^= k48; x2 ^= k49; x4 ^= k50; x0 ^= k51; sboxI3();
-		x0 ^= k44; x1 ^= k45; x4 ^= k46; x2 ^= k47; sboxI2();
-		x1 ^= k40; x3 ^= k41; x4 ^= k42; x2 ^= k43; sboxI1();
-		x0 ^= k36; x1 ^= k37; x2 ^= k38; x4 ^= k39; sboxI0();
-		x0 ^= k32; x3 ^= k33; x1 ^= k34; x4 ^= k35; sboxI7();
-		x1 = x3; x3 = x4; x4 = x2;
-
-		x3 ^= k28; x0 ^= k29; x1 ^= k30; x4 ^= k31; sboxI6();
-		x0 ^= k24; x1 ^= k25; x2 ^= k26; x4 ^= k27; sboxI5();
-		x1 ^= k20; x3 ^= k21; x4 ^= k22; x2 ^= k23; sboxI4();
-		x1 ^= k16; x2 ^= k17; x4 ^= k18; x0 ^= k19; sboxI3();
-		x0 ^= k12; x1 ^= k13; x4 ^= k14; x2 ^= k15; sboxI2();
-		x1 ^= k8; x3 ^= k9; x4 ^= k10; x2 ^= k11; sboxI1();
-		x0 ^= k4; x1 ^= k5; x2 ^= k6; x4 ^= k7; sboxI0();
-		x2 = x1; x1 = x3; x3 = x4;
-
-		x0 ^= k0; x1 ^= k1; x2 ^= k2; x3 ^= k3;
-
-		out[outOffset	] = (byte) x0;
-		out[outOffset+ 1] = (byte)(x0 >>>  8);
-		out[outOffset+ 2] = (byte)(x0 >>> 16);
-		out[outOffset+ 3] = (byte)(x0 >>> 24);
-		out[outOffset+ 4] = (byte) x1;
-		out[outOffset+ 5] = (byte)(x1 >>>  8);
-		out[outOffset+ 6] = (byte)(x1 >>> 16);
-		out[outOffset+ 7] = (byte)(x1 >>> 24);
-		out[outOffset+ 8] = (byte) x2;
-		out[outOffset+ 9] = (byte)(x2 >>>  8);
-		out[outOffset+10] = (byte)(x2 >>> 16);
-		out[outOffset+11] = (byte)(x2 >>> 24);
-		out[outOffset+12] = (byte) x3;
-		out[outOffset+13] = (byte)(x3 >>>  8);
-		out[outOffset+14] = (byte)(x3 >>> 16);
-		out[outOffset+15] = (byte)(x3 >>> 24);
+		Block b = new Block();
+
+		b.x0 = (in[inOffset	] & 0xff) | (in[inOffset+ 1] & 0xff) <<  8 | (in[inOffset+ 2] & 0xff) << 16 | (in[inOffset+ 3] & 0xff) << 24;
+		b.x1 = (in[inOffset+ 4] & 0xff) | (in[inOffset+ 5] & 0xff) <<  8 | (in[inOffset+ 6] & 0xff) << 16 | (in[inOffset+ 7] & 0xff) << 24;
+		b.x2 = (in[inOffset+ 8] & 0xff) | (in[inOffset+ 9] & 0xff) <<  8 | (in[inOffset+10] & 0xff) << 16 | (in[inOffset+11] & 0xff) << 24;
+		b.x3 = (in[inOffset+12] & 0xff) | (in[inOffset+13] & 0xff) <<  8 | (in[inOffset+14] & 0xff) << 16 | (in[inOffset+15] & 0xff) << 24;
+
+		b.x0 ^= k128; b.x1 ^= k129; b.x2 ^= k130; b.x3 ^= k131; sboxI7noLT(b);
+		b.x3 ^= k124; b.x0 ^= k125; b.x1 ^= k126; b.x4 ^= k127; sboxI6(b);
+		b.x0 ^= k120; b.x1 ^= k121; b.x2 ^= k122; b.x4 ^= k123; sboxI5(b);
+		b.x1 ^= k116; b.x3 ^= k117; b.x4 ^= k118; b.x2 ^= k119; sboxI4(b);
+		b.x1 ^= k112; b.x2 ^= k113; b.x4 ^= k114; b.x0 ^= k115; sboxI3(b);
+		b.x0 ^= k108; b.x1 ^= k109; b.x4 ^= k110; b.x2 ^= k111; sboxI2(b);
+		b.x1 ^= k104; b.x3 ^= k105; b.x4 ^= k106; b.x2 ^= k107; sboxI1(b);
+		b.x0 ^= k100; b.x1 ^= k101; b.x2 ^= k102; b.x4 ^= k103; sboxI0(b);
+		b.x0 ^= k96; b.x3 ^= k97; b.x1 ^= k98; b.x4 ^= k99; sboxI7(b);
+		b.x1 = b.x3; b.x3 = b.x4; b.x4 = b.x2;
+
+		b.x3 ^= k92; b.x0 ^= k93; b.x1 ^= k94; b.x4 ^= k95; sboxI6(b);
+		b.x0 ^= k88; b.x1 ^= k89; b.x2 ^= k90; b.x4 ^= k91; sboxI5(b);
+		b.x1 ^= k84; b.x3 ^= k85; b.x4 ^= k86; b.x2 ^= k87; sboxI4(b);
+		b.x1 ^= k80; b.x2 ^= k81; b.x4 ^= k82; b.x0 ^= k83; sboxI3(b);
+		b.x0 ^= k76; b.x1 ^= k77; b.x4 ^= k78; b.x2 ^= k79; sboxI2(b);
+		b.x1 ^= k72; b.x3 ^= k73; b.x4 ^= k74; b.x2 ^= k75; sboxI1(b);
+		b.x0 ^= k68; b.x1 ^= k69; b.x2 ^= k70; b.x4 ^= k71; sboxI0(b);
+		b.x0 ^= k64; b.x3 ^= k65; b.x1 ^= k66; b.x4 ^= k67; sboxI7(b);
+		b.x1 = b.x3; b.x3 = b.x4; b.x4 = b.x2;
+
+		b.x3 ^= k60; b.x0 ^= k61; b.x1 ^= k62; b.x4 ^= k63; sboxI6(b);
+		b.x0 ^= k56; b.x1 ^= k57; b.x2 ^= k58; b.x4 ^= k59; sboxI5(b);
+		b.x1 ^= k52; b.x3 ^= k53; b.x4 ^= k54; b.x2 ^= k55; sboxI4(b);
+		b.x1 ^= k48; b.x2 ^= k49; b.x4 ^= k50; b.x0 ^= k51; sboxI3(b);
+		b.x0 ^= k44; b.x1 ^= k45; b.x4 ^= k46; b.x2 ^= k47; sboxI2(b);
+		b.x1 ^= k40; b.x3 ^= k41; b.x4 ^= k42; b.x2 ^= k43; sboxI1(b);
+		b.x0 ^= k36; b.x1 ^= k37; b.x2 ^= k38; b.x4 ^= k39; sboxI0(b);
+		b.x0 ^= k32; b.x3 ^= k33; b.x1 ^= k34; b.x4 ^= k35; sboxI7(b);
+		b.x1 = b.x3; b.x3 = b.x4; b.x4 = b.x2;
+
+		b.x3 ^= k28; b.x0 ^= k29; b.x1 ^= k30; b.x4 ^= k31; sboxI6(b);
+		b.x0 ^= k24; b.x1 ^= k25; b.x2 ^= k26; b.x4 ^= k27; sboxI5(b);
+		b.x1 ^= k20; b.x3 ^= k21; b.x4 ^= k22; b.x2 ^= k23; sboxI4(b);
+		b.x1 ^= k16; b.x2 ^= k17; b.x4 ^= k18; b.x0 ^= k19; sboxI3(b);
+		b.x0 ^= k12; b.x1 ^= k13; b.x4 ^= k14; b.x2 ^= k15; sboxI2(b);
+		b.x1 ^= k8; b.x3 ^= k9; b.x4 ^= k10; b.x2 ^= k11; sboxI1(b);
+		b.x0 ^= k4; b.x1 ^= k5; b.x2 ^= k6; b.x4 ^= k7; sboxI0(b);
+		b.x2 = b.x1; b.x1 = b.x3; b.x3 = b.x4;
+
+		b.x0 ^= k0; b.x1 ^= k1; b.x2 ^= k2; b.x3 ^= k3;
+
+		out[outOffset	] = (byte) b.x0;
+		out[outOffset+ 1] = (byte)(b.x0 >>>  8);
+		out[outOffset+ 2] = (byte)(b.x0 >>> 16);
+		out[outOffset+ 3] = (byte)(b.x0 >>> 24);
+		out[outOffset+ 4] = (byte) b.x1;
+		out[outOffset+ 5] = (byte)(b.x1 >>>  8);
+		out[outOffset+ 6] = (byte)(b.x1 >>> 16);
+		out[outOffset+ 7] = (byte)(b.x1 >>> 24);
+		out[outOffset+ 8] = (byte) b.x2;
+		out[outOffset+ 9] = (byte)(b.x2 >>>  8);
+		out[outOffset+10] = (byte)(b.x2 >>> 16);
+		out[outOffset+11] = (byte)(b.x2 >>> 24);
+		out[outOffset+12] = (byte) b.x3;
+		out[outOffset+13] = (byte)(b.x3 >>>  8);
+		out[outOffset+14] = (byte)(b.x3 >>> 16);
+		out[outOffset+15] = (byte)(b.x3 >>> 24);
 	}
 
 
@@ -351,56 +355,58 @@ class Serpent implements Cipher
 	@Override
 	public void engineEncryptBlock(int [] in, int inOffset, int [] out, int outOffset)
 	{
-		x0 = reverseBytes(in[inOffset++]);
-		x1 = reverseBytes(in[inOffset++]);
-		x2 = reverseBytes(in[inOffset++]);
-		x3 = reverseBytes(in[inOffset  ]);
-
-		x0 ^= k0; x1 ^= k1; x2 ^= k2; x3 ^= k3; sbox0();
-		x1 ^= k4; x4 ^= k5; x2 ^= k6; x0 ^= k7; sbox1();
-		x0 ^= k8; x4 ^= k9; x2 ^= k10; x1 ^= k11; sbox2();
-		x2 ^= k12; x1 ^= k13; x4 ^= k14; x3 ^= k15; sbox3();
-		x1 ^= k16; x4 ^= k17; x3 ^= k18; x0 ^= k19; sbox4();
-		x4 ^= k20; x2 ^= k21; x1 ^= k22; x0 ^= k23; sbox5();
-		x2 ^= k24; x0 ^= k25; x4 ^= k26; x1 ^= k27; sbox6();
-		x2 ^= k28; x0 ^= k29; x3 ^= k30; x4 ^= k31; sbox7();
-		x0 = x3; x3 = x2; x2 = x4;
-
-		x0 ^= k32; x1 ^= k33; x2 ^= k34; x3 ^= k35; sbox0();
-		x1 ^= k36; x4 ^= k37; x2 ^= k38; x0 ^= k39; sbox1();
-		x0 ^= k40; x4 ^= k41; x2 ^= k42; x1 ^= k43; sbox2();
-		x2 ^= k44; x1 ^= k45; x4 ^= k46; x3 ^= k47; sbox3();
-		x1 ^= k48; x4 ^= k49; x3 ^= k50; x0 ^= k51; sbox4();
-		x4 ^= k52; x2 ^= k53; x1 ^= k54; x0 ^= k55; sbox5();
-		x2 ^= k56; x0 ^= k57; x4 ^= k58; x1 ^= k59; sbox6();
-		x2 ^= k60; x0 ^= k61; x3 ^= k62; x4 ^= k63; sbox7();
-		x0 = x3; x3 = x2; x2 = x4;
-
-		x0 ^= k64; x1 ^= k65; x2 ^= k66; x3 ^= k67; sbox0();
-		x1 ^= k68; x4 ^= k69; x2 ^= k70; x0 ^= k71; sbox1();
-		x0 ^= k72; x4 ^= k73; x2 ^= k74; x1 ^= k75; sbox2();
-		x2 ^= k76; x1 ^= k77; x4 ^= k78; x3 ^= k79; sbox3();
-		x1 ^= k80; x4 ^= k81; x3 ^= k82; x0 ^= k83; sbox4();
-		x4 ^= k84; x2 ^= k85; x1 ^= k86; x0 ^= k87; sbox5();
-		x2 ^= k88; x0 ^= k89; x4 ^= k90; x1 ^= k91; sbox6();
-		x2 ^= k92; x0 ^= k93; x3 ^= k94; x4 ^= k95; sbox7();
-		x0 = x3; x3 = x2; x2 = x4;
-
-		x0 ^= k96; x1 ^= k97; x2 ^= k98; x3 ^= k99; sbox0();
-		x1 ^= k100; x4 ^= k101; x2 ^= k102; x0 ^= k103; sbox1();
-		x0 ^= k104; x4 ^= k105; x2 ^= k106; x1 ^= k107; sbox2();
-		x2 ^= k108; x1 ^= k109; x4 ^= k110; x3 ^= k111; sbox3();
-		x1 ^= k112; x4 ^= k113; x3 ^= k114; x0 ^= k115; sbox4();
-		x4 ^= k116; x2 ^= k117; x1 ^= k118; x0 ^= k119; sbox5();
-		x2 ^= k120; x0 ^= k121; x4 ^= k122; x1 ^= k123; sbox6();
-		x2 ^= k124; x0 ^= k125; x3 ^= k126; x4 ^= k127; sbox7noLT();
-		x0 = x3; x3 = x2; x2 = x4;
-		x0 ^= k128; x1 ^= k129; x2 ^= k130; x3 ^= k131;
-
-		out[outOffset++] = reverseBytes(x0);
-		out[outOffset++] = reverseBytes(x1);
-		out[outOffset++] = reverseBytes(x2);
-		out[outOffset  ] = reverseBytes(x3);
+		Block b = new Block();
+
+		b.x0 = reverseBytes(in[inOffset++]);
+		b.x1 = reverseBytes(in[inOffset++]);
+		b.x2 = reverseBytes(in[inOffset++]);
+		b.x3 = reverseBytes(in[inOffset  ]);
+
+		b.x0 ^= k0; b.x1 ^= k1; b.x2 ^= k2; b.x3 ^= k3; sbox0(b);
+		b.x1 ^= k4; b.x4 ^= k5; b.x2 ^= k6; b.x0 ^= k7; sbox1(b);
+		b.x0 ^= k8; b.x4 ^= k9; b.x2 ^= k10; b.x1 ^= k11; sbox2(b);
+		b.x2 ^= k12; b.x1 ^= k13; b.x4 ^= k14; b.x3 ^= k15; sbox3(b);
+		b.x1 ^= k16; b.x4 ^= k17; b.x3 ^= k18; b.x0 ^= k19; sbox4(b);
+		b.x4 ^= k20; b.x2 ^= k21; b.x1 ^= k22; b.x0 ^= k23; sbox5(b);
+		b.x2 ^= k24; b.x0 ^= k25; b.x4 ^= k26; b.x1 ^= k27; sbox6(b);
+		b.x2 ^= k28; b.x0 ^= k29; b.x3 ^= k30; b.x4 ^= k31; sbox7(b);
+		b.x0 = b.x3; b.x3 = b.x2; b.x2 = b.x4;
+
+		b.x0 ^= k32; b.x1 ^= k33; b.x2 ^= k34; b.x3 ^= k35; sbox0(b);
+		b.x1 ^= k36; b.x4 ^= k37; b.x2 ^= k38; b.x0 ^= k39; sbox1(b);
+		b.x0 ^= k40; b.x4 ^= k41; b.x2 ^= k42; b.x1 ^= k43; sbox2(b);
+		b.x2 ^= k44; b.x1 ^= k45; b.x4 ^= k46; b.x3 ^= k47; sbox3(b);
+		b.x1 ^= k48; b.x4 ^= k49; b.x3 ^= k50; b.x0 ^= k51; sbox4(b);
+		b.x4 ^= k52; b.x2 ^= k53; b.x1 ^= k54; b.x0 ^= k55; sbox5(b);
+		b.x2 ^= k56; b.x0 ^= k57; b.x4 ^= k58; b.x1 ^= k59; sbox6(b);
+		b.x2 ^= k60; b.x0 ^= k61; b.x3 ^= k62; b.x4 ^= k63; sbox7(b);
+		b.x0 = b.x3; b.x3 = b.x2; b.x2 = b.x4;
+
+		b.x0 ^= k64; b.x1 ^= k65; b.x2 ^= k66; b.x3 ^= k67; sbox0(b);
+		b.x1 ^= k68; b.x4 ^= k69; b.x2 ^= k70; b.x0 ^= k71; sbox1(b);
+		b.x0 ^= k72; b.x4 ^= k73; b.x2 ^= k74; b.x1 ^= k75; sbox2(b);
+		b.x2 ^= k76; b.x1 ^= k77; b.x4 ^= k78; b.x3 ^= k79; sbox3(b);
+		b.x1 ^= k80; b.x4 ^= k81; b.x3 ^= k82; b.x0 ^= k83; sbox4(b);
+		b.x4 ^= k84; b.x2 ^= k85; b.x1 ^= k86; b.x0 ^= k87; sbox5(b);
+		b.x2 ^= k88; b.x0 ^= k89; b.x4 ^= k90; b.x1 ^= k91; sbox6(b);
+		b.x2 ^= k92; b.x0 ^= k93; b.x3 ^= k94; b.x4 ^= k95; sbox7(b);
+		b.x0 = b.x3; b.x3 = b.x2; b.x2 = b.x4;
+
+		b.x0 ^= k96; b.x1 ^= k97; b.x2 ^= k98; b.x3 ^= k99; sbox0(b);
+		b.x1 ^= k100; b.x4 ^= k101; b.x2 ^= k102; b.x0 ^= k103; sbox1(b);
+		b.x0 ^= k104; b.x4 ^= k105; b.x2 ^= k106; b.x1 ^= k107; sbox2(b);
+		b.x2 ^= k108; b.x1 ^= k109; b.x4 ^= k110; b.x3 ^= k111; sbox3(b);
+		b.x1 ^= k112; b.x4 ^= k113; b.x3 ^= k114; b.x0 ^= k115; sbox4(b);
+		b.x4 ^= k116; b.x2 ^= k117; b.x1 ^= k118; b.x0 ^= k119; sbox5(b);
+		b.x2 ^= k120; b.x0 ^= k121; b.x4 ^= k122; b.x1 ^= k123; sbox6(b);
+		b.x2 ^= k124; b.x0 ^= k125; b.x3 ^= k126; b.x4 ^= k127; sbox7noLT(b);
+		b.x0 = b.x3; b.x3 = b.x2; b.x2 = b.x4;
+		b.x0 ^= k128; b.x1 ^= k129; b.x2 ^= k130; b.x3 ^= k131;
+
+		out[outOffset++] = reverseBytes(b.x0);
+		out[outOffset++] = reverseBytes(b.x1);
+		out[outOffset++] = reverseBytes(b.x2);
+		out[outOffset  ] = reverseBytes(b.x3);
 	}
 
 
@@ -419,757 +425,759 @@ class Serpent implements Cipher
 	@Override
 	public void engineDecryptBlock(int [] in, int inOffset, int [] out, int outOffset)
 	{
-		x0 = reverseBytes(in[inOffset++]);
-		x1 = reverseBytes(in[inOffset++]);
-		x2 = reverseBytes(in[inOffset++]);
-		x3 = reverseBytes(in[inOffset  ]);
-
-		x0 ^= k128; x1 ^= k129; x2 ^= k130; x3 ^= k131; sboxI7noLT();
-		x3 ^= k124; x0 ^= k125; x1 ^= k126; x4 ^= k127; sboxI6();
-		x0 ^= k120; x1 ^= k121; x2 ^= k122; x4 ^= k123; sboxI5();
-		x1 ^= k116; x3 ^= k117; x4 ^= k118; x2 ^= k119; sboxI4();
-		x1 ^= k112; x2 ^= k113; x4 ^= k114; x0 ^= k115; sboxI3();
-		x0 ^= k108; x1 ^= k109; x4 ^= k110; x2 ^= k111; sboxI2();
-		x1 ^= k104; x3 ^= k105; x4 ^= k106; x2 ^= k107; sboxI1();
-		x0 ^= k100; x1 ^= k101; x2 ^= k102; x4 ^= k103; sboxI0();
-		x0 ^= k96; x3 ^= k97; x1 ^= k98; x4 ^= k99; sboxI7();
-		x1 = x3; x3 = x4; x4 = x2;
-
-		x3 ^= k92; x0 ^= k93; x1 ^= k94; x4 ^= k95; sboxI6();
-		x0 ^= k88; x1 ^= k89; x2 ^= k90; x4 ^= k91; sboxI5();
-		x1 ^= k84; x3 ^= k85; x4 ^= k86; x2 ^= k87; sboxI4();
-		x1 ^= k80; x2 ^= k81; x4 ^= k82; x0 ^= k83; sboxI3();
-		x0 ^= k76; x1 ^= k77; x4 ^= k78; x2 ^= k79; sboxI2();
-		x1 ^= k72; x3 ^= k73; x4 ^= k74; x2 ^= k75; sboxI1();
-		x0 ^= k68; x1 ^= k69; x2 ^= k70; x4 ^= k71; sboxI0();
-		x0 ^= k64; x3 ^= k65; x1 ^= k66; x4 ^= k67; sboxI7();
-		x1 = x3; x3 = x4; x4 = x2;
-
-		x3 ^= k60; x0 ^= k61; x1 ^= k62; x4 ^= k63; sboxI6();
-		x0 ^= k56; x1 ^= k57; x2 ^= k58; x4 ^= k59; sboxI5();
-		x1 ^= k52; x3 ^= k53; x4 ^= k54; x2 ^= k55; sboxI4();
-		x1 ^= k48; x2 ^= k49; x4 ^= k50; x0 ^= k51; sboxI3();
-		x0 ^= k44; x1 ^= k45; x4 ^= k46; x2 ^= k47; sboxI2();
-		x1 ^= k40; x3 ^= k41; x4 ^= k42; x2 ^= k43; sboxI1();
-		x0 ^= k36; x1 ^= k37; x2 ^= k38; x4 ^= k39; sboxI0();
-		x0 ^= k32; x3 ^= k33; x1 ^= k34; x4 ^= k35; sboxI7();
-		x1 = x3; x3 = x4; x4 = x2;
-
-		x3 ^= k28; x0 ^= k29; x1 ^= k30; x4 ^= k31; sboxI6();
-		x0 ^= k24; x1 ^= k25; x2 ^= k26; x4 ^= k27; sboxI5();
-		x1 ^= k20; x3 ^= k21; x4 ^= k22; x2 ^= k23; sboxI4();
-		x1 ^= k16; x2 ^= k17; x4 ^= k18; x0 ^= k19; sboxI3();
-		x0 ^= k12; x1 ^= k13; x4 ^= k14; x2 ^= k15; sboxI2();
-		x1 ^= k8; x3 ^= k9; x4 ^= k10; x2 ^= k11; sboxI1();
-		x0 ^= k4; x1 ^= k5; x2 ^= k6; x4 ^= k7; sboxI0();
-		x2 = x1; x1 = x3; x3 = x4;
-
-		x0 ^= k0; x1 ^= k1; x2 ^= k2; x3 ^= k3;
-
-		out[outOffset++] = reverseBytes(x0);
-		out[outOffset++] = reverseBytes(x1);
-		out[outOffset++] = reverseBytes(x2);
-		out[outOffset  ] = reverseBytes(x3);
+		Block b = new Block();
+
+		b.x0 = reverseBytes(in[inOffset++]);
+		b.x1 = reverseBytes(in[inOffset++]);
+		b.x2 = reverseBytes(in[inOffset++]);
+		b.x3 = reverseBytes(in[inOffset  ]);
+
+		b.x0 ^= k128; b.x1 ^= k129; b.x2 ^= k130; b.x3 ^= k131; sboxI7noLT(b);
+		b.x3 ^= k124; b.x0 ^= k125; b.x1 ^= k126; b.x4 ^= k127; sboxI6(b);
+		b.x0 ^= k120; b.x1 ^= k121; b.x2 ^= k122; b.x4 ^= k123; sboxI5(b);
+		b.x1 ^= k116; b.x3 ^= k117; b.x4 ^= k118; b.x2 ^= k119; sboxI4(b);
+		b.x1 ^= k112; b.x2 ^= k113; b.x4 ^= k114; b.x0 ^= k115; sboxI3(b);
+		b.x0 ^= k108; b.x1 ^= k109; b.x4 ^= k110; b.x2 ^= k111; sboxI2(b);
+		b.x1 ^= k104; b.x3 ^= k105; b.x4 ^= k106; b.x2 ^= k107; sboxI1(b);
+		b.x0 ^= k100; b.x1 ^= k101; b.x2 ^= k102; b.x4 ^= k103; sboxI0(b);
+		b.x0 ^= k96; b.x3 ^= k97; b.x1 ^= k98; b.x4 ^= k99; sboxI7(b);
+		b.x1 = b.x3; b.x3 = b.x4; b.x4 = b.x2;
+
+		b.x3 ^= k92; b.x0 ^= k93; b.x1 ^= k94; b.x4 ^= k95; sboxI6(b);
+		b.x0 ^= k88; b.x1 ^= k89; b.x2 ^= k90; b.x4 ^= k91; sboxI5(b);
+		b.x1 ^= k84; b.x3 ^= k85; b.x4 ^= k86; b.x2 ^= k87; sboxI4(b);
+		b.x1 ^= k80; b.x2 ^= k81; b.x4 ^= k82; b.x0 ^= k83; sboxI3(b);
+		b.x0 ^= k76; b.x1 ^= k77; b.x4 ^= k78; b.x2 ^= k79; sboxI2(b);
+		b.x1 ^= k72; b.x3 ^= k73; b.x4 ^= k74; b.x2 ^= k75; sboxI1(b);
+		b.x0 ^= k68; b.x1 ^= k69; b.x2 ^= k70; b.x4 ^= k71; sboxI0(b);
+		b.x0 ^= k64; b.x3 ^= k65; b.x1 ^= k66; b.x4 ^= k67; sboxI7(b);
+		b.x1 = b.x3; b.x3 = b.x4; b.x4 = b.x2;
+
+		b.x3 ^= k60; b.x0 ^= k61; b.x1 ^= k62; b.x4 ^= k63; sboxI6(b);
+		b.x0 ^= k56; b.x1 ^= k57; b.x2 ^= k58; b.x4 ^= k59; sboxI5(b);
+		b.x1 ^= k52; b.x3 ^= k53; b.x4 ^= k54; b.x2 ^= k55; sboxI4(b);
+		b.x1 ^= k48; b.x2 ^= k49; b.x4 ^= k50; b.x0 ^= k51; sboxI3(b);
+		b.x0 ^= k44; b.x1 ^= k45; b.x4 ^= k46; b.x2 ^= k47; sboxI2(b);
+		b.x1 ^= k40; b.x3 ^= k41; b.x4 ^= k42; b.x2 ^= k43; sboxI1(b);
+		b.x0 ^= k36; b.x1 ^= k37; b.x2 ^= k38; b.x4 ^= k39; sboxI0(b);
+		b.x0 ^= k32; b.x3 ^= k33; b.x1 ^= k34; b.x4 ^= k35; sboxI7(b);
+		b.x1 = b.x3; b.x3 = b.x4; b.x4 = b.x2;
+
+		b.x3 ^= k28; b.x0 ^= k29; b.x1 ^= k30; b.x4 ^= k31; sboxI6(b);
+		b.x0 ^= k24; b.x1 ^= k25; b.x2 ^= k26; b.x4 ^= k27; sboxI5(b);
+		b.x1 ^= k20; b.x3 ^= k21; b.x4 ^= k22; b.x2 ^= k23; sboxI4(b);
+		b.x1 ^= k16; b.x2 ^= k17; b.x4 ^= k18; b.x0 ^= k19; sboxI3(b);
+		b.x0 ^= k12; b.x1 ^= k13; b.x4 ^= k14; b.x2 ^= k15; sboxI2(b);
+		b.x1 ^= k8; b.x3 ^= k9; b.x4 ^= k10; b.x2 ^= k11; sboxI1(b);
+		b.x0 ^= k4; b.x1 ^= k5; b.x2 ^= k6; b.x4 ^= k7; sboxI0(b);
+		b.x2 = b.x1; b.x1 = b.x3; b.x3 = b.x4;
+
+		b.x0 ^= k0; b.x1 ^= k1; b.x2 ^= k2; b.x3 ^= k3;
+
+		out[outOffset++] = reverseBytes(b.x0);
+		out[outOffset++] = reverseBytes(b.x1);
+		out[outOffset++] = reverseBytes(b.x2);
+		out[outOffset  ] = reverseBytes(b.x3);
 	}
 
 
-	private void sbox0()
+	private static void sbox0(Block b)
 	{
-		x3 ^= x0;
-		x4 = x1;
-		x1 &= x3;
-		x4 ^= x2;
-		x1 ^= x0;
-		x0 |= x3;
-		x0 ^= x4;
-		x4 ^= x3;
-		x3 ^= x2;
-		x2 |= x1;
-		x2 ^= x4;
-		x4 ^= -1;
-		x4 |= x1;
-		x1 ^= x3;
-		x1 ^= x4;
-		x3 |= x0;
-		x1 ^= x3;
-		x4 ^= x3;
-
-		x1 = (x1 << 13) | (x1 >>> 19);
-		x4 ^= x1;
-		x3 = x1 << 3;
-		x2 = (x2 <<  3) | (x2 >>> 29);
-		x4 ^= x2;
-		x0 ^= x2;
-		x4 = (x4 <<  1) | (x4 >>> 31);
-		x0 ^= x3;
-		x0 = (x0 <<  7) | (x0 >>> 25);
-		x3 = x4;
-		x1 ^= x4;
-		x3 <<= 7;
-		x1 ^= x0;
-		x2 ^= x0;
-		x2 ^= x3;
-		x1 = (x1 <<  5) | (x1 >>> 27);
-		x2 = (x2 << 22) | (x2 >>> 10);
+		b.x3 ^= b.x0;
+		b.x4 = b.x1;
+		b.x1 &= b.x3;
+		b.x4 ^= b.x2;
+		b.x1 ^= b.x0;
+		b.x0 |= b.x3;
+		b.x0 ^= b.x4;
+		b.x4 ^= b.x3;
+		b.x3 ^= b.x2;
+		b.x2 |= b.x1;
+		b.x2 ^= b.x4;
+		b.x4 ^= -1;
+		b.x4 |= b.x1;
+		b.x1 ^= b.x3;
+		b.x1 ^= b.x4;
+		b.x3 |= b.x0;
+		b.x1 ^= b.x3;
+		b.x4 ^= b.x3;
+
+		b.x1 = (b.x1 << 13) | (b.x1 >>> 19);
+		b.x4 ^= b.x1;
+		b.x3 = b.x1 << 3;
+		b.x2 = (b.x2 <<  3) | (b.x2 >>> 29);
+		b.x4 ^= b.x2;
+		b.x0 ^= b.x2;
+		b.x4 = (b.x4 <<  1) | (b.x4 >>> 31);
+		b.x0 ^= b.x3;
+		b.x0 = (b.x0 <<  7) | (b.x0 >>> 25);
+		b.x3 = b.x4;
+		b.x1 ^= b.x4;
+		b.x3 <<= 7;
+		b.x1 ^= b.x0;
+		b.x2 ^= b.x0;
+		b.x2 ^= b.x3;
+		b.x1 = (b.x1 <<  5) | (b.x1 >>> 27);
+		b.x2 = (b.x2 << 22) | (b.x2 >>> 10);
 	}
 
-	private void sbox1()
+	private static void sbox1(Block b)
 	{
-		x4 = ~x4;
-		x3 = x1;
-		x1 ^= x4;
-		x3 |= x4;
-		x3 ^= x0;
-		x0 &= x1;
-		x2 ^= x3;
-		x0 ^= x4;
-		x0 |= x2;
-		x1 ^= x3;
-		x0 ^= x1;
-		x4 &= x2;
-		x1 |= x4;
-		x4 ^= x3;
-		x1 ^= x2;
-		x3 |= x0;
-		x1 ^= x3;
-		x3 = ~x3;
-		x4 ^= x0;
-		x3 &= x2;
-		x4 = ~x4;
-		x3 ^= x1;
-		x4 ^= x3;
-
-		x0 = (x0 << 13) | (x0 >>> 19);
-		x4 ^= x0;
-		x3 = x0 << 3;
-		x2 = (x2 <<  3) | (x2 >>> 29);
-		x4 ^= x2;
-		x1 ^= x2;
-		x4 = (x4 <<  1) | (x4 >>> 31);
-		x1 ^= x3;
-		x1 = (x1 <<  7) | (x1 >>> 25);
-		x3 = x4;
-		x0 ^= x4;
-		x3 <<= 7;
-		x0 ^= x1;
-		x2 ^= x1;
-		x2 ^= x3;
-		x0 = (x0 <<  5) | (x0 >>> 27);
-		x2 = (x2 << 22) | (x2 >>> 10);
+		b.x4 = ~b.x4;
+		b.x3 = b.x1;
+		b.x1 ^= b.x4;
+		b.x3 |= b.x4;
+		b.x3 ^= b.x0;
+		b.x0 &= b.x1;
+		b.x2 ^= b.x3;
+		b.x0 ^= b.x4;
+		b.x0 |= b.x2;
+		b.x1 ^= b.x3;
+		b.x0 ^= b.x1;
+		b.x4 &= b.x2;
+		b.x1 |= b.x4;
+		b.x4 ^= b.x3;
+		b.x1 ^= b.x2;
+		b.x3 |= b.x0;
+		b.x1 ^= b.x3;
+		b.x3 = ~b.x3;
+		b.x4 ^= b.x0;
+		b.x3 &= b.x2;
+		b.x4 = ~b.x4;
+		b.x3 ^= b.x1;
+		b.x4 ^= b.x3;
+
+		b.x0 = (b.x0 << 13) | (b.x0 >>> 19);
+		b.x4 ^= b.x0;
+		b.x3 = b.x0 << 3;
+		b.x2 = (b.x2 <<  3) | (b.x2 >>> 29);
+		b.x4 ^= b.x2;
+		b.x1 ^= b.x2;
+		b.x4 = (b.x4 <<  1) | (b.x4 >>> 31);
+		b.x1 ^= b.x3;
+		b.x1 = (b.x1 <<  7) | (b.x1 >>> 25);
+		b.x3 = b.x4;
+		b.x0 ^= b.x4;
+		b.x3 <<= 7;
+		b.x0 ^= b.x1;
+		b.x2 ^= b.x1;
+		b.x2 ^= b.x3;
+		b.x0 = (b.x0 <<  5) | (b.x0 >>> 27);
+		b.x2 = (b.x2 << 22) | (b.x2 >>> 10);
 	}
 
-	private void sbox2()
+	private static void sbox2(Block b)
 	{
-		x3 = x0;
-		x0 = x0 & x2;
-		x0 = x0 ^ x1;
-		x2 = x2 ^ x4;
-		x2 = x2 ^ x0;
-		x1 = x1 | x3;
-		x1 = x1 ^ x4;
-		x3 = x3 ^ x2;
-		x4 = x1;
-		x1 = x1 | x3;
-		x1 = x1 ^ x0;
-		x0 = x0 & x4;
-		x3 = x3 ^ x0;
-		x4 = x4 ^ x1;
-		x4 = x4 ^ x3;
-		x3 = ~x3;
-
-		x2 = (x2 << 13) | (x2 >>> 19);
-		x1 ^= x2;
-		x0 = x2 << 3;
-		x4 = (x4 <<  3) | (x4 >>> 29);
-		x1 ^= x4;
-		x3 ^= x4;
-		x1 = (x1 <<  1) | (x1 >>> 31);
-		x3 ^= x0;
-		x3 = (x3 <<  7) | (x3 >>> 25);
-		x0 = x1;
-		x2 ^= x1;
-		x0 <<= 7;
-		x2 ^= x3;
-		x4 ^= x3;
-		x4 ^= x0;
-		x2 = (x2 <<  5) | (x2 >>> 27);
-		x4 = (x4 << 22) | (x4 >>> 10);
+		b.x3 = b.x0;
+		b.x0 = b.x0 & b.x2;
+		b.x0 = b.x0 ^ b.x1;
+		b.x2 = b.x2 ^ b.x4;
+		b.x2 = b.x2 ^ b.x0;
+		b.x1 = b.x1 | b.x3;
+		b.x1 = b.x1 ^ b.x4;
+		b.x3 = b.x3 ^ b.x2;
+		b.x4 = b.x1;
+		b.x1 = b.x1 | b.x3;
+		b.x1 = b.x1 ^ b.x0;
+		b.x0 = b.x0 & b.x4;
+		b.x3 = b.x3 ^ b.x0;
+		b.x4 = b.x4 ^ b.x1;
+		b.x4 = b.x4 ^ b.x3;
+		b.x3 = ~b.x3;
+
+		b.x2 = (b.x2 << 13) | (b.x2 >>> 19);
+		b.x1 ^= b.x2;
+		b.x0 = b.x2 << 3;
+		b.x4 = (b.x4 <<  3) | (b.x4 >>> 29);
+		b.x1 ^= b.x4;
+		b.x3 ^= b.x4;
+		b.x1 = (b.x1 <<  1) | (b.x1 >>> 31);
+		b.x3 ^= b.x0;
+		b.x3 = (b.x3 <<  7) | (b.x3 >>> 25);
+		b.x0 = b.x1;
+		b.x2 ^= b.x1;
+		b.x0 <<= 7;
+		b.x2 ^= b.x3;
+		b.x4 ^= b.x3;
+		b.x4 ^= b.x0;
+		b.x2 = (b.x2 <<  5) | (b.x2 >>> 27);
+		b.x4 = (b.x4 << 22) | (b.x4 >>> 10);
 	}
 
-	private void sbox3()
+	private static void sbox3(Block b)
 	{
-		x0 = x2;
-		x2 = x2 | x3;
-		x3 = x3 ^ x1;
-		x1 = x1 & x0;
-		x0 = x0 ^ x4;
-		x4 = x4 ^ x3;
-		x3 = x3 & x2;
-		x0 = x0 | x1;
-		x3 = x3 ^ x0;
-		x2 = x2 ^ x1;
-		x0 = x0 & x2;
-		x1 = x1 ^ x3;
-		x0 = x0 ^ x4;
-		x1 = x1 | x2;
-		x1 = x1 ^ x4;
-		x2 = x2 ^ x3;
-		x4 = x1;
-		x1 = x1 | x3;
-		x1 = x1 ^ x2;
-
-		x1 = (x1 << 13) | (x1 >>> 19);
-		x4 ^= x1;
-		x2 = x1 << 3;
-		x3 = (x3 <<  3) | (x3 >>> 29);
-		x4 ^= x3;
-		x0 ^= x3;
-		x4 = (x4 <<  1) | (x4 >>> 31);
-		x0 ^= x2;
-		x0 = (x0 <<  7) | (x0 >>> 25);
-		x2 = x4;
-		x1 ^= x4;
-		x2 <<= 7;
-		x1 ^= x0;
-		x3 ^= x0;
-		x3 ^= x2;
-		x1 = (x1 <<  5) | (x1 >>> 27);
-		x3 = (x3 << 22) | (x3 >>> 10);
+		b.x0 = b.x2;
+		b.x2 = b.x2 | b.x3;
+		b.x3 = b.x3 ^ b.x1;
+		b.x1 = b.x1 & b.x0;
+		b.x0 = b.x0 ^ b.x4;
+		b.x4 = b.x4 ^ b.x3;
+		b.x3 = b.x3 & b.x2;
+		b.x0 = b.x0 | b.x1;
+		b.x3 = b.x3 ^ b.x0;
+		b.x2 = b.x2 ^ b.x1;
+		b.x0 = b.x0 & b.x2;
+		b.x1 = b.x1 ^ b.x3;
+		b.x0 = b.x0 ^ b.x4;
+		b.x1 = b.x1 | b.x2;
+		b.x1 = b.x1 ^ b.x4;
+		b.x2 = b.x2 ^ b.x3;
+		b.x4 = b.x1;
+		b.x1 = b.x1 | b.x3;
+		b.x1 = b.x1 ^ b.x2;
+
+		b.x1 = (b.x1 << 13) | (b.x1 >>> 19);
+		b.x4 ^= b.x1;
+		b.x2 = b.x1 << 3;
+		b.x3 = (b.x3 <<  3) | (b.x3 >>> 29);
+		b.x4 ^= b.x3;
+		b.x0 ^= b.x3;
+		b.x4 = (b.x4 <<  1) | (b.x4 >>> 31);
+		b.x0 ^= b.x2;
+		b.x0 = (b.x0 <<  7) | (b.x0 >>> 25);
+		b.x2 = b.x4;
+		b.x1 ^= b.x4;
+		b.x2 <<= 7;
+		b.x1 ^= b.x0;
+		b.x3 ^= b.x0;
+		b.x3 ^= b.x2;
+		b.x1 = (b.x1 <<  5) | (b.x1 >>> 27);
+		b.x3 = (b.x3 << 22) | (b.x3 >>> 10);
 	}
 
-	private void sbox4()
+	private static void sbox4(Block b)
 	{
-		x4 = x4 ^ x0;
-		x0 = ~x0;
-		x3 = x3 ^ x0;
-		x0 = x0 ^ x1;
-		x2 = x4;
-		x4 = x4 & x0;
-		x4 = x4 ^ x3;
-		x2 = x2 ^ x0;
-		x1 = x1 ^ x2;
-		x3 = x3 & x2;
-		x3 = x3 ^ x1;
-		x1 = x1 & x4;
-		x0 = x0 ^ x1;
-		x2 = x2 | x4;
-		x2 = x2 ^ x1;
-		x1 = x1 | x0;
-		x1 = x1 ^ x3;
-		x3 = x3 & x0;
-		x1 = ~x1;
-		x2 = x2 ^ x3;
-
-		x4 = (x4 << 13) | (x4 >>> 19);
-		x2 ^= x4;
-		x3 = x4 << 3;
-		x1 = (x1 <<  3) | (x1 >>> 29);
-		x2 ^= x1;
-		x0 ^= x1;
-		x2 = (x2 <<  1) | (x2 >>> 31);
-		x0 ^= x3;
-		x0 = (x0 <<  7) | (x0 >>> 25);
-		x3 = x2;
-		x4 ^= x2;
-		x3 <<= 7;
-		x4 ^= x0;
-		x1 ^= x0;
-		x1 ^= x3;
-		x4 = (x4 <<  5) | (x4 >>> 27);
-		x1 = (x1 << 22) | (x1 >>> 10);
+		b.x4 = b.x4 ^ b.x0;
+		b.x0 = ~b.x0;
+		b.x3 = b.x3 ^ b.x0;
+		b.x0 = b.x0 ^ b.x1;
+		b.x2 = b.x4;
+		b.x4 = b.x4 & b.x0;
+		b.x4 = b.x4 ^ b.x3;
+		b.x2 = b.x2 ^ b.x0;
+		b.x1 = b.x1 ^ b.x2;
+		b.x3 = b.x3 & b.x2;
+		b.x3 = b.x3 ^ b.x1;
+		b.x1 = b.x1 & b.x4;
+		b.x0 = b.x0 ^ b.x1;
+		b.x2 = b.x2 | b.x4;
+		b.x2 = b.x2 ^ b.x1;
+		b.x1 = b.x1 | b.x0;
+		b.x1 = b.x1 ^ b.x3;
+		b.x3 = b.x3 & b.x0;
+		b.x1 = ~b.x1;
+		b.x2 = b.x2 ^ b.x3;
+
+		b.x4 = (b.x4 << 13) | (b.x4 >>> 19);
+		b.x2 ^= b.x4;
+		b.x3 = b.x4 << 3;
+		b.x1 = (b.x1 <<  3) | (b.x1 >>> 29);
+		b.x2 ^= b.x1;
+		b.x0 ^= b.x1;
+		b.x2 = (b.x2 <<  1) | (b.x2 >>> 31);
+		b.x0 ^= b.x3;
+		b.x0 = (b.x0 <<  7) | (b.x0 >>> 25);
+		b.x3 = b.x2;
+		b.x4 ^= b.x2;
+		b.x3 <<= 7;
+		b.x4 ^= b.x0;
+		b.x1 ^= b.x0;
+		b.x1 ^= b.x3;
+		b.x4 = (b.x4 <<  5) | (b.x4 >>> 27);
+		b.x1 = (b.x1 << 22) | (b.x1 >>> 10);
 	}
 
-	private void sbox5()
+	private static void sbox5(Block b)
 	{
-		x4 = x4 ^ x2;
-		x2 = x2 ^ x0;
-		x0 = ~x0;
-		x3 = x2;
-		x2 = x2 & x4;
-		x1 = x1 ^ x0;
-		x2 = x2 ^ x1;
-		x1 = x1 | x3;
-		x3 = x3 ^ x0;
-		x0 = x0 & x2;
-		x0 = x0 ^ x4;
-		x3 = x3 ^ x2;
-		x3 = x3 ^ x1;
-		x1 = x1 ^ x4;
-		x4 = x4 & x0;
-		x1 = ~x1;
-		x4 = x4 ^ x3;
-		x3 = x3 | x0;
-		x1 = x1 ^ x3;
-
-		x2 = (x2 << 13) | (x2 >>> 19);
-		x0 ^= x2;
-		x3 = x2 << 3;
-		x4 = (x4 <<  3) | (x4 >>> 29);
-		x0 ^= x4;
-		x1 ^= x4;
-		x0 = (x0 <<  1) | (x0 >>> 31);
-		x1 ^= x3;
-		x1 = (x1 <<  7) | (x1 >>> 25);
-		x3 = x0;
-		x2 ^= x0;
-		x3 <<= 7;
-		x2 ^= x1;
-		x4 ^= x1;
-		x4 ^= x3;
-		x2 = (x2 <<  5) | (x2 >>> 27);
-		x4 = (x4 << 22) | (x4 >>> 10);
+		b.x4 = b.x4 ^ b.x2;
+		b.x2 = b.x2 ^ b.x0;
+		b.x0 = ~b.x0;
+		b.x3 = b.x2;
+		b.x2 = b.x2 & b.x4;
+		b.x1 = b.x1 ^ b.x0;
+		b.x2 = b.x2 ^ b.x1;
+		b.x1 = b.x1 | b.x3;
+		b.x3 = b.x3 ^ b.x0;
+		b.x0 = b.x0 & b.x2;
+		b.x0 = b.x0 ^ b.x4;
+		b.x3 = b.x3 ^ b.x2;
+		b.x3 = b.x3 ^ b.x1;
+		b.x1 = b.x1 ^ b.x4;
+		b.x4 = b.x4 & b.x0;
+		b.x1 = ~b.x1;
+		b.x4 = b.x4 ^ b.x3;
+		b.x3 = b.x3 | b.x0;
+		b.x1 = b.x1 ^ b.x3;
+
+		b.x2 = (b.x2 << 13) | (b.x2 >>> 19);
+		b.x0 ^= b.x2;
+		b.x3 = b.x2 << 3;
+		b.x4 = (b.x4 <<  3) | (b.x4 >>> 29);
+		b.x0 ^= b.x4;
+		b.x1 ^= b.x4;
+		b.x0 = (b.x0 <<  1) | (b.x0 >>> 31);
+		b.x1 ^= b.x3;
+		b.x1 = (b.x1 <<  7) | (b.x1 >>> 25);
+		b.x3 = b.x0;
+		b.x2 ^= b.x0;
+		b.x3 <<= 7;
+		b.x2 ^= b.x1;
+		b.x4 ^= b.x1;
+		b.x4 ^= b.x3;
+		b.x2 = (b.x2 <<  5) | (b.x2 >>> 27);
+		b.x4 = (b.x4 << 22) | (b.x4 >>> 10);
 	}
 
-	private void sbox6()
+	private static void sbox6(Block b)
 	{
-		x4 = ~x4;
-		x3 = x1;
-		x1 = x1 & x2;
-		x2 = x2 ^ x3;
-		x1 = x1 ^ x4;
-		x4 = x4 | x3;
-		x0 = x0 ^ x1;
-		x4 = x4 ^ x2;
-		x2 = x2 | x0;
-		x4 = x4 ^ x0;
-		x3 = x3 ^ x2;
-		x2 = x2 | x1;
-		x2 = x2 ^ x4;
-		x3 = x3 ^ x1;
-		x3 = x3 ^ x2;
-		x1 = ~x1;
-		x4 = x4 & x3;
-		x4 = x4 ^ x1;
-		x2 = (x2 << 13) | (x2 >>> 19);
-		x0 ^= x2;
-		x1 = x2 << 3;
-		x3 = (x3 <<  3) | (x3 >>> 29);
-		x0 ^= x3;
-		x4 ^= x3;
-		x0 = (x0 <<  1) | (x0 >>> 31);
-		x4 ^= x1;
-		x4 = (x4 <<  7) | (x4 >>> 25);
-		x1 = x0;
-		x2 ^= x0;
-		x1 <<= 7;
-		x2 ^= x4;
-		x3 ^= x4;
-		x3 ^= x1;
-		x2 = (x2 <<  5) | (x2 >>> 27);
-		x3 = (x3 << 22) | (x3 >>> 10);
+		b.x4 = ~b.x4;
+		b.x3 = b.x1;
+		b.x1 = b.x1 & b.x2;
+		b.x2 = b.x2 ^ b.x3;
+		b.x1 = b.x1 ^ b.x4;
+		b.x4 = b.x4 | b.x3;
+		b.x0 = b.x0 ^ b.x1;
+		b.x4 = b.x4 ^ b.x2;
+		b.x2 = b.x2 | b.x0;
+		b.x4 = b.x4 ^ b.x0;
+		b.x3 = b.x3 ^ b.x2;
+		b.x2 = b.x2 | b.x1;
+		b.x2 = b.x2 ^ b.x4;
+		b.x3 = b.x3 ^ b.x1;
+		b.x3 = b.x3 ^ b.x2;
+		b.x1 = ~b.x1;
+		b.x4 = b.x4 & b.x3;
+		b.x4 = b.x4 ^ b.x1;
+		b.x2 = (b.x2 << 13) | (b.x2 >>> 19);
+		b.x0 ^= b.x2;
+		b.x1 = b.x2 << 3;
+		b.x3 = (b.x3 <<  3) | (b.x3 >>> 29);
+		b.x0 ^= b.x3;
+		b.x4 ^= b.x3;
+		b.x0 = (b.x0 <<  1) | (b.x0 >>> 31);
+		b.x4 ^= b.x1;
+		b.x4 = (b.x4 <<  7) | (b.x4 >>> 25);
+		b.x1 = b.x0;
+		b.x2 ^= b.x0;
+		b.x1 <<= 7;
+		b.x2 ^= b.x4;
+		b.x3 ^= b.x4;
+		b.x3 ^= b.x1;
+		b.x2 = (b.x2 <<  5) | (b.x2 >>> 27);
+		b.x3 = (b.x3 << 22) | (b.x3 >>> 10);
 	}
 
-	private void sbox7()
+	private static void sbox7(Block b)
 	{
-		x1 = x3;
-		x3 = x3 & x0;
-		x3 = x3 ^ x4;
-		x4 = x4 & x0;
-		x1 = x1 ^ x3;
-		x3 = x3 ^ x0;
-		x0 = x0 ^ x2;
-		x2 = x2 | x1;
-		x2 = x2 ^ x3;
-		x4 = x4 ^ x0;
-		x3 = x3 ^ x4;
-		x4 = x4 & x2;
-		x4 = x4 ^ x1;
-		x1 = x1 ^ x3;
-		x3 = x3 & x2;
-		x1 = ~x1;
-		x3 = x3 ^ x1;
-		x1 = x1 & x2;
-		x0 = x0 ^ x4;
-		x1 = x1 ^ x0;
-		x3 = (x3 << 13) | (x3 >>> 19);
-		x1 ^= x3;
-		x0 = x3 << 3;
-		x4 = (x4 <<  3) | (x4 >>> 29);
-		x1 ^= x4;
-		x2 ^= x4;
-		x1 = (x1 <<  1) | (x1 >>> 31);
-		x2 ^= x0;
-		x2 = (x2 <<  7) | (x2 >>> 25);
-		x0 = x1;
-		x3 ^= x1;
-		x0 <<= 7;
-		x3 ^= x2;
-		x4 ^= x2;
-		x4 ^= x0;
-		x3 = (x3 <<  5) | (x3 >>> 27);
-		x4 = (x4 << 22) | (x4 >>> 10);
+		b.x1 = b.x3;
+		b.x3 = b.x3 & b.x0;
+		b.x3 = b.x3 ^ b.x4;
+		b.x4 = b.x4 & b.x0;
+		b.x1 = b.x1 ^ b.x3;
+		b.x3 = b.x3 ^ b.x0;
+		b.x0 = b.x0 ^ b.x2;
+		b.x2 = b.x2 | b.x1;
+		b.x2 = b.x2 ^ b.x3;
+		b.x4 = b.x4 ^ b.x0;
+		b.x3 = b.x3 ^ b.x4;
+		b.x4 = b.x4 & b.x2;
+		b.x4 = b.x4 ^ b.x1;
+		b.x1 = b.x1 ^ b.x3;
+		b.x3 = b.x3 & b.x2;
+		b.x1 = ~b.x1;
+		b.x3 = b.x3 ^ b.x1;
+		b.x1 = b.x1 & b.x2;
+		b.x0 = b.x0 ^ b.x4;
+		b.x1 = b.x1 ^ b.x0;
+		b.x3 = (b.x3 << 13) | (b.x3 >>> 19);
+		b.x1 ^= b.x3;
+		b.x0 = b.x3 << 3;
+		b.x4 = (b.x4 <<  3) | (b.x4 >>> 29);
+		b.x1 ^= b.x4;
+		b.x2 ^= b.x4;
+		b.x1 = (b.x1 <<  1) | (b.x1 >>> 31);
+		b.x2 ^= b.x0;
+		b.x2 = (b.x2 <<  7) | (b.x2 >>> 25);
+		b.x0 = b.x1;
+		b.x3 ^= b.x1;
+		b.x0 <<= 7;
+		b.x3 ^= b.x2;
+		b.x4 ^= b.x2;
+		b.x4 ^= b.x0;
+		b.x3 = (b.x3 <<  5) | (b.x3 >>> 27);
+		b.x4 = (b.x4 << 22) | (b.x4 >>> 10);
 	}
 
 	/** The final S-box, with no transform. */
-	private void sbox7noLT()
+	private static void sbox7noLT(Block b)
 	{
-		x1 = x3;
-		x3 = x3 & x0;
-		x3 = x3 ^ x4;
-		x4 = x4 & x0;
-		x1 = x1 ^ x3;
-		x3 = x3 ^ x0;
-		x0 = x0 ^ x2;
-		x2 = x2 | x1;
-		x2 = x2 ^ x3;
-		x4 = x4 ^ x0;
-		x3 = x3 ^ x4;
-		x4 = x4 & x2;
-		x4 = x4 ^ x1;
-		x1 = x1 ^ x3;
-		x3 = x3 & x2;
-		x1 = ~x1;
-		x3 = x3 ^ x1;
-		x1 = x1 & x2;
-		x0 = x0 ^ x4;
-		x1 = x1 ^ x0;
+		b.x1 = b.x3;
+		b.x3 = b.x3 & b.x0;
+		b.x3 = b.x3 ^ b.x4;
+		b.x4 = b.x4 & b.x0;
+		b.x1 = b.x1 ^ b.x3;
+		b.x3 = b.x3 ^ b.x0;
+		b.x0 = b.x0 ^ b.x2;
+		b.x2 = b.x2 | b.x1;
+		b.x2 = b.x2 ^ b.x3;
+		b.x4 = b.x4 ^ b.x0;
+		b.x3 = b.x3 ^ b.x4;
+		b.x4 = b.x4 & b.x2;
+		b.x4 = b.x4 ^ b.x1;
+		b.x1 = b.x1 ^ b.x3;
+		b.x3 = b.x3 & b.x2;
+		b.x1 = ~b.x1;
+		b.x3 = b.x3 ^ b.x1;
+		b.x1 = b.x1 & b.x2;
+		b.x0 = b.x0 ^ b.x4;
+		b.x1 = b.x1 ^ b.x0;
 	}
 
-	private void sboxI7noLT()
+	private static void sboxI7noLT(Block b)
 	{
-		x4 = x2;
-		x2 ^= x0;
-		x0 &= x3;
-		x2 = ~x2;
-		x4 |= x3;
-		x3 ^= x1;
-		x1 |= x0;
-		x0 ^= x2;
-		x2 &= x4;
-		x1 ^= x2;
-		x2 ^= x0;
-		x0 |= x2;
-		x3 &= x4;
-		x0 ^= x3;
-		x4 ^= x1;
-		x3 ^= x4;
-		x4 |= x0;
-		x3 ^= x2;
-		x4 ^= x2;
+		b.x4 = b.x2;
+		b.x2 ^= b.x0;
+		b.x0 &= b.x3;
+		b.x2 = ~b.x2;
+		b.x4 |= b.x3;
+		b.x3 ^= b.x1;
+		b.x1 |= b.x0;
+		b.x0 ^= b.x2;
+		b.x2 &= b.x4;
+		b.x1 ^= b.x2;
+		b.x2 ^= b.x0;
+		b.x0 |= b.x2;
+		b.x3 &= b.x4;
+		b.x0 ^= b.x3;
+		b.x4 ^= b.x1;
+		b.x3 ^= b.x4;
+		b.x4 |= b.x0;
+		b.x3 ^= b.x2;
+		b.x4 ^= b.x2;
 	}
 
-	private void sboxI6()
+	private static void sboxI6(Block b)
 	{
-		x1 = (x1 >>> 22) | (x1 << 10);
-		x3 = (x3 >>>  5) | (x3 << 27);
-		x2 = x0;
-		x1 ^= x4;
-		x2 <<= 7;
-		x3 ^= x4;
-		x1 ^= x2;
-		x3 ^= x0;
-		x4 = (x4 >>>  7) | (x4 << 25);
-		x0 = (x0 >>>  1) | (x0 << 31);
-		x0 ^= x3;
-		x2 = x3 << 3;
-		x4 ^= x2;
-		x3 = (x3 >>> 13) | (x3 << 19);
-		x0 ^= x1;
-		x4 ^= x1;
-		x1 = (x1 >>>  3) | (x1 << 29);
-		x3 ^= x1;
-		x2 = x1;
-		x1 &= x3;
-		x2 ^= x4;
-		x1 = ~x1;
-		x4 ^= x0;
-		x1 ^= x4;
-		x2 |= x3;
-		x3 ^= x1;
-		x4 ^= x2;
-		x2 ^= x0;
-		x0 &= x4;
-		x0 ^= x3;
-		x3 ^= x4;
-		x3 |= x1;
-		x4 ^= x0;
-		x2 ^= x3;
+		b.x1 = (b.x1 >>> 22) | (b.x1 << 10);
+		b.x3 = (b.x3 >>>  5) | (b.x3 << 27);
+		b.x2 = b.x0;
+		b.x1 ^= b.x4;
+		b.x2 <<= 7;
+		b.x3 ^= b.x4;
+		b.x1 ^= b.x2;
+		b.x3 ^= b.x0;
+		b.x4 = (b.x4 >>>  7) | (b.x4 << 25);
+		b.x0 = (b.x0 >>>  1) | (b.x0 << 31);
+		b.x0 ^= b.x3;
+		b.x2 = b.x3 << 3;
+		b.x4 ^= b.x2;
+		b.x3 = (b.x3 >>> 13) | (b.x3 << 19);
+		b.x0 ^= b.x1;
+		b.x4 ^= b.x1;
+		b.x1 = (b.x1 >>>  3) | (b.x1 << 29);
+		b.x3 ^= b.x1;
+		b.x2 = b.x1;
+		b.x1 &= b.x3;
+		b.x2 ^= b.x4;
+		b.x1 = ~b.x1;
+		b.x4 ^= b.x0;
+		b.x1 ^= b.x4;
+		b.x2 |= b.x3;
+		b.x3 ^= b.x1;
+		b.x4 ^= b.x2;
+		b.x2 ^= b.x0;
+		b.x0 &= b.x4;
+		b.x0 ^= b.x3;
+		b.x3 ^= b.x4;
+		b.x3 |= b.x1;
+		b.x4 ^= b.x0;
+		b.x2 ^= b.x3;
 	}
 
-	private void sboxI5()
+	private static void sboxI5(Block b)
 	{
-		x2 = (x2 >>> 22) | (x2 << 10);
-		x0 = (x0 >>>  5) | (x0 << 27);
-		x3 = x1;
-		x2 ^= x4;
-		x3 <<= 7;
-		x0 ^= x4;
-		x2 ^= x3;
-		x0 ^= x1;
-		x4 = (x4 >>>  7) | (x4 << 25);
-		x1 = (x1 >>>  1) | (x1 << 31);
-		x1 ^= x0;
-		x3 = x0 << 3;
-		x4 ^= x3;
-		x0 = (x0 >>> 13) | (x0 << 19);
-		x1 ^= x2;
-		x4 ^= x2;
-		x2 = (x2 >>>  3) | (x2 << 29);
-		x1 = ~x1;
-		x3 = x4;
-		x2 ^= x1;
-		x4 |= x0;
-		x4 ^= x2;
-		x2 |= x1;
-		x2 &= x0;
-		x3 ^= x4;
-		x2 ^= x3;
-		x3 |= x0;
-		x3 ^= x1;
-		x1 &= x2;
-		x1 ^= x4;
-		x3 ^= x2;
-		x4 &= x3;
-		x3 ^= x1;
-		x4 ^= x0;
-		x4 ^= x3;
-		x3 = ~x3;
+		b.x2 = (b.x2 >>> 22) | (b.x2 << 10);
+		b.x0 = (b.x0 >>>  5) | (b.x0 << 27);
+		b.x3 = b.x1;
+		b.x2 ^= b.x4;
+		b.x3 <<= 7;
+		b.x0 ^= b.x4;
+		b.x2 ^= b.x3;
+		b.x0 ^= b.x1;
+		b.x4 = (b.x4 >>>  7) | (b.x4 << 25);
+		b.x1 = (b.x1 >>>  1) | (b.x1 << 31);
+		b.x1 ^= b.x0;
+		b.x3 = b.x0 << 3;
+		b.x4 ^= b.x3;
+		b.x0 = (b.x0 >>> 13) | (b.x0 << 19);
+		b.x1 ^= b.x2;
+		b.x4 ^= b.x2;
+		b.x2 = (b.x2 >>>  3) | (b.x2 << 29);
+		b.x1 = ~b.x1;
+		b.x3 = b.x4;
+		b.x2 ^= b.x1;
+		b.x4 |= b.x0;
+		b.x4 ^= b.x2;
+		b.x2 |= b.x1;
+		b.x2 &= b.x0;
+		b.x3 ^= b.x4;
+		b.x2 ^= b.x3;
+		b.x3 |= b.x0;
+		b.x3 ^= b.x1;
+		b.x1 &= b.x2;
+		b.x1 ^= b.x4;
+		b.x3 ^= b.x2;
+		b.x4 &= b.x3;
+		b.x3 ^= b.x1;
+		b.x4 ^= b.x0;
+		b.x4 ^= b.x3;
+		b.x3 = ~b.x3;
 	}
 
-	private void sboxI4()
+	private static void sboxI4(Block b)
 	{
-		x4 = (x4 >>> 22) | (x4 << 10);
-		x1 = (x1 >>>  5) | (x1 << 27);
-		x0 = x3;
-		x4 ^= x2;
-		x0 <<= 7;
-		x1 ^= x2;
-		x4 ^= x0;
-		x1 ^= x3;
-		x2 = (x2 >>>  7) | (x2 << 25);
-		x3 = (x3 >>>  1) | (x3 << 31);
-		x3 ^= x1;
-		x0 = x1 << 3;
-		x2 ^= x0;
-		x1 = (x1 >>> 13) | (x1 << 19);
-		x3 ^= x4;
-		x2 ^= x4;
-		x4 = (x4 >>>  3) | (x4 << 29);
-		x0 = x4;
-		x4 &= x2;
-		x4 ^= x3;
-		x3 |= x2;
-		x3 &= x1;
-		x0 ^= x4;
-		x0 ^= x3;
-		x3 &= x4;
-		x1 = ~x1;
-		x2 ^= x0;
-		x3 ^= x2;
-		x2 &= x1;
-		x2 ^= x4;
-		x1 ^= x3;
-		x4 &= x1;
-		x2 ^= x1;
-		x4 ^= x0;
-		x4 |= x2;
-		x2 ^= x1;
-		x4 ^= x3;
+		b.x4 = (b.x4 >>> 22) | (b.x4 << 10);
+		b.x1 = (b.x1 >>>  5) | (b.x1 << 27);
+		b.x0 = b.x3;
+		b.x4 ^= b.x2;
+		b.x0 <<= 7;
+		b.x1 ^= b.x2;
+		b.x4 ^= b.x0;
+		b.x1 ^= b.x3;
+		b.x2 = (b.x2 >>>  7) | (b.x2 << 25);
+		b.x3 = (b.x3 >>>  1) | (b.x3 << 31);
+		b.x3 ^= b.x1;
+		b.x0 = b.x1 << 3;
+		b.x2 ^= b.x0;
+		b.x1 = (b.x1 >>> 13) | (b.x1 << 19);
+		b.x3 ^= b.x4;
+		b.x2 ^= b.x4;
+		b.x4 = (b.x4 >>>  3) | (b.x4 << 29);
+		b.x0 = b.x4;
+		b.x4 &= b.x2;
+		b.x4 ^= b.x3;
+		b.x3 |= b.x2;
+		b.x3 &= b.x1;
+		b.x0 ^= b.x4;
+		b.x0 ^= b.x3;
+		b.x3 &= b.x4;
+		b.x1 = ~b.x1;
+		b.x2 ^= b.x0;
+		b.x3 ^= b.x2;
+		b.x2 &= b.x1;
+		b.x2 ^= b.x4;
+		b.x1 ^= b.x3;
+		b.x4 &= b.x1;
+		b.x2 ^= b.x1;
+		b.x4 ^= b.x0;
+		b.x4 |= b.x2;
+		b.x2 ^= b.x1;
+		b.x4 ^= b.x3;
 	}
 
-	private void sboxI3()
+	private static void sboxI3(Block b)
 	{
-		x4 = (x4 >>> 22) | (x4 << 10);
-		x1 = (x1 >>>  5) | (x1 << 27);
-		x3 = x2;
-		x4 ^= x0;
-		x3 <<= 7;
-		x1 ^= x0;
-		x4 ^= x3;
-		x1 ^= x2;
-		x0 = (x0 >>>  7) | (x0 << 25);
-		x2 = (x2 >>>  1) | (x2 << 31);
-		x2 ^= x1;
-		x3 = x1 << 3;
-		x0 ^= x3;
-		x1 = (x1 >>> 13) | (x1 << 19);
-		x2 ^= x4;
-		x0 ^= x4;
-		x4 = (x4 >>>  3) | (x4 << 29);
-		x3 = x4;
-		x4 ^= x2;
-		x2 &= x4;
-		x2 ^= x1;
-		x1 &= x3;
-		x3 ^= x0;
-		x0 |= x2;
-		x0 ^= x4;
-		x1 ^= x3;
-		x4 ^= x1;
-		x1 |= x0;
-		x1 ^= x2;
-		x3 ^= x4;
-		x4 &= x0;
-		x2 |= x0;
-		x2 ^= x4;
-		x3 ^= x1;
-		x4 ^= x3;
+		b.x4 = (b.x4 >>> 22) | (b.x4 << 10);
+		b.x1 = (b.x1 >>>  5) | (b.x1 << 27);
+		b.x3 = b.x2;
+		b.x4 ^= b.x0;
+		b.x3 <<= 7;
+		b.x1 ^= b.x0;
+		b.x4 ^= b.x3;
+		b.x1 ^= b.x2;
+		b.x0 = (b.x0 >>>  7) | (b.x0 << 25);
+		b.x2 = (b.x2 >>>  1) | (b.x2 << 31);
+		b.x2 ^= b.x1;
+		b.x3 = b.x1 << 3;
+		b.x0 ^= b.x3;
+		b.x1 = (b.x1 >>> 13) | (b.x1 << 19);
+		b.x2 ^= b.x4;
+		b.x0 ^= b.x4;
+		b.x4 = (b.x4 >>>  3) | (b.x4 << 29);
+		b.x3 = b.x4;
+		b.x4 ^= b.x2;
+		b.x2 &= b.x4;
+		b.x2 ^= b.x1;
+		b.x1 &= b.x3;
+		b.x3 ^= b.x0;
+		b.x0 |= b.x2;
+		b.x0 ^= b.x4;
+		b.x1 ^= b.x3;
+		b.x4 ^= b.x1;
+		b.x1 |= b.x0;
+		b.x1 ^= b.x2;
+		b.x3 ^= b.x4;
+		b.x4 &= b.x0;
+		b.x2 |= b.x0;
+		b.x2 ^= b.x4;
+		b.x3 ^= b.x1;
+		b.x4 ^= b.x3;
 	}
 
-	private void sboxI2()
+	private static void sboxI2(Block b)
 	{
-		x4 = (x4 >>> 22) | (x4 << 10);
-		x0 = (x0 >>>  5) | (x0 << 27);
-		x3 = x1;
-		x4 ^= x2;
-		x3 <<= 7;
-		x0 ^= x2;
-		x4 ^= x3;
-		x0 ^= x1;
-		x2 = (x2 >>>  7) | (x2 << 25);
-		x1 = (x1 >>>  1) | (x1 << 31);
-		x1 ^= x0;
-		x3 = x0 << 3;
-		x2 ^= x3;
-		x0 = (x0 >>> 13) | (x0 << 19);
-		x1 ^= x4;
-		x2 ^= x4;
-		x4 = (x4 >>>  3) | (x4 << 29);
-		x4 ^= x2;
-		x2 ^= x0;
-		x3 = x2;
-		x2 &= x4;
-		x2 ^= x1;
-		x1 |= x4;
-		x1 ^= x3;
-		x3 &= x2;
-		x4 ^= x2;
-		x3 &= x0;
-		x3 ^= x4;
-		x4 &= x1;
-		x4 |= x0;
-		x2 = ~x2;
-		x4 ^= x2;
-		x0 ^= x2;
-		x0 &= x1;
-		x2 ^= x3;
-		x2 ^= x0;
+		b.x4 = (b.x4 >>> 22) | (b.x4 << 10);
+		b.x0 = (b.x0 >>>  5) | (b.x0 << 27);
+		b.x3 = b.x1;
+		b.x4 ^= b.x2;
+		b.x3 <<= 7;
+		b.x0 ^= b.x2;
+		b.x4 ^= b.x3;
+		b.x0 ^= b.x1;
+		b.x2 = (b.x2 >>>  7) | (b.x2 << 25);
+		b.x1 = (b.x1 >>>  1) | (b.x1 << 31);
+		b.x1 ^= b.x0;
+		b.x3 = b.x0 << 3;
+		b.x2 ^= b.x3;
+		b.x0 = (b.x0 >>> 13) | (b.x0 << 19);
+		b.x1 ^= b.x4;
+		b.x2 ^= b.x4;
+		b.x4 = (b.x4 >>>  3) | (b.x4 << 29);
+		b.x4 ^= b.x2;
+		b.x2 ^= b.x0;
+		b.x3 = b.x2;
+		b.x2 &= b.x4;
+		b.x2 ^= b.x1;
+		b.x1 |= b.x4;
+		b.x1 ^= b.x3;
+		b.x3 &= b.x2;
+		b.x4 ^= b.x2;
+		b.x3 &= b.x0;
+		b.x3 ^= b.x4;
+		b.x4 &= b.x1;
+		b.x4 |= b.x0;
+		b.x2 = ~b.x2;
+		b.x4 ^= b.x2;
+		b.x0 ^= b.x2;
+		b.x0 &= b.x1;
+		b.x2 ^= b.x3;
+		b.x2 ^= b.x0;
 	}
 
-	private void sboxI1()
+	private static void sboxI1(Block b)
 	{
-		x4 = (x4 >>> 22) | (x4 << 10);
-		x1 = (x1 >>>  5) | (x1 << 27);
-		x0 = x3;
-		x4 ^= x2;
-		x0 <<= 7;
-		x1 ^= x2;
-		x4 ^= x0;
-		x1 ^= x3;
-		x2 = (x2 >>>  7) | (x2 << 25);
-		x3 = (x3 >>>  1) | (x3 << 31);
-		x3 ^= x1;
-		x0 = x1 << 3;
-		x2 ^= x0;
-		x1 = (x1 >>> 13) | (x1 << 19);
-		x3 ^= x4;
-		x2 ^= x4;
-		x4 = (x4 >>>  3) | (x4 << 29);
-		x0 = x3;
-		x3 ^= x2;
-		x2 &= x3;
-		x0 ^= x4;
-		x2 ^= x1;
-		x1 |= x3;
-		x4 ^= x2;
-		x1 ^= x0;
-		x1 |= x4;
-		x3 ^= x2;
-		x1 ^= x3;
-		x3 |= x2;
-		x3 ^= x1;
-		x0 = ~x0;
-		x0 ^= x3;
-		x3 |= x1;
-		x3 ^= x1;
-		x3 |= x0;
-		x2 ^= x3;
+		b.x4 = (b.x4 >>> 22) | (b.x4 << 10);
+		b.x1 = (b.x1 >>>  5) | (b.x1 << 27);
+		b.x0 = b.x3;
+		b.x4 ^= b.x2;
+		b.x0 <<= 7;
+		b.x1 ^= b.x2;
+		b.x4 ^= b.x0;
+		b.x1 ^= b.x3;
+		b.x2 = (b.x2 >>>  7) | (b.x2 << 25);
+		b.x3 = (b.x3 >>>  1) | (b.x3 << 31);
+		b.x3 ^= b.x1;
+		b.x0 = b.x1 << 3;
+		b.x2 ^= b.x0;
+		b.x1 = (b.x1 >>> 13) | (b.x1 << 19);
+		b.x3 ^= b.x4;
+		b.x2 ^= b.x4;
+		b.x4 = (b.x4 >>>  3) | (b.x4 << 29);
+		b.x0 = b.x3;
+		b.x3 ^= b.x2;
+		b.x2 &= b.x3;
+		b.x0 ^= b.x4;
+		b.x2 ^= b.x1;
+		b.x1 |= b.x3;
+		b.x4 ^= b.x2;
+		b.x1 ^= b.x0;
+		b.x1 |= b.x4;
+		b.x3 ^= b.x2;
+		b.x1 ^= b.x3;
+		b.x3 |= b.x2;
+		b.x3 ^= b.x1;
+		b.x0 = ~b.x0;
+		b.x0 ^= b.x3;
+		b.x3 |= b.x1;
+		b.x3 ^= b.x1;
+		b.x3 |= b.x0;
+		b.x2 ^= b.x3;
 	}
 
-	private void sboxI0()
+	private static void sboxI0(Block b)
 	{
-		x2 = (x2 >>> 22) | (x2 << 10);
-		x0 = (x0 >>>  5) | (x0 << 27);
-		x3 = x1;
-		x2 ^= x4;
-		x3 <<= 7;
-		x0 ^= x4;
-		x2 ^= x3;
-		x0 ^= x1;
-		x4 = (x4 >>>  7) | (x4 << 25);
-		x1 = (x1 >>>  1) | (x1 << 31);
-		x1 ^= x0;
-		x3 = x0 << 3;
-		x4 ^= x3;
-		x0 = (x0 >>> 13) | (x0 << 19);
-		x1 ^= x2;
-		x4 ^= x2;
-		x2 = (x2 >>>  3) | (x2 << 29);
-		x2 = ~x2;
-		x3 = x1;
-		x1 |= x0;
-		x3 = ~x3;
-		x1 ^= x2;
-		x2 |= x3;
-		x1 ^= x4;
-		x0 ^= x3;
-		x2 ^= x0;
-		x0 &= x4;
-		x3 ^= x0;
-		x0 |= x1;
-		x0 ^= x2;
-		x4 ^= x3;
-		x2 ^= x1;
-		x4 ^= x0;
-		x4 ^= x1;
-		x2 &= x4;
-		x3 ^= x2;
+		b.x2 = (b.x2 >>> 22) | (b.x2 << 10);
+		b.x0 = (b.x0 >>>  5) | (b.x0 << 27);
+		b.x3 = b.x1;
+		b.x2 ^= b.x4;
+		b.x3 <<= 7;
+		b.x0 ^= b.x4;
+		b.x2 ^= b.x3;
+		b.x0 ^= b.x1;
+		b.x4 = (b.x4 >>>  7) | (b.x4 << 25);
+		b.x1 = (b.x1 >>>  1) | (b.x1 << 31);
+		b.x1 ^= b.x0;
+		b.x3 = b.x0 << 3;
+		b.x4 ^= b.x3;
+		b.x0 = (b.x0 >>> 13) | (b.x0 << 19);
+		b.x1 ^= b.x2;
+		b.x4 ^= b.x2;
+		b.x2 = (b.x2 >>>  3) | (b.x2 << 29);
+		b.x2 = ~b.x2;
+		b.x3 = b.x1;
+		b.x1 |= b.x0;
+		b.x3 = ~b.x3;
+		b.x1 ^= b.x2;
+		b.x2 |= b.x3;
+		b.x1 ^= b.x4;
+		b.x0 ^= b.x3;
+		b.x2 ^= b.x0;
+		b.x0 &= b.x4;
+		b.x3 ^= b.x0;
+		b.x0 |= b.x1;
+		b.x0 ^= b.x2;
+		b.x4 ^= b.x3;
+		b.x2 ^= b.x1;
+		b.x4 ^= b.x0;
+		b.x4 ^= b.x1;
+		b.x2 &= b.x4;
+		b.x3 ^= b.x2;
 	}
 
-	private void sboxI7()
+	private static void sboxI7(Block b)
 	{
-		x1 = (x1 >>> 22) | (x1 << 10);
-		x0 = (x0 >>>  5) | (x0 << 27);
-		x2 = x3;
-		x1 ^= x4;
-		x2 <<= 7;
-		x0 ^= x4;
-		x1 ^= x2;
-		x0 ^= x3;
-		x4 = (x4 >>>  7) | (x4 << 25);
-		x3 = (x3 >>>  1) | (x3 << 31);
-		x3 ^= x0;
-		x2 = x0 << 3;
-		x4 ^= x2;
-		x0 = (x0 >>> 13) | (x0 << 19);
-		x3 ^= x1;
-		x4 ^= x1;
-		x1 = (x1 >>>  3) | (x1 << 29);
-		x2 = x1;
-		x1 ^= x0;
-		x0 &= x4;
-		x1 = ~x1;
-		x2 |= x4;
-		x4 ^= x3;
-		x3 |= x0;
-		x0 ^= x1;
-		x1 &= x2;
-		x3 ^= x1;
-		x1 ^= x0;
-		x0 |= x1;
-		x4 &= x2;
-		x0 ^= x4;
-		x2 ^= x3;
-		x4 ^= x2;
-		x2 |= x0;
-		x4 ^= x1;
-		x2 ^= x1;
+		b.x1 = (b.x1 >>> 22) | (b.x1 << 10);
+		b.x0 = (b.x0 >>>  5) | (b.x0 << 27);
+		b.x2 = b.x3;
+		b.x1 ^= b.x4;
+		b.x2 <<= 7;
+		b.x0 ^= b.x4;
+		b.x1 ^= b.x2;
+		b.x0 ^= b.x3;
+		b.x4 = (b.x4 >>>  7) | (b.x4 << 25);
+		b.x3 = (b.x3 >>>  1) | (b.x3 << 31);
+		b.x3 ^= b.x0;
+		b.x2 = b.x0 << 3;
+		b.x4 ^= b.x2;
+		b.x0 = (b.x0 >>> 13) | (b.x0 << 19);
+		b.x3 ^= b.x1;
+		b.x4 ^= b.x1;
+		b.x1 = (b.x1 >>>  3) | (b.x1 << 29);
+		b.x2 = b.x1;
+		b.x1 ^= b.x0;
+		b.x0 &= b.x4;
+		b.x1 = ~b.x1;
+		b.x2 |= b.x4;
+		b.x4 ^= b.x3;
+		b.x3 |= b.x0;
+		b.x0 ^= b.x1;
+		b.x1 &= b.x2;
+		b.x3 ^= b.x1;
+		b.x1 ^= b.x0;
+		b.x0 |= b.x1;
+		b.x4 &= b.x2;
+		b.x0 ^= b.x4;
+		b.x2 ^= b.x3;
+		b.x4 ^= b.x2;
+		b.x2 |= b.x0;
+		b.x4 ^= b.x1;
+		b.x2 ^= b.x1;
 	}
 
 	// These S-Box functions are used in the key setup.
 
 	/** S-Box 0. */
-	private void sbox0(int r0, int r1, int r2, int r3)
+	private static void sbox0(Block b, int r0, int r1, int r2, int r3)
 	{
 		int r4 = r1 ^ r2;
 		r3 ^= r0;
@@ -1181,14 +1189,14 @@ class Serpent implements Cipher
 		r4 = ~r4 | r1;
 		r1 ^= r3 ^ r4;
 		r3 |= r0;
-		x0 = r1 ^ r3;
-		x1 = r4 ^ r3;
-		x2 = r2;
-		x3 = r0;
+		b.x0 = r1 ^ r3;
+		b.x1 = r4 ^ r3;
+		b.x2 = r2;
+		b.x3 = r0;
 	}
 
 	/** S-Box 1. */
-	private void sbox1(int r0, int r1, int r2, int r3)
+	private static void sbox1(Block b, int r0, int r1, int r2, int r3)
 	{
 		r0 = ~r0;
 		int r4 = r0;
@@ -1203,14 +1211,14 @@ class Serpent implements Cipher
 		r1 ^= r3;
 		r2 = (r2 | r0) & r4;
 		r0 ^= r1;
-		x0 = r2;
-		x1 = r0 & r2 ^ r4;
-		x2 = r3;
-		x3 = r1 & r2 ^ r0;
+		b.x0 = r2;
+		b.x1 = r0 & r2 ^ r4;
+		b.x2 = r3;
+		b.x3 = r1 & r2 ^ r0;
 	}
 
 	/** S-Box 2. */
-	private void sbox2(int r0, int r1, int r2, int r3)
+	private static void sbox2(Block b, int r0, int r1, int r2, int r3)
 	{
 		int r4 = r0;
 		r0 = r0 & r2 ^ r3;
@@ -1221,14 +1229,14 @@ class Serpent implements Cipher
 		r3 = (r3 | r4) ^ r0;
 		r0 &= r1;
 		r4 ^= r0;
-		x0 = r2;
-		x1 = r3;
-		x2 = r1 ^ r3 ^ r4;
-		x3 = ~r4;
+		b.x0 = r2;
+		b.x1 = r3;
+		b.x2 = r1 ^ r3 ^ r4;
+		b.x3 = ~r4;
 	}
 
 	/** S-Box 3. */
-	private void sbox3(int r0, int r1, int r2, int r3)
+	private static void sbox3(Block b, int r0, int r1, int r2, int r3)
 	{
 		int r4 = r0;
 		r0 |= r3;
@@ -1241,14 +1249,14 @@ class Serpent implements Cipher
 		r4 = r4 & r0 ^ r2;
 		r1 = (r1 ^ r3 | r0) ^ r2;
 		r0 ^= r3;
-		x0 = (r1 | r3) ^ r0;
-		x1 = r1;
-		x2 = r3;
-		x3 = r4;
+		b.x0 = (r1 | r3) ^ r0;
+		b.x1 = r1;
+		b.x2 = r3;
+		b.x3 = r4;
 	}
 
 	/** S-Box 4. */
-	private void sbox4(int r0, int r1, int r2, int r3)
+	private static void sbox4(Block b, int r0, int r1, int r2, int r3)
 	{
 		r1 ^= r3;
 		int r4 = r1;
@@ -1262,14 +1270,14 @@ class Serpent implements Cipher
 		r0 &= r1;
 		r3 ^= r0;
 		r4 = (r4 | r1) ^ r0;
-		x0 = r1;
-		x1 = r4 ^ (r2 & r3);
-		x2 = ~((r0 | r3) ^ r2);
-		x3 = r3;
+		b.x0 = r1;
+		b.x1 = r4 ^ (r2 & r3);
+		b.x2 = ~((r0 | r3) ^ r2);
+		b.x3 = r3;
 	}
 
 	/** S-Box 5. */
-	private void sbox5(int r0, int r1, int r2, int r3)
+	private static void sbox5(Block b, int r0, int r1, int r2, int r3)
 	{
 		r0 ^= r1;
 		r1 ^= r3;
@@ -1282,14 +1290,14 @@ class Serpent implements Cipher
 		r4 ^= r3;
 		r3 = r3 & r1 ^ r0;
 		r4 = r4 ^ r1 ^ r2;
-		x0 = r1;
-		x1 = r3;
-		x2 = r0 & r3 ^ r4;
-		x3 = ~(r2 ^ r0) ^ (r4 | r3);
+		b.x0 = r1;
+		b.x1 = r3;
+		b.x2 = r0 & r3 ^ r4;
+		b.x3 = ~(r2 ^ r0) ^ (r4 | r3);
 	}
 
 	/** S-Box 6. */
-	private void sbox6(int r0, int r1, int r2, int r3)
+	private static void sbox6(Block b, int r0, int r1, int r2, int r3)
 	{
 		int r4 = r3;
 		r2 = ~r2;
@@ -1302,14 +1310,14 @@ class Serpent implements Cipher
 		r4 ^= r0;
 		r0 = (r0 | r3) ^ r2;
 		r4 = r4 ^ r3 ^ r0;
-		x0 = r0;
-		x1 = r1;
-		x2 = r4;
-		x3 = r2 & r4 ^ ~r3;
+		b.x0 = r0;
+		b.x1 = r1;
+		b.x2 = r4;
+		b.x3 = r2 & r4 ^ ~r3;
 	}
 
 	/** S-Box 7. */
-	private void sbox7(int r0, int r1, int r2, int r3)
+	private static void sbox7(Block b, int r0, int r1, int r2, int r3)
 	{
 		int r4 = r1;
 		r1 = (r1 | r2) ^ r3;
@@ -1322,10 +1330,10 @@ class Serpent implements Cipher
 		r0 = (r0 | r4) ^ r2;
 		r1 ^= r4;
 		r2 ^= r1;
-		x0 = r4 ^ (~r2 | r0);
-		x1 = r3;
-		x2 = r1 & r0 ^ r4;
-		x3 = r0;
+		b.x0 = r4 ^ (~r2 | r0);
+		b.x1 = r3;
+		b.x2 = r1 & r0 ^ r4;
+		b.x3 = r0;
 	}
 
 
@@ -1357,7 +1365,6 @@ class Serpent implements Cipher
 	public void engineReset()
 	{
 		mKeySize = 0;
-		x0 = x1 = x2 = x3 = x4 = 0;
 		k0 = k1 = k2 = k3 = k4 = k5 = k6 = k7 = k8 = k9 = k10 = k11 = k12 = k13 =
 		k14 = k15 = k16 = k17 = k18 = k19 = k20 = k21 = k22 = k23 = k24 = k25 = k26 =
 		k27 = k28 = k29 = k30 = k31 = k32 = k33 = k34 = k35 = k36 = k37 = k38 = k39 =
@@ -1379,6 +1386,17 @@ class Serpent implements Cipher
 	}
 
 
+	/**
+	 * The working registers of a single block operation. The key schedule is
+	 * only written by engineInit, so by keeping the registers in a per call
+	 * object a Serpent instance can be used by several threads concurrently.
+	 */
+	private static final class Block
+	{
+		int x0, x1, x2, x3, x4;
+	}
+
+
     private static int reverseBytes(int i)
     {
         return ((i >>> 24)           ) +
@@ -1,21 +1,50 @@
 package org.terifan.truecrypt;
 
+import org.terifan.pagestore.AsyncPageStore;
+import org.terifan.pagestore.PageRange;
 import org.terifan.pagestore.PageStore;
 import org.terifan.util.ByteArray;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.zip.CRC32;
 
 
-public class TrueCryptPageStore implements PageStore, AutoCloseable
+/**
+ * A TrueCryptPageStore decrypts and encrypts the data area of a TrueCrypt
+ * volume stored in another PageStore.
+ *
+ * Threading: once opened, the read and write methods, their asynchronous
+ * and ByteBuffer variants and flush may be called by any number of threads
+ * concurrently. The ciphers are shared by all threads without locking and
+ * pages are decrypted in parallel, so concurrent reads of a volume scale with
+ * the number of processors. The underlying PageStore must be safe for
+ * concurrent use. Writes to the same page from different threads aren't
+ * ordered; the caller must order them. setWriteBehind may be called while
+ * pages are written; resize and close must not be called while other
+ * operations are in progress.
+ */
+public class TrueCryptPageStore implements AsyncPageStore, AutoCloseable
 {
 	private final static int VERSION_NUM = 0x063a;
 
@@ -26,6 +55,10 @@ public class TrueCryptPageStore implements PageStore, AutoCloseable
 
 	private final static int TC_VOLUME_MIN_REQUIRED_PROGRAM_VERSION = 0x0600;
 	private final static int TC_VOLUME_HEADER_EFFECTIVE_SIZE = 512;
+	private final static int TC_VOLUME_HEADER_SIZE = 65536;
+	private final static int TC_VOLUME_HEADER_GROUP_SIZE = 2 * TC_VOLUME_HEADER_SIZE;
+	private final static int TC_VOLUME_DATA_OFFSET = TC_VOLUME_HEADER_GROUP_SIZE;
+	private final static int TC_VOLUME_MAGIC = 0x54525545; // "TRUE"
 
 	private final static int TC_HEADER_OFFSET_MAGIC = 64;
 	private final static int TC_HEADER_OFFSET_VERSION = 68;
@@ -38,6 +71,8 @@ public class TrueCryptPageStore implements PageStore, AutoCloseable
 	private final static int TC_HEADER_OFFSET_ENCRYPTED_AREA_START = 108;
 	private final static int TC_HEADER_OFFSET_ENCRYPTED_AREA_LENGTH = 116;
 	private final static int TC_HEADER_OFFSET_FLAGS = 124;
+	private final static int TC_HEADER_OFFSET_REENCRYPTED_LENGTH = 132;
+	private final static int TC_HEADER_OFFSET_REENCRYPTION_BATCH = 140;
 	private final static int TC_HEADER_OFFSET_HEADER_CRC = 252;
 
 	private final static int HEADER_SALT_OFFSET = 0;
@@ -45,6 +80,19 @@ public class TrueCryptPageStore implements PageStore, AutoCloseable
 	private final static int HEADER_MASTER_KEYDATA_OFFSET = 256;
 	private final static int HEADER_ENCRYPTED_DATA_SIZE = (TC_VOLUME_HEADER_EFFECTIVE_SIZE - HEADER_ENCRYPTED_DATA_OFFSET);
 
+	// not a TrueCrypt flag: set in the primary header while the volume is being re-encrypted
+	private final static int TC_HEADER_FLAG_REENCRYPTION = 0x100;
+
+	// the re-encryption checkpoint and journal are stored in the unused part of the primary header group; the
+	// checkpoint is written alternately to the sectors before and after the journal
+	private final static int REENCRYPTION_BATCH_SIZE = 4 << 20;
+	private final static int REENCRYPTION_JOURNAL_SECTOR = 2;
+	private final static long[] REENCRYPTION_CHECKPOINT_SECTORS = {1, REENCRYPTION_JOURNAL_SECTOR + 4 * (REENCRYPTION_BATCH_SIZE / ENCRYPTION_DATA_UNIT_SIZE) / ENCRYPTION_DATA_UNIT_SIZE};
+	private final static int REENCRYPTION_CHUNK_SIZE = 64 * 1024;
+
+	private final static int MAX_WRITE_BEHIND_RUN_SIZE = 64 * 1024;
+	private final static int FORMAT_BATCH_SIZE = 4 << 20;
+
 	public static enum CipherOption
 	{
 		AES("aes"),
@@ -93,28 +141,117 @@ public class TrueCryptPageStore implements PageStore, AutoCloseable
 		}
 	}
 
+	/**
+	 * Locations of the volume headers. The hidden volume headers are stored
+	 * in the second half of the primary and backup header groups.
+	 */
+	public static enum HeaderLocation
+	{
+		PRIMARY,
+		HIDDEN,
+		BACKUP,
+		BACKUP_HIDDEN
+	}
+
+	/**
+	 * Receives the progress of a re-encryption.
+	 */
+	public interface ReencryptionListener
+	{
+		/**
+		 * @param aPagesDone
+		 *   number of pages re-encrypted, including pages re-encrypted before
+		 *   the re-encryption was interrupted
+		 * @param aPageCount
+		 *   number of pages in the data area
+		 * @param aBytesPerSecond
+		 *   average throughput since the re-encryption was started or resumed
+		 */
+		void progress(long aPagesDone, long aPageCount, long aBytesPerSecond);
+	}
+
 	private PageStore mPageStore;
+	private int mSectorsPerStorePage;
+	private int mPageSize;
 	private long mVolumeDataAreaOffset;
 	private long mVolumeDataAreaLength;
 	private Cipher[] mCiphers;
 	private Cipher[] mTweakCiphers;
+	private byte[] mVolumeHeader;
+	private byte[] mHeaderKey;
+	private CipherOption mCipherOption;
+	private DigestOption mDigestOption;
+	private HeaderLocation mHeaderLocation;
+	private int mCheckpointSlot;
+	private ExecutorService mWorkerPool;
+	private TreeMap<Long, byte[]> mDirtyPages;
+	private TreeMap<Long, byte[]> mFlushingPages;
+	private int mMaxDirtyPages;
+	private ScheduledExecutorService mFlushTimer;
+	private IOException mWriteBehindFailure;
+	private final Object mWriteBehindLock = new Object();
+	private final Object mFlushLock = new Object();
 
 
 	private TrueCryptPageStore(PageStore aPageStore) throws IOException
 	{
-		if (aPageStore.getPageSize() != ENCRYPTION_DATA_UNIT_SIZE)
+		int pageSize = aPageStore.getPageSize();
+
+		if (pageSize < ENCRYPTION_DATA_UNIT_SIZE || pageSize > TC_VOLUME_HEADER_SIZE || Integer.bitCount(pageSize) != 1)
 		{
-			throw new IllegalArgumentException("Provided page store must have a " + ENCRYPTION_DATA_UNIT_SIZE + "-byte page size.");
+			throw new IllegalArgumentException("Provided page store must have a page size that is a power of two between " + ENCRYPTION_DATA_UNIT_SIZE + " and " + TC_VOLUME_HEADER_SIZE + " bytes: " + pageSize);
 		}
 
 		mPageStore = aPageStore;
+		mSectorsPerStorePage = pageSize / ENCRYPTION_DATA_UNIT_SIZE;
+		mPageSize = pageSize;
 	}
 
 
 	public static TrueCryptPageStore open(PageStore aPageStore, String aPassword) throws IOException
 	{
+		return open(aPageStore, aPassword, null, null);
+	}
+
+
+	/**
+	 * Opens a volume trying the cipher and digest combinations matching the
+	 * hints provided first. If no hinted combination decrypts the header all
+	 * remaining combinations are tried.
+	 *
+	 * The primary header, the hidden volume header and their backups are
+	 * probed concurrently and the volume is opened with the first header
+	 * decrypted. A volume with a damaged primary header is opened with its
+	 * backup header and a hidden volume is opened when the password is the
+	 * password of the hidden volume.
+	 *
+	 * @param aPageStore
+	 *   the page store containing the volume
+	 * @param aPassword
+	 *   the volume password
+	 * @param aCipherOption
+	 *   the cipher used when the volume was created or null if unknown
+	 * @param aDigestOption
+	 *   the digest used when the volume was created or null if unknown
+	 */
+	public static TrueCryptPageStore open(PageStore aPageStore, String aPassword, CipherOption aCipherOption, DigestOption aDigestOption) throws IOException
+	{
+		HeaderLocation[] locations = HeaderLocation.values();
+		long[] sectorIndices = new long[locations.length];
+		for (int i = 0; i < locations.length; i++)
+		{
+			sectorIndices[i] = getHeaderSectorIndex(locations[i], aPageStore.getPageCount() * aPageStore.getPageSize() / ENCRYPTION_DATA_UNIT_SIZE);
+		}
+
 		TrueCryptPageStore tc = new TrueCryptPageStore(aPageStore);
-		tc.readVolumeHeader(aPassword);
+		tc.mHeaderLocation = locations[tc.readVolumeHeader(sectorIndices, aPassword, aCipherOption, aDigestOption)];
+
+		if ((ByteArray.BE.getInt(tc.mVolumeHeader, TC_HEADER_OFFSET_FLAGS) & TC_HEADER_FLAG_REENCRYPTION) != 0)
+		{
+			tc.release();
+
+			throw new IOException("The volume is being re-encrypted; the re-encryption must be resumed before the volume can be opened.");
+		}
 
 		return tc;
 	}
@@ -122,56 +259,515 @@ public class TrueCryptPageStore implements PageStore, AutoCloseable
 
 	public static TrueCryptPageStore create(PageStore aPageStore, long aPageCount, String aPassword, CipherOption aCipherOption, DigestOption aDigestOption, Consumer<Long> aProgressCallback) throws IOException
 	{
-		aPageStore.resize(aPageCount);
+		return create(aPageStore, aPageCount, aPassword, aCipherOption, aDigestOption, false, aProgressCallback);
+	}
 
+
+	/**
+	 * Creates a new volume. The page store is resized to hold the header
+	 * area, the data area and the backup header area. The data area is filled
+	 * with random data encrypted in parallel batches, after which the volume
+	 * header and the backup header are written. The volume can't be opened
+	 * until creation has completed.
+	 *
+	 * @param aPageStore
+	 *   the page store receiving the volume
+	 * @param aPageCount
+	 *   number of pages in the data area. The pages are 512 bytes or the page
+	 *   size of the page store if it's larger.
+	 * @param aPassword
+	 *   the volume password
+	 * @param aCipherOption
+	 *   the cipher the volume is encrypted with
+	 * @param aDigestOption
+	 *   the digest used to derive the header key from the password
+	 * @param aQuickFormat
+	 *   true to leave the data area as it is instead of filling it with random
+	 *   data. This is much faster but the unused space of the volume can no
+	 *   longer be distinguished from used space.
+	 * @param aProgressCallback
+	 *   receives the number of data pages filled so far or null
+	 * @return
+	 *   the new volume, opened
+	 */
+	public static TrueCryptPageStore create(PageStore aPageStore, long aPageCount, String aPassword, CipherOption aCipherOption, DigestOption aDigestOption, boolean aQuickFormat, Consumer<Long> aProgressCallback) throws IOException
+	{
 		TrueCryptPageStore tc = new TrueCryptPageStore(aPageStore);
-		tc.format(aProgressCallback);
-		tc.writeVolumeHeader(aPassword);
+		tc.mHeaderLocation = HeaderLocation.PRIMARY;
+		int sectorsPerPage = tc.mPageSize / ENCRYPTION_DATA_UNIT_SIZE;
+		long sectorCount = aPageCount * sectorsPerPage;
 
-		return tc;
+		SecureRandom random = new SecureRandom();
+		byte[] header = createVolumeHeader(sectorCount, random);
+
+		try
+		{
+			aPageStore.resize((sectorCount + 2 * TC_VOLUME_HEADER_GROUP_SIZE / ENCRYPTION_DATA_UNIT_SIZE) / tc.mSectorsPerStorePage);
+
+			tc.setup(header, aCipherOption, aDigestOption);
+
+			if (!aQuickFormat)
+			{
+				tc.fill(0, sectorCount, random, aProgressCallback == null ? null : e -> aProgressCallback.accept(e / sectorsPerPage));
+			}
+
+			tc.writeVolumeHeader(header, aPassword, random);
+			tc.mPageStore.flush();
+
+			return tc;
+		}
+		finally
+		{
+			Arrays.fill(header, (byte)0);
+		}
 	}
 
 
-	private void readVolumeHeader(String aPassword) throws IOException
+	/**
+	 * Re-encrypts the data area of a volume in place with new master keys,
+	 * optionally changing the cipher and the digest. The data area is
+	 * processed in large batches: each batch is read, decrypted with the old
+	 * keys and encrypted with the new keys in parallel on the worker pool,
+	 * and written while the following batch is being encrypted.
+	 *
+	 * Progress is journaled in a checkpoint stored in the unused part of the
+	 * primary header group, encrypted with the new header key. Before a batch
+	 * is written the checkpoint records its position, referring to a journal
+	 * holding a checksum of every re-encrypted sector, so sectors of a batch
+	 * that was only partially written can be told apart when the
+	 * re-encryption is resumed. The checkpoint is written alternately to two
+	 * sectors and the journal is only replaced while the latest checkpoint
+	 * doesn't refer to it, so an interrupted write leaves a valid checkpoint.
+	 * While the re-encryption is in progress the volume can't be opened; if
+	 * it's interrupted it must be resumed by calling this method again with
+	 * the same password.
+	 *
+	 * Note: the password isn't changed. A hidden volume within the volume is
+	 * destroyed.
+	 *
+	 * @param aPageStore
+	 *   the page store containing the volume
+	 * @param aPassword
+	 *   the volume password
+	 * @param aCipherOption
+	 *   the cipher the volume is re-encrypted with. When an interrupted
+	 *   re-encryption is resumed the cipher it was started with is used.
+	 * @param aDigestOption
+	 *   the digest used to derive the new header key. When an interrupted
+	 *   re-encryption is resumed the digest it was started with is used.
+	 * @param aListener
+	 *   receives the progress after each batch or null
+	 */
+	public static void reencrypt(PageStore aPageStore, String aPassword, CipherOption aCipherOption, DigestOption aDigestOption, ReencryptionListener aListener) throws IOException
 	{
-		byte[] headerBuffer = new byte[ENCRYPTION_DATA_UNIT_SIZE];
-		mPageStore.read(0, headerBuffer);
+		TrueCryptPageStore source = new TrueCryptPageStore(aPageStore);
+		TrueCryptPageStore target = new TrueCryptPageStore(aPageStore);
 
-		ArrayList<Callable<Boolean>> tasks = new ArrayList<>();
-		for (CipherOption cipher : CipherOption.values())
+		try
+		{
+			source.readVolumeHeader(new long[]{0}, aPassword, null, null);
+
+			byte[] sourceHeader = source.mVolumeHeader;
+			int flags = ByteArray.BE.getInt(sourceHeader, TC_HEADER_OFFSET_FLAGS);
+
+			if (source.mVolumeDataAreaOffset != TC_VOLUME_DATA_OFFSET || ByteArray.BE.getLong(sourceHeader, TC_HEADER_OFFSET_HIDDEN_VOLUME_SIZE) != 0)
+			{
+				throw new UnsupportedOperationException("Re-encrypting a hidden volume or a volume containing a hidden volume is not supported.");
+			}
+
+			SecureRandom random = new SecureRandom();
+
+			if ((flags & TC_HEADER_FLAG_REENCRYPTION) != 0)
+			{
+				target.release();
+				target = readReencryptionCheckpoint(aPageStore, aPassword, aCipherOption, aDigestOption);
+			}
+			else
+			{
+				byte[] header = createVolumeHeader(source.getSectorCount(), random);
+
+				target.setup(header, aCipherOption, aDigestOption);
+				target.mVolumeHeader = header;
+				target.mHeaderKey = target.deriveHeaderKey(header, aPassword);
+
+				// both slots are written to replace checkpoints left by an earlier re-encryption
+				target.writeReencryptionCheckpoint(0, 0, null);
+				target.writeReencryptionCheckpoint(0, 0, null);
+
+				// the backup header is flagged too or the volume could be opened with it
+				ByteArray.BE.putInt(sourceHeader, TC_HEADER_OFFSET_FLAGS, flags | TC_HEADER_FLAG_REENCRYPTION);
+				updateHeaderCRC(sourceHeader);
+
+				CTRRandom filler = new CTRRandom(random);
+				source.writeBackupHeader(sourceHeader, aPassword, random, filler);
+				filler.reset();
+				aPageStore.flush();
+
+				source.writePrimaryHeader(sourceHeader);
+				aPageStore.flush();
+			}
+
+			if (target.getSectorCount() != source.getSectorCount())
+			{
+				throw new IOException("The re-encryption checkpoint doesn't match the volume: sector count: " + target.getSectorCount() + ", expected: " + source.getSectorCount());
+			}
+
+			target.reencrypt(source, aListener);
+
+			// the backup header is written first: until the primary header is replaced the checkpoint remains valid
+			byte[] header = target.mVolumeHeader;
+			ByteArray.BE.putLong(header, TC_HEADER_OFFSET_REENCRYPTED_LENGTH, 0);
+			ByteArray.BE.putInt(header, TC_HEADER_OFFSET_REENCRYPTION_BATCH, 0);
+			updateHeaderCRC(header);
+
+			CTRRandom filler = new CTRRandom(random);
+
+			target.writeBackupHeader(header, aPassword, random, filler);
+			aPageStore.flush();
+
+			target.writePrimaryHeader(header);
+			aPageStore.flush();
+
+			long firstSector = REENCRYPTION_CHECKPOINT_SECTORS[0];
+			byte[] buffer = new byte[(int)(REENCRYPTION_CHECKPOINT_SECTORS[1] + 1 - firstSector) * ENCRYPTION_DATA_UNIT_SIZE];
+			filler.nextBytes(buffer, 0, buffer.length);
+			filler.reset();
+
+			target.writeSectors(firstSector, buffer, 0, buffer.length);
+			aPageStore.flush();
+		}
+		finally
+		{
+			source.release();
+			target.release();
+		}
+	}
+
+
+	/**
+	 * Decrypts the first of the volume headers stored at the sectors
+	 * provided. Each header is probed with each digest concurrently on the
+	 * worker pool. The combinations matching the hints are probed first at
+	 * every location; the remaining combinations are only probed if none of
+	 * them decrypts a header. A probe derives the header key once and tries
+	 * every cipher with it since the keys of shorter cascades are prefixes of
+	 * the longest key. The first header decrypted is used and the remaining
+	 * probes are cancelled.
+	 *
+	 * @param aSectorIndices
+	 *   sectors of the headers to probe; negative indices are skipped
+	 * @return
+	 *   the index in the array of the header decrypted
+	 */
+	private int readVolumeHeader(long[] aSectorIndices, String aPassword, CipherOption aCipherOption, DigestOption aDigestOption) throws IOException
+	{
+		byte[][] headers = new byte[aSectorIndices.length][];
+		for (int i = 0; i < aSectorIndices.length; i++)
 		{
-			for (DigestOption digest : DigestOption.values())
+			if (aSectorIndices[i] >= 0)
 			{
-				VolumeHeaderDecoder task = new VolumeHeaderDecoder(headerBuffer.clone(), cipher, digest, aPassword.getBytes());
-				tasks.add(task);
+				headers[i] = new byte[TC_VOLUME_HEADER_EFFECTIVE_SIZE];
+				readSectors(aSectorIndices[i], headers[i], 0, TC_VOLUME_HEADER_EFFECTIVE_SIZE);
 			}
 		}
 
-		int cpu = ManagementFactory.getOperatingSystemMXBean().getAvailableProcessors();
-		ExecutorService pool = Executors.newFixedThreadPool(cpu);
+		ArrayList<CipherOption> hintedCiphers = new ArrayList<>();
+		ArrayList<CipherOption> remainingCiphers = new ArrayList<>();
+		for (CipherOption cipher : CipherOption.values())
+		{
+			(aCipherOption == null || aCipherOption == cipher ? hintedCiphers : remainingCiphers).add(cipher);
+		}
+
+		AtomicBoolean found = new AtomicBoolean();
+		ExecutorCompletionService<HeaderProbe> service = new ExecutorCompletionService<>(getWorkerPool());
+		ArrayList<Future<HeaderProbe>> futures = new ArrayList<>();
+
 		try
 		{
-			pool.invokeAll(tasks);
+			for (boolean hinted : new boolean[]{true, false})
+			{
+				int submitted = futures.size();
+
+				for (DigestOption digest : DigestOption.values())
+				{
+					ArrayList<CipherOption> ciphers;
+					if (aDigestOption == null || aDigestOption == digest)
+					{
+						ciphers = hinted ? hintedCiphers : remainingCiphers;
+					}
+					else
+					{
+						ciphers = hinted ? new ArrayList<>() : new ArrayList<>(Arrays.asList(CipherOption.values()));
+					}
+
+					for (int i = 0; i < headers.length && !ciphers.isEmpty(); i++)
+					{
+						if (headers[i] != null)
+						{
+							futures.add(service.submit(new HeaderProbe(i, headers[i], digest, ciphers.toArray(new CipherOption[ciphers.size()]), aPassword.getBytes(), found)));
+						}
+					}
+				}
+
+				for (int i = submitted; i < futures.size(); i++)
+				{
+					HeaderProbe probe = service.take().get();
+
+					if (probe != null)
+					{
+						setup(probe.mHeader, probe.mCipherOption, probe.mDigestOption);
+
+						mVolumeHeader = probe.mHeader;
+						mHeaderKey = probe.mKeyBytes;
+
+						if ((mVolumeDataAreaOffset % mPageSize) != 0)
+						{
+							release();
+
+							throw new IOException("The data area isn't aligned to the page size of the underlying store: offset: " + mVolumeDataAreaOffset);
+						}
+
+						return probe.mIndex;
+					}
+				}
+			}
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			throw new IOException("Failed to read the volume header", e);
+		}
+		finally
+		{
+			found.set(true);
+
+			for (Future<HeaderProbe> future : futures)
+			{
+				future.cancel(false);
+			}
+		}
+
+		release();
+
+		throw new InvalidKeyException("Incorrect password or an unsupported file version.");
+	}
+
+
+	/**
+	 * Returns the sector of a volume header or -1 if the page store is too
+	 * small to contain it.
+	 */
+	private static long getHeaderSectorIndex(HeaderLocation aLocation, long aSectorCount)
+	{
+		long groupSectors = TC_VOLUME_HEADER_GROUP_SIZE / ENCRYPTION_DATA_UNIT_SIZE;
+		long hiddenSectorOffset = TC_VOLUME_HEADER_SIZE / ENCRYPTION_DATA_UNIT_SIZE;
+
+		switch (aLocation)
+		{
+			case PRIMARY:
+				return 0;
+			case HIDDEN:
+				return aSectorCount > hiddenSectorOffset ? hiddenSectorOffset : -1;
+			case BACKUP:
+				return aSectorCount >= 2 * groupSectors ? aSectorCount - groupSectors : -1;
+			case BACKUP_HIDDEN:
+				return aSectorCount >= 2 * groupSectors ? aSectorCount - groupSectors + hiddenSectorOffset : -1;
+		}
+
+		throw new IllegalArgumentException();
+	}
+
+
+	/**
+	 * Returns true if a decrypted volume header has the volume magic and
+	 * valid checksums.
+	 */
+	private static boolean isValidHeader(byte[] aHeader)
+	{
+		if (ByteArray.BE.getInt(aHeader, TC_HEADER_OFFSET_MAGIC) != TC_VOLUME_MAGIC || ByteArray.BE.getShort(aHeader, TC_HEADER_OFFSET_VERSION) < 4)
+		{
+			return false;
 		}
-		catch (InterruptedException e)
+
+		CRC32 crc = new CRC32();
+		crc.update(aHeader, TC_HEADER_OFFSET_MAGIC, TC_HEADER_OFFSET_HEADER_CRC - TC_HEADER_OFFSET_MAGIC);
+
+		if (ByteArray.BE.getInt(aHeader, TC_HEADER_OFFSET_HEADER_CRC) != (int)crc.getValue())
 		{
+			return false;
 		}
-		pool.shutdown();
 
-		if (mCiphers == null)
+		crc.reset();
+		crc.update(aHeader, HEADER_MASTER_KEYDATA_OFFSET, MASTER_KEYDATA_SIZE);
+
+		return ByteArray.BE.getInt(aHeader, TC_HEADER_OFFSET_KEY_AREA_CRC) == (int)crc.getValue();
+	}
+
+
+	/**
+	 * Creates a decrypted volume header for a new volume with random salt and
+	 * master keys.
+	 */
+	private static byte[] createVolumeHeader(long aSectorCount, SecureRandom aRandom)
+	{
+		byte[] header = new byte[TC_VOLUME_HEADER_EFFECTIVE_SIZE];
+		aRandom.nextBytes(header);
+
+		Arrays.fill(header, TC_HEADER_OFFSET_MAGIC, HEADER_MASTER_KEYDATA_OFFSET, (byte)0);
+
+		ByteArray.BE.putInt(header, TC_HEADER_OFFSET_MAGIC, TC_VOLUME_MAGIC);
+		ByteArray.BE.putShort(header, TC_HEADER_OFFSET_VERSION, (short)VOLUME_HEADER_VERSION);
+		ByteArray.BE.putShort(header, TC_HEADER_OFFSET_REQUIRED_VERSION, (short)TC_VOLUME_MIN_REQUIRED_PROGRAM_VERSION);
+		ByteArray.BE.putLong(header, TC_HEADER_OFFSET_HIDDEN_VOLUME_SIZE, 0);
+		ByteArray.BE.putLong(header, TC_HEADER_OFFSET_VOLUME_SIZE, aSectorCount * ENCRYPTION_DATA_UNIT_SIZE);
+		ByteArray.BE.putLong(header, TC_HEADER_OFFSET_ENCRYPTED_AREA_START, TC_VOLUME_DATA_OFFSET);
+		ByteArray.BE.putLong(header, TC_HEADER_OFFSET_ENCRYPTED_AREA_LENGTH, aSectorCount * ENCRYPTION_DATA_UNIT_SIZE);
+		ByteArray.BE.putInt(header, TC_HEADER_OFFSET_FLAGS, 0);
+
+		CRC32 crc = new CRC32();
+		crc.update(header, HEADER_MASTER_KEYDATA_OFFSET, MASTER_KEYDATA_SIZE);
+		ByteArray.BE.putInt(header, TC_HEADER_OFFSET_KEY_AREA_CRC, (int)crc.getValue());
+
+		updateHeaderCRC(header);
+
+		return header;
+	}
+
+
+	/**
+	 * Writes the header group at the start of the volume and the backup
+	 * header group at the end. The backup header is encrypted with a salt of
+	 * its own. The decrypted header and the header key are retained so that
+	 * the headers can be rewritten when the volume is resized.
+	 */
+	private void writeVolumeHeader(byte[] aHeader, String aPassword, SecureRandom aRandom) throws IOException
+	{
+		CTRRandom filler = new CTRRandom(aRandom);
+
+		writeBackupHeader(aHeader, aPassword, aRandom, filler);
+
+		mVolumeHeader = aHeader.clone();
+		mHeaderKey = deriveHeaderKey(aHeader, aPassword);
+		writeHeaderGroup(0, mVolumeHeader, mHeaderKey, filler);
+
+		filler.reset();
+	}
+
+
+	/**
+	 * Writes the backup header group at the end of the volume, encrypted with
+	 * a salt of its own.
+	 */
+	private void writeBackupHeader(byte[] aHeader, String aPassword, SecureRandom aRandom, CTRRandom aFiller) throws IOException
+	{
+		byte[] backupHeader = aHeader.clone();
+		byte[] salt = new byte[PKCS5_SALT_SIZE];
+		aRandom.nextBytes(salt);
+		System.arraycopy(salt, 0, backupHeader, HEADER_SALT_OFFSET, PKCS5_SALT_SIZE);
+
+		byte[] backupHeaderKey = deriveHeaderKey(backupHeader, aPassword);
+		writeHeaderGroup(getBackupHeaderSectorIndex(getSectorCount()), backupHeader, backupHeaderKey, aFiller);
+		Arrays.fill(backupHeaderKey, (byte)0);
+		Arrays.fill(backupHeader, (byte)0);
+	}
+
+
+	/**
+	 * Writes the primary volume header without the remainder of its header
+	 * group, encrypted with the retained header key.
+	 */
+	private void writePrimaryHeader(byte[] aHeader) throws IOException
+	{
+		byte[] buffer = aHeader.clone();
+		encryptVolumeHeader(buffer, mHeaderKey);
+
+		writeSectors(0, buffer, 0, TC_VOLUME_HEADER_EFFECTIVE_SIZE);
+
+		Arrays.fill(buffer, (byte)0);
+	}
+
+
+	private static void updateHeaderCRC(byte[] aHeader)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(aHeader, TC_HEADER_OFFSET_MAGIC, TC_HEADER_OFFSET_HEADER_CRC - TC_HEADER_OFFSET_MAGIC);
+		ByteArray.BE.putInt(aHeader, TC_HEADER_OFFSET_HEADER_CRC, (int)crc.getValue());
+	}
+
+
+	/**
+	 * Writes a header group: the encrypted volume header followed by random
+	 * data filling the remainder of the group, including the area where a
+	 * hidden volume header would be stored.
+	 */
+	private void writeHeaderGroup(long aSectorIndex, byte[] aHeader, byte[] aHeaderKey, CTRRandom aFiller) throws IOException
+	{
+		byte[] buffer = new byte[TC_VOLUME_HEADER_GROUP_SIZE];
+		aFiller.nextBytes(buffer, 0, buffer.length);
+
+		System.arraycopy(aHeader, 0, buffer, 0, TC_VOLUME_HEADER_EFFECTIVE_SIZE);
+
+		encryptVolumeHeader(buffer, aHeaderKey);
+
+		writeSectors(aSectorIndex, buffer, 0, buffer.length);
+	}
+
+
+	/**
+	 * Derives the key encrypting a volume header from the password and the
+	 * salt stored in the first bytes of the header.
+	 */
+	private byte[] deriveHeaderKey(byte[] aHeader, String aPassword)
+	{
+		byte[] password = aPassword.getBytes();
+		HMAC hmac = new HMAC(mDigestOption.getDigestInstance(), password);
+		byte[] salt = ByteArray.copy(aHeader, HEADER_SALT_OFFSET, PKCS5_SALT_SIZE);
+		byte[] keyBytes = PBKDF2.generateKeyBytes(hmac, salt, mDigestOption.mIterations, 32 * mCipherOption.mAlgorithms.length * 2);
+
+		hmac.reset();
+		Arrays.fill(password, (byte)0);
+
+		return keyBytes;
+	}
+
+
+	/**
+	 * Encrypts a volume header in place.
+	 */
+	private void encryptVolumeHeader(byte[] aHeader, byte[] aHeaderKey)
+	{
+		String[] algorithms = mCipherOption.mAlgorithms;
+		XTS xts = new XTS(512);
+
+		for (int i = 0; i < algorithms.length; i++)
 		{
-			throw new InvalidKeyException("Incorrect password or an unsupported file version.");
+			Cipher cipher = getCipherInstance(algorithms[i]);
+			Cipher tweakCipher = getCipherInstance(algorithms[i]);
+
+			cipher.engineInit(new SecretKey(aHeaderKey, 32 * i, 32));
+			tweakCipher.engineInit(new SecretKey(aHeaderKey, 32 * (i + algorithms.length), 32));
+
+			xts.encrypt(aHeader, HEADER_ENCRYPTED_DATA_OFFSET, HEADER_ENCRYPTED_DATA_SIZE, 0, cipher, tweakCipher);
+
+			cipher.engineReset();
+			tweakCipher.engineReset();
 		}
 	}
 
 
-	private void writeVolumeHeader(String aPassword)
+	/**
+	 * Returns the sector where the backup header group starts for a data area
+	 * of the size provided.
+	 */
+	private long getBackupHeaderSectorIndex(long aSectorCount)
 	{
+		return mVolumeDataAreaOffset / ENCRYPTION_DATA_UNIT_SIZE + aSectorCount;
 	}
 
 
-	private void setup(byte[] aHeader, String[] aCipherAlgorithms)
+	private void setup(byte[] aHeader, CipherOption aCipherOption, DigestOption aDigestOption)
 	{
+		String[] cipherAlgorithms = aCipherOption.mAlgorithms;
+
 		//Debug.hexDump(aHeader);
 
 		// Header version
@@ -239,17 +835,42 @@ public class TrueCryptPageStore implements PageStore, AutoCloseable
 //		System.out.println("EncryptedAreaLength="+mVolumeDataAreaLength);
 //		System.out.println("HeaderFlags="+headerFlags);
 
-		mCiphers = new Cipher[aCipherAlgorithms.length];
-		mTweakCiphers = new Cipher[aCipherAlgorithms.length];
+		Cipher[] ciphers = new Cipher[cipherAlgorithms.length];
+		Cipher[] tweakCiphers = new Cipher[cipherAlgorithms.length];
 
-		for (int i = 0; i < aCipherAlgorithms.length; i++)
+		for (int i = 0; i < cipherAlgorithms.length; i++)
 		{
-			mCiphers[i] = getCipherInstance(aCipherAlgorithms[i]);
-			mTweakCiphers[i] = getCipherInstance(aCipherAlgorithms[i]);
+			ciphers[i] = getCipherInstance(cipherAlgorithms[i]);
+			tweakCiphers[i] = getCipherInstance(cipherAlgorithms[i]);
 
-			mCiphers[i].engineInit(new SecretKey(aHeader, HEADER_MASTER_KEYDATA_OFFSET + 32 * i, 32));
-			mTweakCiphers[i].engineInit(new SecretKey(aHeader, HEADER_MASTER_KEYDATA_OFFSET + 32 * (i + aCipherAlgorithms.length), 32));
+			ciphers[i].engineInit(new SecretKey(aHeader, HEADER_MASTER_KEYDATA_OFFSET + 32 * i, 32));
+			tweakCiphers[i].engineInit(new SecretKey(aHeader, HEADER_MASTER_KEYDATA_OFFSET + 32 * (i + cipherAlgorithms.length), 32));
 		}
+
+		mCipherOption = aCipherOption;
+		mDigestOption = aDigestOption;
+		mTweakCiphers = tweakCiphers;
+		mCiphers = ciphers;
+	}
+
+
+	/**
+	 * Returns the cipher the volume was created with. The value can be
+	 * provided as a hint when the volume is opened again.
+	 */
+	public CipherOption getCipherOption()
+	{
+		return mCipherOption;
+	}
+
+
+	/**
+	 * Returns the digest the volume header key is derived with. The value can
+	 * be provided as a hint when the volume is opened again.
+	 */
+	public DigestOption getDigestOption()
+	{
+		return mDigestOption;
 	}
 
 
@@ -271,64 +892,112 @@ public class TrueCryptPageStore implements PageStore, AutoCloseable
 	}
 
 
-	private class VolumeHeaderDecoder implements Callable<Boolean>
+	/**
+	 * Returns the header the volume was opened with.
+	 */
+	public HeaderLocation getHeaderLocation()
 	{
-		private byte[] mHeader;
+		return mHeaderLocation;
+	}
+
+
+	/**
+	 * Attempts to decrypt a volume header with a key derived using one digest
+	 * and each of a number of ciphers. The probe claims the shared flag when
+	 * it succeeds so that only the first header decrypted is used.
+	 */
+	private static class HeaderProbe implements Callable<HeaderProbe>
+	{
+		private final int mIndex;
+		private final byte[] mEncryptedHeader;
+		private final DigestOption mDigestOption;
+		private final CipherOption[] mCipherOptions;
+		private final byte[] mPassword;
+		private final AtomicBoolean mFound;
 		private CipherOption mCipherOption;
-		private DigestOption mDigestOption;
-		private byte[] mPassword;
+		private byte[] mHeader;
+		private byte[] mKeyBytes;
 
 
-		VolumeHeaderDecoder(byte[] aHeader, CipherOption aCipherOption, DigestOption aDigestOption, byte[] aPassword)
+		HeaderProbe(int aIndex, byte[] aEncryptedHeader, DigestOption aDigestOption, CipherOption[] aCipherOptions, byte[] aPassword, AtomicBoolean aFound)
 		{
-			mHeader = aHeader;
-			mCipherOption = aCipherOption;
+			mIndex = aIndex;
+			mEncryptedHeader = aEncryptedHeader;
 			mDigestOption = aDigestOption;
+			mCipherOptions = aCipherOptions;
 			mPassword = aPassword;
+			mFound = aFound;
 		}
 
 
 		@Override
-		public Boolean call()
+		public HeaderProbe call()
 		{
 			try
 			{
+				if (mFound.get())
+				{
+					return null;
+				}
+
+				int totalKeyLength = 0;
+				for (CipherOption cipherOption : mCipherOptions)
+				{
+					totalKeyLength = Math.max(totalKeyLength, 32 * cipherOption.mAlgorithms.length * 2);
+				}
+
+				// the probes run in parallel so the key is derived on this thread only
 				HMAC hmac = new HMAC(mDigestOption.getDigestInstance(), mPassword);
-				int totalKeyLength = 32 * mCipherOption.mAlgorithms.length * 2;
-				byte[] salt = ByteArray.copy(mHeader, HEADER_SALT_OFFSET, PKCS5_SALT_SIZE);
-				byte[] keyBytes = PBKDF2.generateKeyBytes(hmac, salt, mDigestOption.mIterations, totalKeyLength);
+				byte[] salt = ByteArray.copy(mEncryptedHeader, HEADER_SALT_OFFSET, PKCS5_SALT_SIZE);
+				byte[] keyBytes = PBKDF2.generateKeyBytes(hmac, salt, mDigestOption.mIterations, totalKeyLength, 1);
 				XTS xts = new XTS(512);
 
-				for (int i = mCipherOption.mAlgorithms.length; --i >= 0;)
+				hmac.reset();
+
+				for (CipherOption cipherOption : mCipherOptions)
 				{
-					Cipher cipher = TrueCryptPageStore.getCipherInstance(mCipherOption.mAlgorithms[i]);
-					Cipher tweakCipher = TrueCryptPageStore.getCipherInstance(mCipherOption.mAlgorithms[i]);
+					if (mFound.get())
+					{
+						break;
+					}
 
-					cipher.engineInit(new SecretKey(keyBytes, 32 * i, 32));
-					tweakCipher.engineInit(new SecretKey(keyBytes, 32 * (i + mCipherOption.mAlgorithms.length), 32));
+					String[] algorithms = cipherOption.mAlgorithms;
+					byte[] header = mEncryptedHeader.clone();
 
-					xts.decrypt(mHeader, PKCS5_SALT_SIZE, HEADER_ENCRYPTED_DATA_SIZE, 0, cipher, tweakCipher);
+					for (int i = algorithms.length; --i >= 0;)
+					{
+						Cipher cipher = getCipherInstance(algorithms[i]);
+						Cipher tweakCipher = getCipherInstance(algorithms[i]);
 
-					cipher.engineReset();
-					tweakCipher.engineReset();
-				}
+						cipher.engineInit(new SecretKey(keyBytes, 32 * i, 32));
+						tweakCipher.engineInit(new SecretKey(keyBytes, 32 * (i + algorithms.length), 32));
 
-				if (ByteArray.BE.getInt(mHeader, TC_HEADER_OFFSET_MAGIC) == 0x54525545)
-				{
-					setup(mHeader, mCipherOption.mAlgorithms);
+						xts.decrypt(header, PKCS5_SALT_SIZE, HEADER_ENCRYPTED_DATA_SIZE, 0, cipher, tweakCipher);
+
+						cipher.engineReset();
+						tweakCipher.engineReset();
+					}
+
+					if (isValidHeader(header) && mFound.compareAndSet(false, true))
+					{
+						mCipherOption = cipherOption;
+						mHeader = header;
+						mKeyBytes = keyBytes;
+
+						return this;
+					}
+
+					Arrays.fill(header, (byte)0);
 				}
 
-				hmac.reset();
 				Arrays.fill(keyBytes, (byte)0);
-				Arrays.fill(mHeader, (byte)0);
-				Arrays.fill(mPassword, (byte)0);
+
+				return null;
 			}
-			catch (Exception e)
+			finally
 			{
-				e.printStackTrace(System.out);
+				Arrays.fill(mPassword, (byte)0);
 			}
-
-			return Boolean.TRUE;
 		}
 	}
 
@@ -343,19 +1012,14 @@ public class TrueCryptPageStore implements PageStore, AutoCloseable
 	@Override
 	public void read(long aPageIndex, byte[] aBuffer, int aOffset, int aLength) throws IOException
 	{
-		long sectorIndex = mVolumeDataAreaOffset / ENCRYPTION_DATA_UNIT_SIZE + aPageIndex;
+		long sectorIndex = getSectorIndex(aPageIndex);
+		byte[][] dirtyPages = getDirtyPages(aPageIndex, aLength);
 
-		mPageStore.read(sectorIndex, aBuffer, aOffset, aLength);
+		readSectors(sectorIndex, aBuffer, aOffset, aLength);
 
-		XTS xts = new XTS(512);
+		decrypt(sectorIndex, aBuffer, aOffset, aLength);
 
-		for (int j = 0; j < aLength / 512; j++)
-		{
-			for (int i = mCiphers.length; --i >= 0;)
-			{
-				xts.decrypt(aBuffer, aOffset + 512 * j, 512 + 0 * aLength, sectorIndex + j, mCiphers[i], mTweakCiphers[i]);
-			}
-		}
+		applyDirtyPages(dirtyPages, aBuffer, aOffset);
 	}
 
 
@@ -369,97 +1033,1214 @@ public class TrueCryptPageStore implements PageStore, AutoCloseable
 	@Override
 	public void write(long aPageIndex, byte[] aBuffer, int aOffset, int aLength) throws IOException
 	{
-		long sectorIndex = mVolumeDataAreaOffset / ENCRYPTION_DATA_UNIT_SIZE + aPageIndex;
+		throwWriteBehindFailure();
+
+		if (bufferDirtyPages(aPageIndex, aBuffer, aOffset, aLength))
+		{
+			return;
+		}
+
+		long sectorIndex = getSectorIndex(aPageIndex);
 
 		byte[] temp = new byte[aLength];
 		System.arraycopy(aBuffer, aOffset, temp, 0, aLength);
 
-		XTS xts = new XTS(512);
-
-		for (int i = 0; i < mCiphers.length; i++)
-		{
-			xts.encrypt(temp, 0, aLength, sectorIndex, mCiphers[i], mTweakCiphers[i]);
-		}
+		encrypt(sectorIndex, temp, 0, aLength);
 
-		mPageStore.write(sectorIndex, temp, 0, aLength);
+		writeSectors(sectorIndex, temp, 0, aLength);
 	}
 
 
+	/**
+	 * Reads and decrypts pages directly into the buffer provided. The buffer
+	 * may be a direct buffer in which case the data is decrypted in place
+	 * without being copied to the heap as a whole.
+	 */
 	@Override
-	public int getPageSize() throws IOException
+	public void read(long aPageIndex, ByteBuffer aBuffer) throws IOException
 	{
-		return ENCRYPTION_DATA_UNIT_SIZE;
-	}
+		long sectorIndex = getSectorIndex(aPageIndex);
+		int offset = aBuffer.position();
+		int length = aBuffer.remaining();
+		byte[][] dirtyPages = getDirtyPages(aPageIndex, length);
 
+		mPageStore.read(sectorIndex / mSectorsPerStorePage, aBuffer);
 
-	@Override
-	public void close() throws IOException
-	{
-		if (mCiphers != null)
+		XTS xts = new XTS(512);
+
+		for (int j = 0; j < length / 512; j++)
 		{
-			for (int i = 0; i < mCiphers.length; i++)
+			for (int i = mCiphers.length; --i >= 0;)
 			{
-				mCiphers[i].engineReset();
-				mTweakCiphers[i].engineReset();
+				xts.decrypt(aBuffer, offset + 512 * j, 512, sectorIndex + j, mCiphers[i], mTweakCiphers[i]);
 			}
 		}
 
-		mCiphers = null;
-		mTweakCiphers = null;
-		mVolumeDataAreaLength = 0;
-		mVolumeDataAreaOffset = 0;
-		if (mPageStore != null)
+		if (dirtyPages != null)
 		{
-			mPageStore.close();
+			for (int j = 0; j < dirtyPages.length; j++)
+			{
+				if (dirtyPages[j] != null)
+				{
+					ByteBuffer dst = aBuffer.duplicate();
+					dst.position(offset + mPageSize * j);
+					dst.put(dirtyPages[j]);
+				}
+			}
 		}
-		mPageStore = null;
 	}
 
 
+	/**
+	 * Encrypts and writes pages from the buffer provided. The content of the
+	 * buffer isn't modified; the data is encrypted in a heap buffer since the
+	 * ciphers operate on arrays.
+	 */
 	@Override
-	public void flush() throws IOException
+	public void write(long aPageIndex, ByteBuffer aBuffer) throws IOException
 	{
-		mPageStore.flush();
-	}
+		throwWriteBehindFailure();
 
+		long sectorIndex = getSectorIndex(aPageIndex);
+		int length = aBuffer.remaining();
 
-	@Override
-	public long getPageCount() throws IOException
-	{
-		return mPageStore.getPageCount() - mVolumeDataAreaOffset / ENCRYPTION_DATA_UNIT_SIZE;
-	}
+		ByteBuffer temp = ByteBuffer.allocate(length);
+		temp.put(aBuffer.duplicate());
+		temp.flip();
 
+		if (bufferDirtyPages(aPageIndex, temp.array(), 0, length))
+		{
+			aBuffer.position(aBuffer.position() + length);
+			return;
+		}
 
-	@Override
-	public void resize(long aPageCount) throws IOException
+		encrypt(sectorIndex, temp.array(), 0, length);
+
+		mPageStore.write(sectorIndex / mSectorsPerStorePage, temp);
+
+		aBuffer.position(aBuffer.position() + length);
+	}
+
+
+	/**
+	 * Reads pages asynchronously. The encrypted data is read from the
+	 * underlying store, asynchronously if it's an AsyncPageStore, and the
+	 * completions are decrypted on a worker pool.
+	 */
+	@Override
+	public CompletableFuture<Void> readAsync(long aPageIndex, byte[] aBuffer, int aOffset, int aLength)
+	{
+		long sectorIndex = getSectorIndex(aPageIndex);
+		byte[][] dirtyPages = getDirtyPages(aPageIndex, aLength);
+
+		return readSectorsAsync(Arrays.asList(new PageRange(sectorIndex, aBuffer, aOffset, aLength)))
+			.thenRunAsync(() ->
+			{
+				decrypt(sectorIndex, aBuffer, aOffset, aLength);
+				applyDirtyPages(dirtyPages, aBuffer, aOffset);
+			}, getWorkerPool());
+	}
+
+
+	/**
+	 * Writes pages asynchronously. The data is encrypted on a worker pool and
+	 * then written to the underlying store, asynchronously if it's an
+	 * AsyncPageStore. The buffer provided is copied before this method returns.
+	 * In write-behind mode the pages are buffered and the returned future is
+	 * already completed.
+	 */
+	@Override
+	public CompletableFuture<Void> writeAsync(long aPageIndex, byte[] aBuffer, int aOffset, int aLength)
+	{
+		try
+		{
+			if (bufferDirtyPages(aPageIndex, aBuffer, aOffset, aLength))
+			{
+				return CompletableFuture.completedFuture(null);
+			}
+		}
+		catch (IOException e)
+		{
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+
+		long sectorIndex = getSectorIndex(aPageIndex);
+
+		byte[] temp = new byte[aLength];
+		System.arraycopy(aBuffer, aOffset, temp, 0, aLength);
+
+		return CompletableFuture
+			.runAsync(() -> encrypt(sectorIndex, temp, 0, aLength), getWorkerPool())
+			.thenCompose(v ->
+			{
+				if (mPageStore instanceof AsyncPageStore)
+				{
+					return ((AsyncPageStore)mPageStore).writeAsync(sectorIndex / mSectorsPerStorePage, temp, 0, aLength);
+				}
+
+				return CompletableFuture.runAsync(() ->
+				{
+					try
+					{
+						writeSectors(sectorIndex, temp, 0, aLength);
+					}
+					catch (IOException e)
+					{
+						throw new CompletionException(e);
+					}
+				}, getWorkerPool());
+			});
+	}
+
+
+	/**
+	 * Reads a batch of page ranges. The batch is passed on to the underlying
+	 * store, which may coalesce and reorder the reads, and each range is then
+	 * decrypted on the worker pool.
+	 */
+	@Override
+	public CompletableFuture<Void> readBatch(List<PageRange> aRanges)
+	{
+		ArrayList<PageRange> ranges = new ArrayList<>(aRanges.size());
+		byte[][][] dirtyPages = new byte[aRanges.size()][][];
+		for (PageRange range : aRanges)
+		{
+			dirtyPages[ranges.size()] = getDirtyPages(range.getPageIndex(), range.getLength());
+			ranges.add(new PageRange(getSectorIndex(range.getPageIndex()), range.getBuffer(), range.getOffset(), range.getLength()));
+		}
+
+		return readSectorsAsync(ranges).thenCompose(v ->
+		{
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[ranges.size()];
+
+			for (int i = 0; i < futures.length; i++)
+			{
+				PageRange range = ranges.get(i);
+				byte[][] rangeDirtyPages = dirtyPages[i];
+				futures[i] = CompletableFuture.runAsync(() ->
+				{
+					decrypt(range.getPageIndex(), range.getBuffer(), range.getOffset(), range.getLength());
+					applyDirtyPages(rangeDirtyPages, range.getBuffer(), range.getOffset());
+				}, getWorkerPool());
+			}
+
+			return CompletableFuture.allOf(futures);
+		});
+	}
+
+
+	/**
+	 * Reads ranges of sectors. The ranges must be aligned to the pages of the
+	 * underlying store.
+	 */
+	private CompletableFuture<Void> readSectorsAsync(List<PageRange> aRanges)
+	{
+		if (mPageStore instanceof AsyncPageStore)
+		{
+			ArrayList<PageRange> ranges = new ArrayList<>(aRanges.size());
+			for (PageRange range : aRanges)
+			{
+				ranges.add(new PageRange(range.getPageIndex() / mSectorsPerStorePage, range.getBuffer(), range.getOffset(), range.getLength()));
+			}
+
+			return ((AsyncPageStore)mPageStore).readBatch(ranges);
+		}
+
+		return CompletableFuture.runAsync(() ->
+		{
+			try
+			{
+				for (PageRange range : aRanges)
+				{
+					readSectors(range.getPageIndex(), range.getBuffer(), range.getOffset(), range.getLength());
+				}
+			}
+			catch (IOException e)
+			{
+				throw new CompletionException(e);
+			}
+		}, getWorkerPool());
+	}
+
+
+	/**
+	 * Returns the sector where a page of the data area starts.
+	 */
+	private long getSectorIndex(long aPageIndex)
+	{
+		return mVolumeDataAreaOffset / ENCRYPTION_DATA_UNIT_SIZE + aPageIndex * (mPageSize / ENCRYPTION_DATA_UNIT_SIZE);
+	}
+
+
+	/**
+	 * Returns the number of sectors in the data area.
+	 */
+	private long getSectorCount()
 	{
-		throw new UnsupportedOperationException("Not supported.");
+		return mVolumeDataAreaLength / ENCRYPTION_DATA_UNIT_SIZE;
 	}
 
 
-	private void format(Consumer<Long> aProgressCallback) throws IOException
+	/**
+	 * Reads sectors from the underlying store. Reads that aren't aligned to
+	 * the pages of the store read the pages containing the sectors.
+	 */
+	private void readSectors(long aSectorIndex, byte[] aBuffer, int aOffset, int aLength) throws IOException
 	{
-		int pageSize = getPageSize();
-		byte[] buffer = new byte[pageSize];
+		int storePageSize = mSectorsPerStorePage * ENCRYPTION_DATA_UNIT_SIZE;
+
+		if ((aSectorIndex % mSectorsPerStorePage) == 0 && (aLength % storePageSize) == 0)
+		{
+			mPageStore.read(aSectorIndex / mSectorsPerStorePage, aBuffer, aOffset, aLength);
+			return;
+		}
+
+		long firstPage = aSectorIndex / mSectorsPerStorePage;
+		int skip = (int)(aSectorIndex % mSectorsPerStorePage) * ENCRYPTION_DATA_UNIT_SIZE;
+		byte[] buffer = new byte[(skip + aLength + storePageSize - 1) / storePageSize * storePageSize];
 
-		SecureRandom rnd = new SecureRandom();
+		mPageStore.read(firstPage, buffer, 0, buffer.length);
+
+		System.arraycopy(buffer, skip, aBuffer, aOffset, aLength);
+	}
 
+
+	/**
+	 * Writes sectors to the underlying store. Writes that aren't aligned to
+	 * the pages of the store read, modify and write the pages containing the
+	 * sectors; only the volume headers and the re-encryption checkpoint are
+	 * written this way, never concurrently with other writes.
+	 */
+	private void writeSectors(long aSectorIndex, byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		int storePageSize = mSectorsPerStorePage * ENCRYPTION_DATA_UNIT_SIZE;
+
+		if ((aSectorIndex % mSectorsPerStorePage) == 0 && (aLength % storePageSize) == 0)
+		{
+			mPageStore.write(aSectorIndex / mSectorsPerStorePage, aBuffer, aOffset, aLength);
+			return;
+		}
+
+		long firstPage = aSectorIndex / mSectorsPerStorePage;
+		int skip = (int)(aSectorIndex % mSectorsPerStorePage) * ENCRYPTION_DATA_UNIT_SIZE;
+		byte[] buffer = new byte[(skip + aLength + storePageSize - 1) / storePageSize * storePageSize];
+
+		mPageStore.read(firstPage, buffer, 0, buffer.length);
+
+		System.arraycopy(aBuffer, aOffset, buffer, skip, aLength);
+
+		mPageStore.write(firstPage, buffer, 0, buffer.length);
+	}
+
+
+	/**
+	 * Decrypts sectors in place. The ciphers are stateless once initialized
+	 * and this method may be called by several threads concurrently.
+	 */
+	private void decrypt(long aSectorIndex, byte[] aBuffer, int aOffset, int aLength)
+	{
 		XTS xts = new XTS(512);
 
-		for (long sectorIndex = 0, sz = getPageCount(); sectorIndex < sz; sectorIndex++)
+		for (int j = 0; j < aLength / 512; j++)
+		{
+			for (int i = mCiphers.length; --i >= 0;)
+			{
+				xts.decrypt(aBuffer, aOffset + 512 * j, 512, aSectorIndex + j, mCiphers[i], mTweakCiphers[i]);
+			}
+		}
+	}
+
+
+	private void encrypt(long aSectorIndex, byte[] aBuffer, int aOffset, int aLength)
+	{
+		XTS xts = new XTS(512);
+
+		for (int i = 0; i < mCiphers.length; i++)
+		{
+			xts.encrypt(aBuffer, aOffset, aLength, aSectorIndex, mCiphers[i], mTweakCiphers[i]);
+		}
+	}
+
+
+	private synchronized ExecutorService getWorkerPool()
+	{
+		if (mWorkerPool == null)
+		{
+			int cpu = ManagementFactory.getOperatingSystemMXBean().getAvailableProcessors();
+			mWorkerPool = Executors.newFixedThreadPool(cpu, r ->
+			{
+				Thread thread = new Thread(r, "TrueCryptPageStore worker");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		return mWorkerPool;
+	}
+
+
+	/**
+	 * Enables or disables write-behind buffering. In write-behind mode written
+	 * pages are kept in memory as plaintext and written in batches: adjacent
+	 * pages are coalesced into runs of up to 64 KiB which are encrypted in
+	 * parallel and written in ascending order. Buffered pages are written when
+	 * the buffer is full, when the flush interval elapses and when flush or
+	 * close is called. If a background write fails the pages remain buffered
+	 * and the first failure is thrown by the next call to write, flush or
+	 * close.
+	 *
+	 * A flush acts as a barrier: every page written before the flush reaches
+	 * the underlying store before any page written after it. Pages written
+	 * between two flushes may reach the store in any order.
+	 *
+	 * Pages buffered when this method is called are written before it
+	 * returns; pages written concurrently wait until they have been written.
+	 *
+	 * @param aMaxDirtyPages
+	 *   maximum number of pages buffered before they are written. Zero
+	 *   disables write-behind buffering.
+	 * @param aFlushInterval
+	 *   milliseconds between background writes of buffered pages or zero to
+	 *   write only when the buffer is full or flushed.
+	 */
+	public void setWriteBehind(int aMaxDirtyPages, long aFlushInterval) throws IOException
+	{
+		// the buffer is replaced and written under both locks: pages written
+		// concurrently wait and then go to the new buffer or to the store
+		synchronized (mFlushLock)
+		{
+			synchronized (mWriteBehindLock)
+			{
+				TreeMap<Long, byte[]> pages = mDirtyPages;
+				int maxDirtyPages = mMaxDirtyPages;
+
+				mMaxDirtyPages = Math.max(0, aMaxDirtyPages);
+				mDirtyPages = mMaxDirtyPages > 0 ? new TreeMap<>() : null;
+
+				if (pages != null && !pages.isEmpty())
+				{
+					try
+					{
+						writeRuns(pages);
+					}
+					catch (IOException | RuntimeException e)
+					{
+						mMaxDirtyPages = maxDirtyPages;
+						mDirtyPages = pages;
+						throw e;
+					}
+				}
+			}
+		}
+
+		synchronized (this)
+		{
+			if (mFlushTimer != null)
+			{
+				mFlushTimer.shutdown();
+				mFlushTimer = null;
+			}
+
+			if (aMaxDirtyPages > 0 && aFlushInterval > 0)
+			{
+				mFlushTimer = Executors.newSingleThreadScheduledExecutor(r ->
+				{
+					Thread thread = new Thread(r, "TrueCryptPageStore flush");
+					thread.setDaemon(true);
+					return thread;
+				});
+				mFlushTimer.scheduleWithFixedDelay(() ->
+				{
+					try
+					{
+						flushDirtyPages();
+					}
+					catch (IOException e)
+					{
+						// pages remain buffered and are written by the next flush
+						synchronized (mWriteBehindLock)
+						{
+							if (mWriteBehindFailure == null)
+							{
+								mWriteBehindFailure = e;
+							}
+						}
+					}
+				}, aFlushInterval, aFlushInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+
+	/**
+	 * Copies pages into the write-behind buffer.
+	 *
+	 * @return
+	 *   false if write-behind buffering isn't enabled
+	 */
+	private boolean bufferDirtyPages(long aPageIndex, byte[] aBuffer, int aOffset, int aLength) throws IOException
+	{
+		boolean full;
+
+		synchronized (mWriteBehindLock)
+		{
+			if (mDirtyPages == null)
+			{
+				return false;
+			}
+
+			for (int i = 0; i < aLength / mPageSize; i++)
+			{
+				// buffered pages are never modified in place since a flush may be encrypting them
+				mDirtyPages.put(aPageIndex + i, Arrays.copyOfRange(aBuffer, aOffset + mPageSize * i, aOffset + mPageSize * (i + 1)));
+			}
+
+			full = mDirtyPages.size() >= mMaxDirtyPages;
+		}
+
+		if (full)
+		{
+			flushDirtyPages();
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Returns the buffered pages within a range or null if none of the pages
+	 * are buffered. Pages not buffered are null in the returned array.
+	 */
+	private byte[][] getDirtyPages(long aPageIndex, int aLength)
+	{
+		synchronized (mWriteBehindLock)
+		{
+			if (mDirtyPages == null || mDirtyPages.isEmpty() && mFlushingPages == null)
+			{
+				return null;
+			}
+
+			long end = aPageIndex + aLength / mPageSize;
+
+			// pages being flushed are replaced by pages written since
+			byte[][] pages = getDirtyPages(mFlushingPages, aPageIndex, end, null);
+			pages = getDirtyPages(mDirtyPages, aPageIndex, end, pages);
+
+			return pages;
+		}
+	}
+
+
+	private static byte[][] getDirtyPages(TreeMap<Long, byte[]> aMap, long aPageIndex, long aEnd, byte[][] aPages)
+	{
+		if (aMap != null)
+		{
+			for (Map.Entry<Long, byte[]> entry : aMap.subMap(aPageIndex, aEnd).entrySet())
+			{
+				if (aPages == null)
+				{
+					aPages = new byte[(int)(aEnd - aPageIndex)][];
+				}
+				aPages[(int)(entry.getKey() - aPageIndex)] = entry.getValue();
+			}
+		}
+
+		return aPages;
+	}
+
+
+	private static void applyDirtyPages(byte[][] aDirtyPages, byte[] aBuffer, int aOffset)
+	{
+		if (aDirtyPages != null)
+		{
+			for (int i = 0; i < aDirtyPages.length; i++)
+			{
+				if (aDirtyPages[i] != null)
+				{
+					System.arraycopy(aDirtyPages[i], 0, aBuffer, aOffset + aDirtyPages[i].length * i, aDirtyPages[i].length);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Writes all buffered pages to the underlying store. Pages written while
+	 * the flush is in progress are buffered and written by the next flush. If
+	 * the write fails the pages are returned to the buffer.
+	 */
+	private void flushDirtyPages() throws IOException
+	{
+		synchronized (mFlushLock)
 		{
-			rnd.nextBytes(buffer);
+			TreeMap<Long, byte[]> pages;
+
+			synchronized (mWriteBehindLock)
+			{
+				if (mDirtyPages == null || mDirtyPages.isEmpty())
+				{
+					return;
+				}
+
+				pages = mDirtyPages;
+				mFlushingPages = pages;
+				mDirtyPages = new TreeMap<>();
+			}
+
+			boolean success = false;
 
+			try
+			{
+				writeRuns(pages);
+				success = true;
+			}
+			finally
+			{
+				synchronized (mWriteBehindLock)
+				{
+					// write-behind can't be disabled during a flush since setWriteBehind holds the flush lock
+					if (!success && mDirtyPages != null)
+					{
+						pages.putAll(mDirtyPages);
+						mDirtyPages = pages;
+					}
+					mFlushingPages = null;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Throws the first failure of a background write since the last call, if
+	 * any, and clears it.
+	 */
+	private void throwWriteBehindFailure() throws IOException
+	{
+		IOException failure;
+
+		synchronized (mWriteBehindLock)
+		{
+			failure = mWriteBehindFailure;
+			mWriteBehindFailure = null;
+		}
+
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+
+	private void writeRuns(TreeMap<Long, byte[]> aPages) throws IOException
+	{
+		int maxRun = Math.max(1, MAX_WRITE_BEHIND_RUN_SIZE / mPageSize);
+
+		ArrayList<PageRange> runs = new ArrayList<>();
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+
+		for (Map.Entry<Long, byte[]> entry = aPages.firstEntry(); entry != null;)
+		{
+			long start = entry.getKey();
+			int count = 1;
+
+			for (Long key = aPages.higherKey(start); key != null && key == start + count && count < maxRun; key = aPages.higherKey(key))
+			{
+				count++;
+			}
+
+			byte[] buffer = new byte[mPageSize * count];
+			for (int i = 0; i < count; i++, entry = aPages.higherEntry(entry.getKey()))
+			{
+				System.arraycopy(entry.getValue(), 0, buffer, mPageSize * i, mPageSize);
+			}
+
+			long sectorIndex = getSectorIndex(start);
+
+			runs.add(new PageRange(sectorIndex, buffer, 0, buffer.length));
+			futures.add(CompletableFuture.runAsync(() -> encrypt(sectorIndex, buffer, 0, buffer.length), getWorkerPool()));
+		}
+
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+
+		for (PageRange run : runs)
+		{
+			writeSectors(run.getPageIndex(), run.getBuffer(), run.getOffset(), run.getLength());
+		}
+	}
+
+
+	@Override
+	public int getPageSize() throws IOException
+	{
+		return mPageSize;
+	}
+
+
+	/**
+	 * Sets the size of the pages presented by this store. Pages are still
+	 * encrypted in 512 byte data units but larger pages are read and written
+	 * with fewer calls. The page size defaults to 512 bytes or the page size
+	 * of the underlying store if it's larger. A data area that isn't a whole
+	 * number of pages has its last partial page ignored.
+	 *
+	 * Note: this method should not be called while other threads are using
+	 * this store.
+	 *
+	 * @param aPageSize
+	 *   a power of two not less than the page size of the underlying store
+	 */
+	public void setPageSize(int aPageSize) throws IOException
+	{
+		if (aPageSize < mSectorsPerStorePage * ENCRYPTION_DATA_UNIT_SIZE || Integer.bitCount(aPageSize) != 1)
+		{
+			throw new IllegalArgumentException("Page size must be a power of two not less than " + mSectorsPerStorePage * ENCRYPTION_DATA_UNIT_SIZE + ": " + aPageSize);
+		}
+
+		flushDirtyPages();
+
+		mPageSize = aPageSize;
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		if (mCiphers != null)
+		{
+			flushDirtyPages();
+		}
+
+		release();
+
+		if (mPageStore != null)
+		{
+			mPageStore.close();
+		}
+		mPageStore = null;
+
+		// the pages were written by the flush above but the failure is still reported
+		throwWriteBehindFailure();
+	}
+
+
+	/**
+	 * Stops the background threads and erases the keys without closing the
+	 * underlying page store.
+	 */
+	private void release()
+	{
+		synchronized (this)
+		{
+			if (mFlushTimer != null)
+			{
+				mFlushTimer.shutdown();
+				mFlushTimer = null;
+			}
+			if (mWorkerPool != null)
+			{
+				mWorkerPool.shutdown();
+				mWorkerPool = null;
+			}
+		}
+
+		if (mCiphers != null)
+		{
 			for (int i = 0; i < mCiphers.length; i++)
 			{
-				xts.encrypt(buffer, 0, pageSize, sectorIndex, mCiphers[i], mTweakCiphers[i]);
+				mCiphers[i].engineReset();
+				mTweakCiphers[i].engineReset();
 			}
+		}
+
+		if (mVolumeHeader != null)
+		{
+			Arrays.fill(mVolumeHeader, (byte)0);
+			Arrays.fill(mHeaderKey, (byte)0);
+		}
+
+		mCiphers = null;
+		mTweakCiphers = null;
+		mVolumeHeader = null;
+		mHeaderKey = null;
+		mCipherOption = null;
+		mDigestOption = null;
+		mDirtyPages = null;
+		mVolumeDataAreaLength = 0;
+		mVolumeDataAreaOffset = 0;
+	}
+
+
+	@Override
+	public void flush() throws IOException
+	{
+		throwWriteBehindFailure();
+
+		flushDirtyPages();
+
+		mPageStore.flush();
+	}
+
+
+	@Override
+	public long getPageCount() throws IOException
+	{
+		return mVolumeDataAreaLength / mPageSize;
+	}
+
+
+	/**
+	 * Grows the data area of the volume. The underlying page store is
+	 * extended, the added pages are filled with encrypted random data and the
+	 * headers are rewritten with the new size. The time taken depends only on
+	 * the number of pages added.
+	 *
+	 * The backup header is written at the new end of the volume before the
+	 * primary header is updated, so if the resize is interrupted the volume
+	 * still opens with its previous size. The backup header is encrypted with
+	 * the salt of the primary header since the password isn't retained.
+	 *
+	 * Note: a file system in the volume must be grown separately, e.g. with
+	 * FatFileSystem.grow.
+	 *
+	 * @param aPageCount
+	 *   the new number of pages in the data area; must not be less than the
+	 *   current number
+	 */
+	@Override
+	public void resize(long aPageCount) throws IOException
+	{
+		resize(aPageCount, null);
+	}
+
+
+	/**
+	 * Grows the data area of the volume.
+	 *
+	 * @param aPageCount
+	 *   the new number of pages in the data area
+	 * @param aProgressCallback
+	 *   receives the number of added pages filled so far or null
+	 * @see #resize(long)
+	 */
+	public void resize(long aPageCount, Consumer<Long> aProgressCallback) throws IOException
+	{
+		int sectorsPerPage = mPageSize / ENCRYPTION_DATA_UNIT_SIZE;
+		long sectorCount = getSectorCount();
+		long newSectorCount = aPageCount * sectorsPerPage;
+
+		if (newSectorCount < sectorCount)
+		{
+			throw new UnsupportedOperationException("Shrinking a volume is not supported.");
+		}
+		if (mVolumeDataAreaOffset != TC_VOLUME_DATA_OFFSET || ByteArray.BE.getLong(mVolumeHeader, TC_HEADER_OFFSET_HIDDEN_VOLUME_SIZE) != 0)
+		{
+			throw new UnsupportedOperationException("Resizing a hidden volume or a volume containing a hidden volume is not supported.");
+		}
+		if (mPageStore.getPageCount() * mSectorsPerStorePage != getBackupHeaderSectorIndex(sectorCount) + TC_VOLUME_HEADER_GROUP_SIZE / ENCRYPTION_DATA_UNIT_SIZE)
+		{
+			throw new IOException("The volume doesn't end with a backup header area: page count: " + mPageStore.getPageCount());
+		}
+		if (newSectorCount == sectorCount)
+		{
+			return;
+		}
+
+		flushDirtyPages();
+
+		mPageStore.resize((getBackupHeaderSectorIndex(newSectorCount) + TC_VOLUME_HEADER_GROUP_SIZE / ENCRYPTION_DATA_UNIT_SIZE) / mSectorsPerStorePage);
+
+		SecureRandom random = new SecureRandom();
+
+		fill(sectorCount, newSectorCount - sectorCount, random, aProgressCallback == null ? null : e -> aProgressCallback.accept(e / sectorsPerPage));
+
+		byte[] header = mVolumeHeader.clone();
+		ByteArray.BE.putLong(header, TC_HEADER_OFFSET_VOLUME_SIZE, newSectorCount * ENCRYPTION_DATA_UNIT_SIZE);
+		ByteArray.BE.putLong(header, TC_HEADER_OFFSET_ENCRYPTED_AREA_LENGTH, newSectorCount * ENCRYPTION_DATA_UNIT_SIZE);
+
+		updateHeaderCRC(header);
+
+		CTRRandom filler = new CTRRandom(random);
+		writeHeaderGroup(getBackupHeaderSectorIndex(newSectorCount), header, mHeaderKey, filler);
+		filler.reset();
+
+		mPageStore.flush();
+
+		writePrimaryHeader(header);
+
+		mPageStore.flush();
+
+		Arrays.fill(mVolumeHeader, (byte)0);
+		mVolumeHeader = header;
+		mVolumeDataAreaLength = newSectorCount * ENCRYPTION_DATA_UNIT_SIZE;
+	}
 
-			mPageStore.write(sectorIndex, buffer, 0, pageSize);
 
-			if (aProgressCallback != null)
+	/**
+	 * Re-encrypts the data area from the position recorded in the checkpoint
+	 * of this store, which holds the new keys, to the end. The source store
+	 * holds the old keys.
+	 */
+	private void reencrypt(TrueCryptPageStore aSource, ReencryptionListener aListener) throws IOException
+	{
+		long pageCount = getSectorCount();
+		long sectorOffset = mVolumeDataAreaOffset / ENCRYPTION_DATA_UNIT_SIZE;
+		int batchPages = REENCRYPTION_BATCH_SIZE / ENCRYPTION_DATA_UNIT_SIZE;
+		long pageIndex = ByteArray.BE.getLong(mVolumeHeader, TC_HEADER_OFFSET_REENCRYPTED_LENGTH);
+		int pages = ByteArray.BE.getInt(mVolumeHeader, TC_HEADER_OFFSET_REENCRYPTION_BATCH);
+
+		if (pageIndex < 0 || pages < 0 || pages > batchPages || pageIndex + pages > pageCount)
+		{
+			throw new IOException("Bad re-encryption checkpoint: position: " + pageIndex + ", batch: " + pages);
+		}
+
+		byte[] journal = new byte[getJournalLength(batchPages)];
+		long startTime = System.nanoTime();
+		long startPageIndex = pageIndex;
+
+		if (pages > 0)
+		{
+			recoverBatch(aSource, sectorOffset + pageIndex, pages, journal);
+			pageIndex += pages;
+
+			writeReencryptionCheckpoint(pageIndex, 0, null);
+
+			reportProgress(aListener, pageIndex, pageCount, startPageIndex, startTime, mPageSize);
+		}
+
+		byte[] buffer = new byte[REENCRYPTION_BATCH_SIZE];
+		byte[] nextBuffer = new byte[REENCRYPTION_BATCH_SIZE];
+		List<Future<Void>> pending = pageIndex < pageCount ? submitBatch(aSource, sectorOffset + pageIndex, nextBuffer, (int)Math.min(batchPages, pageCount - pageIndex)) : null;
+
+		try
+		{
+			while (pageIndex < pageCount)
+			{
+				pages = (int)Math.min(batchPages, pageCount - pageIndex);
+
+				for (Future<Void> future : pending)
+				{
+					future.get();
+				}
+
+				byte[] temp = buffer;
+				buffer = nextBuffer;
+				nextBuffer = temp;
+
+				CRC32 crc = new CRC32();
+				for (int i = 0; i < pages; i++)
+				{
+					crc.reset();
+					crc.update(buffer, i * ENCRYPTION_DATA_UNIT_SIZE, ENCRYPTION_DATA_UNIT_SIZE);
+					ByteArray.BE.putInt(journal, 4 * i, (int)crc.getValue());
+				}
+
+				writeReencryptionCheckpoint(pageIndex, pages, journal);
+
+				long nextPageIndex = pageIndex + pages;
+
+				// the next batch is encrypted while this batch is written
+				pending = nextPageIndex < pageCount ? submitBatch(aSource, sectorOffset + nextPageIndex, nextBuffer, (int)Math.min(batchPages, pageCount - nextPageIndex)) : null;
+
+				writeSectors(sectorOffset + pageIndex, buffer, 0, pages * ENCRYPTION_DATA_UNIT_SIZE);
+				mPageStore.flush();
+
+				pageIndex = nextPageIndex;
+
+				writeReencryptionCheckpoint(pageIndex, 0, null);
+
+				reportProgress(aListener, pageIndex, pageCount, startPageIndex, startTime, mPageSize);
+			}
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			throw new IOException("Failed to re-encrypt volume", e);
+		}
+		finally
+		{
+			if (pending != null)
+			{
+				for (Future<Void> future : pending)
+				{
+					future.cancel(false);
+				}
+			}
+
+			Arrays.fill(buffer, (byte)0);
+			Arrays.fill(nextBuffer, (byte)0);
+		}
+	}
+
+
+	/**
+	 * Reports the progress of a re-encryption counted in sectors to the
+	 * listener in pages of the size provided.
+	 */
+	private static void reportProgress(ReencryptionListener aListener, long aSectorIndex, long aSectorCount, long aStartSectorIndex, long aStartTime, int aPageSize)
+	{
+		if (aListener != null)
+		{
+			int sectorsPerPage = aPageSize / ENCRYPTION_DATA_UNIT_SIZE;
+			long time = Math.max(1, System.nanoTime() - aStartTime);
+			aListener.progress(aSectorIndex / sectorsPerPage, aSectorCount / sectorsPerPage, (long)((aSectorIndex - aStartSectorIndex) * ENCRYPTION_DATA_UNIT_SIZE * 1e9 / time));
+		}
+	}
+
+
+	/**
+	 * Reads a batch and submits it to the worker pool in chunks, each
+	 * decrypted with the keys of the source store and encrypted with the keys
+	 * of this store.
+	 */
+	private List<Future<Void>> submitBatch(TrueCryptPageStore aSource, long aSectorIndex, byte[] aBuffer, int aPageCount) throws IOException
+	{
+		int length = aPageCount * ENCRYPTION_DATA_UNIT_SIZE;
+
+		readSectors(aSectorIndex, aBuffer, 0, length);
+
+		ArrayList<Future<Void>> futures = new ArrayList<>();
+
+		for (int offset = 0; offset < length; offset += REENCRYPTION_CHUNK_SIZE)
+		{
+			int chunkOffset = offset;
+			int chunkLength = Math.min(REENCRYPTION_CHUNK_SIZE, length - offset);
+			long sectorIndex = aSectorIndex + offset / ENCRYPTION_DATA_UNIT_SIZE;
+
+			futures.add(getWorkerPool().submit(() ->
+			{
+				aSource.decrypt(sectorIndex, aBuffer, chunkOffset, chunkLength);
+				encrypt(sectorIndex, aBuffer, chunkOffset, chunkLength);
+				return null;
+			}));
+		}
+
+		return futures;
+	}
+
+
+	/**
+	 * Completes a batch that may have been partially written when the
+	 * re-encryption was interrupted. Sectors whose checksum matches the
+	 * journal are already re-encrypted, the remaining sectors still hold data
+	 * encrypted with the old keys.
+	 */
+	private void recoverBatch(TrueCryptPageStore aSource, long aSectorIndex, int aPageCount, byte[] aJournal) throws IOException
+	{
+		int journalLength = getJournalLength(aPageCount);
+
+		readSectors(REENCRYPTION_JOURNAL_SECTOR, aJournal, 0, journalLength);
+		decrypt(REENCRYPTION_JOURNAL_SECTOR, aJournal, 0, journalLength);
+
+		byte[] buffer = new byte[aPageCount * ENCRYPTION_DATA_UNIT_SIZE];
+		readSectors(aSectorIndex, buffer, 0, buffer.length);
+
+		CRC32 crc = new CRC32();
+
+		for (int i = 0, offset = 0; i < aPageCount; i++, offset += ENCRYPTION_DATA_UNIT_SIZE)
+		{
+			int checksum = ByteArray.BE.getInt(aJournal, 4 * i);
+
+			crc.reset();
+			crc.update(buffer, offset, ENCRYPTION_DATA_UNIT_SIZE);
+
+			if ((int)crc.getValue() != checksum)
+			{
+				aSource.decrypt(aSectorIndex + i, buffer, offset, ENCRYPTION_DATA_UNIT_SIZE);
+				encrypt(aSectorIndex + i, buffer, offset, ENCRYPTION_DATA_UNIT_SIZE);
+
+				crc.reset();
+				crc.update(buffer, offset, ENCRYPTION_DATA_UNIT_SIZE);
+
+				if ((int)crc.getValue() != checksum)
+				{
+					throw new IOException("Re-encryption journal mismatch at page " + (aSectorIndex + i - mVolumeDataAreaOffset / ENCRYPTION_DATA_UNIT_SIZE));
+				}
+			}
+		}
+
+		writeSectors(aSectorIndex, buffer, 0, buffer.length);
+		mPageStore.flush();
+
+		Arrays.fill(buffer, (byte)0);
+	}
+
+
+	/**
+	 * Reads both re-encryption checkpoint slots and returns a store holding
+	 * the new keys and the latest checkpoint that can be decrypted.
+	 */
+	private static TrueCryptPageStore readReencryptionCheckpoint(PageStore aPageStore, String aPassword, CipherOption aCipherOption, DigestOption aDigestOption) throws IOException
+	{
+		TrueCryptPageStore latest = null;
+
+		for (int slot = 0; slot < REENCRYPTION_CHECKPOINT_SECTORS.length; slot++)
+		{
+			TrueCryptPageStore checkpoint = new TrueCryptPageStore(aPageStore);
+
+			try
+			{
+				checkpoint.readVolumeHeader(new long[]{REENCRYPTION_CHECKPOINT_SECTORS[slot]}, aPassword, aCipherOption, aDigestOption);
+			}
+			catch (InvalidKeyException e)
+			{
+				continue;
+			}
+
+			// the next checkpoint is written to the other slot
+			checkpoint.mCheckpointSlot = (slot + 1) % REENCRYPTION_CHECKPOINT_SECTORS.length;
+
+			if (latest == null || compareReencryptionCheckpoints(checkpoint.mVolumeHeader, latest.mVolumeHeader) > 0)
+			{
+				if (latest != null)
+				{
+					latest.release();
+				}
+				latest = checkpoint;
+			}
+			else
+			{
+				checkpoint.release();
+			}
+		}
+
+		if (latest == null)
+		{
+			throw new IOException("The re-encryption checkpoint can't be decrypted.");
+		}
+
+		return latest;
+	}
+
+
+	/**
+	 * Orders checkpoints by position and then by the size of the batch; a
+	 * checkpoint for a batch about to be written follows the checkpoint
+	 * recording the completion of the previous batch at the same position.
+	 */
+	private static int compareReencryptionCheckpoints(byte[] aHeader, byte[] aOtherHeader)
+	{
+		int result = Long.compare(ByteArray.BE.getLong(aHeader, TC_HEADER_OFFSET_REENCRYPTED_LENGTH), ByteArray.BE.getLong(aOtherHeader, TC_HEADER_OFFSET_REENCRYPTED_LENGTH));
+
+		if (result == 0)
+		{
+			result = Integer.compare(ByteArray.BE.getInt(aHeader, TC_HEADER_OFFSET_REENCRYPTION_BATCH), ByteArray.BE.getInt(aOtherHeader, TC_HEADER_OFFSET_REENCRYPTION_BATCH));
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Writes the re-encryption checkpoint: the header holding the new keys
+	 * with the position of the batch about to be written and, for a batch,
+	 * the journal with the checksum of each sector in the batch. The journal
+	 * is written and flushed before the header referring to it and the
+	 * header is written to the slot not holding the previous checkpoint.
+	 * Callers record the completion of a batch with an empty checkpoint
+	 * before the journal is replaced.
+	 */
+	private void writeReencryptionCheckpoint(long aPageIndex, int aPageCount, byte[] aJournal) throws IOException
+	{
+		int journalLength = getJournalLength(aPageCount);
+
+		if (journalLength > 0)
+		{
+			byte[] journal = Arrays.copyOf(aJournal, journalLength);
+			encrypt(REENCRYPTION_JOURNAL_SECTOR, journal, 0, journalLength);
+
+			writeSectors(REENCRYPTION_JOURNAL_SECTOR, journal, 0, journalLength);
+			mPageStore.flush();
+		}
+
+		ByteArray.BE.putLong(mVolumeHeader, TC_HEADER_OFFSET_REENCRYPTED_LENGTH, aPageIndex);
+		ByteArray.BE.putInt(mVolumeHeader, TC_HEADER_OFFSET_REENCRYPTION_BATCH, aPageCount);
+		updateHeaderCRC(mVolumeHeader);
+
+		byte[] buffer = new byte[TC_VOLUME_HEADER_EFFECTIVE_SIZE];
+		System.arraycopy(mVolumeHeader, 0, buffer, 0, TC_VOLUME_HEADER_EFFECTIVE_SIZE);
+		encryptVolumeHeader(buffer, mHeaderKey);
+
+		writeSectors(REENCRYPTION_CHECKPOINT_SECTORS[mCheckpointSlot], buffer, 0, buffer.length);
+		mPageStore.flush();
+
+		mCheckpointSlot = (mCheckpointSlot + 1) % REENCRYPTION_CHECKPOINT_SECTORS.length;
+	}
+
+
+	/**
+	 * Returns the length of the journal for a batch, a whole number of sectors
+	 * holding a four byte checksum per page.
+	 */
+	private static int getJournalLength(int aPageCount)
+	{
+		return (4 * aPageCount + ENCRYPTION_DATA_UNIT_SIZE - 1) / ENCRYPTION_DATA_UNIT_SIZE * ENCRYPTION_DATA_UNIT_SIZE;
+	}
+
+
+	/**
+	 * Fills a range of the data area with encrypted random data. The range is
+	 * split into batches each filled with random data from its own AES-CTR
+	 * keystream and encrypted on the worker pool. Batches are written in order
+	 * as they complete while the following batches are being encrypted.
+	 *
+	 * @param aFirstSector
+	 *   first sector of the range relative to the start of the data area
+	 * @param aSectorCount
+	 *   number of sectors in the range
+	 * @param aProgressCallback
+	 *   receives the number of sectors of the range filled so far or null
+	 */
+	private void fill(long aFirstSector, long aSectorCount, SecureRandom aRandom, Consumer<Long> aProgressCallback) throws IOException
+	{
+		long sectorOffset = mVolumeDataAreaOffset / ENCRYPTION_DATA_UNIT_SIZE + aFirstSector;
+		int batchSectors = FORMAT_BATCH_SIZE / ENCRYPTION_DATA_UNIT_SIZE;
+		int maxPending = 2 * ManagementFactory.getOperatingSystemMXBean().getAvailableProcessors();
+
+		ArrayDeque<Future<PageRange>> pending = new ArrayDeque<>();
+
+		try
+		{
+			for (long index = 0; index < aSectorCount || !pending.isEmpty();)
+			{
+				while (index < aSectorCount && pending.size() < maxPending)
+				{
+					long sectorIndex = sectorOffset + index;
+					int length = (int)Math.min(batchSectors, aSectorCount - index) * ENCRYPTION_DATA_UNIT_SIZE;
+					CTRRandom filler = new CTRRandom(aRandom);
+
+					pending.add(getWorkerPool().submit(() ->
+					{
+						byte[] buffer = new byte[length];
+						filler.nextBytes(buffer, 0, length);
+						filler.reset();
+						encrypt(sectorIndex, buffer, 0, length);
+						return new PageRange(sectorIndex, buffer, 0, length);
+					}));
+
+					index += length / ENCRYPTION_DATA_UNIT_SIZE;
+				}
+
+				PageRange range = pending.removeFirst().get();
+
+				writeSectors(range.getPageIndex(), range.getBuffer(), 0, range.getLength());
+
+				if (aProgressCallback != null)
+				{
+					aProgressCallback.accept(range.getPageIndex() - sectorOffset + range.getLength() / ENCRYPTION_DATA_UNIT_SIZE);
+				}
+			}
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			throw new IOException("Failed to fill volume", e);
+		}
+		finally
+		{
+			for (Future<PageRange> future : pending)
 			{
-				aProgressCallback.accept(sectorIndex);
+				future.cancel(false);
 			}
 		}
 	}
@@ -22,11 +22,19 @@ import java.util.Arrays;
  * @author	Paulo S.L.M. Barreto
  * @author	Vincent Rijmen.
  */
-final class Whirlpool extends MessageDigest implements Cloneable
+final class Whirlpool extends MessageDigest implements Cloneable, HMACIteration
 {
 	private final static int R = 10;
 	private final static long[][] C = new long[8][256];
 	private final static long[] RC = new long[R + 1];
+	private final static long[] C0 = C[0];
+	private final static long[] C1 = C[1];
+	private final static long[] C2 = C[2];
+	private final static long[] C3 = C[3];
+	private final static long[] C4 = C[4];
+	private final static long[] C5 = C[5];
+	private final static long[] C6 = C[6];
+	private final static long[] C7 = C[7];
 	private final static String sbox =
 		"\u1823\uc6E8\u87B8\u014F\u36A6\ud2F5\u796F\u9152" +
 		"\u60Bc\u9B8E\uA30c\u7B35\u1dE0\ud7c2\u2E4B\uFE57" +
@@ -90,16 +98,10 @@ final class Whirlpool extends MessageDigest implements Cloneable
 		}
 	}
 
-	private transient byte[] bitLength = new byte[32];
 	private transient byte[] buffer = new byte[64];
-	private transient int bufferBytes = 0;
-	private transient int bufferPos = 0;
-	private transient long [] hash  = new long[8];
-	private transient long [] K	 = new long[8];
-	private transient long [] L	 = new long[8];
-	private transient long [] block = new long[8];
-	private transient long [] state = new long[8];
-	private transient final byte [] dummyBuffer = new byte[1];
+	private transient int bufferPos;
+	private transient long byteCount;
+	private transient long[] hash = new long[8];
 
 
 	public Whirlpool()
@@ -145,31 +147,71 @@ final class Whirlpool extends MessageDigest implements Cloneable
 	@Override
 	protected void engineReset()
 	{
-		Arrays.fill(bitLength, (byte)0);
-		bufferBytes = bufferPos = 0;
-		buffer[0] = 0;
+		Arrays.fill(buffer, (byte)0);
 		Arrays.fill(hash, 0L);
+		bufferPos = 0;
+		byteCount = 0;
 	}
 
 
 	@Override
 	protected void engineUpdate(byte input)
 	{
-		dummyBuffer[0] = input;
-		add(dummyBuffer, 0, 8L);
+		buffer[bufferPos++] = input;
+		byteCount++;
+
+		if (bufferPos == 64)
+		{
+			processBlock(buffer, 0);
+			bufferPos = 0;
+		}
 	}
 
 
 	@Override
 	protected void engineUpdate(byte[] input, int offset, int len)
 	{
-		add(input, offset, 8L * len);
+		byteCount += len;
+
+		if (bufferPos > 0)
+		{
+			int n = Math.min(len, 64 - bufferPos);
+			System.arraycopy(input, offset, buffer, bufferPos, n);
+			bufferPos += n;
+			offset += n;
+			len -= n;
+
+			if (bufferPos < 64)
+			{
+				return;
+			}
+
+			processBlock(buffer, 0);
+			bufferPos = 0;
+		}
+
+		// full blocks are processed directly from the input without buffering
+		for (; len >= 64; offset += 64, len -= 64)
+		{
+			processBlock(input, offset);
+		}
+
+		System.arraycopy(input, offset, buffer, 0, len);
+		bufferPos = len;
 	}
 
 
 	@Override
 	protected void engineUpdate(ByteBuffer input)
 	{
+		if (input.hasArray())
+		{
+			int len = input.remaining();
+			engineUpdate(input.array(), input.arrayOffset() + input.position(), len);
+			input.position(input.position() + len);
+			return;
+		}
+
 		while (input.hasRemaining())
 		{
 			engineUpdate(input.get());
@@ -177,137 +219,213 @@ final class Whirlpool extends MessageDigest implements Cloneable
 	}
 
 
+	private void processBlock(byte[] aBuffer, int aOffset)
+	{
+		transform(hash,
+			getLong(aBuffer, aOffset),
+			getLong(aBuffer, aOffset + 8),
+			getLong(aBuffer, aOffset + 16),
+			getLong(aBuffer, aOffset + 24),
+			getLong(aBuffer, aOffset + 32),
+			getLong(aBuffer, aOffset + 40),
+			getLong(aBuffer, aOffset + 48),
+			getLong(aBuffer, aOffset + 56));
+	}
+
+
 	/**
-	 * The core Whirlpool transform.
+	 * The core Whirlpool transform. The key schedule and cipher state are kept
+	 * in local variables and each round is fully unrolled.
 	 */
-	protected void processBuffer()
+	private static void transform(long[] aHash, long b0, long b1, long b2, long b3, long b4, long b5, long b6, long b7)
 	{
-		for (int i = 0, j = 0; i < 8; i++, j += 8)
-		{
-			block[i] =
-				(((long)buffer[j	]        ) << 56) ^
-				(((long)buffer[j + 1] & 0xffL) << 48) ^
-				(((long)buffer[j + 2] & 0xffL) << 40) ^
-				(((long)buffer[j + 3] & 0xffL) << 32) ^
-				(((long)buffer[j + 4] & 0xffL) << 24) ^
-				(((long)buffer[j + 5] & 0xffL) << 16) ^
-				(((long)buffer[j + 6] & 0xffL) <<  8) ^
-				(((long)buffer[j + 7] & 0xffL)	  );
-		}
+		long k0 = aHash[0];
+		long k1 = aHash[1];
+		long k2 = aHash[2];
+		long k3 = aHash[3];
+		long k4 = aHash[4];
+		long k5 = aHash[5];
+		long k6 = aHash[6];
+		long k7 = aHash[7];
+
+		long s0 = b0 ^ k0;
+		long s1 = b1 ^ k1;
+		long s2 = b2 ^ k2;
+		long s3 = b3 ^ k3;
+		long s4 = b4 ^ k4;
+		long s5 = b5 ^ k5;
+		long s6 = b6 ^ k6;
+		long s7 = b7 ^ k7;
 
-		for (int i = 0; i < 8; i++)
+		for (int r = 1; r <= R; r++)
 		{
-			state[i] = block[i] ^ (K[i] = hash[i]);
+			long l0 = C0[(int)(k0 >>> 56)] ^ C1[(int)(k7 >>> 48) & 0xff] ^ C2[(int)(k6 >>> 40) & 0xff] ^ C3[(int)(k5 >>> 32) & 0xff]
+				^ C4[(int)(k4 >>> 24) & 0xff] ^ C5[(int)(k3 >>> 16) & 0xff] ^ C6[(int)(k2 >>> 8) & 0xff] ^ C7[(int)k1 & 0xff];
+			long l1 = C0[(int)(k1 >>> 56)] ^ C1[(int)(k0 >>> 48) & 0xff] ^ C2[(int)(k7 >>> 40) & 0xff] ^ C3[(int)(k6 >>> 32) & 0xff]
+				^ C4[(int)(k5 >>> 24) & 0xff] ^ C5[(int)(k4 >>> 16) & 0xff] ^ C6[(int)(k3 >>> 8) & 0xff] ^ C7[(int)k2 & 0xff];
+			long l2 = C0[(int)(k2 >>> 56)] ^ C1[(int)(k1 >>> 48) & 0xff] ^ C2[(int)(k0 >>> 40) & 0xff] ^ C3[(int)(k7 >>> 32) & 0xff]
+				^ C4[(int)(k6 >>> 24) & 0xff] ^ C5[(int)(k5 >>> 16) & 0xff] ^ C6[(int)(k4 >>> 8) & 0xff] ^ C7[(int)k3 & 0xff];
+			long l3 = C0[(int)(k3 >>> 56)] ^ C1[(int)(k2 >>> 48) & 0xff] ^ C2[(int)(k1 >>> 40) & 0xff] ^ C3[(int)(k0 >>> 32) & 0xff]
+				^ C4[(int)(k7 >>> 24) & 0xff] ^ C5[(int)(k6 >>> 16) & 0xff] ^ C6[(int)(k5 >>> 8) & 0xff] ^ C7[(int)k4 & 0xff];
+			long l4 = C0[(int)(k4 >>> 56)] ^ C1[(int)(k3 >>> 48) & 0xff] ^ C2[(int)(k2 >>> 40) & 0xff] ^ C3[(int)(k1 >>> 32) & 0xff]
+				^ C4[(int)(k0 >>> 24) & 0xff] ^ C5[(int)(k7 >>> 16) & 0xff] ^ C6[(int)(k6 >>> 8) & 0xff] ^ C7[(int)k5 & 0xff];
+			long l5 = C0[(int)(k5 >>> 56)] ^ C1[(int)(k4 >>> 48) & 0xff] ^ C2[(int)(k3 >>> 40) & 0xff] ^ C3[(int)(k2 >>> 32) & 0xff]
+				^ C4[(int)(k1 >>> 24) & 0xff] ^ C5[(int)(k0 >>> 16) & 0xff] ^ C6[(int)(k7 >>> 8) & 0xff] ^ C7[(int)k6 & 0xff];
+			long l6 = C0[(int)(k6 >>> 56)] ^ C1[(int)(k5 >>> 48) & 0xff] ^ C2[(int)(k4 >>> 40) & 0xff] ^ C3[(int)(k3 >>> 32) & 0xff]
+				^ C4[(int)(k2 >>> 24) & 0xff] ^ C5[(int)(k1 >>> 16) & 0xff] ^ C6[(int)(k0 >>> 8) & 0xff] ^ C7[(int)k7 & 0xff];
+			long l7 = C0[(int)(k7 >>> 56)] ^ C1[(int)(k6 >>> 48) & 0xff] ^ C2[(int)(k5 >>> 40) & 0xff] ^ C3[(int)(k4 >>> 32) & 0xff]
+				^ C4[(int)(k3 >>> 24) & 0xff] ^ C5[(int)(k2 >>> 16) & 0xff] ^ C6[(int)(k1 >>> 8) & 0xff] ^ C7[(int)k0 & 0xff];
+
+			l0 ^= RC[r];
+
+			long m0 = l0 ^ C0[(int)(s0 >>> 56)] ^ C1[(int)(s7 >>> 48) & 0xff] ^ C2[(int)(s6 >>> 40) & 0xff] ^ C3[(int)(s5 >>> 32) & 0xff]
+				^ C4[(int)(s4 >>> 24) & 0xff] ^ C5[(int)(s3 >>> 16) & 0xff] ^ C6[(int)(s2 >>> 8) & 0xff] ^ C7[(int)s1 & 0xff];
+			long m1 = l1 ^ C0[(int)(s1 >>> 56)] ^ C1[(int)(s0 >>> 48) & 0xff] ^ C2[(int)(s7 >>> 40) & 0xff] ^ C3[(int)(s6 >>> 32) & 0xff]
+				^ C4[(int)(s5 >>> 24) & 0xff] ^ C5[(int)(s4 >>> 16) & 0xff] ^ C6[(int)(s3 >>> 8) & 0xff] ^ C7[(int)s2 & 0xff];
+			long m2 = l2 ^ C0[(int)(s2 >>> 56)] ^ C1[(int)(s1 >>> 48) & 0xff] ^ C2[(int)(s0 >>> 40) & 0xff] ^ C3[(int)(s7 >>> 32) & 0xff]
+				^ C4[(int)(s6 >>> 24) & 0xff] ^ C5[(int)(s5 >>> 16) & 0xff] ^ C6[(int)(s4 >>> 8) & 0xff] ^ C7[(int)s3 & 0xff];
+			long m3 = l3 ^ C0[(int)(s3 >>> 56)] ^ C1[(int)(s2 >>> 48) & 0xff] ^ C2[(int)(s1 >>> 40) & 0xff] ^ C3[(int)(s0 >>> 32) & 0xff]
+				^ C4[(int)(s7 >>> 24) & 0xff] ^ C5[(int)(s6 >>> 16) & 0xff] ^ C6[(int)(s5 >>> 8) & 0xff] ^ C7[(int)s4 & 0xff];
+			long m4 = l4 ^ C0[(int)(s4 >>> 56)] ^ C1[(int)(s3 >>> 48) & 0xff] ^ C2[(int)(s2 >>> 40) & 0xff] ^ C3[(int)(s1 >>> 32) & 0xff]
+				^ C4[(int)(s0 >>> 24) & 0xff] ^ C5[(int)(s7 >>> 16) & 0xff] ^ C6[(int)(s6 >>> 8) & 0xff] ^ C7[(int)s5 & 0xff];
+			long m5 = l5 ^ C0[(int)(s5 >>> 56)] ^ C1[(int)(s4 >>> 48) & 0xff] ^ C2[(int)(s3 >>> 40) & 0xff] ^ C3[(int)(s2 >>> 32) & 0xff]
+				^ C4[(int)(s1 >>> 24) & 0xff] ^ C5[(int)(s0 >>> 16) & 0xff] ^ C6[(int)(s7 >>> 8) & 0xff] ^ C7[(int)s6 & 0xff];
+			long m6 = l6 ^ C0[(int)(s6 >>> 56)] ^ C1[(int)(s5 >>> 48) & 0xff] ^ C2[(int)(s4 >>> 40) & 0xff] ^ C3[(int)(s3 >>> 32) & 0xff]
+				^ C4[(int)(s2 >>> 24) & 0xff] ^ C5[(int)(s1 >>> 16) & 0xff] ^ C6[(int)(s0 >>> 8) & 0xff] ^ C7[(int)s7 & 0xff];
+			long m7 = l7 ^ C0[(int)(s7 >>> 56)] ^ C1[(int)(s6 >>> 48) & 0xff] ^ C2[(int)(s5 >>> 40) & 0xff] ^ C3[(int)(s4 >>> 32) & 0xff]
+				^ C4[(int)(s3 >>> 24) & 0xff] ^ C5[(int)(s2 >>> 16) & 0xff] ^ C6[(int)(s1 >>> 8) & 0xff] ^ C7[(int)s0 & 0xff];
+
+			k0 = l0;
+			k1 = l1;
+			k2 = l2;
+			k3 = l3;
+			k4 = l4;
+			k5 = l5;
+			k6 = l6;
+			k7 = l7;
+
+			s0 = m0;
+			s1 = m1;
+			s2 = m2;
+			s3 = m3;
+			s4 = m4;
+			s5 = m5;
+			s6 = m6;
+			s7 = m7;
 		}
 
-		for (int r = 1; r <= R; r++)
-		{
-			for (int i = 0; i < 8; i++)
-			{
-				L[i] = 0L;
-				for (int t = 0, s = 56; t < 8; t++, s -= 8)
-				{
-					L[i] ^= C[t][(int)(K[(i - t) & 7] >>> s) & 0xff];
-				}
-			}
-			System.arraycopy(L, 0, K, 0, 8);
-			K[0] ^= RC[r];
+		aHash[0] ^= s0 ^ b0;
+		aHash[1] ^= s1 ^ b1;
+		aHash[2] ^= s2 ^ b2;
+		aHash[3] ^= s3 ^ b3;
+		aHash[4] ^= s4 ^ b4;
+		aHash[5] ^= s5 ^ b5;
+		aHash[6] ^= s6 ^ b6;
+		aHash[7] ^= s7 ^ b7;
+	}
 
-			for (int i = 0; i < 8; i++)
-			{
-				L[i] = K[i];
-				for (int t = 0, s = 56; t < 8; t++, s -= 8)
-				{
-					L[i] ^= C[t][(int)(state[(i - t) & 7] >>> s) & 0xff];
-				}
-			}
-			System.arraycopy(L, 0, state, 0, 8);
+
+	/**
+	 * Get the hash value from the hashing state.
+	 */
+	private void finalize(byte [] digest, int offset)
+	{
+		long bitLength = byteCount << 3;
+
+		buffer[bufferPos++] = (byte)0x80;
+
+		if (bufferPos > 32)
+		{
+			Arrays.fill(buffer, bufferPos, 64, (byte)0);
+			processBlock(buffer, 0);
+			bufferPos = 0;
 		}
 
+		// the 256-bit message length
+		Arrays.fill(buffer, bufferPos, 48, (byte)0);
+		putLong(buffer, 48, byteCount >>> 61);
+		putLong(buffer, 56, bitLength);
+		processBlock(buffer, 0);
+
 		for (int i = 0; i < 8; i++)
 		{
-			hash[i] ^= state[i] ^ block[i];
+			putLong(digest, offset + 8 * i, hash[i]);
 		}
 	}
 
 
-	/**
-	 * Delivers input data to the hashing algorithm.
-	 *
-	 * @param	source		plaintext data to hash.
-	 * @param	sourceBits	how many bits of plaintext to process.
-	 *
-	 * This method maintains the invariant: bufferBytes < 64
-	 */
-	private void add(byte [] source, int offset, long sourceBits)
+	@Override
+	public void iterateHMAC(byte[] aInputPad, byte[] aOutputPad, byte[] aBuffer, int aOffset, int aIterationCount)
 	{
-		assert (sourceBits % 8) == 0;
+		Whirlpool inner = new Whirlpool();
+		inner.processBlock(aInputPad, 0);
+		Whirlpool outer = new Whirlpool();
+		outer.processBlock(aOutputPad, 0);
+
+		long padding0 = 0x8000000000000000L;
+		long padding7 = (64 + 64) << 3;
 
-		int sourcePos = offset;
-		int b;
+		long[] u = new long[8];
+		long[] t = new long[8];
+		long[] x = new long[8];
 
-		long value = sourceBits;
-		for (int i = 31, carry = 0; i >= 0; i--)
+		for (int i = 0; i < 8; i++)
 		{
-			carry += (bitLength[i] & 0xff) + ((int)value & 0xff);
-			bitLength[i] = (byte)carry;
-			carry >>>= 8;
-			value >>>= 8;
+			u[i] = x[i] = getLong(aBuffer, aOffset + 8 * i);
 		}
 
-		while (sourceBits >= 8)
+		for (int j = 0; j < aIterationCount; j++)
 		{
-			b = source[sourcePos] & 0xff;
+			System.arraycopy(inner.hash, 0, t, 0, 8);
+			transform(t, u[0], u[1], u[2], u[3], u[4], u[5], u[6], u[7]);
+			transform(t, padding0, 0, 0, 0, 0, 0, 0, padding7);
+
+			System.arraycopy(outer.hash, 0, u, 0, 8);
+			transform(u, t[0], t[1], t[2], t[3], t[4], t[5], t[6], t[7]);
+			transform(u, padding0, 0, 0, 0, 0, 0, 0, padding7);
 
-			buffer[bufferPos++] |= b;
-			bufferBytes++;
-			if (bufferBytes == 64)
+			for (int i = 0; i < 8; i++)
 			{
-				processBuffer();
-				bufferBytes = bufferPos = 0;
+				x[i] ^= u[i];
 			}
-			buffer[bufferPos] = (byte)((b << 8) & 0xff);
+		}
 
-			sourceBits -= 8;
-			sourcePos++;
+		for (int i = 0; i < 8; i++)
+		{
+			putLong(aBuffer, aOffset + 8 * i, x[i]);
 		}
+
+		inner.engineReset();
+		outer.engineReset();
+		Arrays.fill(u, 0L);
+		Arrays.fill(t, 0L);
+		Arrays.fill(x, 0L);
 	}
 
-	/**
-	 * Get the hash value from the hashing state.
-	 */
-	private void finalize(byte [] digest, int offset)
+
+	private static long getLong(byte[] aBuffer, int aOffset)
 	{
-		buffer[bufferPos] |= 0x80;
-		bufferPos++;
+		return ((long)(aBuffer[aOffset    ]        ) << 56)
+			 | ((long)(aBuffer[aOffset + 1] & 0xff) << 48)
+			 | ((long)(aBuffer[aOffset + 2] & 0xff) << 40)
+			 | ((long)(aBuffer[aOffset + 3] & 0xff) << 32)
+			 | ((long)(aBuffer[aOffset + 4] & 0xff) << 24)
+			 | ((long)(aBuffer[aOffset + 5] & 0xff) << 16)
+			 | ((long)(aBuffer[aOffset + 6] & 0xff) <<  8)
+			 | ((long)(aBuffer[aOffset + 7] & 0xff)      );
+	}
 
-		if (bufferPos > 32)
-		{
-			while (bufferPos < 64)
-			{
-				buffer[bufferPos++] = 0;
-			}
-			processBuffer();
-			bufferPos = 0;
-		}
-		while (bufferPos < 32)
-		{
-			buffer[bufferPos++] = 0;
-		}
-		System.arraycopy(bitLength, 0, buffer, 32, 32);
-		processBuffer();
-		for (int i = 0, j = offset; i < 8; i++, j += 8)
-		{
-			long h = hash[i];
-			digest[j	] = (byte)(h >>> 56);
-			digest[j + 1] = (byte)(h >>> 48);
-			digest[j + 2] = (byte)(h >>> 40);
-			digest[j + 3] = (byte)(h >>> 32);
-			digest[j + 4] = (byte)(h >>> 24);
-			digest[j + 5] = (byte)(h >>> 16);
-			digest[j + 6] = (byte)(h >>>  8);
-			digest[j + 7] = (byte)(h	   );
-		}
+
+	private static void putLong(byte[] aBuffer, int aOffset, long aValue)
+	{
+		aBuffer[aOffset    ] = (byte)(aValue >>> 56);
+		aBuffer[aOffset + 1] = (byte)(aValue >>> 48);
+		aBuffer[aOffset + 2] = (byte)(aValue >>> 40);
+		aBuffer[aOffset + 3] = (byte)(aValue >>> 32);
+		aBuffer[aOffset + 4] = (byte)(aValue >>> 24);
+		aBuffer[aOffset + 5] = (byte)(aValue >>> 16);
+		aBuffer[aOffset + 6] = (byte)(aValue >>>  8);
+		aBuffer[aOffset + 7] = (byte)(aValue       );
 	}
 
 
@@ -323,15 +441,10 @@ final class Whirlpool extends MessageDigest implements Cloneable
 	{
 		Whirlpool instance = new Whirlpool();
 
-		instance.K = this.K.clone();
-		instance.L = this.L.clone();
-		instance.bitLength = this.bitLength.clone();
-		instance.block = this.block.clone();
 		instance.buffer = this.buffer.clone();
-		instance.bufferBytes = this.bufferBytes;
 		instance.bufferPos = this.bufferPos;
+		instance.byteCount = this.byteCount;
 		instance.hash = this.hash.clone();
-		instance.state = this.state.clone();
 
 		return instance;
 	}
@@ -1,5 +1,7 @@
 package org.terifan.truecrypt;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.terifan.util.Convert;
 
 
@@ -211,6 +213,107 @@ class XTS
 	}
 
 
+	/**
+	 * Encrypts a region of a ByteBuffer using the XTS cipher mode and the
+	 * provided Ciphers. The buffer may be a direct buffer. Data units are
+	 * copied through a scratch array one at a time. The position and limit of
+	 * the buffer are not changed.
+	 *
+	 * @param aBuffer
+	 *   the buffer to encrypt
+	 * @param aOffset
+	 *   the absolute start offset in the buffer
+	 * @param aLength
+	 *   number of bytes to encrypt; must be divisible by 16
+	 * @param aStartDataUnitNo
+	 *   the sequential number of the data unit with which the buffer starts.
+	 * @param aCipher
+	 *   the primary key schedule
+	 * @param aTweakCipher
+	 *   the secondary key schedule
+	 */
+	public void encrypt(ByteBuffer aBuffer, int aOffset, int aLength, long aStartDataUnitNo, Cipher aCipher, Cipher aTweakCipher)
+	{
+		transform(aBuffer, aOffset, aLength, aStartDataUnitNo, aCipher, aTweakCipher, true);
+	}
+
+
+	/**
+	 * Decrypts a region of a ByteBuffer using the XTS cipher mode and the
+	 * provided Ciphers. The buffer may be a direct buffer. Data units are
+	 * copied through a scratch array one at a time. The position and limit of
+	 * the buffer are not changed.
+	 *
+	 * @param aBuffer
+	 *   the buffer to decrypt
+	 * @param aOffset
+	 *   the absolute start offset in the buffer
+	 * @param aLength
+	 *   number of bytes to decrypt; must be divisible by 16
+	 * @param aStartDataUnitNo
+	 *   the sequential number of the data unit with which the buffer starts.
+	 * @param aCipher
+	 *   the primary key schedule
+	 * @param aTweakCipher
+	 *   the secondary key schedule
+	 */
+	public void decrypt(ByteBuffer aBuffer, int aOffset, int aLength, long aStartDataUnitNo, Cipher aCipher, Cipher aTweakCipher)
+	{
+		transform(aBuffer, aOffset, aLength, aStartDataUnitNo, aCipher, aTweakCipher, false);
+	}
+
+
+	private void transform(ByteBuffer aBuffer, int aOffset, int aLength, long aStartDataUnitNo, Cipher aCipher, Cipher aTweakCipher, boolean aEncrypt)
+	{
+		if ((aLength & 15) != 0)
+		{
+			throw new IllegalArgumentException("Provided argument 'aLength' is not a multiple of 16.");
+		}
+
+		if (aBuffer.hasArray())
+		{
+			if (aEncrypt)
+			{
+				encrypt(aBuffer.array(), aBuffer.arrayOffset() + aOffset, aLength, aStartDataUnitNo, aCipher, aTweakCipher);
+			}
+			else
+			{
+				decrypt(aBuffer.array(), aBuffer.arrayOffset() + aOffset, aLength, aStartDataUnitNo, aCipher, aTweakCipher);
+			}
+			return;
+		}
+
+		int unitSize = mBlocksPerUnit * BYTES_PER_XTS_BLOCK;
+		byte [] unit = new byte[unitSize];
+		ByteBuffer buffer = aBuffer.duplicate();
+
+		for (long dataUnitNo = aStartDataUnitNo; aLength > 0; dataUnitNo++)
+		{
+			int length = Math.min(aLength, unitSize);
+
+			buffer.limit(aOffset + length).position(aOffset);
+			buffer.get(unit, 0, length);
+
+			if (aEncrypt)
+			{
+				encrypt(unit, 0, length, dataUnitNo, aCipher, aTweakCipher);
+			}
+			else
+			{
+				decrypt(unit, 0, length, dataUnitNo, aCipher, aTweakCipher);
+			}
+
+			buffer.position(aOffset);
+			buffer.put(unit, 0, length);
+
+			aOffset += length;
+			aLength -= length;
+		}
+
+		Arrays.fill(unit, (byte)0);
+	}
+
+
 	private static void xor(byte [] aBuffer, int aOffset, byte [] aMask, int aMaskOffset)
 	{
 		for (int i = 0; i < 16; i++)
@@ -1,10 +1,14 @@
 package org.terifan.util;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -20,6 +24,15 @@ import java.util.Set;
  * CacheStateListeners can be used to monitor how the cache receives removes
  * items.<p>
  *
+ * The Cache is safe for use by multiple threads. Keys are spread over a
+ * fixed number of segments, each with its own lock, hash map and
+ * intrusive doubly-linked list of entries in MRU order, so lookups,
+ * reordering and removal are constant time operations regardless of the
+ * number of items in the cache and threads only contend when they access
+ * keys of the same segment. The capacity applies to the cache as a whole:
+ * every entry records when it was last used and eviction removes the least
+ * recently used entry of all segments, found among the segment tails.<p>
+ *
  * @param <K>
  *   the key type used by this cache
  * @param <V>
@@ -27,18 +40,25 @@ import java.util.Set;
  */
 public class Cache<K,V> implements Iterable<K>
 {
-	private long mCapacity;
-	private long mUsedSize;
-	private LinkedList<K> mCacheOrder;
-	private HashMap<K,Entry<K,V>> mKeyValueMap;
-	private int mExpireTime;
+	private final static int SEGMENT_SHIFT = 4;
+	private final static int SEGMENT_COUNT = 1 << SEGMENT_SHIFT;
+	private final static long EMPTY = Long.MAX_VALUE;
+
+	private final Segment[] mSegments;
+	private final AtomicLong mUsedSize;
+	private volatile long mCapacity;
+	private volatile int mExpireTime;
 
 
-	public class Entry<K,V>
+	private static class Entry<K,V>
 	{
-		private V value;
+		private K key;
+		private volatile V value;
 		private long time;
+		private long access;
 		private long size;
+		private Entry<K,V> prev;
+		private Entry<K,V> next;
 	}
 
 
@@ -49,12 +69,18 @@ public class Cache<K,V> implements Iterable<K>
 	 *   capacity of this Cache. Items will be removed when the total size
 	 *   exceeds this value.
 	 */
+	@SuppressWarnings("unchecked")
 	public Cache(long aCapacity)
 	{
 		mCapacity = aCapacity;
-		mKeyValueMap = new HashMap<>();
-		mCacheOrder = new LinkedList<>();
+		mUsedSize = new AtomicLong();
 		mExpireTime = Integer.MAX_VALUE;
+
+		mSegments = (Segment[])new Cache<?,?>.Segment[SEGMENT_COUNT];
+		for (int i = 0; i < SEGMENT_COUNT; i++)
+		{
+			mSegments[i] = new Segment();
+		}
 	}
 
 
@@ -80,7 +106,7 @@ public class Cache<K,V> implements Iterable<K>
 	 *   capacity of this Cache. Items will be removed from the Cache when the
 	 *   total size exceeds this value.
 	 */
-	public synchronized void setCapacity(long aCapacity)
+	public void setCapacity(long aCapacity)
 	{
 		mCapacity = aCapacity;
 
@@ -94,7 +120,7 @@ public class Cache<K,V> implements Iterable<K>
 	 * @return
 	 *   the capacity of this Cache
 	 */
-	public synchronized long getCapacity()
+	public long getCapacity()
 	{
 		return mCapacity;
 	}
@@ -120,43 +146,14 @@ public class Cache<K,V> implements Iterable<K>
 	 *   mapping for key. A null return can also indicate that the map
 	 *   previously associated null with the specified key.
 	 */
-	public synchronized V put(K aKey, V aValue, long aItemSize)
+	public V put(K aKey, V aValue, long aItemSize)
 	{
 		if (aItemSize > mCapacity)
 		{
 			return null;
 		}
 
-		V prevValue;
-
-		if (mKeyValueMap.containsKey(aKey))
-		{
-			mCacheOrder.remove(aKey);
-			mCacheOrder.addFirst(aKey);
-
-			Entry<K,V> entry = mKeyValueMap.get(aKey);
-
-			prevValue = entry.value;
-
-			mUsedSize += aItemSize - entry.size;
-
-			entry.value = aValue;
-			entry.size = aItemSize;
-			entry.time = System.currentTimeMillis();
-		}
-		else
-		{
-			prevValue = null;
-
-			Entry entry = new Entry();
-			entry.value = aValue;
-			entry.size = aItemSize;
-			entry.time = System.currentTimeMillis();
-
-			mUsedSize += aItemSize;
-			mCacheOrder.addFirst(aKey);
-			mKeyValueMap.put(aKey, entry);
-		}
+		V prevValue = getSegment(aKey).put(aKey, aValue, aItemSize, true);
 
 		shrink();
 
@@ -164,26 +161,48 @@ public class Cache<K,V> implements Iterable<K>
 	}
 
 
+	/**
+	 * Removes least recently used entries until the used size is within the
+	 * capacity and, when an expire time is set, entries not replaced within
+	 * the expire time from the end of each segment. The segment to evict from
+	 * is chosen without locking and segments are locked one at a time so that
+	 * no two segment locks are ever held together.
+	 */
 	private void shrink()
 	{
-		while (mUsedSize > mCapacity && mKeyValueMap.size() > 0)
+		while (mUsedSize.get() > mCapacity)
 		{
-			removeImpl(mCacheOrder.getLast(), true);
+			Segment oldest = null;
+			long oldestAccess = EMPTY;
+
+			for (Segment segment : mSegments)
+			{
+				long access = segment.mTailAccess;
+
+				if (access < oldestAccess)
+				{
+					oldest = segment;
+					oldestAccess = access;
+				}
+			}
+
+			if (oldest == null)
+			{
+				break;
+			}
+
+			oldest.removeTail(Long.MAX_VALUE);
 		}
 
 		if (mExpireTime < Integer.MAX_VALUE)
 		{
 			long threshold = System.currentTimeMillis() - mExpireTime;
 
-			while (mKeyValueMap.size() > 0)
+			for (Segment segment : mSegments)
 			{
-				K last = mCacheOrder.getLast();
-				Entry entry = mKeyValueMap.get(last);
-				if (entry == null || entry.time > threshold)
+				while (segment.removeTail(threshold))
 				{
-					break;
 				}
-				removeImpl(last, true);
 			}
 		}
 	}
@@ -207,51 +226,55 @@ public class Cache<K,V> implements Iterable<K>
 	 *   The value to which this map maps the specified key, or null if the
 	 *   map contains no mapping for this key.
 	 */
-	public synchronized V get(K aKey)
+	public V get(K aKey)
 	{
-		Entry<K, V> entry = mKeyValueMap.get(aKey);
-
-		if (entry != null)
-		{
-			mCacheOrder.remove(aKey);
-			mCacheOrder.addFirst(aKey);
-
-			return entry.value;
-		}
+		Entry<K,V> entry = getSegment(aKey).get(aKey, true);
 
-		return null;
+		return entry == null ? null : entry.value;
 	}
 
 
-	public synchronized V get(K aKey, Provider<K,V> aProvider)
+	/**
+	 * Returns the value of a key creating it with the provider if the key
+	 * isn't in the cache. The provider is called without any lock held so
+	 * several threads may create a value for the same key concurrently; the
+	 * value cached first is returned to all of them.
+	 */
+	public V get(K aKey, Provider<K,V> aProvider)
 	{
-		Entry<K, V> entry = mKeyValueMap.get(aKey);
+		Segment segment = getSegment(aKey);
+		Entry<K,V> entry = segment.get(aKey, true);
 
 		if (entry != null)
 		{
-			mCacheOrder.remove(aKey);
-			mCacheOrder.addFirst(aKey);
-
 			return entry.value;
 		}
 
 		if (aProvider != null)
 		{
+			V value;
 			try
 			{
-				V value = aProvider.create(aKey);
-
-				if (value != null)
-				{
-					put(aKey, value, 1);
-				}
-
-				return value;
+				value = aProvider.create(aKey);
 			}
 			catch (Exception e)
 			{
 				throw new IllegalStateException(e);
 			}
+
+			if (value != null && mCapacity >= 1)
+			{
+				V prevValue = segment.put(aKey, value, 1, false);
+
+				shrink();
+
+				if (prevValue != null)
+				{
+					return prevValue;
+				}
+			}
+
+			return value;
 		}
 
 		return null;
@@ -282,14 +305,11 @@ public class Cache<K,V> implements Iterable<K>
 	 *   The value to which this map maps the specified key, or null if the
 	 *   map contains no mapping for this key.
 	 */
-	public synchronized V peek(K aKey)
+	public V peek(K aKey)
 	{
-		Entry<K,V> entry = mKeyValueMap.get(aKey);
-		if (entry == null)
-		{
-			return null;
-		}
-		return entry.value;
+		Entry<K,V> entry = getSegment(aKey).get(aKey, false);
+
+		return entry == null ? null : entry.value;
 	}
 
 
@@ -301,17 +321,9 @@ public class Cache<K,V> implements Iterable<K>
 	 * @return
 	 *	 True if this map contains a mapping for the specified key.
 	 */
-	public synchronized boolean containsKey(K aKey)
+	public boolean containsKey(K aKey)
 	{
-		boolean b = mKeyValueMap.containsKey(aKey);
-
-		if (b)
-		{
-			mCacheOrder.remove(aKey);
-			mCacheOrder.addFirst(aKey);
-		}
-
-		return b;
+		return getSegment(aKey).get(aKey, true) != null;
 	}
 
 
@@ -324,14 +336,9 @@ public class Cache<K,V> implements Iterable<K>
 	 * @return
 	 *	 True if this map contains a mapping for the specified key.
 	 */
-	public synchronized boolean bump(K aKey)
+	public boolean bump(K aKey)
 	{
-		if (mCacheOrder.remove(aKey))
-		{
-			mCacheOrder.addFirst(aKey);
-			return true;
-		}
-		return false;
+		return getSegment(aKey).get(aKey, true) != null;
 	}
 
 
@@ -344,46 +351,43 @@ public class Cache<K,V> implements Iterable<K>
 	 *    Previous value associated with specified key, or null if there
 	 *    was no mapping for key.
 	 */
-	public synchronized V remove(K aKey)
+	public V remove(K aKey)
 	{
-		return removeImpl(aKey, false);
+		return getSegment(aKey).remove(aKey);
 	}
 
 
-	public synchronized void removeAll(Collection<K> aKeys)
+	public void removeAll(Collection<K> aKeys)
 	{
 		for (K key : aKeys)
 		{
-			removeImpl(key, false);
+			remove(key);
 		}
 	}
 
 
-	private synchronized V removeImpl(K aKey, boolean aDropped)
-	{
-		Entry<K,V> entry = mKeyValueMap.remove(aKey);
-
-		if (entry == null)
-		{
-			return null;
-		}
-
-		mCacheOrder.remove(aKey);
-		mUsedSize -= entry.size;
-
-		return entry.value;
-	}
-
-
 	/**
 	 * Returns the number of key-value mappings in this map.
 	 *
 	 * @return
 	 *   the number of key-value mappings in this map.
 	 */
-	public synchronized int size()
+	public int size()
 	{
-		return mKeyValueMap.size();
+		int size = 0;
+		for (Segment segment : mSegments)
+		{
+			segment.mLock.lock();
+			try
+			{
+				size += segment.mMap.size();
+			}
+			finally
+			{
+				segment.mLock.unlock();
+			}
+		}
+		return size;
 	}
 
 
@@ -393,9 +397,9 @@ public class Cache<K,V> implements Iterable<K>
 	 * @return
 	 *   the total item size of this map.
 	 */
-	public synchronized long getUsedSize()
+	public long getUsedSize()
 	{
-		return mUsedSize;
+		return mUsedSize.get();
 	}
 
 
@@ -404,16 +408,14 @@ public class Cache<K,V> implements Iterable<K>
 	 * this cache removing items from the end. Listeners will be called for
 	 * every item removed.
 	 */
-	public synchronized void clear()
+	public void clear()
 	{
-		while (mCacheOrder.size() > 0)
+		for (Segment segment : mSegments)
 		{
-			remove(mCacheOrder.getLast());
+			while (segment.removeTail(Long.MAX_VALUE))
+			{
+			}
 		}
-
-		mUsedSize = 0;
-		mKeyValueMap.clear();
-		mCacheOrder.clear();
 	}
 
 
@@ -421,11 +423,27 @@ public class Cache<K,V> implements Iterable<K>
 	 * Removes all mappings from this map without calling any listeners or the
 	 * CacheBackend if one exists.
 	 */
-	public synchronized void clearQuiet()
+	public void clearQuiet()
 	{
-		mUsedSize = 0;
-		mKeyValueMap.clear();
-		mCacheOrder.clear();
+		for (Segment segment : mSegments)
+		{
+			segment.mLock.lock();
+			try
+			{
+				for (Entry<K,V> entry = segment.mHead; entry != null; entry = entry.next)
+				{
+					mUsedSize.addAndGet(-entry.size);
+				}
+				segment.mMap.clear();
+				segment.mHead = null;
+				segment.mTail = null;
+				segment.mTailAccess = EMPTY;
+			}
+			finally
+			{
+				segment.mLock.unlock();
+			}
+		}
 	}
 
 
@@ -435,34 +453,294 @@ public class Cache<K,V> implements Iterable<K>
 	 * @return
 	 *   true if this map contains no key-value mappings.
 	 */
-	public synchronized boolean isEmpty()
+	public boolean isEmpty()
 	{
-		return mKeyValueMap.isEmpty();
+		return size() == 0;
 	}
 
 
 	/**
-	 * Returns a set view of the keys contained in this map.
+	 * Returns a snapshot of the keys contained in this map.
 	 *
 	 * @return
-	 *   a set view of the keys contained in this map.
+	 *   a set of the keys contained in this map.
 	 */
-	public synchronized Set<K> keySet()
+	public Set<K> keySet()
 	{
-		return mKeyValueMap.keySet();
+		HashSet<K> keys = new HashSet<>();
+		for (Segment segment : mSegments)
+		{
+			segment.mLock.lock();
+			try
+			{
+				keys.addAll(segment.mMap.keySet());
+			}
+			finally
+			{
+				segment.mLock.unlock();
+			}
+		}
+		return keys;
 	}
 
 
 	/**
-	 * Returns an iterator for the keys in this Cache. The iterator is sorted
-	 * with the most recently used item first and the least recently used item
-	 * last.<p>
+	 * Returns an iterator for a snapshot of the keys in this Cache. The
+	 * iterator is sorted with the most recently used item first and the least
+	 * recently used item last.<p>
 	 *
 	 * Note: the Iterator must not be used to remove items.
 	 */
 	@Override
-	public synchronized Iterator<K> iterator()
+	public Iterator<K> iterator()
 	{
-		return mCacheOrder.iterator();
+		ArrayList<Entry<K,V>> entries = new ArrayList<>();
+		for (Segment segment : mSegments)
+		{
+			segment.mLock.lock();
+			try
+			{
+				for (Entry<K,V> entry = segment.mHead; entry != null; entry = entry.next)
+				{
+					Entry<K,V> copy = new Entry<>();
+					copy.key = entry.key;
+					copy.access = entry.access;
+					entries.add(copy);
+				}
+			}
+			finally
+			{
+				segment.mLock.unlock();
+			}
+		}
+
+		entries.sort((a, b) -> Long.signum(b.access - a.access));
+
+		ArrayList<K> keys = new ArrayList<>(entries.size());
+		for (Entry<K,V> entry : entries)
+		{
+			keys.add(entry.key);
+		}
+
+		return Collections.unmodifiableList(keys).iterator();
+	}
+
+
+	/**
+	 * Returns the segment of a key. The segment is selected by the high bits
+	 * of a multiplicative hash since the hash maps of the segments index their
+	 * buckets with the low bits.
+	 */
+	private Segment getSegment(K aKey)
+	{
+		int hash = aKey == null ? 0 : aKey.hashCode();
+
+		return mSegments[(hash * 0x9E3779B9) >>> (32 - SEGMENT_SHIFT)];
+	}
+
+
+	/**
+	 * A part of the cache with its own lock, map and MRU list. The access
+	 * time of an entry is taken from System.nanoTime when it's used and the
+	 * access time of the tail is published in a volatile field, so the tails
+	 * of all segments can be compared without locking to find the least
+	 * recently used entry of the cache.
+	 */
+	private class Segment
+	{
+		private final ReentrantLock mLock = new ReentrantLock();
+		private final HashMap<K,Entry<K,V>> mMap = new HashMap<>();
+		private Entry<K,V> mHead;
+		private Entry<K,V> mTail;
+		private volatile long mTailAccess = EMPTY;
+
+
+		/**
+		 * Adds or replaces an entry. When replace is false an existing value
+		 * is left in place and returned.
+		 */
+		V put(K aKey, V aValue, long aItemSize, boolean aReplace)
+		{
+			mLock.lock();
+			try
+			{
+				Entry<K,V> entry = mMap.get(aKey);
+
+				if (entry != null)
+				{
+					moveToFront(entry);
+
+					V prevValue = entry.value;
+
+					if (aReplace)
+					{
+						mUsedSize.addAndGet(aItemSize - entry.size);
+
+						entry.value = aValue;
+						entry.size = aItemSize;
+						entry.time = System.currentTimeMillis();
+					}
+
+					return prevValue;
+				}
+
+				entry = new Entry<>();
+				entry.key = aKey;
+				entry.value = aValue;
+				entry.size = aItemSize;
+				entry.time = System.currentTimeMillis();
+
+				mUsedSize.addAndGet(aItemSize);
+				linkFirst(entry);
+				mMap.put(aKey, entry);
+
+				return null;
+			}
+			finally
+			{
+				mLock.unlock();
+			}
+		}
+
+
+		/**
+		 * Returns the entry of a key optionally moving it to the front.
+		 */
+		Entry<K,V> get(K aKey, boolean aBump)
+		{
+			mLock.lock();
+			try
+			{
+				Entry<K,V> entry = mMap.get(aKey);
+
+				if (entry != null && aBump)
+				{
+					moveToFront(entry);
+				}
+
+				return entry;
+			}
+			finally
+			{
+				mLock.unlock();
+			}
+		}
+
+
+		V remove(K aKey)
+		{
+			mLock.lock();
+			try
+			{
+				Entry<K,V> entry = mMap.remove(aKey);
+
+				if (entry == null)
+				{
+					return null;
+				}
+
+				unlink(entry);
+				mUsedSize.addAndGet(-entry.size);
+
+				return entry.value;
+			}
+			finally
+			{
+				mLock.unlock();
+			}
+		}
+
+
+		/**
+		 * Removes the least recently used entry of the segment if it was
+		 * stored at or before the time provided.
+		 *
+		 * @return
+		 *   true if an entry was removed
+		 */
+		boolean removeTail(long aTime)
+		{
+			mLock.lock();
+			try
+			{
+				Entry<K,V> entry = mTail;
+
+				if (entry == null || entry.time > aTime)
+				{
+					return false;
+				}
+
+				mMap.remove(entry.key);
+				unlink(entry);
+				mUsedSize.addAndGet(-entry.size);
+
+				return true;
+			}
+			finally
+			{
+				mLock.unlock();
+			}
+		}
+
+
+		private void linkFirst(Entry<K,V> aEntry)
+		{
+			aEntry.access = System.nanoTime();
+			aEntry.prev = null;
+			aEntry.next = mHead;
+
+			if (mHead != null)
+			{
+				mHead.prev = aEntry;
+			}
+			else
+			{
+				mTail = aEntry;
+			}
+
+			mHead = aEntry;
+			mTailAccess = mTail.access;
+		}
+
+
+		private void unlink(Entry<K,V> aEntry)
+		{
+			if (aEntry.prev != null)
+			{
+				aEntry.prev.next = aEntry.next;
+			}
+			else
+			{
+				mHead = aEntry.next;
+			}
+
+			if (aEntry.next != null)
+			{
+				aEntry.next.prev = aEntry.prev;
+			}
+			else
+			{
+				mTail = aEntry.prev;
+			}
+
+			aEntry.prev = null;
+			aEntry.next = null;
+			mTailAccess = mTail == null ? EMPTY : mTail.access;
+		}
+
+
+		private void moveToFront(Entry<K,V> aEntry)
+		{
+			if (aEntry != mHead)
+			{
+				unlink(aEntry);
+				linkFirst(aEntry);
+			}
+			else
+			{
+				aEntry.access = System.nanoTime();
+				mTailAccess = mTail.access;
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,34 @@
+package org.terifan.fat32;
+
+import java.util.Calendar;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class FatFileTest
+{
+	@Test
+	public void testTruncateTime()
+	{
+		assertEquals(getTime(2024, 2, 29, 13, 45, 58), FatFile.truncateTime(getTime(2024, 2, 29, 13, 45, 58)));
+		assertEquals(getTime(2024, 2, 29, 13, 45, 58), FatFile.truncateTime(getTime(2024, 2, 29, 13, 45, 59) + 999));
+		assertEquals(getTime(1980, 1, 1, 0, 0, 0), FatFile.truncateTime(getTime(1980, 1, 1, 0, 0, 1)));
+		assertEquals(getTime(2107, 12, 31, 23, 59, 58), FatFile.truncateTime(getTime(2107, 12, 31, 23, 59, 59)));
+	}
+
+
+	@Test
+	public void testTruncateDate()
+	{
+		assertEquals(getTime(2024, 2, 29, 0, 0, 0), FatFile.truncateDate(getTime(2024, 2, 29, 13, 45, 58)));
+	}
+
+
+	private static long getTime(int aYear, int aMonth, int aDay, int aHour, int aMinute, int aSecond)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(aYear, aMonth - 1, aDay, aHour, aMinute, aSecond);
+		return calendar.getTimeInMillis();
+	}
+}
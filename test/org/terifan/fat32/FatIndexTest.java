@@ -0,0 +1,151 @@
+package org.terifan.fat32;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.terifan.pagestore.FilePageStore;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.terifan.util.ByteArray.LE;
+
+
+public class FatIndexTest
+{
+	@Test
+	public void testRootDirectoryGrowth512() throws IOException
+	{
+		testRootDirectoryGrowth(512, 1);
+		testRootDirectoryGrowth(512, 8);
+	}
+
+
+	@Test
+	public void testRootDirectoryGrowth4096() throws IOException
+	{
+		testRootDirectoryGrowth(4096, 1);
+		testRootDirectoryGrowth(4096, 8);
+	}
+
+
+	@Test
+	public void testCatalogNamelessEntry()
+	{
+		FatCatalog catalog = new FatCatalog();
+
+		int root = catalog.add(-1);
+		catalog.setName(root, null);
+		catalog.setShortName(root, null);
+
+		int file = catalog.add(root);
+		catalog.setName(file, "file.txt");
+
+		assertEquals("", catalog.getName(root));
+		assertEquals("", catalog.getShortName(root));
+		assertEquals(file, catalog.findChild(root, "FILE.TXT"));
+	}
+
+
+	/**
+	 * Changes the length in the directory entry of a file behind the back of
+	 * the index, leaving the FSInfo sector unchanged, and verifies that the
+	 * index is rebuilt when the volume is reopened.
+	 */
+	@Test
+	public void testRootDirectoryModifiedElsewhere() throws IOException
+	{
+		File volume = FatTestVolume.create(65536, 512, 1);
+		File index = FatTestVolume.createIndexFile();
+
+		long rootOffset;
+
+		try (FatFileSystem fs = new FatFileSystem(new FilePageStore(volume, false, 512), new FilePageStore(index, false, 512)))
+		{
+			try (FatRandomAccessStream stream = fs.getFile("").createFile("A.TXT").getRandomAccessStream())
+			{
+				stream.write(new byte[5]);
+			}
+
+			rootOffset = fs.getSectorOffset(fs.getBootSector().getRootFirstCluster()) * 512;
+		}
+
+		try (RandomAccessFile file = new RandomAccessFile(volume, "rw"))
+		{
+			byte[] cluster = new byte[512];
+			file.seek(rootOffset);
+			file.readFully(cluster);
+
+			int offset = new String(cluster, "ISO-8859-1").indexOf("A       TXT");
+			assertTrue(offset >= 0);
+
+			LE.putInt(cluster, offset + 0x1c, 3);
+			file.seek(rootOffset);
+			file.write(cluster);
+		}
+
+		try (FatFileSystem fs = new FatFileSystem(new FilePageStore(volume, false, 512), new FilePageStore(index, false, 512)))
+		{
+			assertEquals(3, fs.getFile("A.TXT").getLength());
+		}
+	}
+
+
+	/**
+	 * Creates more files than fit in the first cluster of the root directory
+	 * with an index attached and verifies the listing with and without the
+	 * index after reopening.
+	 */
+	private void testRootDirectoryGrowth(int aBytesPerSector, int aSectorsPerCluster) throws IOException
+	{
+		File volume = FatTestVolume.create(65536, aBytesPerSector, aSectorsPerCluster);
+		File index = FatTestVolume.createIndexFile();
+
+		int fileCount = aBytesPerSector * aSectorsPerCluster / 32 + 10;
+
+		List<String> expected = new ArrayList<>();
+
+		try (FatFileSystem fs = new FatFileSystem(new FilePageStore(volume, false, aBytesPerSector), new FilePageStore(index, false, 512)))
+		{
+			FatFile root = fs.getFile("");
+
+			for (int i = 0; i < fileCount; i++)
+			{
+				String name = "F" + i + ".TXT";
+
+				try (FatRandomAccessStream stream = root.createFile(name).getRandomAccessStream())
+				{
+					stream.write(name.getBytes("ISO-8859-1"));
+				}
+
+				expected.add(name);
+			}
+
+			assertEquals(expected, listNames(fs));
+		}
+
+		try (FatFileSystem fs = new FatFileSystem(new FilePageStore(volume, false, aBytesPerSector), new FilePageStore(index, false, 512)))
+		{
+			assertEquals(expected, listNames(fs));
+			assertEquals("F" + (fileCount - 1) + ".TXT", new String(fs.getFile("F" + (fileCount - 1) + ".TXT").readAll(), "ISO-8859-1"));
+		}
+
+		try (FatFileSystem fs = new FatFileSystem(new FilePageStore(volume, false, aBytesPerSector)))
+		{
+			assertEquals(expected, listNames(fs));
+		}
+	}
+
+
+	private static List<String> listNames(FatFileSystem aFileSystem) throws IOException
+	{
+		List<String> names = new ArrayList<>();
+
+		for (FatFile file : aFileSystem.listAllFiles())
+		{
+			names.add(file.getName());
+		}
+
+		return names;
+	}
+}
@@ -0,0 +1,55 @@
+package org.terifan.fat32;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.terifan.pagestore.FilePageStore;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class FatRandomAccessStreamTest
+{
+	/**
+	 * Extends a file with setLength over clusters released by another file
+	 * and verifies the extension reads back as zero bytes.
+	 */
+	@Test
+	public void testSetLengthZeroFills() throws IOException
+	{
+		File volume = FatTestVolume.create(65536, 512, 8);
+
+		byte[] data = new byte[1 << 20];
+		Arrays.fill(data, (byte)0xAB);
+
+		try (FatFileSystem fs = new FatFileSystem(new FilePageStore(volume, false, 512)))
+		{
+			FatFile root = fs.getFile("");
+
+			FatFile deleted = root.createFile("deleted.bin");
+
+			try (FatRandomAccessStream stream = deleted.getRandomAccessStream())
+			{
+				stream.write(data);
+			}
+
+			try (FatRandomAccessStream stream = deleted.getRandomAccessStream())
+			{
+				stream.setLength(0);
+			}
+
+			try (FatRandomAccessStream stream = root.createFile("extended.bin").getRandomAccessStream())
+			{
+				stream.setLength(data.length);
+			}
+		}
+
+		try (FatFileSystem fs = new FatFileSystem(new FilePageStore(volume, false, 512)))
+		{
+			FatFile file = fs.getFile("extended.bin");
+
+			assertEquals(data.length, file.getLength());
+			assertArrayEquals(new byte[data.length], file.readAll());
+		}
+	}
+}
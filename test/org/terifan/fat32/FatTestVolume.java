@@ -0,0 +1,44 @@
+package org.terifan.fat32;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.terifan.pagestore.FilePageStore;
+
+
+/**
+ * Creates empty FAT32 file systems in temporary files.
+ */
+class FatTestVolume
+{
+	/**
+	 * Creates a temporary file containing an empty FAT32 file system with the
+	 * root directory in cluster 2. The file is deleted when the VM exits.
+	 */
+	static File create(int aSectorCount, int aBytesPerSector, int aSectorsPerCluster) throws IOException
+	{
+		File file = File.createTempFile("fat32", ".img");
+		file.deleteOnExit();
+
+		try (RandomAccessFile output = new RandomAccessFile(file, "rw"))
+		{
+			output.setLength((long)aSectorCount * aBytesPerSector);
+		}
+
+		try (FilePageStore store = new FilePageStore(file, false, aBytesPerSector))
+		{
+			FatFileSystem.format(store, aSectorsPerCluster);
+		}
+
+		return file;
+	}
+
+
+	static File createIndexFile() throws IOException
+	{
+		File file = File.createTempFile("fat32", ".idx");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+}